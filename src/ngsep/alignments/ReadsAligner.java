@@ -313,6 +313,7 @@ public class ReadsAligner {
 			}
 			if(pool!=null) {
 				pool.terminatePool();
+				log.info("Statistics of the pool of threads:\n"+pool.getStatisticsSummary());
 			}
 			
 		} catch (InterruptedException e) {
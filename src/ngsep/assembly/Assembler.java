@@ -20,19 +20,23 @@
 package ngsep.assembly;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.KmersExtractor;
 import ngsep.sequences.QualifiedSequence;
-import ngsep.sequences.QualifiedSequenceList;
+import ngsep.sequences.PackedDNAReadsStore;
 import ngsep.sequences.RawRead;
+import ngsep.sequences.io.FastaFileReader;
 import ngsep.sequences.io.FastaSequencesHandler;
 import ngsep.sequences.io.FastqFileReader;
 import ngsep.main.CommandsDescriptor;
@@ -79,6 +83,7 @@ public class Assembler {
 	private boolean correctReads = false;
 	private int bpHomopolymerCompression = DEF_BP_HOMOPOLYMER_COMPRESSION;
 	private int numThreads = DEF_NUM_THREADS;
+	private String checkpointsPrefix = null;
 	
 	// Get and set methods
 	public Logger getLog() {
@@ -203,6 +208,13 @@ public class Assembler {
 		this.setNumThreads((int) OptionValuesDecoder.decode(value, Integer.class));
 	}
 	
+	public String getCheckpointsPrefix() {
+		return checkpointsPrefix;
+	}
+	public void setCheckpointsPrefix(String checkpointsPrefix) {
+		this.checkpointsPrefix = checkpointsPrefix;
+	}
+	
 	public static void main(String[] args) throws Exception {
 		Assembler instance = new Assembler ();
 		CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -225,6 +237,7 @@ public class Assembler {
 		else out.println("Algorithm to build graph: "+graphConstructionAlgorithm);
 		out.println("Algorithm to build layout: "+layoutAlgorithm);
 		out.println("Algorithm to build consensus: "+consensusAlgorithm);
+		if(checkpointsPrefix!=null) out.println("Prefix for binary checkpoints: "+checkpointsPrefix);
 		if(bpHomopolymerCompression>0) out.println("Run homopolymer compression keeping at most "+bpHomopolymerCompression+" consecutive base pairs");
 		//out.println("K-mer length: "+ kmerLength);
 		//out.println("K-mer offset for FM-index: "+ kmerOffset);
@@ -239,8 +252,29 @@ public class Assembler {
 		for(QualifiedSequence seq:sequences) totalBp+=seq.getLength();
 		log.info("Loaded "+sequences.size()+" sequences. Total basepairs: "+totalBp);
 		if(progressNotifier!=null && !progressNotifier.keepRunning(10)) return;
-		AssemblyGraph graph;
-		if(graphFile!=null) {
+		AssemblyCheckpointsHandler checkpoints = null;
+		long graphKey = 0;
+		long layoutKey = 0;
+		long consensusKey = 0;
+		if(checkpointsPrefix!=null) {
+			checkpoints = new AssemblyCheckpointsHandler(checkpointsPrefix);
+			checkpoints.setLog(log);
+			graphKey = calculateGraphKey(sequences);
+			layoutKey = AssemblyCheckpointsHandler.calculateKey(graphKey, layoutAlgorithm);
+			consensusKey = AssemblyCheckpointsHandler.calculateKey(layoutKey, consensusAlgorithm, correctReads);
+			//The file of corrected reads is only produced running the consensus
+			List<QualifiedSequence> assembledSequences = correctReads?null:checkpoints.loadConsensus(consensusKey);
+			if(assembledSequences!=null) {
+				log.info("Loaded consensus from checkpoint. Assembled sequences: "+assembledSequences.size());
+				saveAssembly(assembledSequences, outputPrefix);
+				return;
+			}
+		}
+		AssemblyGraph graph = (checkpoints!=null)?checkpoints.loadGraph(sequences, graphKey):null;
+		boolean graphFromCheckpoint = graph!=null;
+		if(graphFromCheckpoint) {
+			log.info("Loaded graph from checkpoint "+checkpoints.getFilename(AssemblyCheckpointsHandler.STAGE_GRAPH, graphKey));
+		} else if(graphFile!=null) {
 			graph = AssemblyGraph.load(sequences, graphFile);
 		} else if (GRAPH_CONSTRUCTION_ALGORITHM_FMINDEX.equals(graphConstructionAlgorithm)) {
 			GraphBuilderFMIndex gbIndex = new GraphBuilderFMIndex();
@@ -282,6 +316,7 @@ public class Assembler {
 			graph.save(outFileGraph);
 			log.info("Saved graph to "+outFileGraph);
 		}
+		if(checkpoints!=null && !graphFromCheckpoint) checkpoints.saveGraph(graph, graphKey);
 		//graph.removeEdgesChimericReads();
 		graph.filterEdgesAndEmbedded();
 		log.info("Filtered graph. Vertices: "+graph.getVertices().size()+" edges: "+graph.getEdges().size());
@@ -294,7 +329,12 @@ public class Assembler {
 			//LayourBuilder pathsFinder = new LayoutBuilderMetricMSTChristofides();
 			//LayourBuilder pathsFinder = new LayoutBuilderModifiedKruskal();
 		}
-		pathsFinder.findPaths(graph);
+		if(checkpoints!=null && checkpoints.loadPaths(graph, layoutKey)) {
+			log.info("Loaded layout from checkpoint "+checkpoints.getFilename(AssemblyCheckpointsHandler.STAGE_LAYOUT, layoutKey));
+		} else {
+			pathsFinder.findPaths(graph);
+			if(checkpoints!=null) checkpoints.savePaths(graph, layoutKey);
+		}
 		log.info("Layout complete. Paths: "+graph.getPaths().size());
 		if(progressNotifier!=null && !progressNotifier.keepRunning(60)) return;
 		ConsensusBuilder consensus;
@@ -308,13 +348,31 @@ public class Assembler {
 		}
 		List<QualifiedSequence> assembledSequences =  consensus.makeConsensus(graph);
 		log.info("Built consensus");
+		if(checkpoints!=null && !correctReads) checkpoints.saveConsensus(assembledSequences, consensusKey);
 		if(progressNotifier!=null && !progressNotifier.keepRunning(95)) return;
+		saveAssembly(assembledSequences, outputPrefix);
+	}
+	
+	private void saveAssembly(List<QualifiedSequence> assembledSequences, String outputPrefix) throws IOException {
 		FastaSequencesHandler handler = new FastaSequencesHandler();
-		
 		try (PrintStream out = new PrintStream(outputPrefix+".fa")) {
 			handler.saveSequences(assembledSequences, out, 100);
 		}
 	}
+	
+	/**
+	 * Calculates the key of the graph stage for checkpoints from the reads and the parameters used to build or load the graph
+	 * @param sequences Input reads
+	 * @return long Key of the graph stage
+	 */
+	private long calculateGraphKey(List<QualifiedSequence> sequences) {
+		long key = AssemblyCheckpointsHandler.calculateKey(sequences);
+		if(graphFile!=null) {
+			File file = new File(graphFile);
+			return AssemblyCheckpointsHandler.calculateKey(key, file.getAbsolutePath(), file.length(), file.lastModified());
+		}
+		return AssemblyCheckpointsHandler.calculateKey(key, graphConstructionAlgorithm, kmerLength, windowLength, bpHomopolymerCompression);
+	}
 
 	private double [] runHomopolymerCompression(List<QualifiedSequence> sequences) {
 		double [] compressionFactors = new double[sequences.size()];
@@ -343,7 +401,8 @@ public class Assembler {
 		return answer;
 	}
 	/**
-	 * Load the sequences of the file
+	 * Load the sequences of the file. Sequences are packed in a PackedDNAReadsStore and the returned sequences
+	 * are views of the store, so all stages of the assembly share one compact copy of the reads
 	 * 
 	 * @param Filename the file path
 	 * @return The sequences
@@ -351,8 +410,9 @@ public class Assembler {
 	 */
 	public static List<QualifiedSequence> load(String filename, byte inputFormat, int minReadLength) throws IOException {
 		List<QualifiedSequence> sequences;
-		if (INPUT_FORMAT_FASTQ == inputFormat) sequences = loadFastq(filename,minReadLength);
-		else if (INPUT_FORMAT_FASTA==inputFormat) sequences = loadFasta(filename, minReadLength);
+		PackedDNAReadsStore store = new PackedDNAReadsStore();
+		if (INPUT_FORMAT_FASTQ == inputFormat) sequences = loadFastq(filename,minReadLength, store);
+		else if (INPUT_FORMAT_FASTA==inputFormat) sequences = loadFasta(filename, minReadLength, store);
 		else throw new IOException("the file not is a fasta or fastq file: " + filename);
 		Collections.sort(sequences, (l1, l2) -> l2.getLength() - l1.getLength());
 		return sequences;
@@ -361,15 +421,24 @@ public class Assembler {
 	/**
 	 * Load the sequences of the Fasta file
 	 * @param filename the file path
+	 * @param store Store to pack the loaded sequences
 	 * @return The sequences
 	 * @throws IOException The file cannot opened
 	 */
-	private static List<QualifiedSequence> loadFasta(String filename, int minReadLength) throws IOException {
-		FastaSequencesHandler handler = new FastaSequencesHandler();
-		QualifiedSequenceList seqsQL = handler.loadSequences(filename);
+	private static List<QualifiedSequence> loadFasta(String filename, int minReadLength, PackedDNAReadsStore store) throws IOException {
 		List<QualifiedSequence> answer = new ArrayList<QualifiedSequence>();
-		for(QualifiedSequence seq:seqsQL) {
-			if(seq.getLength()>=minReadLength) answer.add(seq);
+		//Only the first sequence with each name is loaded
+		Set<String> names = new HashSet<String>();
+		try (FastaFileReader reader = new FastaFileReader(filename)) {
+			reader.setSequenceType(StringBuilder.class);
+			Iterator<QualifiedSequence> it = reader.iterator();
+			while(it.hasNext()) {
+				QualifiedSequence seq = it.next();
+				if(!names.add(seq.getName())) continue;
+				if(seq.getLength()<minReadLength) continue;
+				int idx = store.add(seq.getCharacters());
+				answer.add(new QualifiedSequence(seq.getName(), store.getSequence(idx)));
+			}
 		}
 		return answer;
 	}
@@ -378,20 +447,22 @@ public class Assembler {
 	 * Load the sequences of the Fastq file
 	 * 
 	 * @param Filename the file path
+	 * @param store Store to pack the loaded sequences
 	 * @return The sequences
 	 * @throws IOException The file cannot opened
 	 */
-	private static List<QualifiedSequence> loadFastq(String filename, int minReadLength) throws IOException {
+	private static List<QualifiedSequence> loadFastq(String filename, int minReadLength, PackedDNAReadsStore store) throws IOException {
 		List<QualifiedSequence> sequences = new ArrayList<>();
 		try (FastqFileReader reader = new FastqFileReader(filename)) {
-			reader.setSequenceType(DNAMaskedSequence.class);
 			//TODO: Option to load quality scores
 			reader.setLoadMode(FastqFileReader.LOAD_MODE_WITH_NAME);
 			Iterator<RawRead> it = reader.iterator();
 			while (it.hasNext()) {
 				RawRead read = it.next();
-				DNAMaskedSequence characters = (DNAMaskedSequence) read.getCharacters();
-				if(characters.length()>=minReadLength) sequences.add(new QualifiedSequence(read.getName(), characters));
+				CharSequence characters = read.getCharacters();
+				if(characters.length()<minReadLength) continue;
+				int idx = store.add(characters);
+				sequences.add(new QualifiedSequence(read.getName(), store.getSequence(idx)));
 			}
 		}
 		return sequences;
@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.assembly;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import ngsep.sequences.QualifiedSequence;
+
+/**
+ * Saves and loads binary checkpoints of the stages of the assembly: graph, layout and consensus.
+ * Each checkpoint is identified by a key calculated from the input reads and the parameters of the stage
+ * and of the previous stages. The key is part of the file name and it is verified when the checkpoint is loaded,
+ * so checkpoints created from different reads or with different parameters can coexist and are not mixed up.
+ * Files are written to a temporary file and renamed when complete, so interrupted runs do not leave truncated checkpoints
+ * @author Jorge Duitama
+ */
+public class AssemblyCheckpointsHandler {
+	public static final String STAGE_GRAPH = "graph";
+	public static final String STAGE_LAYOUT = "layout";
+	public static final String STAGE_CONSENSUS = "consensus";
+
+	private static final String MAGIC = "NGSEPASM";
+	private static final int VERSION = 1;
+	private static final int END_MARK = 0x454E4421;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private Logger log = Logger.getLogger(AssemblyCheckpointsHandler.class.getName());
+	private final String prefix;
+
+	/**
+	 * Creates a handler for checkpoints with the given prefix
+	 * @param prefix Prefix of the checkpoint files. It may include a directory
+	 */
+	public AssemblyCheckpointsHandler(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	/**
+	 * Calculates the key of the input reads from their names, lengths and bases
+	 * @param sequences Input reads in the order used to build the graph
+	 * @return long Key of the input reads
+	 */
+	public static long calculateKey(List<QualifiedSequence> sequences) {
+		long key = FNV_OFFSET;
+		for(QualifiedSequence seq:sequences) {
+			key = updateKey(key, seq.getName());
+			key = updateKey(key, String.valueOf(seq.getLength()));
+			CharSequence characters = seq.getCharacters();
+			int n = characters.length();
+			for(int i=0;i<n;i++) {
+				key ^= characters.charAt(i);
+				key *= FNV_PRIME;
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Calculates the key of a stage from the key of the previous stage and the parameters of the stage
+	 * @param previousKey Key of the previous stage or of the input reads for the first stage
+	 * @param parameters Values of the parameters that affect the result of the stage
+	 * @return long Key of the stage
+	 */
+	public static long calculateKey(long previousKey, Object... parameters) {
+		long key = previousKey;
+		for(Object param:parameters) key = updateKey(key, String.valueOf(param));
+		return key;
+	}
+
+	private static long updateKey(long key, String value) {
+		byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+		for(int i=0;i<bytes.length;i++) {
+			key ^= (bytes[i] & 0xFF);
+			key *= FNV_PRIME;
+		}
+		//Separator to distinguish concatenated values
+		key ^= 0xFF;
+		key *= FNV_PRIME;
+		return key;
+	}
+
+	/**
+	 * @param stage Assembly stage
+	 * @param key Key of the stage
+	 * @return String Name of the checkpoint file for the given stage and key
+	 */
+	public String getFilename(String stage, long key) {
+		return prefix+"_"+stage+"_"+String.format("%016x", key)+".ckp";
+	}
+
+	/**
+	 * @param stage Assembly stage
+	 * @param key Key of the stage
+	 * @return boolean true if a checkpoint file exists for the given stage and key
+	 */
+	public boolean exists(String stage, long key) {
+		return new File(getFilename(stage, key)).exists();
+	}
+
+	public void saveGraph(AssemblyGraph graph, long key) throws IOException {
+		try (CheckpointOutput out = new CheckpointOutput(STAGE_GRAPH, key)) {
+			graph.saveBinary(out.stream);
+			out.complete();
+		}
+	}
+
+	/**
+	 * Loads the graph saved for the given key
+	 * @param sequences Input reads
+	 * @param key Key of the graph stage
+	 * @return AssemblyGraph Loaded graph or null if the checkpoint does not exist or it is not valid
+	 */
+	public AssemblyGraph loadGraph(List<QualifiedSequence> sequences, long key) {
+		if(!exists(STAGE_GRAPH, key)) return null;
+		try (DataInputStream in = openCheckpoint(STAGE_GRAPH, key)) {
+			AssemblyGraph graph = AssemblyGraph.loadBinary(sequences, in);
+			checkEnd(in);
+			return graph;
+		} catch (IOException e) {
+			log.warning("Invalid graph checkpoint "+getFilename(STAGE_GRAPH, key)+". "+getErrorMessage(e));
+		}
+		return null;
+	}
+
+	/**
+	 * Saves the paths of the layout of the given graph
+	 * @param graph Graph with paths
+	 * @param key Key of the layout stage
+	 * @throws IOException If the checkpoint can not be written
+	 */
+	public void savePaths(AssemblyGraph graph, long key) throws IOException {
+		try (CheckpointOutput out = new CheckpointOutput(STAGE_LAYOUT, key)) {
+			List<List<AssemblyEdge>> paths = graph.getPaths();
+			out.stream.writeInt(paths.size());
+			for(List<AssemblyEdge> path:paths) {
+				out.stream.writeInt(path.size());
+				for(AssemblyEdge edge:path) {
+					out.stream.writeInt(edge.getVertex1().getUniqueNumber());
+					out.stream.writeInt(edge.getVertex2().getUniqueNumber());
+				}
+			}
+			out.complete();
+		}
+	}
+
+	/**
+	 * Loads the paths saved for the given key and adds them to the graph. Edges of the paths are searched in the given graph,
+	 * which should be in the state used to build the layout
+	 * @param graph Graph to add the paths
+	 * @param key Key of the layout stage
+	 * @return boolean true if the paths were loaded. false if the checkpoint does not exist or it is not valid
+	 */
+	public boolean loadPaths(AssemblyGraph graph, long key) {
+		if(!exists(STAGE_LAYOUT, key)) return false;
+		List<List<AssemblyEdge>> paths = new ArrayList<List<AssemblyEdge>>();
+		try (DataInputStream in = openCheckpoint(STAGE_LAYOUT, key)) {
+			int numPaths = in.readInt();
+			for(int i=0;i<numPaths;i++) {
+				int n = in.readInt();
+				List<AssemblyEdge> path = new ArrayList<AssemblyEdge>(n);
+				for(int j=0;j<n;j++) {
+					AssemblyVertex v1 = graph.getVertexByUniqueId(in.readInt());
+					AssemblyVertex v2 = graph.getVertexByUniqueId(in.readInt());
+					AssemblyEdge edge = (v1!=null && v2!=null)?graph.getEdge(v1, v2):null;
+					if(edge==null || edge.getVertex1()!=v1) throw new IOException("Edge of path "+i+" at position "+j+" not found in the graph");
+					path.add(edge);
+				}
+				paths.add(path);
+			}
+			checkEnd(in);
+		} catch (IOException e) {
+			log.warning("Invalid layout checkpoint "+getFilename(STAGE_LAYOUT, key)+". "+getErrorMessage(e));
+			return false;
+		}
+		for(List<AssemblyEdge> path:paths) graph.addPath(path);
+		return true;
+	}
+
+	public void saveConsensus(List<QualifiedSequence> assembledSequences, long key) throws IOException {
+		try (CheckpointOutput out = new CheckpointOutput(STAGE_CONSENSUS, key)) {
+			out.stream.writeInt(assembledSequences.size());
+			for(QualifiedSequence seq:assembledSequences) {
+				out.stream.writeUTF(seq.getName());
+				CharSequence characters = seq.getCharacters();
+				int n = characters.length();
+				out.stream.writeInt(n);
+				for(int i=0;i<n;i++) out.stream.writeByte(characters.charAt(i));
+			}
+			out.complete();
+		}
+	}
+
+	/**
+	 * Loads the assembled sequences saved for the given key
+	 * @param key Key of the consensus stage
+	 * @return List<QualifiedSequence> Assembled sequences or null if the checkpoint does not exist or it is not valid
+	 */
+	public List<QualifiedSequence> loadConsensus(long key) {
+		if(!exists(STAGE_CONSENSUS, key)) return null;
+		try (DataInputStream in = openCheckpoint(STAGE_CONSENSUS, key)) {
+			int numSequences = in.readInt();
+			List<QualifiedSequence> answer = new ArrayList<QualifiedSequence>(numSequences);
+			for(int i=0;i<numSequences;i++) {
+				String name = in.readUTF();
+				byte [] characters = new byte[in.readInt()];
+				in.readFully(characters);
+				answer.add(new QualifiedSequence(name, new String(characters, StandardCharsets.ISO_8859_1)));
+			}
+			checkEnd(in);
+			return answer;
+		} catch (IOException e) {
+			log.warning("Invalid consensus checkpoint "+getFilename(STAGE_CONSENSUS, key)+". "+getErrorMessage(e));
+		}
+		return null;
+	}
+
+	private DataInputStream openCheckpoint(String stage, long key) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getFilename(stage, key))));
+		try {
+			byte [] magic = new byte[MAGIC.length()];
+			in.readFully(magic);
+			if(!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) throw new IOException("File is not an assembly checkpoint");
+			int version = in.readInt();
+			if(version!=VERSION) throw new IOException("Unsupported checkpoint version "+version);
+			String fileStage = in.readUTF();
+			if(!stage.equals(fileStage)) throw new IOException("Unexpected stage. Expected: "+stage+" loaded: "+fileStage);
+			long fileKey = in.readLong();
+			if(fileKey!=key) throw new IOException("Checkpoint created with different reads or parameters");
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return in;
+	}
+
+	private static String getErrorMessage(IOException e) {
+		if(e instanceof EOFException) return "Incomplete checkpoint file";
+		return e.getMessage();
+	}
+
+	private void checkEnd(DataInputStream in) throws IOException {
+		if(in.readInt()!=END_MARK) throw new IOException("Incomplete checkpoint file");
+	}
+
+	/**
+	 * Output stream writing to a temporary file that replaces the checkpoint file only if it is completed
+	 */
+	private class CheckpointOutput implements AutoCloseable {
+		private final File file;
+		private final File tmpFile;
+		private final DataOutputStream stream;
+		private boolean completed = false;
+
+		public CheckpointOutput(String stage, long key) throws IOException {
+			file = new File(getFilename(stage, key));
+			tmpFile = new File(file.getPath()+".tmp");
+			stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1<<16));
+			stream.writeBytes(MAGIC);
+			stream.writeInt(VERSION);
+			stream.writeUTF(stage);
+			stream.writeLong(key);
+		}
+
+		public void complete() throws IOException {
+			stream.writeInt(END_MARK);
+			stream.close();
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			completed = true;
+			log.info("Saved checkpoint "+file.getPath());
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(completed) return;
+			stream.close();
+			tmpFile.delete();
+		}
+	}
+}
@@ -20,18 +20,24 @@
 package ngsep.assembly;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.zip.GZIPOutputStream;
 
 import ngsep.main.io.ConcatGZIPInputStream;
@@ -50,30 +56,30 @@ public class AssemblyGraph {
 	 */
 	private List<QualifiedSequence> sequences;
 	/**
-	 * Start vertices indexed by sequence index
+	 * Vertices indexed by vertex index. The start vertex of the sequence i has index 2*i and the end vertex has index 2*i+1.
+	 * Vertices of removed sequences are null
 	 */
-	private Map<Integer,AssemblyVertex> verticesStart;
+	private AssemblyVertex [] vertices;
 	/**
-	 * End vertices indexed by sequence index
+	 * Edges incident to each vertex indexed by vertex index. Only the first entries given by the degree of each vertex are used
 	 */
-	private Map<Integer,AssemblyVertex> verticesEnd;
-	/**
-	 * All vertices indexed by unique number
-	 */
-	private Map<Integer,AssemblyVertex> verticesByUnique;
-	
-	private Map<Integer,List<AssemblyEdge>> edgesMap = new HashMap<>();
+	private AssemblyEdge [][] edgesByVertex;
+	private int [] vertexDegrees;
+	private int numVertices = 0;
 	
-	// Map with sequence ids as keys and embedded sequences as objects
-	private Map<Integer, List<AssemblyEmbedded>> embeddedMapByHost = new HashMap<>();
+	// Embedded relationships indexed by the id of the host sequence. Null if a sequence does not host other sequences
+	private List<List<AssemblyEmbedded>> embeddedByHost;
 	
-	
-	private Map<Integer, List<AssemblyEmbedded>> embeddedMapBySequence = new HashMap<>();
+	// Embedded relationships indexed by the id of the embedded sequence. Null if a sequence is not embedded
+	private List<List<AssemblyEmbedded>> embeddedBySequence;
+	private int numEmbeddedSequences = 0;
 
 	private List<List<AssemblyEdge>> paths = new ArrayList<List<AssemblyEdge>>();
 	
 	private int numEdges = 0;
 	
+	private static final AssemblyEdge [] NO_EDGES = new AssemblyEdge[0];
+	
 	/**
 	 * Optional attribute to store the sequence names. Useful for the gold standard graph
 	 */
@@ -82,20 +88,19 @@ public class AssemblyGraph {
 	public AssemblyGraph(List<QualifiedSequence> sequences) {
 		int n = sequences.size();
 		this.sequences = Collections.unmodifiableList(sequences);
-		verticesStart = new HashMap<>(n);
-		verticesEnd = new HashMap<>(n);
-		verticesByUnique = new HashMap<>(n);
-		edgesMap = new HashMap<>(n);
+		vertices = new AssemblyVertex[2*n];
+		edgesByVertex = new AssemblyEdge[2*n][];
+		Arrays.fill(edgesByVertex, NO_EDGES);
+		vertexDegrees = new int[2*n];
+		embeddedByHost = new ArrayList<>(Collections.nCopies(n, (List<AssemblyEmbedded>)null));
+		embeddedBySequence = new ArrayList<>(Collections.nCopies(n, (List<AssemblyEmbedded>)null));
 		for (int i=0;i<sequences.size();i++) {
 			QualifiedSequence seq = sequences.get(i);
 			AssemblyVertex vS = new AssemblyVertex(seq, true, i);
-			verticesStart.put(i,vS);
-			verticesByUnique.put(vS.getUniqueNumber(), vS);
-			edgesMap.put(vS.getUniqueNumber(), new ArrayList<>());
+			vertices[getVertexIndex(vS)] = vS;
 			AssemblyVertex vE = new AssemblyVertex(seq, false, i);
-			verticesEnd.put(i,vE);
-			verticesByUnique.put(vE.getUniqueNumber(), vE);
-			edgesMap.put(vE.getUniqueNumber(), new ArrayList<>());
+			vertices[getVertexIndex(vE)] = vE;
+			numVertices+=2;
 			AssemblyEdge edge = new AssemblyEdge(vS, vE, seq.getLength());
 			edge.setMismatches(0);
 			edge.setCoverageSharedKmers(seq.getLength());
@@ -105,48 +110,99 @@ public class AssemblyGraph {
 		}
 	}
 	
+	private static int getVertexIndex(AssemblyVertex vertex) {
+		return getVertexIndex(vertex.getSequenceIndex(), vertex.isStart());
+	}
+	
+	private static int getVertexIndex(int sequenceIndex, boolean start) {
+		return start?2*sequenceIndex:2*sequenceIndex+1;
+	}
+	
+	private static int getVertexIndexFromUniqueId(int uniqueId) {
+		if(uniqueId>=0) return getVertexIndex(uniqueId, true);
+		return getVertexIndex(-uniqueId-1, false);
+	}
+	
 	//Modifiers
 	
 	public void addEdge(AssemblyEdge edge) {
-		edgesMap.get(edge.getVertex1().getUniqueNumber()).add(edge);
-		edgesMap.get(edge.getVertex2().getUniqueNumber()).add(edge);
+		addIncidentEdge(getVertexIndex(edge.getVertex1()), edge);
+		addIncidentEdge(getVertexIndex(edge.getVertex2()), edge);
 		numEdges++;
 	}
 	
+	/**
+	 * Adds a group of edges. The arrays of incident edges grow at most once per vertex
+	 * and edges are added to each vertex in the order of the given list
+	 * @param edges to add
+	 */
+	public void addEdges(List<AssemblyEdge> edges) {
+		int [] newDegrees = new int [vertexDegrees.length];
+		for(AssemblyEdge edge:edges) {
+			newDegrees[getVertexIndex(edge.getVertex1())]++;
+			newDegrees[getVertexIndex(edge.getVertex2())]++;
+		}
+		for(int i=0;i<newDegrees.length;i++) {
+			if(newDegrees[i]==0) continue;
+			if(vertices[i]==null) throw new NullPointerException("Vertex with index "+i+" was removed from the graph");
+			int degree = vertexDegrees[i]+newDegrees[i];
+			if(degree>edgesByVertex[i].length) edgesByVertex[i] = Arrays.copyOf(edgesByVertex[i], degree);
+		}
+		for(AssemblyEdge edge:edges) addEdge(edge);
+	}
+
+	private void addIncidentEdge(int vertexIdx, AssemblyEdge edge) {
+		if(vertices[vertexIdx]==null) throw new NullPointerException("Vertex with index "+vertexIdx+" was removed from the graph");
+		AssemblyEdge [] edges = edgesByVertex[vertexIdx];
+		int degree = vertexDegrees[vertexIdx];
+		if(degree==edges.length) {
+			edges = Arrays.copyOf(edges, Math.max(4, 2*degree));
+			edgesByVertex[vertexIdx] = edges;
+		}
+		edges[degree] = edge;
+		vertexDegrees[vertexIdx]++;
+	}
+	
 	public void removeEdge (AssemblyEdge edge) {
-		List<AssemblyEdge> edges1 = edgesMap.get(edge.getVertex1().getUniqueNumber()); 
-		if(edges1!=null) edges1.remove(edge);
-		List<AssemblyEdge> edges2 = edgesMap.get(edge.getVertex2().getUniqueNumber());
-		if(edges2!=null) edges2.remove(edge);
+		removeIncidentEdge(getVertexIndex(edge.getVertex1()), edge);
+		removeIncidentEdge(getVertexIndex(edge.getVertex2()), edge);
 		numEdges--;
 	}
 	
+	private void removeIncidentEdge(int vertexIdx, AssemblyEdge edge) {
+		AssemblyEdge [] edges = edgesByVertex[vertexIdx];
+		int degree = vertexDegrees[vertexIdx];
+		for(int i=0;i<degree;i++) {
+			if(edges[i]==edge) {
+				//Shift to keep the order of the remaining edges
+				System.arraycopy(edges, i+1, edges, i, degree-i-1);
+				edges[degree-1] = null;
+				vertexDegrees[vertexIdx]--;
+				return;
+			}
+		}
+	}
+	
 	public void removeVertices(int sequenceId) {
 		removeEdges(sequenceId);
-		AssemblyVertex v1 = getVertex(sequenceId, true);
-		AssemblyVertex v2 = getVertex(sequenceId, false);
-		edgesMap.remove(v1.getUniqueNumber());
-		edgesMap.remove(v2.getUniqueNumber());
-		verticesStart.remove(sequenceId);
-		verticesEnd.remove(sequenceId);
-		verticesByUnique.remove(v1.getUniqueNumber());
-		verticesByUnique.remove(v2.getUniqueNumber());
+		for(int vertexIdx = getVertexIndex(sequenceId, true); vertexIdx<=getVertexIndex(sequenceId, false); vertexIdx++) {
+			if(vertices[vertexIdx]!=null) numVertices--;
+			vertices[vertexIdx] = null;
+			edgesByVertex[vertexIdx] = NO_EDGES;
+			vertexDegrees[vertexIdx] = 0;
+		}
 	}
 	
 	private void removeEdges(int sequenceId) {
 		AssemblyVertex v1 = getVertex(sequenceId, true);
 		List<AssemblyEdge> toRemove = new ArrayList<AssemblyEdge>();
 		if(v1!=null) {
-			List<AssemblyEdge> edges1 = edgesMap.get(v1.getUniqueNumber()); 
-			if(edges1!=null) toRemove.addAll(edges1);
+			toRemove.addAll(getEdges(v1));
 		}
 		AssemblyVertex v2 = getVertex(sequenceId, false);
 		if(v2!=null) {
-			List<AssemblyEdge> edges2 = edgesMap.get(v2.getUniqueNumber());
-			if(edges2!=null) {
-				for(AssemblyEdge edge:edges2) {
-					if(!edge.isSameSequenceEdge()) toRemove.add(edge);
-				}
+			for(AssemblyEdge edge:getEdges(v2)) {
+				if(!edge.isSameSequenceEdge()) toRemove.add(edge);
 			}
 		}
 		for(AssemblyEdge edge:toRemove) {
@@ -155,26 +211,42 @@ public class AssemblyGraph {
 	}
 	
 	public void addEmbedded(AssemblyEmbedded embeddedObject) {
-		List<AssemblyEmbedded> list = embeddedMapByHost.computeIfAbsent(embeddedObject.getHostId(), key -> new LinkedList<>());
+		int hostId = embeddedObject.getHostId();
+		List<AssemblyEmbedded> list = embeddedByHost.get(hostId);
+		if(list==null) {
+			list = new ArrayList<>(2);
+			embeddedByHost.set(hostId, list);
+		}
 		list.add(embeddedObject);
-		List<AssemblyEmbedded> list2 = embeddedMapBySequence.computeIfAbsent(embeddedObject.getSequenceId(), key -> new LinkedList<>());
+		int seqId = embeddedObject.getSequenceId();
+		List<AssemblyEmbedded> list2 = embeddedBySequence.get(seqId);
+		if(list2==null) {
+			list2 = new ArrayList<>(2);
+			embeddedBySequence.set(seqId, list2);
+			numEmbeddedSequences++;
+		}
 		list2.add(embeddedObject);	
 	}
 	
 	public void removeEmbedded (AssemblyEmbedded embeddedObject) {
 		int hostId = embeddedObject.getHostId();
-		embeddedMapByHost.get(hostId).remove(embeddedObject);
-		if(embeddedMapByHost.get(hostId).size()==0) embeddedMapByHost.remove(hostId);
+		List<AssemblyEmbedded> list = embeddedByHost.get(hostId);
+		list.remove(embeddedObject);
+		if(list.size()==0) embeddedByHost.set(hostId, null);
 		int seqId = embeddedObject.getSequenceId();
-		embeddedMapBySequence.get(seqId).remove(embeddedObject);
-		if(embeddedMapBySequence.get(seqId).size()==0) embeddedMapBySequence.remove(seqId);
+		List<AssemblyEmbedded> list2 = embeddedBySequence.get(seqId);
+		list2.remove(embeddedObject);
+		if(list2.size()==0) {
+			embeddedBySequence.set(seqId, null);
+			numEmbeddedSequences--;
+		}
 	}
 	
 	private void removeEmbeddedRelations(int sequenceId) {
 		List<AssemblyEmbedded> embeddedList = new ArrayList<AssemblyEmbedded>();
-		List<AssemblyEmbedded> emb = embeddedMapByHost.get(sequenceId);
+		List<AssemblyEmbedded> emb = embeddedByHost.get(sequenceId);
 		if(emb!=null) embeddedList.addAll(emb);
-		emb = embeddedMapBySequence.get(sequenceId);
+		emb = embeddedBySequence.get(sequenceId);
 		if(emb!=null) embeddedList.addAll(emb);
 		for(AssemblyEmbedded embedded: embeddedList) {
 			removeEmbedded(embedded);
@@ -182,8 +254,8 @@ public class AssemblyGraph {
 	}
 	
 	public void pruneEmbeddedSequences() {
-		for(int i:embeddedMapBySequence.keySet()) {
-			if(verticesStart.get(i)!=null) {
+		for(int i=0;i<embeddedBySequence.size();i++) {
+			if(embeddedBySequence.get(i)!=null && getVertex(i, true)!=null) {
 				removeVertices(i);
 			}
 		}
@@ -211,21 +283,23 @@ public class AssemblyGraph {
 	
 	public int getMedianLength() {
 		int n = getNumSequences();
-		List<Integer> lengths = new ArrayList<Integer>(n);
-		for(QualifiedSequence seq:sequences) lengths.add(seq.getLength());
-		Collections.sort(lengths);
-		return lengths.get(n/2);
+		int [] lengths = new int[n];
+		for(int i=0;i<n;i++) lengths[i] = sequences.get(i).getLength();
+		Arrays.sort(lengths);
+		return lengths[n/2];
 	}
 
 	
 
 	public AssemblyVertex getVertex(int indexSequence, boolean start) {
-		if(start) return verticesStart.get(indexSequence);
-		return verticesEnd.get(indexSequence);
+		if(indexSequence<0 || indexSequence>=sequences.size()) return null;
+		return vertices[getVertexIndex(indexSequence, start)];
 	}
 	
 	public AssemblyVertex getVertexByUniqueId(int uniqueId) {
-		return verticesByUnique.get(uniqueId);
+		int vertexIdx = getVertexIndexFromUniqueId(uniqueId);
+		if(vertexIdx<0 || vertexIdx>=vertices.length) return null;
+		return vertices[vertexIdx];
 	}
 
 	/**
@@ -235,7 +309,7 @@ public class AssemblyGraph {
 	 * @return list of embedded sequences
 	 */
 	public List<AssemblyEmbedded> getEmbeddedByHostId(int hostIndex) {
-		List<AssemblyEmbedded> answer = embeddedMapByHost.get(hostIndex);
+		List<AssemblyEmbedded> answer = embeddedByHost.get(hostIndex);
 		if(answer == null) return new ArrayList<AssemblyEmbedded>();
 		return answer;
 	}
@@ -246,26 +320,31 @@ public class AssemblyGraph {
 	 * @return List<AssemblyEmbedded> Sequences where this is embedded
 	 */
 	public List<AssemblyEmbedded> getEmbeddedBySequenceId(int seqIndex) {
-		List<AssemblyEmbedded> answer = embeddedMapBySequence.get(seqIndex);
+		List<AssemblyEmbedded> answer = embeddedBySequence.get(seqIndex);
 		if(answer == null) return new ArrayList<AssemblyEmbedded>();
 		return answer;
 	}
 	
 	public boolean isEmbedded(int sequenceId) {
-		return embeddedMapBySequence.get(sequenceId)!=null;
+		return embeddedBySequence.get(sequenceId)!=null;
 	}
 	public int getEmbeddedCount () {
-		return embeddedMapBySequence.size();
+		return numEmbeddedSequences;
 	}
 
 	public synchronized void addPath(List<AssemblyEdge> path) {
 		paths.add(path);
 	}
 	
+	/**
+	 * @return List<AssemblyVertex> Vertices of the graph sorted by sequence index. The start vertex of each sequence goes first
+	 */
 	public List<AssemblyVertex> getVertices() {
-		List<AssemblyVertex> vertices = new ArrayList<>();
-		vertices.addAll(verticesByUnique.values());
-		return vertices;
+		List<AssemblyVertex> answer = new ArrayList<>(numVertices);
+		for(AssemblyVertex v:vertices) {
+			if(v!=null) answer.add(v);
+		}
+		return answer;
 	}
 	
 	
@@ -275,14 +354,16 @@ public class AssemblyGraph {
 	}
 
 	/**
-	 * @return the edges
+	 * @return the edges sorted by the index of the first vertex
 	 */
 	public List<AssemblyEdge> getEdges() {
 		List<AssemblyEdge> edges = new ArrayList<>();
-		for(AssemblyVertex v:verticesByUnique.values()) {
-			List<AssemblyEdge> edgesVertex = edgesMap.get(v.getUniqueNumber());
-			if(edgesVertex==null) continue;
-			for(AssemblyEdge edge:edgesVertex) {
+		for(int i=0;i<vertices.length;i++) {
+			AssemblyVertex v = vertices[i];
+			if(v==null) continue;
+			AssemblyEdge [] edgesVertex = edgesByVertex[i];
+			for(int j=0;j<vertexDegrees[i];j++) {
+				AssemblyEdge edge = edgesVertex[j];
 				//Avoid adding twice the same edge
 				if(edge.getVertex1()==v) edges.add(edge);
 			}
@@ -290,8 +371,23 @@ public class AssemblyGraph {
 		return edges;
 	}
 	
+	/**
+	 * Returns the edges incident to the given vertex. The list reflects later changes to the graph and it can not be modified
+	 * @param vertex whose edges should be returned
+	 * @return List<AssemblyEdge> Edges of the given vertex. Null if the vertex was removed from the graph
+	 */
 	public List<AssemblyEdge> getEdges(AssemblyVertex vertex) {
-		return edgesMap.get(vertex.getUniqueNumber());
+		int vertexIdx = getVertexIndex(vertex);
+		if(vertices[vertexIdx]==null) return null;
+		return new IncidentEdgesList(vertexIdx);
+	}
+	
+	/**
+	 * @param vertex to query
+	 * @return int Number of edges incident to the given vertex
+	 */
+	public int getDegree(AssemblyVertex vertex) {
+		return vertexDegrees[getVertexIndex(vertex)];
 	}
 	/**
 	 * Returns the edge connecting the given vertex with the corresponding vertex in the same sequence
@@ -299,8 +395,10 @@ public class AssemblyGraph {
 	 * @return AssemblyEdge
 	 */
 	public AssemblyEdge getSameSequenceEdge(AssemblyVertex vertex) {
-		List<AssemblyEdge> edges = edgesMap.get(vertex.getUniqueNumber());
-		for(AssemblyEdge edge:edges) {
+		int vertexIdx = getVertexIndex(vertex);
+		AssemblyEdge [] edges = edgesByVertex[vertexIdx];
+		for(int i=0;i<vertexDegrees[vertexIdx];i++) {
+			AssemblyEdge edge = edges[i];
 			if(edge.getVertex1()==vertex && edge.getVertex2().getRead()==vertex.getRead()) {
 				return edge;
 			}
@@ -317,13 +415,35 @@ public class AssemblyGraph {
 	 * @return
 	 */
 	public AssemblyEdge getEdge(AssemblyVertex v1, AssemblyVertex v2) {
-		List<AssemblyEdge> edgesV1 = edgesMap.get(v1.getUniqueNumber());
-		if(edgesV1 == null) return null;
-		for(AssemblyEdge edge:edgesV1) {
+		int vertexIdx = getVertexIndex(v1);
+		if(vertices[vertexIdx] == null) return null;
+		AssemblyEdge [] edges = edgesByVertex[vertexIdx];
+		for(int i=0;i<vertexDegrees[vertexIdx];i++) {
+			AssemblyEdge edge = edges[i];
 			if(edge.getConnectingVertex(v1)==v2) return edge;
 		}
 		return null;
 	}
+	
+	/**
+	 * Read only view of the edges incident to a vertex
+	 */
+	private class IncidentEdgesList extends AbstractList<AssemblyEdge> implements RandomAccess {
+		private final int vertexIdx;
+		
+		public IncidentEdgesList(int vertexIdx) {
+			this.vertexIdx = vertexIdx;
+		}
+		@Override
+		public AssemblyEdge get(int index) {
+			if(index<0 || index>=vertexDegrees[vertexIdx]) throw new IndexOutOfBoundsException("Index: "+index+" Size: "+vertexDegrees[vertexIdx]);
+			return edgesByVertex[vertexIdx][index];
+		}
+		@Override
+		public int size() {
+			return vertexDegrees[vertexIdx];
+		}
+	}
 
 	/**
 	 * @return the paths
@@ -341,7 +461,8 @@ public class AssemblyGraph {
 				out.println(seq.getName()+"\t"+seq.getLength());
 			}
 			out.println("#EMBEDDED");
-			for(List<AssemblyEmbedded> embeddedList:embeddedMapBySequence.values()) {
+			for(List<AssemblyEmbedded> embeddedList:embeddedBySequence) {
+				if(embeddedList==null) continue;
 				for(AssemblyEmbedded embedded:embeddedList) {
 					int reverse = embedded.isReverse()?1:0;
 					out.print(""+embedded.getSequenceId()+"\t"+embedded.getHostId()+"\t"+embedded.getHostStart()+"\t"+embedded.getHostEnd()+"\t"+reverse);
@@ -425,6 +546,159 @@ public class AssemblyGraph {
 		return graph;
 	}
 	
+	/**
+	 * Saves the graph in binary format. Unlike the text format, the order of the incident edges of each vertex
+	 * and the order of embedded relationships are kept, so a loaded graph behaves exactly as this graph
+	 * @param out Stream to write the graph
+	 * @throws IOException If the stream can not be written
+	 */
+	void saveBinary(DataOutputStream out) throws IOException {
+		out.writeInt(sequences.size());
+		for(QualifiedSequence seq:sequences) {
+			out.writeUTF(seq.getName());
+			out.writeInt(seq.getLength());
+		}
+		//Edges are identified by the order of first appearance traversing the vertices
+		Map<AssemblyEdge,Integer> edgeIds = new IdentityHashMap<AssemblyEdge, Integer>();
+		List<AssemblyEdge> edges = new ArrayList<AssemblyEdge>(numEdges);
+		for(int i=0;i<vertices.length;i++) {
+			for(int j=0;j<vertexDegrees[i];j++) {
+				AssemblyEdge edge = edgesByVertex[i][j];
+				if(edgeIds.containsKey(edge)) continue;
+				edgeIds.put(edge, edges.size());
+				edges.add(edge);
+			}
+		}
+		out.writeInt(edges.size());
+		for(AssemblyEdge edge:edges) {
+			out.writeInt(edge.getVertex1().getUniqueNumber());
+			out.writeInt(edge.getVertex2().getUniqueNumber());
+			out.writeInt(edge.getOverlap());
+			out.writeDouble(edge.getOverlapStandardDeviation());
+			out.writeInt(edge.getNumSharedKmers());
+			out.writeInt(edge.getCoverageSharedKmers());
+			out.writeInt(edge.getWeightedCoverageSharedKmers());
+			out.writeInt(edge.getMismatches());
+		}
+		for(int i=0;i<vertices.length;i++) {
+			if(vertices[i]==null) {
+				out.writeInt(-1);
+				continue;
+			}
+			out.writeInt(vertexDegrees[i]);
+			for(int j=0;j<vertexDegrees[i];j++) out.writeInt(edgeIds.get(edgesByVertex[i][j]));
+		}
+		Map<AssemblyEmbedded,Integer> embeddedIds = new IdentityHashMap<AssemblyEmbedded, Integer>();
+		List<AssemblyEmbedded> embeddedObjects = new ArrayList<AssemblyEmbedded>();
+		for(List<AssemblyEmbedded> embeddedList:embeddedBySequence) {
+			if(embeddedList==null) continue;
+			for(AssemblyEmbedded embedded:embeddedList) {
+				embeddedIds.put(embedded, embeddedObjects.size());
+				embeddedObjects.add(embedded);
+			}
+		}
+		out.writeInt(embeddedObjects.size());
+		for(AssemblyEmbedded embedded:embeddedObjects) {
+			out.writeInt(embedded.getSequenceId());
+			out.writeInt(embedded.getHostId());
+			out.writeInt(embedded.getHostStart());
+			out.writeInt(embedded.getHostEnd());
+			out.writeBoolean(embedded.isReverse());
+			out.writeInt(embedded.getNumSharedKmers());
+			out.writeInt(embedded.getCoverageSharedKmers());
+			out.writeInt(embedded.getWeightedCoverageSharedKmers());
+			out.writeInt(embedded.getMismatches());
+			out.writeInt(embedded.getHostEvidenceStart());
+			out.writeInt(embedded.getHostEvidenceEnd());
+		}
+		for(List<AssemblyEmbedded> embeddedList:embeddedByHost) {
+			int n = (embeddedList!=null)?embeddedList.size():0;
+			out.writeInt(n);
+			for(int j=0;j<n;j++) out.writeInt(embeddedIds.get(embeddedList.get(j)));
+		}
+	}
+	
+	/**
+	 * Loads a graph saved with the method saveBinary
+	 * @param sequences Sequences used to build the graph
+	 * @param in Stream to read the graph
+	 * @return AssemblyGraph Graph with the same vertices, edges and embedded relationships of the saved graph
+	 * @throws IOException If the stream can not be read or if the graph was built from different sequences
+	 */
+	static AssemblyGraph loadBinary(List<QualifiedSequence> sequences, DataInputStream in) throws IOException {
+		int n = in.readInt();
+		if(n!=sequences.size()) throw new IOException("Unexpected number of sequences. Expected: "+sequences.size()+" loaded: "+n);
+		for(int i=0;i<n;i++) {
+			QualifiedSequence seq = sequences.get(i);
+			String name = in.readUTF();
+			int length = in.readInt();
+			if(!seq.getName().equals(name) || seq.getLength()!=length) throw new IOException("Unexpected sequence at index "+i+". Expected: "+seq.getName()+" "+seq.getLength()+" loaded: "+name+" "+length);
+		}
+		AssemblyGraph graph = new AssemblyGraph(sequences);
+		int numEdges = in.readInt();
+		AssemblyEdge [] edges = new AssemblyEdge[numEdges];
+		for(int i=0;i<numEdges;i++) {
+			AssemblyVertex v1 = graph.getVertexByUniqueId(in.readInt());
+			AssemblyVertex v2 = graph.getVertexByUniqueId(in.readInt());
+			AssemblyEdge edge;
+			//Reuse the edges created by the constructor
+			if(v1.getSequenceIndex()==v2.getSequenceIndex()) edge = graph.getSameSequenceEdge(v1);
+			else edge = new AssemblyEdge(v1, v2, 0);
+			edge.setOverlap(in.readInt());
+			edge.setOverlapStandardDeviation(in.readDouble());
+			edge.setNumSharedKmers(in.readInt());
+			edge.setCoverageSharedKmers(in.readInt());
+			edge.setWeightedCoverageSharedKmers(in.readInt());
+			edge.setMismatches(in.readInt());
+			edges[i] = edge;
+		}
+		for(int i=0;i<graph.vertices.length;i++) {
+			int degree = in.readInt();
+			if(degree<0) {
+				graph.vertices[i] = null;
+				graph.numVertices--;
+				degree = 0;
+			}
+			AssemblyEdge [] incidentEdges = (degree>0)?new AssemblyEdge[degree]:NO_EDGES;
+			for(int j=0;j<degree;j++) incidentEdges[j] = edges[in.readInt()];
+			graph.edgesByVertex[i] = incidentEdges;
+			graph.vertexDegrees[i] = degree;
+		}
+		graph.numEdges = numEdges;
+		int numEmbedded = in.readInt();
+		AssemblyEmbedded [] embeddedObjects = new AssemblyEmbedded[numEmbedded];
+		for(int i=0;i<numEmbedded;i++) {
+			int embSeqId = in.readInt();
+			int hostId = in.readInt();
+			int hostStart = in.readInt();
+			int hostEnd = in.readInt();
+			boolean reverse = in.readBoolean();
+			AssemblyEmbedded embedded = new AssemblyEmbedded(embSeqId, sequences.get(embSeqId), reverse, hostId, hostStart, hostEnd);
+			embedded.setNumSharedKmers(in.readInt());
+			embedded.setCoverageSharedKmers(in.readInt());
+			embedded.setWeightedCoverageSharedKmers(in.readInt());
+			embedded.setMismatches(in.readInt());
+			embedded.setHostEvidenceStart(in.readInt());
+			embedded.setHostEvidenceEnd(in.readInt());
+			embeddedObjects[i] = embedded;
+			List<AssemblyEmbedded> list = graph.embeddedBySequence.get(embSeqId);
+			if(list==null) {
+				list = new ArrayList<>(2);
+				graph.embeddedBySequence.set(embSeqId, list);
+				graph.numEmbeddedSequences++;
+			}
+			list.add(embedded);
+		}
+		for(int i=0;i<n;i++) {
+			int size = in.readInt();
+			if(size==0) continue;
+			List<AssemblyEmbedded> list = new ArrayList<>(Math.max(2, size));
+			for(int j=0;j<size;j++) list.add(embeddedObjects[in.readInt()]);
+			graph.embeddedByHost.set(i, list);
+		}
+		return graph;
+	}
+	
 	public static List<QualifiedSequence> loadSequenceNamesFromGraphFile(String graphFilename) throws IOException {
 		List<QualifiedSequence> sequenceNames = new ArrayList<QualifiedSequence>();
 		String line = null;
@@ -447,9 +721,9 @@ public class AssemblyGraph {
 	}
 
 	public void updateVertexDegrees () {
-		for (int v:edgesMap.keySet()) {
-			AssemblyVertex vertex = verticesByUnique.get(v);
-			vertex.setDegreeUnfilteredGraph(edgesMap.get(v).size());
+		for (int i=0;i<vertices.length;i++) {
+			AssemblyVertex vertex = vertices[i];
+			if(vertex!=null) vertex.setDegreeUnfilteredGraph(vertexDegrees[i]);
 		}
 	}
 	/**
@@ -458,8 +732,8 @@ public class AssemblyGraph {
 	 */
 	public Distribution getVertexDegreeDistribution() {
 		Distribution answer = new Distribution(0, 100, 1);
-		for(List<AssemblyEdge> edges:edgesMap.values()) {
-			answer.processDatapoint(edges.size());
+		for(int i=0;i<vertices.length;i++) {
+			if(vertices[i]!=null) answer.processDatapoint(vertexDegrees[i]);
 		}
 		return answer;
 	}
@@ -530,7 +804,7 @@ public class AssemblyGraph {
 		}*/
 		if(sequenceId==idxDebug) System.out.println("Finding chimeras. Left edges evidence limits: "+firstEvidence+" "+lastEvidence);
 		List<AssemblyEmbedded> embeddedList = new ArrayList<AssemblyEmbedded>();
-		List<AssemblyEmbedded> emb = embeddedMapByHost.get(sequenceId);
+		List<AssemblyEmbedded> emb = embeddedByHost.get(sequenceId);
 		if(emb==null) return false;
 		if(sequenceId==idxDebug) System.out.println("Finding chimeras. Embedded sequences "+emb.size());
 		embeddedList.addAll(emb);
@@ -578,8 +852,8 @@ public class AssemblyGraph {
 
 	public void filterEdgesAndEmbedded(int sequenceId,int medianLength) {
 		int debugIdx = -1;
-		AssemblyVertex vS = verticesStart.get(sequenceId);
-		AssemblyVertex vE = verticesEnd.get(sequenceId);
+		AssemblyVertex vS = getVertex(sequenceId, true);
+		AssemblyVertex vE = getVertex(sequenceId, false);
 		if(vS==null || vE==null) return;
 		filterEdgesAbnormalFeatures(getEdges(vS));
 		filterEdgesAbnormalFeatures(getEdges(vE));
@@ -608,7 +882,7 @@ public class AssemblyGraph {
 				removeEdge(edge);
 			}
 		}
-		if(sequenceId == debugIdx) System.out.println("Assembly graph. Initial edges start "+edgesS.size()+" Max score start: "+maxScoreS+" remaining edges: "+edgesMap.get(vS.getUniqueNumber()).size());
+		if(sequenceId == debugIdx) System.out.println("Assembly graph. Initial edges start "+edgesS.size()+" Max score start: "+maxScoreS+" remaining edges: "+getDegree(vS));
 		List<AssemblyEdge> edgesE = new ArrayList<AssemblyEdge>();
 		if(vE!=null) edgesE.addAll(getEdges(vE));
 		double maxScoreE = 0;			
@@ -628,7 +902,7 @@ public class AssemblyGraph {
 				removeEdge(edge);
 			}
 		}
-		if(sequenceId == debugIdx) System.out.println("Assembly graph. Initial edges end "+edgesE.size()+" Max score end: "+maxScoreE+" remaining edges: "+edgesMap.get(vE.getUniqueNumber()).size());
+		if(sequenceId == debugIdx) System.out.println("Assembly graph. Initial edges end "+edgesE.size()+" Max score end: "+maxScoreE+" remaining edges: "+getDegree(vE));
 		
 		double maxScore = Math.max(maxScoreS, maxScoreE);
 		List<AssemblyEmbedded> embeddedList= new ArrayList<AssemblyEmbedded>();
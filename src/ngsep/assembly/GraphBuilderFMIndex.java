@@ -113,7 +113,7 @@ public class GraphBuilderFMIndex implements GraphBuilder {
 			CharSequence seq = sequences.get(seqId).getCharacters();
 			if(numThreads==1) {
 				processSequence(edgesFinder, fmIndex, seqId, seq);
-				if ((seqId+1)%100==0) log.info("Processed "+(seqId+1) +" sequences. Number of edges: "+graph.getEdges().size()+ " Embedded: "+graph.getEmbeddedCount());
+				if ((seqId+1)%100==0) log.info("Processed "+(seqId+1) +" sequences. Number of edges: "+edgesFinder.getNumPendingEdges()+ " Embedded: "+edgesFinder.getNumPendingEmbedded());
 				continue;
 			}
 			Runnable task = new GraphBuilderFMIndexProcessSequenceTask(this, edgesFinder, fmIndex, seqId, seq);
@@ -128,6 +128,7 @@ public class GraphBuilderFMIndex implements GraphBuilder {
     	if(!pool.isShutdown()) {
 			throw new RuntimeException("The ThreadPoolExecutor was not shutdown after an await Termination call");
 		}
+		edgesFinder.updateGraphWithFoundRelationships();
 		log.info("Built graph. Edges: "+graph.getEdges().size()+" Embedded: "+graph.getEmbeddedCount()+" Prunning embedded sequences");
 		graph.pruneEmbeddedSequences();
 		log.info("Prunned graph. Edges: "+graph.getEdges().size());
@@ -195,8 +196,7 @@ class GraphBuilderFMIndexProcessSequenceTask implements Runnable {
 	public void run() {
 		// TODO Auto-generated method stub
 		parent.processSequence(finder, fmIndex, sequenceId, sequence);
-		AssemblyGraph graph = finder.getGraph();
-		if ((sequenceId+1)%100==0) parent.getLog().info("Processed "+(sequenceId+1) +" sequences. Number of edges: "+graph.getNumEdges()+ " Embedded: "+graph.getEmbeddedCount());
+		if ((sequenceId+1)%100==0) parent.getLog().info("Processed "+(sequenceId+1) +" sequences. Number of edges: "+finder.getNumPendingEdges()+ " Embedded: "+finder.getNumPendingEmbedded());
 	}
 	
 	
@@ -141,6 +141,7 @@ public class GraphBuilderMinimizers implements GraphBuilder {
 			}
 		}
 		waitToFinish(finishTime, poolSearch);
+		edgesFinder.updateGraphWithFoundRelationships();
 		usedMemory = runtime.totalMemory()-runtime.freeMemory();
 		log.info("Built graph. Edges: "+graph.getEdges().size()+" Embedded: "+graph.getEmbeddedCount()+" Memory: "+usedMemory);
 		return graph;
@@ -169,12 +170,8 @@ public class GraphBuilderMinimizers implements GraphBuilder {
 			candidateOverlapsDist.processDatapoint(hitsBySubjectIdx.size());
 		}
 		finder.updateGraphWithKmerHitsMap(seqId, complement, true, compressionFactor, selfHitsCount, hitsBySubjectIdx);
-		AssemblyGraph graph = finder.getGraph();
-		/*synchronized (graph) {
-			graph.filterEmbedded(seqId, 0.5, 10);
-		}*/
-		if(seqId == idxDebug) log.info("Edges start: "+graph.getEdges(graph.getVertex(seqId, true)).size()+" edges end: "+graph.getEdges(graph.getVertex(seqId, false)).size()+" Embedded: "+graph.getEmbeddedBySequenceId(seqId));
-		if ((seqId+1)%1000==0) log.info("Processed "+(seqId+1) +" sequences. Number of edges: "+graph.getNumEdges()+ " Embedded: "+graph.getEmbeddedCount());
+		//Edges are added to the graph after all sequences are processed
+		if ((seqId+1)%1000==0) log.info("Processed "+(seqId+1) +" sequences. Number of edges: "+finder.getNumPendingEdges()+ " Embedded: "+finder.getNumPendingEmbedded());
 	}
 	private void waitToFinish(int time, ThreadPoolExecutor pool) {
 		pool.shutdown();
@@ -23,7 +23,9 @@ public class KmerHitsAssemblyEdgesFinder {
 	
 	private int idxDebug = -1;
 	
-	
+	//Edges and embedded relationships found by each thread. They are added to the graph calling updateGraphWithFoundRelationships
+	private final List<KmerHitsAssemblyEdgesBuffer> buffers = new ArrayList<KmerHitsAssemblyEdgesBuffer>();
+	private final ThreadLocal<KmerHitsAssemblyEdgesBuffer> threadBuffer = ThreadLocal.withInitial(this::createBuffer);
 	
 	public KmerHitsAssemblyEdgesFinder(AssemblyGraph graph) {
 		this.graph = graph;
@@ -41,6 +43,68 @@ public class KmerHitsAssemblyEdgesFinder {
 		this.minProportionOverlap = minProportionOverlap;
 	}
 
+	/**
+	 * @return int Number of edges found so far that have not been added to the graph
+	 */
+	public int getNumPendingEdges() {
+		int answer = 0;
+		synchronized (buffers) {
+			for(KmerHitsAssemblyEdgesBuffer buffer:buffers) answer+=buffer.numEdges;
+		}
+		return answer;
+	}
+	
+	/**
+	 * @return int Number of embedded relationships found so far that have not been added to the graph
+	 */
+	public int getNumPendingEmbedded() {
+		int answer = 0;
+		synchronized (buffers) {
+			for(KmerHitsAssemblyEdgesBuffer buffer:buffers) answer+=buffer.numEmbedded;
+		}
+		return answer;
+	}
+	
+	/**
+	 * Adds to the graph the edges and embedded relationships found by all threads since the last call.
+	 * Relationships are added in the order of the query sequences, which is the order of a single threaded search,
+	 * so the resulting graph does not depend on the number of threads. This method should be called after
+	 * all calls to updateGraphWithKmerHitsMap have finished
+	 */
+	public void updateGraphWithFoundRelationships() {
+		List<AssemblyEdge> edges = new ArrayList<AssemblyEdge>();
+		List<AssemblyEmbedded> embedded = new ArrayList<AssemblyEmbedded>();
+		synchronized (buffers) {
+			for(KmerHitsAssemblyEdgesBuffer buffer:buffers) {
+				edges.addAll(buffer.edges);
+				embedded.addAll(buffer.embedded);
+				buffer.clear();
+			}
+		}
+		//Each query is processed by a single thread. Stable sorting by query keeps the order of the search within each query
+		//The query is the largest sequence id because relationships are only searched against previous sequences
+		Collections.sort(edges, (e1,e2)-> getQueryId(e1)-getQueryId(e2));
+		Collections.sort(embedded, (e1,e2)-> e1.getSequenceId()-e2.getSequenceId());
+		graph.addEdges(edges);
+		for(AssemblyEmbedded embeddedObject:embedded) graph.addEmbedded(embeddedObject);
+	}
+	
+	private static int getQueryId(AssemblyEdge edge) {
+		return Math.max(edge.getVertex1().getSequenceIndex(), edge.getVertex2().getSequenceIndex());
+	}
+	
+	private KmerHitsAssemblyEdgesBuffer createBuffer() {
+		KmerHitsAssemblyEdgesBuffer buffer = new KmerHitsAssemblyEdgesBuffer();
+		synchronized (buffers) {
+			buffers.add(buffer);
+		}
+		return buffer;
+	}
+	
+	private KmerHitsAssemblyEdgesBuffer getBuffer() {
+		return threadBuffer.get();
+	}
+
 	public void updateGraphWithKmerHitsMap(int queryIdx, CharSequence query, boolean queryRC, double compressionFactor, int selfHitsCount, Map<Integer, List<UngappedSearchHit>> hitsBySubjectIdx) {
 		Map<Integer,Integer> subjectCounts = new HashMap<Integer,Integer>();
 		List<Integer> subjectIdxs = new ArrayList<Integer>();
@@ -138,9 +202,7 @@ public class KmerHitsAssemblyEdgesFinder {
 		embeddedEvent.setCoverageSharedKmers(alnData[0]);
 		embeddedEvent.setWeightedCoverageSharedKmers(alnData[1]);
 		embeddedEvent.setMismatches(alnData[2]);
-		synchronized (graph) {
-			graph.addEmbedded(embeddedEvent);
-		}
+		getBuffer().addEmbedded(embeddedEvent);
 		if (querySequenceId==idxDebug) System.out.println("Query: "+querySequenceId+" embedded in "+subjectSeqIdx);
 	}
 	private void addQueryAfterSubjectEdge(int querySequenceId, CharSequence query, boolean queryRC, double compressionFactor, KmerHitsCluster cluster) {
@@ -160,9 +222,7 @@ public class KmerHitsAssemblyEdgesFinder {
 		edge.setMismatches(alnData[2]);
 		edge.setNumSharedKmers(cluster.getNumDifferentKmers());
 		edge.setOverlapStandardDeviation(cluster.getPredictedOverlapSD());
-		synchronized (graph) {
-			graph.addEdge(edge);
-		}
+		getBuffer().addEdge(edge);
 		if(querySequenceId==idxDebug) System.out.println("Edge between subject: "+vertexSubject.getUniqueNumber()+" and query "+vertexQuery.getUniqueNumber()+" overlap: "+overlap+" mismatches: "+edge.getMismatches()+" cost: "+edge.getCost());
 	}
 	private void addQueryBeforeSubjectEdge(int querySequenceId, CharSequence query, boolean queryRC, double compressionFactor, KmerHitsCluster cluster) {
@@ -182,9 +242,33 @@ public class KmerHitsAssemblyEdgesFinder {
 		edge.setMismatches(alnData[2]);
 		edge.setNumSharedKmers(cluster.getNumDifferentKmers());
 		edge.setOverlapStandardDeviation(cluster.getPredictedOverlapSD());
-		synchronized (graph) {
-			graph.addEdge(edge);
-		}
+		getBuffer().addEdge(edge);
 		if(querySequenceId==idxDebug) System.out.println("Edge between query: "+vertexQuery.getUniqueNumber()+" and subject "+vertexSubject.getUniqueNumber()+" overlap: "+overlap+" mismatches: "+edge.getMismatches()+" cost: "+edge.getCost());
 	}
 }
+/**
+ * Relationships found by one thread. Counts are volatile to allow other threads to report progress
+ */
+class KmerHitsAssemblyEdgesBuffer {
+	final List<AssemblyEdge> edges = new ArrayList<AssemblyEdge>();
+	final List<AssemblyEmbedded> embedded = new ArrayList<AssemblyEmbedded>();
+	volatile int numEdges = 0;
+	volatile int numEmbedded = 0;
+	
+	void addEdge(AssemblyEdge edge) {
+		edges.add(edge);
+		numEdges++;
+	}
+	
+	void addEmbedded(AssemblyEmbedded embeddedObject) {
+		embedded.add(embeddedObject);
+		numEmbedded++;
+	}
+	
+	void clear() {
+		edges.clear();
+		embedded.clear();
+		numEdges = 0;
+		numEmbedded = 0;
+	}
+}
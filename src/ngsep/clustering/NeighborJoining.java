@@ -13,7 +13,8 @@ import ngsep.main.ProgressNotifier;
 public class NeighborJoining implements DistanceMatrixClustering {
 
 	// Constants for default values
-	
+	public static final int DEF_NUM_THREADS = RapidNeighborJoining.DEF_NUM_THREADS;
+
 	// Logging and progress
 	private Logger log = Logger.getLogger(NeighborJoining.class.getName());
 	private ProgressNotifier progressNotifier=null;
@@ -21,6 +22,7 @@ public class NeighborJoining implements DistanceMatrixClustering {
 	//Parameters
 	private String inputFile = null;
 	private String outputFile = null;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	/**
 	 * Structure to memorize the subtrees that are created by the algorithm
@@ -55,6 +57,13 @@ public class NeighborJoining implements DistanceMatrixClustering {
 	public void setOutputFile(String outputFile) {
 		this.outputFile = outputFile;
 	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
 
 	/**
 	 * Constructor
@@ -83,8 +92,12 @@ public class NeighborJoining implements DistanceMatrixClustering {
 			log.info("Loading matrix from standard input");
 			dm = new DistanceMatrix(System.in);
 		}
-		initializeSubTrees(dm.getIds());
-		Dendrogram njTree = buildDendrogram(dm);
+		RapidNeighborJoining njAlgorithm = new RapidNeighborJoining();
+		njAlgorithm.setLog(log);
+		njAlgorithm.setProgressNotifier(progressNotifier);
+		njAlgorithm.setNumThreads(numThreads);
+		Dendrogram njTree = njAlgorithm.buildDendrogram(dm);
+		if(njTree==null) return;
 		if(outputFile == null) System.out.println(njTree.toNewick());
 		else {
 			try (PrintStream out = new PrintStream(outputFile)) {
@@ -0,0 +1,356 @@
+package ngsep.clustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import ngsep.main.ProgressNotifier;
+
+/**
+ * Implementation of the neighbor joining algorithm following the ideas of RapidNJ
+ * (Simonsen et al. 2008). Each row keeps the ids of the other nodes sorted by distance, which allows
+ * to stop the search of the minimum value of the Q matrix within a row as soon as a lower bound
+ * exceeds the current minimum. Joined nodes release their rows and new nodes reuse them, so the Q matrix
+ * and the copies of the distance matrix made by the classic implementation are not needed.
+ * Row sums, joined pairs and new distances are calculated with the same operations used by
+ * the classic implementation in NeighborJoining. Hence, the resulting tree is identical.
+ * The matrix is assumed to be symmetric.
+ * @author Jorge Duitama
+ */
+public class RapidNeighborJoining implements DistanceMatrixClustering {
+
+	// Constants for default values
+	public static final int DEF_NUM_THREADS = 1;
+	private static final int TIMEOUT_SECONDS = 30;
+
+	// Logging and progress
+	private Logger log = Logger.getLogger(RapidNeighborJoining.class.getName());
+	private ProgressNotifier progressNotifier=null;
+
+	//Parameters
+	private int numThreads = DEF_NUM_THREADS;
+
+	// Distances between slots
+	private double [][] distances;
+	// Nodes sorted by distance for each slot. Distances are rounded down to keep valid lower bounds
+	private float [][] sortedRowDistances;
+	private int [][] sortedRowNodeIds;
+	// Node currently stored in each slot and slot of each node (-1 if the node is already joined)
+	private int [] nodeIdBySlot;
+	private int [] slotByNodeId;
+	// Active slots in the order used by the classic algorithm
+	private int [] activeSlots;
+	private int numActive;
+	private int [] positionBySlot;
+	private double [] rowSums;
+	private Dendrogram [] subTrees;
+	private String [] names;
+
+	// Get and set methods
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	public ProgressNotifier getProgressNotifier() {
+		return progressNotifier;
+	}
+	public void setProgressNotifier(ProgressNotifier progressNotifier) {
+		this.progressNotifier = progressNotifier;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads should be a positive number");
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public Dendrogram buildDendrogram(DistanceMatrix matrix) {
+		initialize(matrix);
+		int n = numActive;
+		if(n<3) return subTrees[0];
+		ThreadPoolExecutor pool = null;
+		if(numThreads>1) pool = new ThreadPoolExecutor(numThreads, numThreads, TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		try {
+			for (int i = 0; i < n - 2; i++) {
+				calculateRowSums(pool);
+				long [] minimum = findMinimumQ(pool);
+				joinNodes(activeSlots[(int)minimum[0]], activeSlots[(int)minimum[1]], n+i);
+				if(progressNotifier!=null && !progressNotifier.keepRunning(100*(i+1)/(n-2))) return null;
+				if((i+1)%1000==0) log.info("Joined "+(i+1)+" pairs of nodes out of "+(n-2));
+			}
+		} finally {
+			if(pool!=null) pool.shutdown();
+		}
+		Dendrogram answer = subTrees[activeSlots[0]];
+		//Release memory
+		distances = null;
+		sortedRowDistances = null;
+		sortedRowNodeIds = null;
+		subTrees = null;
+		names = null;
+		return answer;
+	}
+
+	private void initialize(DistanceMatrix matrix) {
+		double [][] D = matrix.getDistances();
+		List<String> ids = matrix.getIds();
+		int n = D.length;
+		distances = new double[n][];
+		sortedRowDistances = new float [n][];
+		sortedRowNodeIds = new int [n][];
+		nodeIdBySlot = new int [n];
+		slotByNodeId = new int [Math.max(1, 2*n-2)];
+		Arrays.fill(slotByNodeId, -1);
+		activeSlots = new int [n];
+		positionBySlot = new int [n];
+		rowSums = new double [n];
+		subTrees = new Dendrogram[n];
+		names = new String [n];
+		for(int i=0;i<n;i++) {
+			distances[i] = Arrays.copyOf(D[i], n);
+			nodeIdBySlot[i] = i;
+			slotByNodeId[i] = i;
+			activeSlots[i] = i;
+			names[i] = ids.get(i);
+			subTrees[i] = new Dendrogram(names[i]);
+		}
+		numActive = n;
+		for(int i=0;i<n;i++) buildSortedRow(i, distances[i]);
+	}
+
+	/**
+	 * Builds the row of nodes sorted by distance for the given slot
+	 * @param slot to build
+	 * @param distancesBySlot Distances from the given slot to the other slots. Only active slots are taken into account
+	 */
+	private void buildSortedRow(int slot, double [] distancesBySlot) {
+		long [] keys = new long[numActive-1];
+		int k=0;
+		for(int p=0;p<numActive;p++) {
+			int other = activeSlots[p];
+			if(other==slot) continue;
+			int bits = Float.floatToIntBits(roundDown(distancesBySlot[other]));
+			//Makes the order of the integer bits consistent with the order of the float values
+			bits ^= (bits >> 31) & 0x7fffffff;
+			keys[k] = (((long)bits) << 32) | (nodeIdBySlot[other] & 0xffffffffL);
+			k++;
+		}
+		Arrays.sort(keys);
+		float [] rowDistances = new float[keys.length];
+		int [] rowIds = new int[keys.length];
+		for(int i=0;i<keys.length;i++) {
+			int bits = (int)(keys[i]>>32);
+			bits ^= (bits >> 31) & 0x7fffffff;
+			rowDistances[i] = Float.intBitsToFloat(bits);
+			rowIds[i] = (int)keys[i];
+		}
+		sortedRowDistances[slot] = rowDistances;
+		sortedRowNodeIds[slot] = rowIds;
+	}
+
+	private static float roundDown(double value) {
+		float answer = (float)value;
+		if(answer > value) answer = Math.nextDown(answer);
+		return answer;
+	}
+
+	/**
+	 * Calculates the sum of each row adding the distances following the order of the active slots.
+	 * Because the matrix is symmetric, rows are added one at a time to the array of sums, which
+	 * keeps the order of the operations and avoids traversing the matrix by columns
+	 * @param pool to run the calculations. If null, the sums are calculated in the current thread
+	 */
+	private void calculateRowSums(ThreadPoolExecutor pool) {
+		for(int p=0;p<numActive;p++) positionBySlot[activeSlots[p]] = p;
+		int n = rowSums.length;
+		if(pool==null) {
+			calculateRowSums(0, n);
+			return;
+		}
+		int chunkSize = (n+numThreads-1)/numThreads;
+		List<Callable<Object>> tasks = new ArrayList<>(numThreads);
+		for(int first=0;first<n;first+=chunkSize) {
+			final int start = first;
+			final int end = Math.min(n, first+chunkSize);
+			tasks.add(()->{
+				calculateRowSums(start, end);
+				return null;
+			});
+		}
+		runTasks(pool, tasks);
+	}
+
+	private void calculateRowSums(int firstSlot, int lastSlot) {
+		Arrays.fill(rowSums, firstSlot, lastSlot, 0);
+		for(int p=0;p<numActive;p++) {
+			double [] row = distances[activeSlots[p]];
+			for(int k=firstSlot;k<lastSlot;k++) rowSums[k]+=row[k];
+		}
+	}
+
+	/**
+	 * Finds the minimum value of the Q matrix. Ties are resolved as in the classic implementation,
+	 * which chooses the first minimum value visiting the matrix by rows
+	 * @param pool to run the search. If null, the search is performed in the current thread
+	 * @return long [] Positions in the list of active slots of the pair to join, followed by the raw bits of the minimum Q value
+	 */
+	private long [] findMinimumQ(ThreadPoolExecutor pool) {
+		double maxSum = Double.NEGATIVE_INFINITY;
+		for(int p=0;p<numActive;p++) maxSum = Math.max(maxSum, rowSums[activeSlots[p]]);
+		final double maxRowSum = maxSum;
+		if(pool == null) return findMinimumQ(0, 1, maxRowSum);
+		List<Callable<long[]>> tasks = new ArrayList<>(numThreads);
+		for(int t=0;t<numThreads;t++) {
+			final int first = t;
+			tasks.add(()->findMinimumQ(first, numThreads, maxRowSum));
+		}
+		List<long[]> results = runTasks(pool, tasks);
+		long [] answer = null;
+		for(long [] result:results) {
+			if(answer == null || isBefore(Double.longBitsToDouble(result[2]), (int)result[0], (int)result[1], Double.longBitsToDouble(answer[2]), (int)answer[0], (int)answer[1])) {
+				answer = result;
+			}
+		}
+		return answer;
+	}
+
+	private long [] findMinimumQ(int firstPosition, int step, double maxRowSum) {
+		int m2 = numActive - 2;
+		double min = Double.MAX_VALUE;
+		int minP1 = 0;
+		int minP2 = 0;
+		for(int p=firstPosition;p<numActive;p+=step) {
+			int slot = activeSlots[p];
+			double sum = rowSums[slot];
+			float [] rowDistances = sortedRowDistances[slot];
+			int [] rowIds = sortedRowNodeIds[slot];
+			for(int i=0;i<rowIds.length;i++) {
+				double lowerBound = m2*(double)rowDistances[i];
+				if(lowerBound - sum - maxRowSum > min && lowerBound - maxRowSum - sum > min) break;
+				int otherSlot = slotByNodeId[rowIds[i]];
+				if(otherSlot<0) continue;
+				int otherP = positionBySlot[otherSlot];
+				double d = distances[slot][otherSlot];
+				double otherSum = rowSums[otherSlot];
+				//Both ordered pairs are evaluated because the operations are not symmetric
+				double q = m2*d - sum - otherSum;
+				if(isBefore(q, p, otherP, min, minP1, minP2)) {
+					min = q;
+					minP1 = p;
+					minP2 = otherP;
+				}
+				q = m2*d - otherSum - sum;
+				if(isBefore(q, otherP, p, min, minP1, minP2)) {
+					min = q;
+					minP1 = otherP;
+					minP2 = p;
+				}
+			}
+		}
+		return new long [] {minP1, minP2, Double.doubleToLongBits(min)};
+	}
+
+	private static boolean isBefore(double q1, int p11, int p12, double q2, int p21, int p22) {
+		if(q1 < q2) return true;
+		if(q1 > q2 || q1 != q2) return false;
+		if(p11!=p21) return p11<p21;
+		return p12<p22;
+	}
+
+	/**
+	 * Joins the nodes in the given slots. The new node is stored in the first slot and
+	 * it is moved to the end of the list of active slots
+	 * @param x Slot of the first node to join
+	 * @param y Slot of the second node to join
+	 * @param newNodeId Id of the new node
+	 */
+	private void joinNodes(int x, int y, int newNodeId) {
+		int n = numActive;
+		double dxy = distances[x][y];
+		double dx = 0.5f*dxy + (1f/(2.0f*(n - 2)))*(rowSums[x] - rowSums[y]);
+		double dy = dxy - dx;
+		double [] newDistances = new double [distances.length];
+		for(int p=0;p<n;p++) {
+			int k = activeSlots[p];
+			if(k==x || k==y) continue;
+			newDistances[k] = 0.5f*(distances[x][k] + distances[y][k] - dxy);
+		}
+		String newName = names[x] + "!" + names[y];
+		Dendrogram newTree = createTree(subTrees[x], subTrees[y], dx, dy, newName);
+
+		//Update active slots
+		int j=0;
+		for(int p=0;p<n;p++) {
+			int k = activeSlots[p];
+			if(k!=x && k!=y) {
+				activeSlots[j] = k;
+				j++;
+			}
+		}
+		activeSlots[j] = x;
+		numActive = j+1;
+		slotByNodeId[nodeIdBySlot[x]] = -1;
+		slotByNodeId[nodeIdBySlot[y]] = -1;
+		nodeIdBySlot[x] = newNodeId;
+		nodeIdBySlot[y] = -1;
+		slotByNodeId[newNodeId] = x;
+		distances[x][x] = 0;
+		for(int p=0;p<numActive-1;p++) {
+			int k = activeSlots[p];
+			distances[x][k] = newDistances[k];
+			distances[k][x] = newDistances[k];
+		}
+		subTrees[x] = newTree;
+		names[x] = newName;
+		subTrees[y] = null;
+		names[y] = null;
+		distances[y] = null;
+		sortedRowDistances[y] = null;
+		sortedRowNodeIds[y] = null;
+		if(n==3) {
+			// Last update
+			int z = activeSlots[0];
+			double dz = newDistances[z];
+			subTrees[x] = createTree(subTrees[z], newTree, dz/2, dz/2, names[z] + "!" + newName);
+			activeSlots[0] = x;
+			numActive = 1;
+		} else {
+			buildSortedRow(x, newDistances);
+		}
+	}
+
+	private Dendrogram createTree(Dendrogram left, Dendrogram right, double dLeft, double dRight, String name) {
+		Dendrogram newTree = new Dendrogram(name);
+		ArrayList<DendrogramEdge> children = new ArrayList<>();
+		children.add(new DendrogramEdge(dLeft, left));
+		children.add(new DendrogramEdge(dRight, right));
+		newTree.setChildren(children);
+		return newTree;
+	}
+
+	private <T> List<T> runTasks(ThreadPoolExecutor pool, List<Callable<T>> tasks) {
+		List<T> answer = new ArrayList<>(tasks.size());
+		try {
+			List<Future<T>> futures = pool.invokeAll(tasks);
+			for(Future<T> f:futures) answer.add(f.get());
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return answer;
+	}
+}
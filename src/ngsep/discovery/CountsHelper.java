@@ -45,6 +45,8 @@ public class CountsHelper {
 	private static final byte DEF_MIN_BASE_QS = 3;
 	public static final byte DEF_MAX_BASE_QS = 100;
 	private static final double DEF_LOG_ERROR_PROB_INDEL = Math.log10(0.0001);
+	//Minimum number of calls to accumulate a histogram of quality scores before updating probabilities
+	private static final int MIN_CALLS_QUALITY_HISTOGRAM = 200;
 	
 	private int totalCount=0;
 	private int lowBaseQualityCount = 0;
@@ -56,6 +58,8 @@ public class CountsHelper {
 	private double heterozygousProportion = DEF_HET_PROPORTION;
 	
 	private List<String> alleles;
+	//Index of each single base allele by character code. -1 for characters that are not alleles
+	private byte [] singleBaseAlleleCodes = new byte [128];
 	private static double [][] alleleFreqCache;
 	private static double [][][] logProbCacheGT;
 	private static double [][] logProbCacheError;
@@ -85,10 +89,7 @@ public class CountsHelper {
 		CountsHelper helper = new CountsHelper(alleles);
 		if(maxBaseQS>0) helper.setMaxBaseQS(maxBaseQS);
 		helper.setHeterozygousProportion(heterozygousProportion);
-		for(PileupAlleleCall call: calls) {
-			byte q = (byte)(Math.min(DEF_MAX_BASE_QS, call.getQualityScores().charAt(0)-33));
-			helper.updateCounts(call.getAlleleString().substring(0,1), q, call.isNegativeStrand());
-		}
+		helper.updateCountsSNV(calls);
 		return helper;
 	}
 	public static CountsHelper calculateCountsIndel(String [] alleles, List<PileupAlleleCall> calls, byte maxBaseQS, double heterozygousProportion, boolean verbose) {
@@ -123,6 +124,11 @@ public class CountsHelper {
 	public void setAlleles(String [] alleles) {
 		this.alleles = Arrays.asList(alleles);
 		int nAlleles = alleles.length;
+		Arrays.fill(singleBaseAlleleCodes, (byte)-1);
+		for(int i=nAlleles-1;i>=0;i--) {
+			String allele = alleles[i];
+			if(allele.length()==1 && allele.charAt(0)<singleBaseAlleleCodes.length && i<Byte.MAX_VALUE) singleBaseAlleleCodes[allele.charAt(0)] = (byte)i;
+		}
 		counts = new int [nAlleles];
 		alleleErrorLogProbs = new double [nAlleles];
 		countsStrand = new int [nAlleles][2];
@@ -199,9 +205,6 @@ public class CountsHelper {
 	 */
 	public void updateCounts (String allele, byte qualScore, boolean negativeStrand) {
 		totalCount++;
-		//TODO: Move to setter
-		int f = (int)Math.round(heterozygousProportion*(DEF_NUM_FREQUENCIES-1));
-		int g = (int)Math.round((1-heterozygousProportion)*(DEF_NUM_FREQUENCIES-1));
 		if(qualScore<=DEF_MIN_BASE_QS) {
 			lowBaseQualityCount++;
 			return;
@@ -210,33 +213,86 @@ public class CountsHelper {
 		}
 		int index = alleles.indexOf(allele);
 		if(index>=0) {
-			//Update raw count
-			counts[index]++;
-			alleleErrorLogProbs[index] += logProbCacheError[qualScore][0];
 			//Update strand counts
 			if(negativeStrand) countsStrand[index][0]++;
 			else countsStrand[index][1]++;
-			
-			int n = alleles.size();
-			//Update probabilities
-			for(int i=0;i<logConditionalProbs.length;i++) {
-				if(i==index) {
-					logConditionalProbs[i][i] += logProbCacheGT[f][qualScore][0]; 
-				} else {
-					//The error towards the observed allele depends on the number of alleles
-					logConditionalProbs[i][i] += logProbCacheError[qualScore][n];
-				}
-				for(int j=0;j<logConditionalProbs[i].length;j++) {
-					if(i!=j) {
-						if(j==index) {
-							logConditionalProbs[i][j] += logProbCacheGT[f][qualScore][n];
-						} else if (i==index) {
-							logConditionalProbs[i][j] += logProbCacheGT[g][qualScore][n];
-						} else {
-							logConditionalProbs[i][j] += logProbCacheError[qualScore][n];
-						}
-					}		
-				}
+			updateCountsAndProbabilities(index, qualScore, 1);
+		}
+	}
+	
+	/**
+	 * Updates counts and conditional probabilities for the first base of the given allele calls.
+	 * Produces the same counts as calling updateCounts for each call but it avoids building allele strings.
+	 * For deep pileups, calls are first accumulated in a histogram of allele codes and quality scores and then
+	 * conditional probabilities are updated once for each combination of allele and quality score
+	 * @param calls Allele calls. Only the first base and the first quality score of each call are used
+	 */
+	public void updateCountsSNV (List<PileupAlleleCall> calls) {
+		int n = alleles.size();
+		int [][] qualityCounts = null;
+		if(calls.size()>=MIN_CALLS_QUALITY_HISTOGRAM) qualityCounts = new int [n][maxBaseQS+1];
+		int minQ = maxBaseQS;
+		int maxQ = 0;
+		for(PileupAlleleCall call: calls) {
+			totalCount++;
+			byte q = (byte)(Math.min(DEF_MAX_BASE_QS, call.getQualityScores().charAt(0)-33));
+			if(q<=DEF_MIN_BASE_QS) {
+				lowBaseQualityCount++;
+				continue;
+			} else if (q>maxBaseQS) {
+				q = maxBaseQS;
+			}
+			CharSequence sequence = call.getSequence();
+			if(sequence.length()==0) continue;
+			char base = Character.toUpperCase(sequence.charAt(0));
+			int index = (base<singleBaseAlleleCodes.length)?singleBaseAlleleCodes[base]:-1;
+			if(index<0) continue;
+			if(call.isNegativeStrand()) countsStrand[index][0]++;
+			else countsStrand[index][1]++;
+			if(qualityCounts==null) {
+				updateCountsAndProbabilities(index, q, 1);
+			} else {
+				qualityCounts[index][q]++;
+				minQ = Math.min(minQ, q);
+				maxQ = Math.max(maxQ, q);
+			}
+		}
+		if(qualityCounts==null) return;
+		for(int index=0;index<n;index++) {
+			for(int q=minQ;q<=maxQ;q++) {
+				int c = qualityCounts[index][q];
+				if(c>0) updateCountsAndProbabilities(index, (byte)q, c);
+			}
+		}
+	}
+	
+	/**
+	 * Updates counts and conditional probabilities for a number of calls of the same allele with the same quality score
+	 * @param index Index of the called allele
+	 * @param qualScore Quality score of the calls. It should be between DEF_MIN_BASE_QS and maxBaseQS
+	 * @param count Number of calls
+	 */
+	private void updateCountsAndProbabilities (int index, byte qualScore, int count) {
+		//TODO: Move to setter
+		int f = (int)Math.round(heterozygousProportion*(DEF_NUM_FREQUENCIES-1));
+		int g = (int)Math.round((1-heterozygousProportion)*(DEF_NUM_FREQUENCIES-1));
+		//Update raw count
+		counts[index]+=count;
+		alleleErrorLogProbs[index] += count*logProbCacheError[qualScore][0];
+		int n = alleles.size();
+		//The error towards the observed allele depends on the number of alleles
+		double logError = count*logProbCacheError[qualScore][n];
+		double logSuccess = count*logProbCacheGT[f][qualScore][0];
+		double logHetObserved = count*logProbCacheGT[f][qualScore][n];
+		double logHetOther = count*logProbCacheGT[g][qualScore][n];
+		//Update probabilities
+		for(int i=0;i<logConditionalProbs.length;i++) {
+			double [] logCondRow = logConditionalProbs[i];
+			for(int j=0;j<logCondRow.length;j++) {
+				if(i==j) logCondRow[j] += (i==index)?logSuccess:logError;
+				else if(j==index) logCondRow[j] += logHetObserved;
+				else if (i==index) logCondRow[j] += logHetOther;
+				else logCondRow[j] += logError;
 			}
 		}
 	}
@@ -73,6 +73,7 @@ public class SingleSampleVariantsDetector implements PileupListener {
 	public static final short DEF_MAX_PCT_OVERLAP_CNVS = 100;
 	public static final int DEF_MAX_LEN_DELETION = ReadPairAnalyzer.DEF_MAX_LEN_DELETION;
 	public static final int DEF_SPLIT_READ_SEED = ReadPairAnalyzer.DEF_SPLIT_READ_SEED;
+	public static final int DEF_NUM_THREADS = 1;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(SingleSampleVariantsDetector.class.getName());
@@ -95,6 +96,7 @@ public class SingleSampleVariantsDetector implements PileupListener {
 	private String algCNV = DEF_ALGORITHM_CNV;
 	private short minSVQuality = DEF_MIN_SV_QUALITY;
 	private int maxPCTOverlapCNVs = DEF_MAX_PCT_OVERLAP_CNVS;
+	private int numThreads = DEF_NUM_THREADS;
 	private boolean findRepeats = false;
 	private boolean runRDAnalysis = false;
 	private boolean findSNVs = true;
@@ -502,6 +504,17 @@ public class SingleSampleVariantsDetector implements PileupListener {
 		this.algCNV = algCNV;
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads should be a positive number");
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public int getMaxPCTOverlapCNVs() {
 		return maxPCTOverlapCNVs;
 	}
@@ -674,6 +687,7 @@ public class SingleSampleVariantsDetector implements PileupListener {
 			out.println("Bin size: "+getBinSize());
 			out.println("Algorithms for RD analysis: "+getAlgCNV());
 			out.println("Max percentage of overlap between input CNVs and new CNVs: "+getMaxPCTOverlapCNVs());
+			out.println("Number of threads for RD analysis: "+getNumThreads());
 		}
 		out.println("Run RP analysis to find indels and inversions: "+runRPAnalysis);
 		if(runRPAnalysis) {
@@ -749,6 +763,7 @@ public class SingleSampleVariantsDetector implements PileupListener {
 		else rdAlgorithm.setGenomeSize(rdDistribution.getGenomeSize());
 		rdAlgorithm.setNormalPloidy((byte)normalPloidy);
 		rdAlgorithm.setReadDepthDistribution(rdDistribution);
+		rdAlgorithm.setNumThreads(numThreads);
 		return rdAlgorithm.callCNVs();
 	}
 	
@@ -23,9 +23,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
+import ngsep.hmm.AbstractHMM;
 import ngsep.hmm.ConstantTransitionHMM;
-import ngsep.hmm.HMM;
 import ngsep.hmm.HMMState;
+import ngsep.hmm.HMMWorkspace;
+import ngsep.main.ThreadPoolManager;
 import ngsep.math.LogMath;
 import ngsep.math.PhredScoreHelper;
 import ngsep.variants.CalledCNV;
@@ -40,6 +42,7 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 	
 	private byte normalPloidy = 2;
 	private double changeProbability = 0.01;
+	private int numThreads = 1;
 	
 	
 	@Override
@@ -64,18 +67,31 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		this.readDepthDistribution = distribution;
 	}
 
+	@Override
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads should be a positive number");
+		this.numThreads = numThreads;
+	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+
 	@Override
 	public List<CalledCNV> callCNVs() {
 		List<CalledCNV> answer = new ArrayList<CalledCNV>();
 		List<String> seqNames = readDepthDistribution.getSequences().getNamesStringList();
 		log.info("Building HMM");
-		HMM hmm = buildHMM ();
-		for(String seqName:seqNames) {
-			log.info("Calling CNVs for sequence "+seqName);
-			List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
-			List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins,hmm); 
-			log.info("Called "+cnvsSeq.size()+" CNVs for sequence "+seqName);
-			answer.addAll(cnvsSeq);
+		AbstractHMM hmm = buildHMM ();
+		ThreadPoolManager pool = (numThreads>1)?new ThreadPoolManager(numThreads, 2*numThreads):null;
+		try {
+			for(String seqName:seqNames) {
+				if(pool==null) answer.addAll(callCNVsSequence(seqName,hmm));
+				else pool.queueTask(()->callCNVsSequence(seqName,hmm), (cnvsSeq)->answer.addAll(cnvsSeq));
+			}
+			if(pool!=null) pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		}
 		return answer;
 	}
@@ -107,7 +123,7 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		return log;
 	}
 
-	private HMM buildHMM() {
+	private AbstractHMM buildHMM() {
 		int nStates = 4*normalPloidy+1;
 		
 		List<HMMState> states = new ArrayList<HMMState>(nStates);
@@ -125,34 +141,36 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 	
 	
 
-	private List<CalledCNV> callCNVsSequence(String seqName, List<ReadDepthBin> seqBins, HMM hmm) {
+	private List<CalledCNV> callCNVsSequence(String seqName, AbstractHMM hmm) {
+		log.info("Calling CNVs for sequence "+seqName);
+		List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
 		int m = seqBins.size();
-		int n = hmm.getNumStates();
-		Double [] [] posteriorLogs = new Double [m][n];
+		//Each sequence uses its own workspace so sequences can be processed in parallel
+		HMMWorkspace ws = new HMMWorkspace();
 		List<Double> observations = buildObservations(seqBins);
-		hmm.calculatePosteriorLogs(observations, posteriorLogs);
-		//hmm.calculateBackward(observations, posteriorLogs);
-		if("chrI".equals(seqName)) printLogProbs(posteriorLogs);
+		hmm.calculateForwardBackward(observations, ws);
+		if("chrI".equals(seqName)) printLogProbs(ws);
 		List<CalledCNV> answer = new ArrayList<CalledCNV>();
 		int nextStartBin = -1;
 		int copies = normalPloidy;
 		for(int i=0;i<m;i++) {
-			int state = chooseState(posteriorLogs[i]);
+			int state = chooseState(ws, i);
 			if(state!=copies) {
 				if(copies!=normalPloidy) {
-					answer.add(createCNV(seqName,seqBins,posteriorLogs,nextStartBin,i-1,copies));
+					answer.add(createCNV(seqName,seqBins,ws,nextStartBin,i-1,copies));
 				}
 				copies = state;
 				nextStartBin=i;
 			}
 		}
+		log.info("Called "+answer.size()+" CNVs for sequence "+seqName);
 		return answer;
 	}
 
-	private void printLogProbs(Double[][] logProbs) {
-		for(int i=0;i<logProbs.length;i++) {
-			for(int j=0;j<logProbs[i].length;j++) {
-				System.out.print(" "+logProbs[i][j]);
+	private void printLogProbs(HMMWorkspace ws) {
+		for(int i=0;i<ws.getSteps();i++) {
+			for(int j=0;j<ws.getNumStates();j++) {
+				System.out.print(" "+LogMath.toNullableLog(ws.getPosteriorLog(i, j)));
 			}
 			System.out.println();
 		}
@@ -166,20 +184,22 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		return observations;
 	}
 	
-	private int chooseState(Double[] logProbs) {
+	private int chooseState(HMMWorkspace ws, int step) {
 		int maxI = normalPloidy;
 		double maxVal = Double.MIN_VALUE;
-		if(logProbs[normalPloidy]!=null) maxVal = logProbs[normalPloidy];
-		for(int i=0;i<logProbs.length;i++) {
-			if(logProbs[i]!=null && maxVal<logProbs[i]) {
+		double logNormal = ws.getPosteriorLog(step, normalPloidy);
+		if(logNormal!=Double.NEGATIVE_INFINITY) maxVal = logNormal;
+		for(int i=0;i<ws.getNumStates();i++) {
+			double logProb = ws.getPosteriorLog(step, i);
+			if(maxVal<logProb) {
 					maxI = i;
-					maxVal = logProbs[i];
+					maxVal = logProb;
 			}
 		}
 		return maxI;
 	}
 
-	private CalledCNV createCNV(String seqName, List<ReadDepthBin> seqBins, Double [][] posteriorLogs, int firstI, int lastI, int copies) {
+	private CalledCNV createCNV(String seqName, List<ReadDepthBin> seqBins, HMMWorkspace ws, int firstI, int lastI, int copies) {
 		ReadDepthBin firstBin = seqBins.get(firstI);
 		ReadDepthBin lastBin = seqBins.get(lastI);
 		int bins = 0;
@@ -187,7 +207,7 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		double avgProb = 0;
 		for(int i=firstI;i<=lastI;i++) {
 			fragments+=seqBins.get(i).getRawReadDepth();
-			avgProb += LogMath.power10(posteriorLogs[i][copies]); 
+			avgProb += Math.pow(10.0, ws.getPosteriorLog(i, copies));
 			bins++;
 		}
 		avgProb/=bins;
@@ -32,6 +32,7 @@ import JSci.maths.SpecialMath;
 import JSci.maths.statistics.TDistribution;
 import ngsep.genome.GenomicRegionComparator;
 import ngsep.genome.ReferenceGenome;
+import ngsep.main.ThreadPoolManager;
 import ngsep.main.io.ParseUtils;
 import ngsep.math.PhredScoreHelper;
 import ngsep.variants.CalledCNV;
@@ -58,6 +59,8 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 	
 	private double minGradientValue = 0;
 	
+	private int numThreads = 1;
+	
 	
 	public static final double MAX_PVALUE_REGION=0.05;
 	
@@ -84,6 +87,9 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 			} else if("-t".equals(args[i])) {
 				i++;
 				fileType = Integer.parseInt(args[i]);
+			} else if("-numThreads".equals(args[i])) {
+				i++;
+				cnvNator.setNumThreads(Integer.parseInt(args[i]));
 			} else if("-noGreedyMerge".equals(args[i])) {
 				cnvNator.greedyMergeLevels = false;
 			}
@@ -155,36 +161,61 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 	
 	private void calculatePartition (int range, boolean skipMasked) {
 		List<String> sequenceNames = rdDistribution.getSequences().getNamesStringList();
-		for(String seqName:sequenceNames) {
-			List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
-			log.info("Calculating partition for sequence: "+seqName+". Sequence bins: "+seqBins.size());
-			boolean [] mask = new boolean[seqBins.size()];
-			Arrays.fill(mask, false);
-			
-			for(int binBand=2;binBand<=range;binBand++) {
-				//Restore original RD values
-				for(int i=0;i<seqBins.size();i++) {
-					if(!mask[i]) {
-						ReadDepthBin bin = seqBins.get(i);
-						bin.setReadDepthLevel(bin.getCorrectedReadDepth());
-					}
-				}
-				calcLevels(seqBins, binBand, mask, skipMasked);
-				calcLevels(seqBins, binBand, mask, skipMasked);
-				calcLevels(seqBins, binBand, mask, skipMasked);
-				updateMask(seqBins, mask);
-				if(binBand>=8) binBand++;
-				if(binBand>=16) binBand+=2;
-				if(binBand>=32) binBand+=4;
-				if(binBand>=64) binBand+=8;
-				if(binBand>=128) binBand+=16;
-				if(binBand>=256) binBand+=32;
-				if(binBand>=512) binBand+=64;
+		ThreadPoolManager pool = (numThreads>1)?new ThreadPoolManager(numThreads, 2*numThreads):null;
+		try {
+			for(String seqName:sequenceNames) {
+				List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
+				if(pool==null) calculatePartition(seqName, seqBins, range, skipMasked);
+				else pool.queueTask(()->calculatePartition(seqName, seqBins, range, skipMasked));
+			}
+			if(pool!=null) pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * Calculates the partition of the bins of one sequence. Calculations are performed over arrays with the signal
+	 * and the levels of the bins. Levels are copied to the bins at the end
+	 * @param seqName Name of the sequence
+	 * @param seqBins Bins of the sequence
+	 * @param range Maximum bandwidth in bins
+	 * @param skipMasked Tells if masked bins should be skipped to find breakpoints
+	 */
+	private void calculatePartition (String seqName, List<ReadDepthBin> seqBins, int range, boolean skipMasked) {
+		int n = seqBins.size();
+		log.info("Calculating partition for sequence: "+seqName+". Sequence bins: "+n);
+		double [] signal = new double[n];
+		double [] levels = new double[n];
+		for(int i=0;i<n;i++) {
+			ReadDepthBin bin = seqBins.get(i);
+			signal[i] = bin.getCorrectedReadDepth();
+			levels[i] = bin.getReadDepthLevel();
+		}
+		boolean [] mask = new boolean[n];
+		Arrays.fill(mask, false);
+		
+		for(int binBand=2;binBand<=range;binBand++) {
+			//Restore original RD values
+			for(int i=0;i<n;i++) {
+				if(!mask[i]) levels[i] = signal[i];
 			}
+			calcLevels(levels, binBand, mask, skipMasked);
+			calcLevels(levels, binBand, mask, skipMasked);
+			calcLevels(levels, binBand, mask, skipMasked);
+			updateMask(signal, levels, mask);
+			if(binBand>=8) binBand++;
+			if(binBand>=16) binBand+=2;
+			if(binBand>=32) binBand+=4;
+			if(binBand>=64) binBand+=8;
+			if(binBand>=128) binBand+=16;
+			if(binBand>=256) binBand+=32;
+			if(binBand>=512) binBand+=64;
 		}
+		for(int i=0;i<n;i++) seqBins.get(i).setReadDepthLevel(levels[i]);
 	}
-	private void calcLevels(List<ReadDepthBin> seqBins, int binBand, boolean [] mask, boolean skipMasked) {
-		double [] gradients = new double[seqBins.size()];
+	private void calcLevels(double [] levels, int binBand, boolean [] mask, boolean skipMasked) {
+		int n = levels.length;
+		double [] gradients = new double[n];
 		Arrays.fill(gradients, 0);
 		double inv2BinBand = 1.0/(binBand*binBand);
 		double mean4 = meanReadDepth/4;
@@ -195,86 +226,105 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		for(int i=0;i<expsWindow.length;i++) {
 			expsWindow[i] = i*Math.exp(-0.5*i*i*inv2BinBand);
 		}
-		double [] hrs = new double[seqBins.size()];
-		for(int b=0;b<seqBins.size();b++) {
-			ReadDepthBin binB = seqBins.get(b);
-			hrs[b] = sigma2;
-			if(binB.getReadDepthLevel() >= mean4) hrs[b] = ms2/binB.getReadDepthLevel();
+		//Unmasked bins are compacted so the distance between two bins is the difference between their indexes
+		int [] unmasked = new int [n];
+		int m = 0;
+		for(int b=0;b<n;b++) {
+			if(!mask[b]) unmasked[m++] = b;
+		}
+		double [] compactLevels = new double [m];
+		double [] hrs = new double[m];
+		for(int k=0;k<m;k++) {
+			double level = levels[unmasked[k]];
+			compactLevels[k] = level;
+			hrs[k] = sigma2;
+			if(level >= mean4) hrs[k] = ms2/level;
 		}
 		//Calculate gradients
-		for(int b=0;b<seqBins.size();b++) {
-			ReadDepthBin binB = seqBins.get(b);
-			if(mask[b]) continue;
-			int distance = 0;
-			for(int i=b+1;i<seqBins.size();i++) {
-				ReadDepthBin binI = seqBins.get(i);
-				if(mask[i]) continue;
-				distance++;
-				double difLevel = binI.getReadDepthLevel()-binB.getReadDepthLevel();
+		double [] compactGradients = new double [m];
+		for(int k=0;k<m;k++) {
+			double levelK = compactLevels[k];
+			double hrK = hrs[k];
+			double gradient = compactGradients[k];
+			int last = Math.min(m-1, k+window);
+			for(int i=k+1;i<=last;i++) {
+				int distance = i-k;
+				double difLevel = compactLevels[i]-levelK;
+				if(difLevel==0) {
+					//Bins within the same segment have the same level
+					gradient += expsWindow[distance];
+					compactGradients[i] -= expsWindow[distance];
+					continue;
+				}
 				double val = -0.5*difLevel*difLevel;
-				//if(b==1058132 || b == 1058133)System.out.println("Bin start: "+binB.getFirst()+" BinI: "+binI.getFirst()+" current grad: "+gradients[b]+" Dif level: "+difLevel+" val: "+val+" Level: "+binB.getReadDepthLevel()+" invB: "+hrs[b]+" ms2: "+ms2);
-				gradients[b] += expsWindow[distance]*Math.exp(val*hrs[b]);
-				gradients[i] -= expsWindow[distance]*Math.exp(val*hrs[i]);
-				if(distance == window) break;
+				double kernelK = Math.exp(val*hrK);
+				double kernelI = (hrs[i]==hrK)?kernelK:Math.exp(val*hrs[i]);
+				gradient += expsWindow[distance]*kernelK;
+				compactGradients[i] -= expsWindow[distance]*kernelI;
 			}
+			compactGradients[k] = gradient;
 		}
+		for(int k=0;k<m;k++) gradients[unmasked[k]] = compactGradients[k];
 		//Average signal on each segment
-		for(int b=0;b<seqBins.size();b++) {
+		for(int b=0;b<n;b++) {
 			//Determine next segment
 			if(mask[b]) continue;
 			int bStart = b;
 			//Change from original implementation to disallow breaks due to gradients close to zero
 			if(skipMasked) {
-				while (b < seqBins.size() && (gradients[b] >= -minGradientValue || mask[b])) b++;
-				while (b < seqBins.size() && (gradients[b] <  minGradientValue || mask[b])) b++;
+				while (b < n && (gradients[b] >= -minGradientValue || mask[b])) b++;
+				while (b < n && (gradients[b] <  minGradientValue || mask[b])) b++;
 			} else {
-				while (b < seqBins.size() && gradients[b] >= -minGradientValue && !mask[b]) b++;
-				while (b < seqBins.size() && gradients[b] <  minGradientValue && !mask[b]) b++;
+				while (b < n && gradients[b] >= -minGradientValue && !mask[b]) b++;
+				while (b < n && gradients[b] <  minGradientValue && !mask[b]) b++;
 			}
 			int bStop = --b;
 			assert (bStart<=bStop);
 			//Calculate average signal for the segment
 			double nl = 0;
-			int n = 0;
-		    for (int i = bStart;i <= bStop;i++) {
-		    	ReadDepthBin bin = seqBins.get(i);
-		    	if (mask[i]) continue;
-		    	nl += bin.getReadDepthLevel();
-		    	n++;
-		    }
-		    //Update with the average signal
-		    nl/=n;
+			int count = 0;
+			for (int i = bStart;i <= bStop;i++) {
+				if (mask[i]) continue;
+				nl += levels[i];
+				count++;
+			}
+			//Update with the average signal
+			nl/=count;
 			for (int i = bStart;i <= bStop;i++) {
-		    	ReadDepthBin bin = seqBins.get(i);
-		    	if (!mask[i]) bin.setReadDepthLevel(nl);
-		    	//if(i==1058132 || i == 1058133)System.out.println("Bin start: "+bin.getFirst()+" Level: "+bin.getReadDepthLevel()+" mask: "+mask[i]+" gradient: "+gradients[i]);
-		    }
+				if (!mask[i]) levels[i] = nl;
+			}
 		}
 	}
 	
-	private void updateMask(List<ReadDepthBin> seqBins, boolean[] mask) {
+	private void updateMask(double [] signal, double [] levels, boolean[] mask) {
 		Arrays.fill(mask, false);
-		List<LevelRegion> regions = calculateRegions(seqBins);
+		List<LevelRegion> regions = calculateRegions(signal, levels);
 		for(int i=1;i<regions.size()-1;i++) {
 			LevelRegion rL = regions.get(i-1);
 			LevelRegion region = regions.get(i);
 			LevelRegion rR = regions.get(i+1);
 			if(region.nBins<=1) continue;
 			boolean smallN = rL.nBins<=15 || region.nBins<=15 || rR.nBins<=15;	
-			//System.out.println("Testing region: "+region.first+" - "+region.last+ " Left start: "+rL.first+" right stop: "+ rR.last+ " levels "+rL.level+" "+region.level+" "+region.level+" "+rR.level);
 			if(calculatePValue(rL,region,genomeSize,smallN)>=0.01) continue;
 			if(calculatePValue(rR,region,genomeSize,smallN)>=0.01) continue;
-			//System.out.println("P value region: "+region.first+" - "+region.last+" "+calculatePValue(region,false));
 			if(calculatePValue(region,false)>MAX_PVALUE_REGION) continue;
-			//System.out.println("Masking region: "+region.first+" - "+region.last);
 			for(int j=region.first;j<=region.last;j++) {
 				mask[j] = true;
 			}
 		}
-		
-		
 	}
 	private List<LevelRegion> calculateRegions(List<ReadDepthBin> seqBins) {
+		int n = seqBins.size();
+		double [] signal = new double[n];
+		double [] levels = new double[n];
+		for(int i=0;i<n;i++) {
+			ReadDepthBin bin = seqBins.get(i);
+			signal[i] = bin.getCorrectedReadDepth();
+			levels[i] = bin.getReadDepthLevel();
+		}
+		return calculateRegions(signal, levels);
+	}
+	private List<LevelRegion> calculateRegions(double [] signal, double [] levels) {
 		List<LevelRegion> regions = new ArrayList<LevelRegion>();
 		double lastLevel = -1;
 		int first = 0;
@@ -282,20 +332,18 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		int nBins = 0;
 		double sum = 0;
 		double sum2 = 0;
-		for(int i=0;i<seqBins.size();i++) {
-			ReadDepthBin bin = seqBins.get(i);
-			if(lastLevel != -1 && Math.abs(bin.getReadDepthLevel()-lastLevel)>=0.01) {
+		for(int i=0;i<levels.length;i++) {
+			if(lastLevel != -1 && Math.abs(levels[i]-lastLevel)>=0.01) {
 				regions.add(new LevelRegion(first, last, nBins, lastLevel, sum, sum2));
 				first = i;
 				
 				sum = sum2 = nBins = 0;
 			}
-			double signal = bin.getCorrectedReadDepth(); 
-			sum+=signal;
-			sum2+=(signal*signal);
+			sum+=signal[i];
+			sum2+=(signal[i]*signal[i]);
 			nBins++;
 			last = i;
-			lastLevel = bin.getReadDepthLevel();
+			lastLevel = levels[i];
 		}
 		regions.add(new LevelRegion(first, last, nBins, lastLevel, sum, sum2));
 		return regions;
@@ -382,29 +430,40 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		List<CalledCNV> cnvs = new ArrayList<CalledCNV>();
 		double cut = meanReadDepth / (2*normalPloidy);
 		List<String> sequenceNames = rdDistribution.getSequences().getNamesStringList();
-		for(String seqName:sequenceNames) {
-			if(sequenceNames.size()<100) log.info("Calling CNVs for sequence "+seqName);
-			List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
-			List<LevelRegion> regions = calculateFinalRegions(seqBins, cut,false,greedyMergeLevels);
-			
-			for(LevelRegion region:regions) {
-				double pValue = region.getPValue();
-				
-				if(pValue <= MAX_PVALUE_REGION) {
-					float copies = (float) (region.getAverageRD()*normalPloidy/meanReadDepth);
-					GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, seqBins.get(region.first).getFirst(), seqBins.get(region.last).getLast(),GenomicVariant.TYPE_CNV);
-					CalledCNV calledCNV = new CalledCNV(cnv,copies);
-					calledCNV.setSource(SOURCE_CNVNATOR);
-					calledCNV.setTotalReadDepth((int)Math.round(region.getAverageRD()*region.nBins));
-					calledCNV.setGenotypeQuality(PhredScoreHelper.calculatePhredScore(pValue));
-					cnvs.add(calledCNV);
-				}
+		ThreadPoolManager pool = (numThreads>1)?new ThreadPoolManager(numThreads, 2*numThreads):null;
+		try {
+			for(String seqName:sequenceNames) {
+				if(sequenceNames.size()<100) log.info("Calling CNVs for sequence "+seqName);
+				if(pool==null) cnvs.addAll(makeCNVCallsPartition(seqName, cut));
+				else pool.queueTask(()->makeCNVCallsPartition(seqName, cut), (cnvsSeq)->cnvs.addAll(cnvsSeq));
 			}
+			if(pool!=null) pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		}
 		Collections.sort(cnvs,new GenomicRegionComparator(rdDistribution.getSequences()));
 		return cnvs;
 	}
 	
+	private List<CalledCNV> makeCNVCallsPartition(String seqName, double cut) {
+		List<CalledCNV> cnvs = new ArrayList<CalledCNV>();
+		List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
+		List<LevelRegion> regions = calculateFinalRegions(seqBins, cut,false,greedyMergeLevels);
+		for(LevelRegion region:regions) {
+			double pValue = region.getPValue();
+			if(pValue <= MAX_PVALUE_REGION) {
+				float copies = (float) (region.getAverageRD()*normalPloidy/meanReadDepth);
+				GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, seqBins.get(region.first).getFirst(), seqBins.get(region.last).getLast(),GenomicVariant.TYPE_CNV);
+				CalledCNV calledCNV = new CalledCNV(cnv,copies);
+				calledCNV.setSource(SOURCE_CNVNATOR);
+				calledCNV.setTotalReadDepth((int)Math.round(region.getAverageRD()*region.nBins));
+				calledCNV.setGenotypeQuality(PhredScoreHelper.calculatePhredScore(pValue));
+				cnvs.add(calledCNV);
+			}
+		}
+		return cnvs;
+	}
+	
 	private List<LevelRegion> calculateFinalRegions(List<ReadDepthBin> seqBins, double cut, boolean includeNeutral, boolean mergeLevels) {
 		if(mergeLevels)mergeLevels(seqBins,cut);
 		List <LevelRegion> regions = calculateAdjustedRegions(seqBins,cut);
@@ -683,6 +742,14 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		if (log == null) throw new NullPointerException("Log can not be null");
 		this.log = log;
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	@Override
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads should be a positive number");
+		this.numThreads = numThreads;
+	}
 	
 	
 	
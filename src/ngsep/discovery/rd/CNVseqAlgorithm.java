@@ -89,10 +89,10 @@ public class CNVseqAlgorithm {
 	// lists to manage the read count for each bin 
 	private List<ReadDepthBin> seqBinsInput;
 	private List<ReadDepthBin> seqBinsControl;
-	private List<Double> rdListInput;
-	private List<Double> rdListControl;
-	private List<Double> ratioRDList;
-	private List<Double> ratioCNVList;
+	private double [] rdListInput;
+	private double [] rdListControl;
+	private double [] ratioRDList;
+	private double [] ratioCNVList;
 		
 	// Get and set methods
 	public Logger getLog() {
@@ -288,10 +288,10 @@ public class CNVseqAlgorithm {
 		advanceNotifier();
 		lambdaInput = readNumInput*binSize/genomeSize; 
 		lambdaControl = readNumControl*binSize/genomeSize; 
-		List<Double> pValueList = calculatePvalue(ratioCNVList, ratioRDList, lambdaInput, lambdaControl);
+		double [] pValueList = calculatePvalue(ratioCNVList, ratioRDList, lambdaInput, lambdaControl);
 		
 		// print the output
-		if(bonferroni) maxPValue = maxPValue / pValueList.size();
+		if(bonferroni) maxPValue = maxPValue / pValueList.length;
 		if(printAllWindows) maxPValue = 0.5;
 		log.info("Writing CNV list.");
 		advanceNotifier();
@@ -311,16 +311,16 @@ public class CNVseqAlgorithm {
 	 * takes into account GC correction
 	 * @param List containing all bins in the genome
 	 * @param boolean whether to perform CG correction or not
-	 * @return List of the read depth per bin 
+	 * @return Array with the read depth per bin 
 	 */
-	public List<Double> getRDList(List<ReadDepthBin> bins){
-		List<Double> binsRD = new ArrayList<Double>();
-		
-		for(ReadDepthBin bin:bins){
+	public double [] getRDList(List<ReadDepthBin> bins){
+		double [] binsRD = new double [bins.size()];
+		for(int i=0;i<binsRD.length;i++){
+			ReadDepthBin bin = bins.get(i);
 			if(gcCorrection){
-				binsRD.add(bin.getCorrectedReadDepth());
+				binsRD[i] = bin.getCorrectedReadDepth();
 			} else{
-				binsRD.add(bin.getRawReadDepth());
+				binsRD[i] = bin.getRawReadDepth();
 			}
 		}
 		return binsRD;
@@ -328,15 +328,14 @@ public class CNVseqAlgorithm {
 
 	/**
 	 * This method calculates the ratio between read counts for each bin given in the lists
-	 * @param List of the read depth for each bin in input sample
-	 * @param List of the read depth for each bin in control sample
-	 * @return List containing the read depth ratio for each bin X:Y
+	 * @param Array of the read depth for each bin in input sample
+	 * @param Array of the read depth for each bin in control sample
+	 * @return Array containing the read depth ratio for each bin X:Y
 	 */
-	public List<Double> getRDratios(List<Double> countInput, List<Double> countControl){
-		List<Double> readCountRatios = new ArrayList<Double>();
-		for(int i=0;i<countInput.size();i++){
-			double countRatio = countInput.get(i)/countControl.get(i);
-			readCountRatios.add(countRatio);
+	public double [] getRDratios(double [] countInput, double [] countControl){
+		double [] readCountRatios = new double [countInput.length];
+		for(int i=0;i<countInput.length;i++){
+			readCountRatios[i] = countInput[i]/countControl[i];
 		}
 		return readCountRatios;
 	}
@@ -345,15 +344,14 @@ public class CNVseqAlgorithm {
 	 * This method calculates the CNV ratio for each bin,
 	 * taking into account the number of reads for each sample
 	 * The CNV ratio is given without any logarithmic transformation, mean should be 1.
-	 * @param List containing the read depth ratio for each bin X:Y
+	 * @param Array containing the read depth ratio for each bin X:Y
 	 * @param double constant to normalize by the total amount of reads for each sample
-	 * @return List containing predicted CNV ratios for each bin X:Y
+	 * @return Array containing predicted CNV ratios for each bin X:Y
 	 */
-	public List<Double> calculateCNVratios(List<Double> binCountRatio, double totalCountRatio){
-		List<Double> cnvRatios = new ArrayList<Double>();
-		for(int i=0; i < binCountRatio.size();i++){
-			double predictedCNVratio = binCountRatio.get(i) * totalCountRatio;
-			cnvRatios.add(predictedCNVratio);
+	public double [] calculateCNVratios(double [] binCountRatio, double totalCountRatio){
+		double [] cnvRatios = new double [binCountRatio.length];
+		for(int i=0; i < binCountRatio.length;i++){
+			cnvRatios[i] = binCountRatio[i] * totalCountRatio;
 		}
 		return cnvRatios;
 	}
@@ -361,23 +359,23 @@ public class CNVseqAlgorithm {
 	/**
 	 * This method calculates the p-value for each read counts ratio,
 	 * taking into account the distribution of both read counts and the Geary-Hinkley transformation
-	 * @param List containing predicted CNV ratios for each bin X:Y
-	 * @param List containing the read depth ratio for each bin X:Y
+	 * @param Array containing predicted CNV ratios for each bin X:Y
+	 * @param Array containing the read depth ratio for each bin X:Y
 	 * @param double Average number of reads per window in random sequencing of sample X
 	 * @param double Average number of reads per window in random sequencing of sample Y
-	 * @return List of p-values are given for each CNV ratio in the list 
+	 * @return Array of p-values for each CNV ratio in the array 
 	 */
-	public List<Double> calculatePvalue(List<Double> cnvRatios, List<Double> rdRatios, double lambInput, double lambControl){
-		List<Double> pValues = new ArrayList<Double>();
+	public double [] calculatePvalue(double [] cnvRatios, double [] rdRatios, double lambInput, double lambControl){
+		double [] pValues = new double [rdRatios.length];
 		NormalDistribution normDist = new NormalDistribution();
 		// to get p-value, the cumulative normal distribution is used
-		for(int i = 0; i < rdRatios.size(); i++){
-			double t = z2tTransform(rdRatios.get(i),lambInput,lambControl);
-			if(cnvRatios.get(i) >= 1){
-				pValues.add(1-normDist.cumulative(t));
+		for(int i = 0; i < rdRatios.length; i++){
+			double t = z2tTransform(rdRatios[i],lambInput,lambControl);
+			if(cnvRatios[i] >= 1){
+				pValues[i] = 1-normDist.cumulative(t);
 			}
 			else {
-				pValues.add(normDist.cumulative(t));
+				pValues[i] = normDist.cumulative(t);
 			}
 		}
 		return pValues;
@@ -397,30 +395,27 @@ public class CNVseqAlgorithm {
 	/**
 	 * This method calculates the p-value for each read counts ratio,
 	 * @param List posList, ordered bins to extract their position in genome
-	 * @param List readDepthX, read depth for every bin of the sample X
-	 * @param List readDepthX, read depth for every bin of the sample Y
-	 * @param List CNVratios, estimated CNV ratio for each bin
-	 * @param List pvalueList, calculated p-value for each CNV ratio
+	 * @param Array readDepthX, read depth for every bin of the sample X
+	 * @param Array readDepthX, read depth for every bin of the sample Y
+	 * @param Array CNVratios, estimated CNV ratio for each bin
+	 * @param Array pvalueList, calculated p-value for each CNV ratio
 	 * @param String outFile
 	 * @throws FileNotFoundException 
 	 * @post a table is created listing all the information from CNV-seq algorithm. each line is a bin in the genome.
 	 */
-	public void printCNVList(List<ReadDepthBin> posList, List<Double> readDepthInput, List<Double> readDepthControl, List<Double> cnvRatioList, List<Double> pValueList, PrintStream out) {
+	public void printCNVList(List<ReadDepthBin> posList, double [] readDepthInput, double [] readDepthControl, double [] cnvRatioList, double [] pValueList, PrintStream out) {
 		log.info("The maximum p-value reported is: "+ maxPValue);
 		DecimalFormat df = ParseUtils.ENGLISHFMT;
 		for ( int i = 0 ; i < posList.size() ; i++) {
-			if(pValueList.get(i) <= maxPValue){
-				out.print(posList.get(i).getSequenceName()+SEP);
-				out.print(posList.get(i).getFirst()+SEP);
-				out.print(posList.get(i).getLast()+SEP);
-				if(readDepthInput.get(i) == null) out.print(EMPTY+SEP);
-				else out.print(df.format(readDepthInput.get(i))+SEP);
-				if(readDepthControl.get(i) == null) out.print(EMPTY+SEP);
-				else out.print(df.format(readDepthControl.get(i))+SEP);
-				if(cnvRatioList.get(i) == null) out.print(EMPTY+SEP);
-				else out.print(cnvRatioList.get(i)+SEP);
-				if(pValueList.get(i) == null) out.print(EMPTY);
-				else out.print(pValueList.get(i));
+			if(pValueList[i] <= maxPValue){
+				ReadDepthBin bin = posList.get(i);
+				out.print(bin.getSequenceName()+SEP);
+				out.print(bin.getFirst()+SEP);
+				out.print(bin.getLast()+SEP);
+				out.print(df.format(readDepthInput[i])+SEP);
+				out.print(df.format(readDepthControl[i])+SEP);
+				out.print(cnvRatioList[i]+SEP);
+				out.print(pValueList[i]);
 				out.println();
 			}
 		}
@@ -431,20 +426,20 @@ public class CNVseqAlgorithm {
 	 * AT THE MOMENT NO ONE CALLS THIS METHOD, BUT IT WILL SOON BE IMPLEMENTED TO MODIFY THE OUTPUT FORMAT
 	 * merges large CNVs if several, continuous bins, have low p-values
 	 * @param List posList, ordered bins to extract their position in genome
-	 * @param List CNVratios, estimated CNV ratio for each bin
-	 * @param List pvalueList, calculated p-value for each CNV ratio
+	 * @param Array CNVratios, estimated CNV ratio for each bin
+	 * @param Array pvalueList, calculated p-value for each CNV ratio
 	 * @return a list of all the detected CNVs with their average p-value and their average CNV
 	 */
-	public List<CalledCNV> mergeCNV(List<ReadDepthBin> posList, List<Double> cnvRatioList, List<Double> pValueList){
+	public List<CalledCNV> mergeCNV(List<ReadDepthBin> posList, double [] cnvRatioList, double [] pValueList){
 		List<CalledCNV> mergedCNVs = new ArrayList<CalledCNV>();
 		for(int i = 0 ; i < posList.size() ; i++){
-			if(pValueList.get(i) < maxPValue){
+			if(pValueList[i] < maxPValue){
 				int startBin = i;
 				double avrgPval = 0;
 				double avrgCNVratio = 0;
-				while(pValueList.get(i) < maxPValue && posList.get(i).getSequenceName().equals(posList.get(startBin).getSequenceName())){
-					avrgPval += pValueList.get(i);
-					avrgCNVratio += cnvRatioList.get(i);
+				while(pValueList[i] < maxPValue && posList.get(i).getSequenceName().equals(posList.get(startBin).getSequenceName())){
+					avrgPval += pValueList[i];
+					avrgCNVratio += cnvRatioList[i];
 					i++;
 				}
 				int endBin = i-1;
@@ -32,6 +32,7 @@ import JSci.maths.statistics.NormalDistribution;
 import ngsep.genome.GenomicRegionComparator;
 import ngsep.genome.GenomicRegionImpl;
 import ngsep.genome.ReferenceGenome;
+import ngsep.main.ThreadPoolManager;
 import ngsep.math.PhredScoreHelper;
 import ngsep.sequences.QualifiedSequenceList;
 import ngsep.variants.CalledCNV;
@@ -66,6 +67,7 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 	private long genomeSize = 0;
 	private boolean merge = true;
 	private boolean filter = true;
+	private int numThreads = 1;
 	
 	//------------------------------------------------------------------
 	//								MAIN METHODS
@@ -147,32 +149,21 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 		readDepthMean = readDepthDistribution.getMeanReadDepth();
 		readDepthSDeviation = readDepthDistribution.getSigmaReadDepth();
 		List<Interval> detectedCNVs = new ArrayList<Interval>();
-		
-		// obtain z-score, upperLimit probability and lowerLimit probability for each bin, from the read depth
-		log.info( "Transforming read depth to z-score" );
-		rdBinsToRDProb();
+		probabilities = new TreeMap<String, List<RDbinProbabilities>>();
 		
 		// iterate over each chromosome
-		for ( String seqName : sequences.getNamesStringList() ) {
-			log.info( "Calling CNVs for sequence " + seqName );
-			
-			// get all bins in chromosome
-			List<RDbinProbabilities> seqProbs = probabilities.get(seqName);
-			int numProbs = seqProbs.size();
-			
-			// calculate N, and make intervals of all suggested lengths (2 <= l <= N)
-			double significance;																											
-			for ( int l = 2 ; (significance = Math.pow( (falsePositiveRate / (numProbs / l)) , (1.0 / l) )) < 0.50  ; l++ ) {				
-				//log.info( "Searching CNVs in " + l + "00bp-sized intervals" );
-				List<Interval> intervals = getIntervals(seqName, seqProbs, l);
-				for ( int i = 0 ; i < intervals.size() ; i++ ) {
-					
-					// test for duplications and deletions
-					Interval event = intervals.get(i);
-					if ( event.getMaxUpperProb() < significance ) detectedCNVs.add(event);
-					else if ( event.getMaxLowerProb() < significance ) detectedCNVs.add(event);
+		ThreadPoolManager pool = (numThreads>1)?new ThreadPoolManager(numThreads, 2*numThreads):null;
+		try {
+			for ( String seqName : sequences.getNamesStringList() ) {
+				if(pool==null) {
+					detectedCNVs.addAll(callCNVs(seqName));
+				} else {
+					pool.queueTask(()->callCNVs(seqName), (events)->detectedCNVs.addAll(events));
 				}
 			}
+			if(pool!=null) pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		}
 		
 		// sort, filter, merge and output
@@ -189,6 +180,48 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 	//								AUXILIARY METHODS
 	//------------------------------------------------------------------------------
 	
+	/**
+	 * Finds the intervals with significant differences in read depth for one sequence
+	 * @param seqName Name of the sequence
+	 * @return List<Interval> Intervals detected as candidate CNVs
+	 */
+	private List<Interval> callCNVs(String seqName) {
+		log.info( "Calling CNVs for sequence " + seqName );
+		// obtain z-score, upperLimit probability and lowerLimit probability for each bin, from the read depth
+		List<RDbinProbabilities> seqProbs = calculateProbabilities(seqName);
+		synchronized (probabilities) {
+			probabilities.put(seqName, seqProbs);
+		}
+		int numProbs = seqProbs.size();
+		double [] upperProbs = new double [numProbs];
+		double [] lowerProbs = new double [numProbs];
+		for ( int i = 0 ; i < numProbs ; i++ ) {
+			RDbinProbabilities binP = seqProbs.get(i);
+			upperProbs[i] = binP.getUpperTailP();
+			lowerProbs[i] = binP.getLowerTailP();
+		}
+		List<Interval> detectedCNVs = new ArrayList<Interval>();
+		// calculate N, and test intervals of all suggested lengths (2 <= l <= N)
+		// Intervals are only created for the events detected
+		double significance;
+		for ( int l = 2 ; (significance = Math.pow( (falsePositiveRate / (numProbs / l)) , (1.0 / l) )) < 0.50  ; l++ ) {
+			for ( int i = 0 ; i < numProbs-l ; i += l ) {
+				double maxUpperProb = 0;
+				double maxLowerProb = 0;
+				for ( int j = i ; j < i+l ; j++ ) {
+					maxUpperProb = Math.max(maxUpperProb, upperProbs[j]);
+					maxLowerProb = Math.max(maxLowerProb, lowerProbs[j]);
+				}
+				// test for duplications and deletions
+				if ( maxUpperProb < significance || maxLowerProb < significance ) {
+					List<RDbinProbabilities> bins = new ArrayList<RDbinProbabilities>(seqProbs.subList(i, i+l));
+					detectedCNVs.add(new Interval(seqName, bins.get(0).getFirst(), bins.get(l-1).getLast(), bins));
+				}
+			}
+		}
+		return detectedCNVs;
+	}
+	
 	/**
 	 * Fills in the probabilities TreeMap, saving one list of bins with their associated
 	 * probabilities for each chromosome (or sequence in the FASTA file).
@@ -199,23 +232,26 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 
 		// iterate over all the bins in the genome
 		for ( String seqName : sequences.getNamesStringList() ) {
-			List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
-			List<RDbinProbabilities> seqProbs = new ArrayList<RDbinProbabilities>();
-			
-			log.info( "normalizing read depth for bins in " + seqName );
-			for ( int i = 0 ; i < seqBins.size() ; i++ ) {
-				ReadDepthBin bin = seqBins.get(i);
+			probabilities.put(seqName, calculateProbabilities(seqName));
+		}
+	}
+	
+	private List<RDbinProbabilities> calculateProbabilities (String seqName) {
+		List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
+		List<RDbinProbabilities> seqProbs = new ArrayList<RDbinProbabilities>(seqBins.size());
+		
+		log.info( "normalizing read depth for bins in " + seqName );
+		for ( int i = 0 ; i < seqBins.size() ; i++ ) {
+			ReadDepthBin bin = seqBins.get(i);
 
-				// change the nature of each bin to its probability
-				RDbinProbabilities binP = new RDbinProbabilities(bin.getSequenceName(), bin.getFirst(), bin.getLast(), bin.getGcContent(), bin.getCorrectedReadDepth());
+			// change the nature of each bin to its probability
+			RDbinProbabilities binP = new RDbinProbabilities(bin.getSequenceName(), bin.getFirst(), bin.getLast(), bin.getGcContent(), bin.getCorrectedReadDepth());
 
-				// calculate Z-score and add to the new list
-				binP.setzScore( (bin.getCorrectedReadDepth() - readDepthMean) / readDepthSDeviation );
-				seqProbs.add(binP);
-			}
-			
-			probabilities.put(seqName, seqProbs);
+			// calculate Z-score and add to the new list
+			binP.setzScore( (bin.getCorrectedReadDepth() - readDepthMean) / readDepthSDeviation );
+			seqProbs.add(binP);
 		}
+		return seqProbs;
 	}
 	
 	/**
@@ -340,6 +376,14 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 		if (log == null) throw new NullPointerException("Log can not be null");
 		this.log = log;
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	@Override
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads should be a positive number");
+		this.numThreads = numThreads;
+	}
 	public double getFalsePositiveRate() {
 		return falsePositiveRate;
 	}
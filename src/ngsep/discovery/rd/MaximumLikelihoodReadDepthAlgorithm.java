@@ -26,6 +26,7 @@ import JSci.maths.statistics.NormalDistribution;
 import ngsep.hmm.ConstantTransitionHMM;
 import ngsep.hmm.HMM;
 import ngsep.hmm.HMMState;
+import ngsep.main.ThreadPoolManager;
 import ngsep.math.LogMath;
 import ngsep.math.PhredScoreHelper;
 import ngsep.variants.CalledCNV;
@@ -47,6 +48,7 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 
 	private byte normalPloidy = 2;
 	private double changeProbability = 0.01;
+	private int numThreads = 1;
 	private HMM hmm;
 
 	public Logger getLog() {
@@ -85,6 +87,15 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 	public void setReadDepthDistribution(ReadDepthDistribution distribution) {
 		this.readDepthDistribution = distribution;
 	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads should be a positive number");
+		this.numThreads = numThreads;
+	}
 
 
 	public List<CalledCNV> callCNVs() {
@@ -92,15 +103,26 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 		List<String> seqNames = readDepthDistribution.getSequences().getNamesStringList();
 		log.info("Building HMM");
 		buildHMM();
-		for(String seqName:seqNames) {
-			log.info("Calling CNVs for sequence "+seqName);
-			List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
-			List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins); 
-			log.info("Called "+cnvsSeq.size()+" CNVs for sequence "+seqName);
-			answer.addAll(cnvsSeq);
+		ThreadPoolManager pool = (numThreads>1)?new ThreadPoolManager(numThreads, 2*numThreads):null;
+		try {
+			for(String seqName:seqNames) {
+				if(pool==null) answer.addAll(callCNVsSequence(seqName));
+				else pool.queueTask(()->callCNVsSequence(seqName), (cnvsSeq)->answer.addAll(cnvsSeq));
+			}
+			if(pool!=null) pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		}
 		return answer;
 	}
+	
+	private List<CalledCNV> callCNVsSequence(String seqName) {
+		log.info("Calling CNVs for sequence "+seqName);
+		List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
+		List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins); 
+		log.info("Called "+cnvsSeq.size()+" CNVs for sequence "+seqName);
+		return cnvsSeq;
+	}
 
 	private void buildHMM() {
 		int nStates = 4*normalPloidy+1;
@@ -45,6 +45,7 @@ class PoissonHMMState implements HMMState {
 	private int copies;
 	private double averageDepth;
 	private Double logStart;
+	private PoissonDistribution dist;
 	
 	
 	/**
@@ -57,6 +58,7 @@ class PoissonHMMState implements HMMState {
 		this.copies = copies;
 		this.averageDepth = averageDepth;
 		this.logStart = logStart;
+		this.dist = new PoissonDistribution(averageDepth);
 	}
 
 	@Override
@@ -64,7 +66,6 @@ class PoissonHMMState implements HMMState {
 		if(value == null || !(value instanceof Double)) return null;
 		double depth = (Double)value;
 		if(depth<1) depth = 1;
-		PoissonDistribution dist = new PoissonDistribution(averageDepth);
 		double a = dist.probability(depth);
 		//System.out.println("--- depthPoisson ---- " + depth + " ----a--- " + a);
 		// double p = dist.cumulative(depth+0.5)-dist.cumulative(depth-0.5);
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.gbs;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ngsep.sequences.RawRead;
+import ngsep.variants.Sample;
+
+/**
+ * Stores the reads assigned to a range of clusters. Reads are kept in memory in a compact binary format
+ * with two bits per base pair and they are appended to a binary file when the memory buffer is spilled.
+ * Records keep the cluster id, the index of the sample and the sequence and quality scores of one read
+ * or a pair of reads. Characters different than A, C, G and T are stored as exceptions
+ * @author Jorge Duitama
+ */
+public class ClusteredReadsBucket {
+	private static final String BASES = "ACGT";
+	private final String filename;
+	private final boolean pairedEnd;
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private DataOutputStream bufferOut = new DataOutputStream(buffer);
+	private int bufferedReads = 0;
+	private int totalReads = 0;
+	private boolean spilled = false;
+
+	/**
+	 * Creates an empty bucket
+	 * @param filename Name of the file to store the reads spilled from memory
+	 * @param pairedEnd Tells if records are pairs of reads
+	 */
+	public ClusteredReadsBucket(String filename, boolean pairedEnd) {
+		this.filename = filename;
+		this.pairedEnd = pairedEnd;
+	}
+
+	/**
+	 * @return int Number of records waiting in memory
+	 */
+	public int getBufferedReads() {
+		return bufferedReads;
+	}
+
+	/**
+	 * @return int Total number of records added to this bucket
+	 */
+	public int getTotalReads() {
+		return totalReads;
+	}
+
+	public void addSingleRead(int clusterId, int sampleIdx, RawRead read) throws IOException {
+		if(pairedEnd) throw new RuntimeException("Can not add single reads to a paired-end bucket");
+		bufferOut.writeInt(clusterId);
+		bufferOut.writeInt(sampleIdx);
+		writeRead(bufferOut, read);
+		bufferedReads++;
+		totalReads++;
+	}
+
+	public void addPairedEndRead(int clusterId, int sampleIdx, RawRead read1, RawRead read2) throws IOException {
+		if(!pairedEnd) throw new RuntimeException("Can not add paired-end reads to a single-end bucket");
+		bufferOut.writeInt(clusterId);
+		bufferOut.writeInt(sampleIdx);
+		writeRead(bufferOut, read1);
+		writeRead(bufferOut, read2);
+		bufferedReads++;
+		totalReads++;
+	}
+
+	/**
+	 * Appends the records in memory to the file of this bucket and clears the memory buffer
+	 * @throws IOException If the file can not be written
+	 */
+	public void spill() throws IOException {
+		if(bufferedReads==0) return;
+		bufferOut.flush();
+		try (FileOutputStream out = new FileOutputStream(filename, spilled)) {
+			buffer.writeTo(out);
+		}
+		spilled = true;
+		buffer.reset();
+		bufferedReads = 0;
+	}
+
+	/**
+	 * Loads the reads of this bucket grouped by cluster. Reads within each cluster keep the order in which they were added.
+	 * @param clusterSizes Total number of reads of each cluster
+	 * @param minClusterDepth Clusters with less reads than this value are ignored
+	 * @param maxClusterDepth Clusters with more reads than this value are ignored
+	 * @param samples List of samples to retrieve sample ids from sample indexes
+	 * @return Map<Integer,ReadCluster> Clusters of reads sorted by cluster id
+	 * @throws IOException If the file of this bucket can not be read
+	 */
+	public Map<Integer, ReadCluster> loadClusters(int [] clusterSizes, int minClusterDepth, int maxClusterDepth, List<Sample> samples) throws IOException {
+		Map<Integer, ReadCluster> clusters = new TreeMap<>();
+		int recordNumber = 0;
+		if(spilled) {
+			try (InputStream in = new BufferedInputStream(new FileInputStream(filename))) {
+				recordNumber = loadClusters(new DataInputStream(in), recordNumber, clusterSizes, minClusterDepth, maxClusterDepth, samples, clusters);
+			}
+		}
+		bufferOut.flush();
+		loadClusters(new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())), recordNumber, clusterSizes, minClusterDepth, maxClusterDepth, samples, clusters);
+		return clusters;
+	}
+
+	private int loadClusters(DataInputStream in, int recordNumber, int [] clusterSizes, int minClusterDepth, int maxClusterDepth, List<Sample> samples, Map<Integer, ReadCluster> clusters) throws IOException {
+		while(true) {
+			int clusterId;
+			try {
+				clusterId = in.readInt();
+			} catch (EOFException e) {
+				break;
+			}
+			String sampleId = samples.get(in.readInt()).getId();
+			//Original read names are not stored. Names are built from the cluster and the position of the record
+			String readName = clusterId+"_"+recordNumber;
+			recordNumber++;
+			RawRead read1 = readRead(in, readName);
+			RawRead read2 = pairedEnd?readRead(in, readName):null;
+			int size = clusterSizes[clusterId];
+			if(size<minClusterDepth || size>maxClusterDepth) continue;
+			ReadCluster cluster = clusters.computeIfAbsent(clusterId, (k)->new ReadCluster(k, pairedEnd));
+			if(pairedEnd) cluster.addPairedEndRead(read1, read2, sampleId);
+			else cluster.addSingleRead(read1, sampleId);
+		}
+		return recordNumber;
+	}
+
+	/**
+	 * Releases the memory used by this bucket and deletes its file
+	 */
+	public void dispose() {
+		buffer = null;
+		bufferOut = null;
+		if(spilled) new File(filename).delete();
+	}
+
+	private static void writeRead(DataOutputStream out, RawRead read) throws IOException {
+		CharSequence seq = read.getCharacters();
+		String qs = read.getQualityScores();
+		int n = seq.length();
+		out.writeInt(n);
+		int numExceptions = 0;
+		int packed = 0;
+		for(int i=0;i<n;i++) {
+			int bp = BASES.indexOf(seq.charAt(i));
+			if(bp<0) {
+				numExceptions++;
+				bp = 0;
+			}
+			packed = (packed<<2) | bp;
+			if(i%4==3) {
+				out.writeByte(packed);
+				packed = 0;
+			}
+		}
+		if(n%4!=0) out.writeByte(packed<<(2*(4-n%4)));
+		out.writeInt(numExceptions);
+		for(int i=0;i<n && numExceptions>0;i++) {
+			char c = seq.charAt(i);
+			if(BASES.indexOf(c)<0) {
+				out.writeInt(i);
+				out.writeChar(c);
+				numExceptions--;
+			}
+		}
+		for(int i=0;i<n;i++) out.writeByte(qs.charAt(i));
+	}
+
+	private static RawRead readRead(DataInputStream in, String name) throws IOException {
+		int n = in.readInt();
+		char [] seq = new char[n];
+		for(int i=0;i<n;i+=4) {
+			int packed = in.readUnsignedByte();
+			for(int j=0;j<4 && i+j<n;j++) {
+				seq[i+j] = BASES.charAt((packed>>(2*(3-j))) & 3);
+			}
+		}
+		int numExceptions = in.readInt();
+		for(int i=0;i<numExceptions;i++) {
+			int pos = in.readInt();
+			seq[pos] = in.readChar();
+		}
+		byte [] qs = new byte[n];
+		in.readFully(qs);
+		return new RawRead(name, new String(seq), new String(qs, StandardCharsets.ISO_8859_1));
+	}
+}
@@ -22,10 +22,8 @@ package ngsep.gbs;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -36,9 +34,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
 
 import ngsep.discovery.CountsHelper;
 import ngsep.discovery.MultisampleVariantsDetector;
@@ -46,8 +46,6 @@ import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
 import ngsep.main.ThreadPoolManager;
-import ngsep.sequences.DNASequence;
-import ngsep.sequences.DNAShortKmer;
 import ngsep.sequences.DNAShortKmerClusterMap;
 import ngsep.sequences.RawRead;
 import ngsep.sequences.io.FastqFileReader;
@@ -79,8 +77,11 @@ public class KmerPrefixReadsClusteringAlgorithm {
 	public static final int DEF_START = 8;
 	public static final int DEF_MAX_NUM_CLUSTERS = 4000000;
 	public static final int DEF_MAX_READS_IN_RAM = 5000000;
+	public static final int DEF_NUM_BUCKETS = 1000;
 	public static final String DEF_REGEXP_SINGLE="<S>.fastq.gz";
 	public static final String DEF_REGEXP_PAIRED="<S>_<N>.fastq.gz";
+	private static final int PREFIX_CHUNK_SIZE = 65536;
+	private static final int PREFIX_CHUNKS_PER_FILE = 4;
 	
 	
 	// Logging and progress
@@ -102,11 +103,9 @@ public class KmerPrefixReadsClusteringAlgorithm {
 	private byte normalPloidy = DEF_PLOIDY;
 	private double minAlleleDepthFrequency = DEF_MIN_ALLELE_DEPTH_FREQUENCY;
 	private int maxReadsInRAM = DEF_MAX_READS_IN_RAM;
+	private int numBuckets = DEF_NUM_BUCKETS;
 	
 	// Model attributes
-	private static final String READID_SEPARATOR="$";
-	private final int MAX_TASK_COUNT = 20;
-	
 	private int minClusterDepth = MIN_CLUSTER_DEPTH;
 	private int maxClusterDepth;
 	
@@ -197,6 +196,28 @@ public class KmerPrefixReadsClusteringAlgorithm {
 		setMaxNumClusters((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
 
+	public int getMaxReadsInRAM() {
+		return maxReadsInRAM;
+	}
+	public void setMaxReadsInRAM(int maxReadsInRAM) {
+		if(maxReadsInRAM<=0) throw new IllegalArgumentException("Maximum number of reads in RAM should be a positive number");
+		this.maxReadsInRAM = maxReadsInRAM;
+	}
+	public void setMaxReadsInRAM(String value) {
+		setMaxReadsInRAM((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+	public int getNumBuckets() {
+		return numBuckets;
+	}
+	public void setNumBuckets(int numBuckets) {
+		if(numBuckets<=0) throw new IllegalArgumentException("Number of buckets should be a positive number");
+		this.numBuckets = numBuckets;
+	}
+	public void setNumBuckets(String value) {
+		setNumBuckets((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public int getNumThreads() {
 		return numThreads;
 	}
@@ -325,7 +346,8 @@ public class KmerPrefixReadsClusteringAlgorithm {
 		processInfo.addTime(System.currentTimeMillis(), "Cluster reads start");
 		log.info("Built kmers map with "+kmersMap.size()+" clusters");
 		this.clusterSizes = new int[maxNumClusters];
-		Map<Integer, List<String>> clusteredReadsFilenames = clusterReadsByFile(filenamesBySampleId2.size()>0);
+		boolean paired = filenamesBySampleId2.size()>0;
+		List<ClusteredReadsBucket> buckets = clusterReadsByFile(paired);
 		kmersMap.dispose();
 		printDistribution();
 		printClusteringStats();
@@ -334,18 +356,10 @@ public class KmerPrefixReadsClusteringAlgorithm {
 		processInfo.addTime(System.currentTimeMillis(), "Variant calling start");
 		//Initialize cache resources of CountsHelper
 		new CountsHelper();
-		List<String> clustered1 = clusteredReadsFilenames.get(1);
-		List<String> clustered2 = clusteredReadsFilenames.get(2);
 		log.info("Clustered reads");
-		if(clustered2 == null) {
-			numClusteredFiles = clustered1.size();
-			log.info("Processing: "+numClusteredFiles+" files");
-			callVariants(clustered1);
-		} else {
-			numClusteredFiles = clustered1.size() + clustered2.size();
-			log.info("Processing: "+numClusteredFiles+" paired end files");
-			callVariants(clustered1, clustered2);
-		}
+		numClusteredFiles = buckets.size();
+		log.info("Processing: "+numClusteredFiles+" buckets of clusters");
+		callVariants(buckets, paired);
 		
 		processInfo.addTime(System.currentTimeMillis(), "Variant calling end");
 		log.info("Called variants");
@@ -362,6 +376,7 @@ public class KmerPrefixReadsClusteringAlgorithm {
 		out.println("Kmer length: "+ kmerLength);
 		out.println("Maximum number of clusters: "+ maxNumClusters);
 		out.println("Maximum number of reads in RAM: "+ maxReadsInRAM);
+		out.println("Number of buckets of clusters: "+ numBuckets);
 		out.println("Prior heterozygosity rate: "+ heterozygosityRate);
 		out.println("Minimum variant quality: "+ minQuality);
 		out.println("Normal ploidy: "+ normalPloidy);
@@ -457,54 +472,165 @@ public class KmerPrefixReadsClusteringAlgorithm {
 		Runtime runtime = Runtime.getRuntime();
 		long usedMemory = runtime.totalMemory()-runtime.freeMemory();
 		log.info("Initialized k-mers map. Memory: "+usedMemory);
-		int n=0;
-		for(String filename:filenamesBySampleId1.values()) {
-			log.info("Processing file "+filename);
-			addKmersFromFile(filename);
-			n++;
-			log.info(kmersMap.size() + " clusters created after processing " + n + " files.");
+		if(numThreads==1) {
+			for(String filename:filenamesBySampleId1.values()) {
+				log.info("Processing file "+filename);
+				int readCount = extractPrefixCodes(filename, kmersMap::addOcurrance);
+				finishKmersFile(filename, readCount);
+			}
+		} else {
+			buildKmersMapParallel();
 		}
 		usedMemory = runtime.totalMemory()-runtime.freeMemory();
 		log.info("Finished k-mers map. Clusters: "+kmersMap.size()+". Memory: "+usedMemory);
 	}
-
-	private void addKmersFromFile(String filename) throws IOException {
+	
+	/**
+	 * Reads up to numThreads files at the same time. Each reader hands off chunks of prefix codes of fixed size
+	 * through a bounded queue. Chunks are added to the map in the order of the files 
+	 * @throws IOException If some of the files can not be read
+	 */
+	private void buildKmersMapParallel() throws IOException {
+		List<String> filenames = new ArrayList<>(filenamesBySampleId1.values());
+		List<PrefixCodesChunker> chunkers = new ArrayList<>(filenames.size());
+		ThreadPoolManager poolManager = new ThreadPoolManager(numThreads, numThreads);
+		try {
+			for(int i=0;i<filenames.size();i++) {
+				//Files are submitted only when a thread is available to avoid readers waiting for a queue that is not drained
+				while(chunkers.size()<filenames.size() && chunkers.size()<i+numThreads) {
+					String filename = filenames.get(chunkers.size());
+					PrefixCodesChunker chunker = new PrefixCodesChunker();
+					chunkers.add(chunker);
+					poolManager.queueTask(()->chunker.extract(filename));
+				}
+				String filename = filenames.get(i);
+				log.info("Processing file "+filename);
+				PrefixCodesChunker chunker = chunkers.get(i);
+				long [] chunk;
+				while((chunk = chunker.take()).length>0) {
+					for(int j=0;j<chunk.length;j++) kmersMap.addOcurrance(chunk[j]);
+				}
+				if(chunker.error!=null) throw chunker.error;
+				chunkers.set(i, null);
+				finishKmersFile(filename, chunker.count);
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			//Readers still running after an error should not wait for chunks that will not be processed 
+			for(PrefixCodesChunker chunker:chunkers) {
+				if(chunker!=null) chunker.discard();
+			}
+			try {
+				poolManager.terminatePool();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		log.info("Statistics of the pool of threads:\n"+poolManager.getStatisticsSummary());
+	}
+	
+	/**
+	 * Extracts the codes of the prefixes of the reads in the given file
+	 * @param filename Fastq file with reads
+	 * @param consumer Receives the codes of the prefixes in the order of the file. Reads with short or non DNA prefixes are skipped
+	 * @return int Number of codes extracted
+	 * @throws IOException If the file can not be read
+	 */
+	private int extractPrefixCodes(String filename, LongConsumer consumer) throws IOException {
 		int readCount = 0;
 		try (FastqFileReader openFile = new FastqFileReader(filename);) {
 			Iterator<RawRead> reader = openFile.iterator();
 			while(reader.hasNext()) {
 				RawRead read = reader.next();
-				String s = read.getSequenceString();
-				if(DEF_START + kmerLength>s.length()) continue;
-				String prefix = s.substring(DEF_START,DEF_START + kmerLength);
-				if(DNASequence.isDNA(prefix)) {
-					kmersMap.addOcurrance(new DNAShortKmer(prefix));
-					readCount++;
-				}
+				long code = getPrefixCode(read.getCharacters());
+				if(code<0) continue;
+				consumer.accept(code);
+				readCount++;
 			}
 		}
+		return readCount;
+	}
+	
+	private long getPrefixCode(CharSequence s) {
+		if(DEF_START + kmerLength>s.length()) return -1;
+		return DNAShortKmerClusterMap.encode(s, DEF_START, DEF_START + kmerLength);
+	}
+
+	private void finishKmersFile(String filename, int readCount) {
 		log.info("Processed a total of " + readCount + " reads for file: "+filename+". Removing shallow clusters");
 		kmersMap.eliminateShallowClusters();
+		log.info(kmersMap.size() + " clusters created after processing file "+filename);
 	}
 	
-	public Map<Integer, List<String>> clusterReadsByFile(boolean paired) throws IOException {
-		Runtime runtime = Runtime.getRuntime();
-		Map<Integer, List<String>> outfiles = new HashMap<>();
-		List<String> outFilesList = new ArrayList<String>();
-		List<String> outFilesList_1 = new ArrayList<String>();
-		List<String> outFilesList_2 = new ArrayList<String>();
-		outfiles.put(1, outFilesList);
-		if (paired) {
-			outfiles.put(1, outFilesList_1);
-			outfiles.put(2, outFilesList_2);
+	/**
+	 * Groups the prefix codes of one file in chunks of fixed size. At most PREFIX_CHUNKS_PER_FILE chunks
+	 * are kept in memory for each file. An empty chunk marks the end of the file 
+	 */
+	private class PrefixCodesChunker implements LongConsumer {
+		private final BlockingQueue<long[]> chunks = new ArrayBlockingQueue<>(PREFIX_CHUNKS_PER_FILE);
+		private long [] chunk = new long[PREFIX_CHUNK_SIZE];
+		private int size = 0;
+		private int count = 0;
+		private volatile IOException error;
+		private volatile boolean discarded = false;
+		
+		public void extract(String filename) {
+			try {
+				count = extractPrefixCodes(filename, this);
+				if(size>0) put(Arrays.copyOf(chunk, size));
+			} catch (IOException e) {
+				error = e;
+			} finally {
+				chunk = null;
+				put(new long[0]);
+			}
+		}
+		@Override
+		public void accept(long code) {
+			if(discarded) return;
+			chunk[size++] = code;
+			if(size==chunk.length) {
+				put(chunk);
+				chunk = new long[PREFIX_CHUNK_SIZE];
+				size = 0;
+			}
+		}
+		private void put(long [] codes) {
+			try {
+				while(!discarded && !chunks.offer(codes, 1, TimeUnit.SECONDS));
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		public long [] take() throws InterruptedException {
+			return chunks.take();
 		}
+		public void discard() {
+			discarded = true;
+			chunks.clear();
+		}
+	}
+	
+	/**
+	 * Assigns the reads of each sample to the clusters of the k-mers map. Reads are distributed in buckets of consecutive clusters
+	 * @param paired Tells if the reads are paired-end
+	 * @return List<ClusteredReadsBucket> Buckets of reads sorted by cluster id
+	 * @throws IOException If the input files can not be read or if the buckets can not be spilled to disk
+	 */
+	public List<ClusteredReadsBucket> clusterReadsByFile(boolean paired) throws IOException {
+		Runtime runtime = Runtime.getRuntime();
+		int clustersPerBucket = Math.max(1, (kmersMap.getClusterIdsLimit()+numBuckets-1)/numBuckets);
+		List<ClusteredReadsBucket> buckets = new ArrayList<>(numBuckets);
+		for(int i=0;i<numBuckets;i++) buckets.add(new ClusteredReadsBucket(outputPrefix+"_clusteredReads_"+i+".bin", paired));
+		int bufferedReads = 0;
+		int sampleIdx = 0;
 		for(String sampleId:filenamesBySampleId1.keySet()) {
 			String filename1 = filenamesBySampleId1.get(sampleId);
 			int totalReadsFile = 0;
 			int clusteredReadsFile = 0;
 			
 			if(!paired) {
-				ClusteredReadsCache clusteredReadsCache = new ClusteredReadsCache(sampleId);
 				log.info("Clustering reads from " + filename1);
 				
 				try (FastqFileReader openFile = new FastqFileReader(filename1);) {
@@ -513,32 +639,26 @@ public class KmerPrefixReadsClusteringAlgorithm {
 						this.numTotalReads++;
 						totalReadsFile++;
 						RawRead read = reader.next();
-						String s = read.getSequenceString();
-						if(DEF_START + kmerLength>s.length()) continue;
-						String prefix = s.substring(DEF_START,DEF_START + kmerLength);
-						if(!DNASequence.isDNA(prefix)) continue;
-						Integer clusterId = kmersMap.getCluster(new DNAShortKmer(prefix));
-						if(clusterId==null) continue;
+						long prefixCode = getPrefixCode(read.getCharacters());
+						if(prefixCode<0) continue;
+						int clusterId = kmersMap.getCluster(prefixCode);
+						if(clusterId<0) continue;
 						clusterSizes[clusterId]++;
 						if(clusterSizes[clusterId]<=maxClusterDepth) {
 							clusteredReadsFile++;
-							clusteredReadsCache.addSingleRead(clusterId, new RawRead(sampleId+READID_SEPARATOR+clusterId+READID_SEPARATOR+read.getName(), s, read.getQualityScores()));
-							if(clusteredReadsCache.getTotalReads()>=maxReadsInRAM) {
-								long usedMemory = runtime.totalMemory()-runtime.freeMemory();
-								log.info("Clustering reads of sample "+sampleId+". Reads in memory: "+clusteredReadsCache.getTotalReads()+". Memory: "+usedMemory);
-								clusteredReadsCache.dump(outputPrefix);
-							}
+							buckets.get(clusterId/clustersPerBucket).addSingleRead(clusterId, sampleIdx, read);
+							bufferedReads++;
+						}
+						if(bufferedReads>=maxReadsInRAM) {
+							long usedMemory = runtime.totalMemory()-runtime.freeMemory();
+							log.info("Clustering reads of sample "+sampleId+". Reads in memory: "+bufferedReads+". Memory: "+usedMemory);
+							spillBuckets(buckets);
+							bufferedReads = 0;
 						}
 					}
 				}
-				long usedMemory = runtime.totalMemory()-runtime.freeMemory();
-				log.info("Clustering reads of sample "+sampleId+". Reads in memory: "+clusteredReadsCache.getTotalReads()+". Memory: "+usedMemory);
-				clusteredReadsCache.dump(outputPrefix);
-				outFilesList.addAll(clusteredReadsCache.getClusteredReadFiles());
 			} else {
 				String filename2 = filenamesBySampleId2.get(sampleId);
-				ClusteredReadsCache clusteredReadsCache_1 = new ClusteredReadsCache(sampleId + "_1");
-				ClusteredReadsCache clusteredReadsCache_2 = new ClusteredReadsCache(sampleId + "_2");
 				log.info("Clustering reads from " + filename1+" and "+filename2);
 				try (FastqFileReader file1 = new FastqFileReader(filename1);
 					 FastqFileReader file2 = new FastqFileReader(filename2)) {
@@ -549,40 +669,32 @@ public class KmerPrefixReadsClusteringAlgorithm {
 						this.numTotalReads += 2;
 						totalReadsFile+=2;
 						RawRead read1 = it1.next();
-						CharSequence read1s = read1.getCharacters();
 						RawRead read2 = it2.next();
-						CharSequence read2s = read2.getCharacters();
-						if(DEF_START + kmerLength>read1s.length() || DEF_START + kmerLength>read2s.length()) continue;
-						String prefix = read1s.subSequence(DEF_START,DEF_START + kmerLength).toString();
-						if(!DNASequence.isDNA(prefix)) continue;
-						Integer clusterId = kmersMap.getCluster(new DNAShortKmer(prefix));
-						if(clusterId==null) continue;
+						if(DEF_START + kmerLength>read2.getLength()) continue;
+						long prefixCode = getPrefixCode(read1.getCharacters());
+						if(prefixCode<0) continue;
+						int clusterId = kmersMap.getCluster(prefixCode);
+						if(clusterId<0) continue;
 						clusterSizes[clusterId]++;
 						if(clusterSizes[clusterId]<=maxClusterDepth) {
-							String prefixReadId = sampleId+READID_SEPARATOR+clusterId+READID_SEPARATOR;
-							clusteredReadsCache_1.addSingleRead(clusterId, new RawRead(prefixReadId+read1.getName(), read1s, read1.getQualityScores()));
-							clusteredReadsCache_2.addSingleRead(clusterId, new RawRead(prefixReadId+read2.getName(), read2s, read2.getQualityScores()));
+							buckets.get(clusterId/clustersPerBucket).addPairedEndRead(clusterId, sampleIdx, read1, read2);
 							clusteredReadsFile+=2;
-							int totalReadsCache = clusteredReadsCache_1.getTotalReads()+clusteredReadsCache_2.getTotalReads(); 
-							if(totalReadsCache>=maxReadsInRAM) {
-								long usedMemory = runtime.totalMemory()-runtime.freeMemory();
-								log.info("Clustering reads of sample "+sampleId+". Reads in memory: "+totalReadsCache+". Memory: "+usedMemory);
-								clusteredReadsCache_1.dump(outputPrefix);
-								clusteredReadsCache_2.dump(outputPrefix);
-							}
+							bufferedReads+=2;
+						}
+						if(bufferedReads>=maxReadsInRAM) {
+							long usedMemory = runtime.totalMemory()-runtime.freeMemory();
+							log.info("Clustering reads of sample "+sampleId+". Reads in memory: "+bufferedReads+". Memory: "+usedMemory);
+							spillBuckets(buckets);
+							bufferedReads = 0;
 						}
 					}
 				}
-				int totalReadsCache = clusteredReadsCache_1.getTotalReads()+clusteredReadsCache_2.getTotalReads();
-				long usedMemory = runtime.totalMemory()-runtime.freeMemory();
-				log.info("Clustering reads of sample "+sampleId+". Reads in memory: "+totalReadsCache+". Memory: "+usedMemory);
-				clusteredReadsCache_1.dump(outputPrefix);
-				clusteredReadsCache_2.dump(outputPrefix);
-				outFilesList_1.addAll(clusteredReadsCache_1.getClusteredReadFiles());
-				outFilesList_2.addAll(clusteredReadsCache_2.getClusteredReadFiles());
 			}
+			long usedMemory = runtime.totalMemory()-runtime.freeMemory();
+			log.info("Clustered reads of sample "+sampleId+". Reads in memory: "+bufferedReads+". Memory: "+usedMemory);
 			totalReads.put(sampleId, totalReadsFile);
 			clusteredReads.put(sampleId, clusteredReadsFile);
+			sampleIdx++;
 		}
 		for(int size: this.clusterSizes) {
 			if(size>maxClusterDepth) {
@@ -594,15 +706,22 @@ public class KmerPrefixReadsClusteringAlgorithm {
 				this.numReadsSmallClusters += size;
 			}
 		}
-		return outfiles;
+		return buckets;
 	}
-
 	
-	public void callVariants(List<String> clusteredReadsFilenames) throws IOException, InterruptedException {
-		int numberOfFiles = clusteredReadsFilenames.size();
-		//process files in parallel
-		FastqFileReader [] readers = new FastqFileReader[numberOfFiles];
-		RawRead [] currentReads = new RawRead[numberOfFiles];
+	private void spillBuckets(List<ClusteredReadsBucket> buckets) throws IOException {
+		for(ClusteredReadsBucket bucket:buckets) bucket.spill();
+	}
+
+	/**
+	 * Calls variants within the clusters of each bucket. Buckets are processed in parallel and the results
+	 * are written in the order of the buckets, which keeps the output sorted by cluster id
+	 * @param buckets Buckets of clustered reads sorted by cluster id
+	 * @param paired Tells if the buckets have paired-end reads
+	 * @throws IOException If the output files can not be written
+	 * @throws InterruptedException If the process is interrupted while waiting for the pool of threads
+	 */
+	public void callVariants(List<ClusteredReadsBucket> buckets, boolean paired) throws IOException, InterruptedException {
 		VCFFileHeader header = VCFFileHeader.makeDefaultEmptyHeader();
 		VCFFileWriter writer = new VCFFileWriter ();
 		
@@ -611,11 +730,8 @@ public class KmerPrefixReadsClusteringAlgorithm {
 			header.addSample(sample, sample.getNormalPloidy()!=GenomicVariant.DEFAULT_PLOIDY);
 		}
 		
-		Arrays.fill(currentReads, null);
-		List<Iterator<RawRead>> iterators = new ArrayList<>();
-		
 		//Create pool manager and statistics
-		ThreadPoolManager poolManager = new ThreadPoolManager(numThreads, MAX_TASK_COUNT);
+		ThreadPoolManager poolManager = new ThreadPoolManager(numThreads, numThreads);
 		
 		//Timer for mem checks
 		Timer timer = new Timer();
@@ -623,298 +739,57 @@ public class KmerPrefixReadsClusteringAlgorithm {
 		try (PrintStream outVariants = new PrintStream(outputPrefix+"_variants.vcf");
 			 PrintStream outConsensus = new PrintStream(outputPrefix+"_consensus.fa");
 			 PrintStream memUsage = new PrintStream(outputPrefix + "_memoryUsage.txt");) {
-			int numNotNull = 0;
-			int numCluster = 0;
 			
 			// save memory usage every 5 seconds
 			memUsage.println("Time(ms)\tMemoryUsage(MB)");
 			timer.schedule(new MemoryUsage(memUsage), 0, 5000);
 			
-			
-			for(int i=0; i<numberOfFiles; i++) {
-				readers[i] = new FastqFileReader(clusteredReadsFilenames.get(i));
-				Iterator<RawRead> it = readers[i].iterator();
-				iterators.add(it);
-				if(it.hasNext()) {
-					currentReads[i] = it.next();
-					numNotNull++;
+			if(paired) {
+				try (PrintStream clusterDetails = new PrintStream(outputPrefix + "_clusterDetails.tsv")) {
+					//Header for clusterDetails
+					clusterDetails.println("ClusterNumber\tAlignPos\tAlignConfidence\tAlignLength\tDepth\tFlag");
 				}
 			}
 			
 			// print header
 			writer.printHeader(header, outVariants);
-			log.info("Processing a total of " + numberOfFiles + " clustered files.");
-			while(numNotNull>0) {
-				
-				//gather reads next cluster
-				ReadCluster nextCluster = new ReadCluster(numCluster,false);
-				for(int i=0; i<numberOfFiles; i++) {
-					
-					//skip small clusters
-					if(this.clusterSizes[numCluster] < minClusterDepth) {
-						skipCluster(numCluster, iterators.get(i), currentReads, i);
-					}
-					
-					//skip large clusters
-					else if(this.clusterSizes[numCluster] > maxClusterDepth) {
-						skipCluster(numCluster, iterators.get(i), currentReads, i);
-					}
-					
-					else {
-						addReadsToCluster(nextCluster, iterators.get(i), currentReads, i);
-					}
-					
-					if(currentReads[i]==null) numNotNull--;
-				}
-				if(nextCluster.getNumberOfTotalReads()>0) { 
-					//Adding new task to the list and starting the new task
-				    ProcessClusterVCFTask newTask = new ProcessClusterVCFTask(nextCluster, header, writer, this, outVariants, outConsensus);
-				    newTask.setPairedEnd(false);
-				    poolManager.queueTask(newTask);
-				}
-				if(numCluster%10000 == 0) {
-					log.info("Processed cluster " + numCluster);
-				}
-					
-				numCluster++;
-			}
-			
-			
-		} finally {
-			for(FastqFileReader reader:readers) {
-				if(reader!=null) reader.close();
+			log.info("Processing a total of " + buckets.size() + " buckets of clusters.");
+			for(int i=0;i<buckets.size();i++) {
+				ClusteredReadsBucket bucket = buckets.get(i);
+				int bucketNumber = i;
+				poolManager.queueTask(()->processBucket(bucket, paired, header, writer), (output)->{
+					outVariants.write(output[0], 0, output[0].length);
+					outConsensus.write(output[1], 0, output[1].length);
+					log.info("Processed bucket " + bucketNumber+" with "+bucket.getTotalReads()+" reads");
+				});
 			}
+			//Tasks write to the output streams, so they must finish before the streams are closed
 			poolManager.terminatePool();
-			timer.cancel();
-		}
-	}
-	
-	public void callVariants(List<String> clusteredReadsFilenames_1, List<String> clusteredReadsFilenames_2) throws IOException, InterruptedException {
-		int numberOfFiles = clusteredReadsFilenames_1.size();
-		
-		if(clusteredReadsFilenames_1.size() != clusteredReadsFilenames_2.size()) {
-			throw new RuntimeException("There must be the same number of forward files and reverse files for paired end processing");
-		}
-		
-		//TODO: Make two methods and modify flag accordingly
-		//process files in parallel
-		FastqFileReader [] readers_1 = new FastqFileReader[numberOfFiles];
-		FastqFileReader [] readers_2 = new FastqFileReader[numberOfFiles];
-		RawRead [] currentReads_1 = new RawRead[numberOfFiles];
-		RawRead [] currentReads_2 = new RawRead[numberOfFiles];
-		VCFFileHeader header = VCFFileHeader.makeDefaultEmptyHeader();
-		VCFFileWriter writer = new VCFFileWriter ();
-		
-		// add samples to header
-		for(Sample sample: this.samples) {
-			header.addSample(sample, sample.getNormalPloidy()!=GenomicVariant.DEFAULT_PLOIDY);
-		}
-		
-		Arrays.fill(currentReads_1, null);
-		Arrays.fill(currentReads_2, null);
-		List<Iterator<RawRead>> iterators_1 = new ArrayList<>();
-		List<Iterator<RawRead>> iterators_2 = new ArrayList<>();
-		
-		//Create pool manager and statistics
-		ThreadPoolManager poolManager = new ThreadPoolManager(numThreads, MAX_TASK_COUNT);
-		
-		//Timer for mem checks
-		Timer timer = new Timer();
-		
-		try (PrintStream outVariants = new PrintStream(outputPrefix+"_variants.vcf");
-				// TODO: do I need three consensus files?
-			 PrintStream outConsensus = new PrintStream(outputPrefix+"_consensus.fa");
-			 PrintStream memUsage = new PrintStream(outputPrefix + "_memoryUsage.txt");
-			PrintStream clusterDetails = new PrintStream(outputPrefix + "_clusterDetails.tsv");) {
-			int numNotNull = 0;
-			int numCluster = 0;
-			
-			// save memory usage every 5 seconds
-			memUsage.println("Time(ms)\tMemoryUsage(MB)");
-			timer.schedule(new MemoryUsage(memUsage), 0, 5000);
-			
-			//Header for clusterDetails
-			clusterDetails.println("ClusterNumber\tAlignPos\tAlignConfidence\tAlignLength\tDepth\tFlag");
-			
-			for(int i=0; i<numberOfFiles; i++) {
-				readers_1[i] = new FastqFileReader(clusteredReadsFilenames_1.get(i));
-				readers_2[i] = new FastqFileReader(clusteredReadsFilenames_2.get(i));
-				Iterator<RawRead> it_1 = readers_1[i].iterator();
-				Iterator<RawRead> it_2 = readers_2[i].iterator();
-				iterators_1.add(it_1);
-				iterators_2.add(it_2);
-				if(it_1.hasNext() && it_2.hasNext()) {
-					currentReads_1[i] = it_1.next();
-					currentReads_2[i] = it_2.next();
-					numNotNull++;
-				}
-			}
-			
-			// print header
-			writer.printHeader(header, outVariants);
-			log.info("Processing a total of " + numberOfFiles + " clustered files.");
-			while(numNotNull>0) {
-				
-				//gather reads next cluster
-				ReadCluster nextCluster = new ReadCluster(numCluster, true);
-				for(int i=0; i<numberOfFiles; i++) {
-					
-					//skip small clusters
-					if(this.clusterSizes[numCluster] < minClusterDepth) {
-						skipCluster(numCluster, iterators_1.get(i), iterators_2.get(i), currentReads_1, currentReads_2, i);
-					}
-					
-					//skip large clusters
-					else if(this.clusterSizes[numCluster] > maxClusterDepth) {
-						skipCluster(numCluster, iterators_1.get(i), iterators_2.get(i), currentReads_1, currentReads_2, i);
-					}
-					
-					else {
-						addReadsToCluster(nextCluster, iterators_1.get(i), iterators_2.get(i), currentReads_1, currentReads_2, i);
-					}
-					
-					if(currentReads_1[i]==null) numNotNull--;
-				}
-				if(nextCluster.getNumberOfTotalReads()>0) {
-					//Adding new task to the list and starting the new task
-				    ProcessClusterVCFTask newTask = new ProcessClusterVCFTask(nextCluster, header, writer, this, outVariants, outConsensus);
-				    newTask.setPairedEnd(true);
-				    poolManager.queueTask(newTask);
-				}
-				if(numCluster%10000 == 0) {
-					log.info("Processed cluster " + numCluster);
-				}
-					
-				numCluster++;
-			}
-			
-			
+			log.info("Statistics of the pool of threads:\n"+poolManager.getStatisticsSummary());
 		} finally {
-			for(FastqFileReader reader:readers_1) {
-				if(reader!=null) reader.close();
-			}
-			for(FastqFileReader reader:readers_2) {
-				if(reader!=null) reader.close();
-			}
-			poolManager.terminatePool();
 			timer.cancel();
+			poolManager.terminatePool();
 		}
 	}
 	
-	private void addReadsToCluster(ReadCluster nextCluster, Iterator<RawRead> iterator_1, Iterator<RawRead> iterator_2, RawRead[] currentReads_1, RawRead[] currentReads_2, int i) {
-		RawRead currentRead_1 = currentReads_1[i];
-		RawRead currentRead_2 = currentReads_2[i];
-		int numCluster = nextCluster.getClusterNumber();
-		while(currentRead_1!=null && currentRead_2!=null) {
-			String readIdWithCluster_1 = currentRead_1.getName();
-			String [] items = readIdWithCluster_1.split("\\"+READID_SEPARATOR);
-			if(items.length < 2) {
-				System.out.print(String.join("\t", items));
-				continue;
-			}
-			String sampleId = items[0];
-			int currentReadCluster = Integer.parseInt(items[1]);
-			if (currentReadCluster>numCluster) break;
-			else if (currentReadCluster<numCluster) throw new RuntimeException("Disorganized file. Current cluster: "+numCluster+" found: "+currentReadCluster+" in read. "+numCluster);
-			nextCluster.addPairedEndRead(currentRead_1, currentRead_2, sampleId);
-			if(iterator_1.hasNext() && iterator_2.hasNext()) {
-				currentReads_1[i] = iterator_1.next();
-				currentReads_2[i] = iterator_2.next();
-				currentRead_1 = currentReads_1[i];
-				currentRead_2 = currentReads_2[i];
-				
-			} else {
-				log.info("Done with file " + i + ".");
-				currentReads_1[i] = null;
-				currentReads_2[i] = null;
-				currentRead_1 = null;
-				currentRead_2 = null;
-			}
-		}
-		
-	}
-	private void skipCluster(int numCluster, Iterator<RawRead> iterator_1, Iterator<RawRead> iterator_2, RawRead[] currentReads_1, RawRead[] currentReads_2, int i) {
-		RawRead currentRead_1 = currentReads_1[i];
-		RawRead currentRead_2 = currentReads_2[i];
-		
-		while(currentRead_1!=null && currentRead_2!=null) {
-			String readIdWithCluster = currentRead_1.getName();
-			String [] items = readIdWithCluster.split("\\"+READID_SEPARATOR);
-			if(items.length < 2) {
-				System.out.print(String.join("\t", items));
-				continue;
-			}
-			int currentReadCluster = Integer.parseInt(items[1]);
-			// TODO rename reads without cluster info
-			if (currentReadCluster>numCluster) break;
-			else if (currentReadCluster<numCluster) throw new RuntimeException("Disorganized file. Current cluster: "+numCluster+" found: "+currentReadCluster+" in read. "+readIdWithCluster);
-			if(iterator_1.hasNext() && iterator_2.hasNext()) {
-				currentReads_1[i] = iterator_1.next();
-				currentReads_2[i] = iterator_2.next();
-				currentRead_1 = currentReads_1[i];
-				currentRead_2 = currentReads_2[i];
-				
-			} else {
-				log.info("Done with file " + i + ".");
-				currentReads_1[i] = null;
-				currentReads_2[i] = null;
-				currentRead_1 = null;
-				currentRead_2 = null;
-			}
-		}
-		
-	}
-	private void skipCluster(Integer numCluster, Iterator<RawRead> iterator, RawRead[] currentReads, int i) throws IOException {
-		RawRead currentRead = currentReads[i];
-		
-		while(currentRead!=null) {
-			String readIdWithCluster = currentRead.getName();
-			String [] items = readIdWithCluster.split("\\"+READID_SEPARATOR);
-			if(items.length < 2) {
-				continue;
-			}
-			int currentReadCluster = Integer.parseInt(items[1]);
-			// TODO rename reads without cluster info
-			if (currentReadCluster>numCluster) break;
-			else if (currentReadCluster<numCluster) throw new RuntimeException("Disorganized file. Current cluster: "+numCluster+" found: "+currentReadCluster+" in read. "+readIdWithCluster);
-			if(iterator.hasNext()) {
-				currentReads[i] = iterator.next();
-				currentRead = currentReads[i];
-				
-			} else {
-				log.info("Done with file " + i + ".");
-				currentReads[i] = null;
-				currentRead = null;				
-			}
-		}
-	}
-		
-	
-	private void addReadsToCluster(ReadCluster nextCluster, Iterator<RawRead> iterator, RawRead[] currentReads, int i) throws IOException {
-		
-		RawRead currentRead = currentReads[i];
-		int numCluster = nextCluster.getClusterNumber();
-		while(currentRead!=null) {
-			String readIdWithCluster = currentRead.getName();
-			String [] items = readIdWithCluster.split("\\"+READID_SEPARATOR);
-			if(items.length < 2) {
-				continue;
-			}
-			String sampleId = items[0];
-			int currentReadCluster = Integer.parseInt(items[1]);
-			if (currentReadCluster>numCluster) break;
-			else if (currentReadCluster<numCluster) throw new RuntimeException("Disorganized file. Current cluster: "+numCluster+" found: "+currentReadCluster+" in read. "+readIdWithCluster);
-			nextCluster.addSingleRead(currentRead, sampleId);
-			if(iterator.hasNext()) {
-				currentReads[i] = iterator.next();
-				currentRead = currentReads[i];
-				
-			} else {
-				log.info("Done with file " + i + ".");
-				currentReads[i] = null;
-				currentRead = null;				
+	/**
+	 * Calls variants within the clusters of the given bucket
+	 * @return byte[][] Text of the variants and text of the consensus sequences of the clusters of the bucket
+	 */
+	private byte [][] processBucket(ClusteredReadsBucket bucket, boolean paired, VCFFileHeader header, VCFFileWriter writer) throws IOException {
+		Map<Integer, ReadCluster> clusters = bucket.loadClusters(clusterSizes, minClusterDepth, maxClusterDepth, samples);
+		bucket.dispose();
+		ByteArrayOutputStream variantsBytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream consensusBytes = new ByteArrayOutputStream();
+		try (PrintStream outVariants = new PrintStream(variantsBytes);
+			 PrintStream outConsensus = new PrintStream(consensusBytes)) {
+			for(ReadCluster cluster:clusters.values()) {
+				ProcessClusterVCFTask task = new ProcessClusterVCFTask(cluster, header, writer, this, outVariants, outConsensus);
+				task.setPairedEnd(paired);
+				task.run();
 			}
 		}
+		return new byte[][] {variantsBytes.toByteArray(), consensusBytes.toByteArray()};
 	}
 
 	private void printClusteringStats() throws IOException {
@@ -998,59 +873,3 @@ class MemoryUsage extends TimerTask {
     }
     
 }
-
-class ClusteredReadsCache {
-	private Map<Integer,List<RawRead>> clusteredReadsCache = new TreeMap<>();
-	private int totalReads = 0;
-	private String sampleId;
-	private int fileNumber = 1;
-	private List<String> outFiles = new ArrayList<>();
-
-	public ClusteredReadsCache(String sampleId) {
-		this.sampleId = sampleId;
-	}
-	
-	public void addSingleRead(int k, RawRead read) {
-		List<RawRead> readsClusterK = clusteredReadsCache.computeIfAbsent(k, v->new ArrayList<RawRead>());
-		readsClusterK.add(read);
-		totalReads++;
-	}
-	
-	
-	
-	public List<String> getClusteredReadFiles() {
-		return outFiles;
-	}
-	
-	public List<RawRead> getClusterReads(int k) {
-		return clusteredReadsCache.get(k);
-	}
-	
-	/**
-	 * @return the totalReads
-	 */
-	public int getTotalReads() {
-		return totalReads;
-	}
-	
-	/**
-	 * Dumps the cache to the file with the given name and clears this cache
-	 * @param outPrefix prefix of the file to dump the cache
-	 */
-	public void dump(String outPrefix) throws IOException {
-		String singleFilename = outPrefix+"_sortedByCluster_"+fileNumber+"_"+sampleId+".fastq.gz";
-		fileNumber++;
-		outFiles.add(singleFilename);
-		try (OutputStream os = new FileOutputStream(singleFilename);
-			 GZIPOutputStream gos = new GZIPOutputStream(os);
-			 PrintStream out = new PrintStream(gos);) {
-			for(List<RawRead> readsCluster:clusteredReadsCache.values()) {
-				for(RawRead read:readsCluster) {
-					read.save(out);
-				}
-			}
-		}
-		clusteredReadsCache.clear();
-		totalReads = 0;
-	}
-}
@@ -24,6 +24,10 @@ public class CDNACatalogAligner {
 	public static final byte DEF_KMER_LENGTH = HomologRelationshipsFinder.DEF_KMER_LENGTH;
 	public static final int DEF_MIN_PCT_KMERS = HomologRelationshipsFinder.DEF_MIN_PCT_KMERS;
 	public static final int DEF_MAX_HOMOLOGS_UNIT = 3;
+	public static final int DEF_NUM_THREADS = HomologRelationshipsFinder.DEF_NUM_THREADS;
+	public static final String DEF_INDEX_TYPE = HomologRelationshipsFinder.DEF_INDEX_TYPE;
+	public static final double DEF_MCL_INFLATION = HomologClustersCalculator.DEF_MCL_INFLATION;
+	public static final int DEF_MCL_EXPANSION_POWER = HomologClustersCalculator.DEF_MCL_EXPANSION_POWER;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(CDNACatalogAligner.class.getName());
@@ -33,6 +37,9 @@ public class CDNACatalogAligner {
 	private ProteinTranslator translator = new ProteinTranslator();
 	private String outputPrefix = DEF_OUT_PREFIX;
 	private boolean skipMCL= false;
+	private int numThreads = DEF_NUM_THREADS;
+	private double mclInflation = DEF_MCL_INFLATION;
+	private int mclExpansionPower = DEF_MCL_EXPANSION_POWER;
 	
 	// Model attributes
 	private HomologRelationshipsFinder homologRelationshipsFinder = new HomologRelationshipsFinder();
@@ -72,6 +79,42 @@ public class CDNACatalogAligner {
 	public void setSkipMCL(Boolean value) {
 		setSkipMCL(value.booleanValue());
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		homologRelationshipsFinder.setNumThreads(numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	public double getMclInflation() {
+		return mclInflation;
+	}
+	public void setMclInflation(double mclInflation) {
+		if(mclInflation<=1) throw new IllegalArgumentException("MCL inflation should be larger than 1. Given: "+mclInflation);
+		this.mclInflation = mclInflation;
+	}
+	public void setMclInflation(String value) {
+		setMclInflation((double)OptionValuesDecoder.decode(value, Double.class));
+	}
+	public int getMclExpansionPower() {
+		return mclExpansionPower;
+	}
+	public void setMclExpansionPower(int mclExpansionPower) {
+		if(mclExpansionPower<=0) throw new IllegalArgumentException("MCL expansion power should be a positive number. Given: "+mclExpansionPower);
+		this.mclExpansionPower = mclExpansionPower;
+	}
+	public void setMclExpansionPower(String value) {
+		setMclExpansionPower((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	public String getIndexType() {
+		return homologRelationshipsFinder.getIndexType();
+	}
+	public void setIndexType(String indexType) {
+		homologRelationshipsFinder.setIndexType(indexType);
+	}
 	public byte getKmerLength() {
 		return homologRelationshipsFinder.getKmerLength();
 	}
@@ -128,24 +171,33 @@ public class CDNACatalogAligner {
 	
 	private void generateOrthologs() {
 		catalogsDescription();
-		
+		//All searches are submitted together to keep the threads busy. Paralogs go first
+		List<List<HomologyUnit>> queryUnits = new ArrayList<>();
+		List<HomologyCatalog> catalogs = new ArrayList<>();
+		for(HomologyCatalog catalog:cdnaCatalogs) {
+			queryUnits.add(catalog.getHomologyUnits());
+			catalogs.add(catalog);
+		}
 		for(int i=0;i<cdnaCatalogs.size();i++) {
-			HomologyCatalog catalog = cdnaCatalogs.get(i);
-			List<HomologyEdge> edges = homologRelationshipsFinder.calculateParalogsOrganism(catalog);
+			for (int j=0;j<cdnaCatalogs.size();j++) {
+				if(i==j) continue;
+				queryUnits.add(cdnaCatalogs.get(i).getHomologyUnits());
+				catalogs.add(cdnaCatalogs.get(j));
+			}
+		}
+		List<List<HomologyEdge>> edgesBySearch = homologRelationshipsFinder.calculateHomologs(queryUnits, catalogs);
+		int k = 0;
+		for(int i=0;i<cdnaCatalogs.size();i++) {
+			List<HomologyEdge> edges = edgesBySearch.get(k++);
 			homologyEdges.addAll(edges);
 			log.info(String.format("Paralogs found for Organism #%d: %d", i+1, edges.size()));
 		}
-		
-		
 		for(int i=0;i<cdnaCatalogs.size();i++) {
-			HomologyCatalog catalog1 = cdnaCatalogs.get(i);
 			for (int j=0;j<cdnaCatalogs.size();j++) {
-				HomologyCatalog catalog2 = cdnaCatalogs.get(j);
-				if(i!=j) {
-					List<HomologyEdge> edges = homologRelationshipsFinder.calculateOrthologs(catalog1, catalog2);
-					homologyEdges.addAll(edges);
-					log.info(String.format("Orthologs found for Organisms #%d #%d: %d", i+1, j+1, edges.size()));
-				}
+				if(i==j) continue;
+				List<HomologyEdge> edges = edgesBySearch.get(k++);
+				homologyEdges.addAll(edges);
+				log.info(String.format("Orthologs found for Organisms #%d #%d: %d", i+1, j+1, edges.size()));
 			}
 		}
 	}
@@ -165,12 +217,18 @@ public class CDNACatalogAligner {
 		out.println("Output prefix:"+ outputPrefix);
 		out.println("K-mer length: "+ getKmerLength());
 		out.println("Minimum percentage of k-mers to call orthologs: "+ getMinPctKmers());
+		out.println("Type of index to search for homologs: "+ getIndexType());
+		if(!skipMCL) out.println("MCL inflation: "+ mclInflation+" expansion power: "+mclExpansionPower);
+		out.println("Number of threads: "+ numThreads);
 		log.info(os.toString());
 	}
 	
 	private void generateClusters() {
 		HomologClustersCalculator calculator = new HomologClustersCalculator(skipMCL);
 		calculator.setLog(log);
+		calculator.setNumThreads(numThreads);
+		calculator.setMclInflation(mclInflation);
+		calculator.setMclExpansionPower(mclExpansionPower);
 		orthologyUnitClusters = calculator.clusterHomologsCatalogs(cdnaCatalogs, homologyEdges);
 	}
 	
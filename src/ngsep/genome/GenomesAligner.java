@@ -41,6 +41,7 @@ import java.util.logging.Logger;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
+import ngsep.main.ThreadPoolManager;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 import ngsep.transcriptome.Transcriptome;
@@ -57,6 +58,10 @@ public class GenomesAligner {
 	public static final byte DEF_KMER_LENGTH = HomologRelationshipsFinder.DEF_KMER_LENGTH;
 	public static final int DEF_MIN_PCT_KMERS = HomologRelationshipsFinder.DEF_MIN_PCT_KMERS;
 	public static final int DEF_MAX_HOMOLOGS_UNIT = 3;
+	public static final int DEF_NUM_THREADS = HomologRelationshipsFinder.DEF_NUM_THREADS;
+	public static final String DEF_INDEX_TYPE = HomologRelationshipsFinder.DEF_INDEX_TYPE;
+	public static final double DEF_MCL_INFLATION = HomologClustersCalculator.DEF_MCL_INFLATION;
+	public static final int DEF_MCL_EXPANSION_POWER = HomologClustersCalculator.DEF_MCL_EXPANSION_POWER;
 
 	// Logging and progress
 	private Logger log = Logger.getLogger(GenomesAligner.class.getName());
@@ -67,6 +72,9 @@ public class GenomesAligner {
 	private String outputPrefix = DEF_OUT_PREFIX;
 	private int maxHomologsUnit = DEF_MAX_HOMOLOGS_UNIT;
 	private boolean skipMCL= false;
+	private int numThreads = DEF_NUM_THREADS;
+	private double mclInflation = DEF_MCL_INFLATION;
+	private int mclExpansionPower = DEF_MCL_EXPANSION_POWER;
 	
 	// Model attributes
 	private HomologRelationshipsFinder homologRelationshipsFinder = new HomologRelationshipsFinder();
@@ -140,6 +148,44 @@ public class GenomesAligner {
 		setMaxHomologsUnit((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		homologRelationshipsFinder.setNumThreads(numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	public double getMclInflation() {
+		return mclInflation;
+	}
+	public void setMclInflation(double mclInflation) {
+		if(mclInflation<=1) throw new IllegalArgumentException("MCL inflation should be larger than 1. Given: "+mclInflation);
+		this.mclInflation = mclInflation;
+	}
+	public void setMclInflation(String value) {
+		setMclInflation((double)OptionValuesDecoder.decode(value, Double.class));
+	}
+	public int getMclExpansionPower() {
+		return mclExpansionPower;
+	}
+	public void setMclExpansionPower(int mclExpansionPower) {
+		if(mclExpansionPower<=0) throw new IllegalArgumentException("MCL expansion power should be a positive number. Given: "+mclExpansionPower);
+		this.mclExpansionPower = mclExpansionPower;
+	}
+	public void setMclExpansionPower(String value) {
+		setMclExpansionPower((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public String getIndexType() {
+		return homologRelationshipsFinder.getIndexType();
+	}
+	public void setIndexType(String indexType) {
+		homologRelationshipsFinder.setIndexType(indexType);
+	}
+	
 	public static void main(String[] args) throws Exception 
 	{
 		GenomesAligner instance = new GenomesAligner();
@@ -165,24 +211,34 @@ public class GenomesAligner {
 	
 	private void inferOrthologs() {
 		genomesDescription();
-		
+		//All searches are submitted together to keep the threads busy. Paralogs go first
+		List<List<HomologyUnit>> queryUnits = new ArrayList<>();
+		List<HomologyCatalog> catalogs = new ArrayList<>();
+		for(AnnotatedReferenceGenome genome:genomes) {
+			queryUnits.add(genome.getHomologyUnits());
+			catalogs.add(genome.getHomologyCatalog());
+		}
 		for(int i=0;i<genomes.size();i++) {
-			AnnotatedReferenceGenome genome = genomes.get(i);
-			List<HomologyEdge> edges = homologRelationshipsFinder.calculateParalogs(genome);
+			for (int j=0;j<genomes.size();j++) {
+				if(i==j) continue;
+				queryUnits.add(genomes.get(i).getHomologyCatalog().getHomologyUnits());
+				catalogs.add(genomes.get(j).getHomologyCatalog());
+			}
+		}
+		List<List<HomologyEdge>> edgesBySearch = homologRelationshipsFinder.calculateHomologs(queryUnits, catalogs);
+		int k = 0;
+		for(int i=0;i<genomes.size();i++) {
+			List<HomologyEdge> edges = edgesBySearch.get(k++);
 			homologyEdges.addAll(edges);
+			genomes.get(i).selectUniqueOrthologyUnits();
 			log.info(String.format("Paralogs found for Genome #%d: %d", i+1, edges.size()));
 		}
-		
-		
 		for(int i=0;i<genomes.size();i++) {
-			AnnotatedReferenceGenome genome1 = genomes.get(i);
 			for (int j=0;j<genomes.size();j++) {
-				AnnotatedReferenceGenome genome2 = genomes.get(j);
-				if(i!=j) {
-					List<HomologyEdge> edges = homologRelationshipsFinder.calculateOrthologs(genome1.getHomologyCatalog(), genome2.getHomologyCatalog());
-					homologyEdges.addAll(edges);
-					log.info(String.format("Orthologs found for Genome #%d #%d: %d", i+1, j+1, edges.size()));
-				}
+				if(i==j) continue;
+				List<HomologyEdge> edges = edgesBySearch.get(k++);
+				homologyEdges.addAll(edges);
+				log.info(String.format("Orthologs found for Genome #%d #%d: %d", i+1, j+1, edges.size()));
 			}
 		}
 	}
@@ -202,6 +258,9 @@ public class GenomesAligner {
 		out.println("Output prefix:"+ outputPrefix);
 		out.println("K-mer length: "+ getKmerLength());
 		out.println("Minimum percentage of k-mers to call orthologs: "+ getMinPctKmers());
+		out.println("Type of index to search for homologs: "+ getIndexType());
+		if(!skipMCL) out.println("MCL inflation: "+ mclInflation+" expansion power: "+mclExpansionPower);
+		out.println("Number of threads: "+ numThreads);
 		log.info(os.toString());
 	}
 	public void loadGenome(String fileGenome, String fileTranscriptome) throws IOException {
@@ -220,21 +279,49 @@ public class GenomesAligner {
 	public void alignGenomes() {		
 		HomologClustersCalculator calculator = new HomologClustersCalculator(skipMCL);
 		calculator.setLog(log);
+		calculator.setNumThreads(numThreads);
+		calculator.setMclInflation(mclInflation);
+		calculator.setMclExpansionPower(mclExpansionPower);
 		orthologyUnitClusters = calculator.clusterHomologs(genomes, homologyEdges);
 		if(genomes.size()<2) return;
 		// By now this is still done for two genomes
 		AnnotatedReferenceGenome genome1 = genomes.get(0);
 		AnnotatedReferenceGenome genome2 = genomes.get(1);
 		QualifiedSequenceList sequencesG1 = genome1.getSequencesMetadata();
-		for(QualifiedSequence chrG1:sequencesG1) {
-			List<HomologyUnit> unitsChrG1 = genome1.getUniqueHomologyUnits(chrG1.getName());
+		//Chromosomes are aligned in parallel. Mates are assigned afterwards following the order of the chromosomes
+		int n = sequencesG1.size();
+		List<List<HomologyUnit>> unitsBySequence = new ArrayList<>(n);
+		String [] matesChrG2 = new String[n];
+		List<List<HomologyUnit>> selectedUnits = new ArrayList<>(n);
+		for(int i=0;i<n;i++) {
+			unitsBySequence.add(genome1.getUniqueHomologyUnits(sequencesG1.get(i).getName()));
+			selectedUnits.add(null);
+		}
+		ThreadPoolManager pool = (numThreads>1)?new ThreadPoolManager(numThreads, 2*numThreads):null;
+		try {
+			for(int i=0;i<n;i++) {
+				int idx = i;
+				if(pool == null) alignSequence(genome2, unitsBySequence, matesChrG2, selectedUnits, idx);
+				else pool.queueTask(()->alignSequence(genome2, unitsBySequence, matesChrG2, selectedUnits, idx));
+			}
+			if(pool!=null) pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		for(int i=0;i<n;i++) {
+			QualifiedSequence chrG1 = sequencesG1.get(i);
+			List<HomologyUnit> unitsChrG1 = unitsBySequence.get(i);
 			log.info("Unique units G1 for "+chrG1.getName()+": "+unitsChrG1.size());
-			String chrNameG2 = findBestChromosome(unitsChrG1, genome2.getId());
+			String chrNameG2 = matesChrG2[i];
 			if(chrNameG2!=null) {
-				List<HomologyUnit> selectedUnits = alignOrthologyUnits(genome1.getId(),unitsChrG1,genome2.getId(),chrNameG2);
-
+				List<HomologyUnit> lcs = selectedUnits.get(i);
+				for(HomologyUnit unitG1:lcs) {
+					HomologyUnit unitG2 = unitG1.getUniqueOrtholog(genome2.getId());
+					unitG1.setMateInLCS(unitG2);
+					unitG2.setMateInLCS(unitG1);
+				}
 				List<HomologyUnit> unitsChrG2 = genome2.getUniqueHomologyUnits(chrNameG2);
-				log.info("Sequence "+chrG1.getName()+" in first genome aligned to sequence "+chrNameG2+" in the second genome. Orthology units sequence genome 1 "+unitsChrG1.size()+". Orthology units sequence genome 2: "+unitsChrG2.size()+" LCS size: "+selectedUnits.size());
+				log.info("Sequence "+chrG1.getName()+" in first genome aligned to sequence "+chrNameG2+" in the second genome. Orthology units sequence genome 1 "+unitsChrG1.size()+". Orthology units sequence genome 2: "+unitsChrG2.size()+" LCS size: "+lcs.size());
 				completeLCS(genome1.getId(),genome1.getHomologyUnits(chrG1.getName()),genome2.getId());
 			} else {
 				log.info("Mate sequence not found for "+chrG1.getName()+" Sequence orthology units: "+unitsChrG1.size());
@@ -243,8 +330,26 @@ public class GenomesAligner {
 		identifySyntenyBlocks(genome1, genome2, homologyEdges);
 	}
 	
+	/**
+	 * Finds the best mate sequence in the second genome for a sequence of the first genome and selects the units making the LCS.
+	 * Mates are not assigned, so this method can run in parallel for different sequences
+	 * @param genome2 Second genome
+	 * @param unitsBySequence Unique units of each sequence of the first genome
+	 * @param matesChrG2 Array to store the name of the best mate sequence in the second genome
+	 * @param selectedUnits List to store the units of the first genome making the LCS
+	 * @param idx Index of the sequence to align
+	 */
+	private void alignSequence(AnnotatedReferenceGenome genome2, List<List<HomologyUnit>> unitsBySequence, String [] matesChrG2, List<List<HomologyUnit>> selectedUnits, int idx) {
+		List<HomologyUnit> unitsChrG1 = unitsBySequence.get(idx);
+		String chrNameG2 = findBestChromosome(unitsChrG1, genome2.getId());
+		if(chrNameG2==null) return;
+		matesChrG2[idx] = chrNameG2;
+		selectedUnits.set(idx, alignOrthologyUnits(unitsChrG1, genome2.getId(), chrNameG2));
+	}
+	
 	private void identifySyntenyBlocks(AnnotatedReferenceGenome g1, AnnotatedReferenceGenome g2, List<HomologyEdge> homologyEdges) {
 		SyntenyBlocksFinder syntenyBlocksFinder = new SyntenyBlocksFinder(minBlockLength, maxDistance, g1, g2, homologyEdges);
+		syntenyBlocksFinder.setNumThreads(numThreads);
 		orthologsSyntenyBlocks = syntenyBlocksFinder.findSyntenyBlocks(SyntenyBlocksFinder.ORTHOLOGS);
 		paralogsSyntenyBlocks = syntenyBlocksFinder.findSyntenyBlocks(SyntenyBlocksFinder.PARALOGS);
 		String orthologsOutFilename = outputPrefix + "_synteny_blocks_orthologs.txt";
@@ -331,21 +436,19 @@ public class GenomesAligner {
 
 
 	/**
-	 * Aligns the orthology units from two homologous chromosomes using LCS
-	 * @param genome1Id Id of the first genome
+	 * Aligns the orthology units from two homologous chromosomes using LCS. LCS mates are not assigned to the units
 	 * @param unitsChrG1 This list has only one chromosome and is sorted by position
 	 * @param genome2Id Id of the second genome
-	 * @param unitsChrG2 This list has only one chromosome and is sorted by position
+	 * @param seqName2 Name of the homologous chromosome in the second genome
 	 * @return List<OrthologyUnit> List of selected units of the first list making the LCS relative to the second list
 	 */
-	private List<HomologyUnit> alignOrthologyUnits(int genome1Id, List<HomologyUnit> unitsChrG1, int genome2Id, String seqName2) {
+	private List<HomologyUnit> alignOrthologyUnits(List<HomologyUnit> unitsChrG1, int genome2Id, String seqName2) {
 		List<HomologyUnit> answer = new ArrayList<>();
 
 		List<HomologyUnit> unitsG1List = new ArrayList<>();
 		List<HomologyUnit> unitsG2List = new ArrayList<>();
-		//Assigns mates of units in G2
 
-		// Select orthology units in G1 having mate in g2 and assign the mate of units in G2.
+		// Select orthology units in G1 having mate in g2.
 
 		//At the same time create two new lists of the same size with the  units in g1 having its mate in g2
 
@@ -369,18 +472,8 @@ public class GenomesAligner {
 
 		Set<Integer> lcs = lcsForward;
 		if(lcsReverse.size()>lcsForward.size()) lcs = lcsReverse;
-		//System.out.println("Positions for LCS: "+positions.length+" LCS: "+lcs.size());
 		// Select the orthology units in G1 located at the indexes given by the output of LCS
-		for(int i:lcs)
-		{
-			HomologyUnit lcsResult = unitsG1List.get(i);
-			HomologyUnit unitG2 = lcsResult.getUniqueOrtholog(genome2Id);
-			lcsResult.setMateInLCS(unitG2);
-			unitG2.setMateInLCS(lcsResult);
-			answer.add(lcsResult);
-		}
-
-
+		for(int i:lcs) answer.add(unitsG1List.get(i));
 		return answer;
 	}
 
@@ -407,66 +500,36 @@ public class GenomesAligner {
 	}
 
 	/**
-	 * Calculates the longest common subsequence (LCS) of sorted entries in the given indexes array using dynamic programming 
-	 * @param indexesMap Indexes to find the LCS
+	 * Calculates the longest common subsequence (LCS) of sorted entries in the given indexes array.
+	 * Because entries are positions in the second list, the LCS is the longest increasing subsequence of the array,
+	 * which is calculated by patience sorting in O(n log n) time and O(n) memory.
+	 * If many subsequences have the maximum length, the subsequence is built from the end choosing the last possible position 
+	 * @param indexesMap Indexes to find the LCS. Entries should be different
 	 * @return SortedSet<Integer> Positions making the LCS
 	 */
 	public SortedSet<Integer> findLCS (int [] indexesMap) {
 		SortedSet<Integer> answer = new TreeSet<>();
 		int n = indexesMap.length;
-		int [] [] m = new int [n][n+1];
-		for(int i=0; i<n; i++)
-		{
-			for(int j=0; j<n+1; j++)
-			{
-				if(i==0)
-				{
-					if(j==0 || indexesMap[i]>0) {
-						m[i][j] = 0;
-					}
-					else {
-						m[i][j] = 1;
-					}
-
-				}
-				else if(j<=indexesMap[i])
-				{
-					m[i][j] = m[i-1][j];
-				}
-				else
-				{
-					m[i][j] = Math.max((m[i-1][j]),(m[i-1][indexesMap[i]]+1));
-				}
-				//System.out.print(" "+m[i][j]);
+		//Position of the last entry added to each pile. Values in the array of these positions are increasing
+		int [] pileTops = new int [n];
+		int [] predecessors = new int [n];
+		int numPiles = 0;
+		for(int i=0;i<n;i++) {
+			int value = indexesMap[i];
+			//Binary search of the first pile with top value larger or equal than the value of this entry
+			int lo = 0;
+			int hi = numPiles;
+			while(lo<hi) {
+				int mid = (lo+hi)>>>1;
+				if(indexesMap[pileTops[mid]]<value) lo = mid+1;
+				else hi = mid;
 			}
-			//System.out.println();
-		}
-
-		int i = m.length-1;
-		int j = m[0].length-1;
-		//System.out.println("LCS matrix size: "+i+"-"+j);
-		while(i > 0 && j > 0)
-		{
-			//System.out.print("Position: "+i+"-"+j);
-			int up = m[i-1][j];
-			int diag = -1;
-			if(j>indexesMap[i]) {
-				diag = m[i-1][indexesMap[i]]+1;
-			}
-			if(diag >= up )
-			{
-				answer.add(i);
-				j=indexesMap[i];
-				i--;
-			} else {
-				i--;
-			}
-			//System.out.println(" Diag score: "+diag+" up score: "+up+" size answer: "+answer.size()+" next Position: "+i+"-"+j);
-		}
-		if(i==0 && indexesMap[i]==0)
-		{
-			answer.add(i);
+			predecessors[i] = (lo>0)?pileTops[lo-1]:-1;
+			pileTops[lo] = i;
+			if(lo==numPiles) numPiles++;
 		}
+		if(numPiles==0) return answer;
+		for(int i=pileTops[numPiles-1];i>=0;i=predecessors[i]) answer.add(i);
 		return answer;
 	}
 
@@ -36,7 +36,8 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 	private Map<Integer,List<T>> longRegionsMap = new HashMap<Integer, List<T>>();
 	private int size = 0;
 	private int numSpanningLong = 15;
-	private boolean sorted = true;
+	//Lookups sort the collection if needed. Concurrent lookups are supported as long as the collection is not modified
+	private volatile boolean sorted = true;
 	
 	
 	public GenomicRegionSortedCollection () {
@@ -189,7 +190,9 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		sort();
 	}
 	private void sort() {
-		if(!sorted) {
+		if(sorted) return;
+		synchronized (this) {
+			if(sorted) return;
 			//System.out.println("Sorting "+regionsForward.size()+" regions");
 			//if(regionsForward.size()>0) System.out.println("Type: "+regionsForward.get(0).getClass().getName());
 			for(int index:regionsMap.keySet()) {
@@ -214,8 +217,8 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 				
 			}
 			//System.out.println("Found "+longRegions.size()+" long regions");
+			sorted = true;
 		}
-		sorted = true;
 	}
 	
 	public QualifiedSequenceList getSequenceNames() {
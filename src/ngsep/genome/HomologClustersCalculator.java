@@ -10,20 +10,25 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import ngsep.graphs.MCLJob;
+import ngsep.graphs.SparseMatrix;
+import ngsep.graphs.SparseVector;
 import ngsep.math.Distribution;
 
 public class HomologClustersCalculator {
 	//Possible program arguments
 	private static final int PREFERRED_ORTHOGROUP_SIZE = 50;
-	private static final int MAX_SIZE_MCL = 5000;
+	public static final int DEF_NUM_THREADS = MCLJob.DEF_NUM_THREADS;
+	public static final double DEF_MCL_INFLATION = MCLJob.DEF_INFLATION;
+	public static final int DEF_MCL_EXPANSION_POWER = MCLJob.DEF_EXPANSION_POWER;
 	
 	//Statistics
-	private int countLarge = 0;
 	private int countSmall = 0;
 	private int countMedium = 0;
 	private int reProcessedClusters = 0;
@@ -32,6 +37,9 @@ public class HomologClustersCalculator {
 	private boolean skipMCL;
 	private Distribution distClusterSizes = new Distribution(0, PREFERRED_ORTHOGROUP_SIZE, 1);
 	private int sampleSize = 0;
+	private int numThreads = DEF_NUM_THREADS;
+	private double mclInflation = DEF_MCL_INFLATION;
+	private int mclExpansionPower = DEF_MCL_EXPANSION_POWER;
 	
 	private Logger log;
 	
@@ -49,6 +57,30 @@ public class HomologClustersCalculator {
 	public void setLog(Logger log) {
 		this.log = log;
 	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	public double getMclInflation() {
+		return mclInflation;
+	}
+
+	public void setMclInflation(double mclInflation) {
+		this.mclInflation = mclInflation;
+	}
+	
+	public int getMclExpansionPower() {
+		return mclExpansionPower;
+	}
+
+	public void setMclExpansionPower(int mclExpansionPower) {
+		this.mclExpansionPower = mclExpansionPower;
+	}
 
 	public List<List<HomologyUnit>> clusterHomologs(List<AnnotatedReferenceGenome> genomes, List<HomologyEdge> homologyEdges) {
 		List<HomologyCatalog> catalogs = new ArrayList<>();
@@ -113,7 +145,7 @@ public class HomologClustersCalculator {
 	private void generateStatistics() {
 		log.info("OrthoGroup Results");
 		log.info("Size Statistics");
-		log.info(String.format("SMALL (2-%d): %d || MEDIUM (%d-MAX): %d || LARGE (%d+): %d", sampleSize, countSmall, sampleSize, countMedium, MAX_SIZE_MCL, countLarge));
+		log.info(String.format("SMALL (2-%d): %d || MCL (%d+): %d", sampleSize, countSmall, sampleSize+1, countMedium));
 		
 		ByteArrayOutputStream os = new ByteArrayOutputStream();
 		PrintStream out = new PrintStream(os);
@@ -145,6 +177,7 @@ public class HomologClustersCalculator {
 			if (marked.contains(filteredUnits.get(i).getUniqueKey())) continue;
 			Queue<HomologyUnit> queue = new LinkedList<>();
 			List<HomologyUnit> currentPartition = new ArrayList<>();
+			Set<String> currentKeys = new HashSet<>();
 			
 			queue.add(filteredUnits.get(i));
 			while(!queue.isEmpty()) {
@@ -153,7 +186,7 @@ public class HomologClustersCalculator {
 				}
 				
 				HomologyUnit currentUnit = queue.poll();
-				if(currentPartition.contains(currentUnit)) {
+				if(currentKeys.contains(currentUnit.getUniqueKey())) {
 					//Element already inside current partition.
 					continue;
 				} else {
@@ -165,6 +198,7 @@ public class HomologClustersCalculator {
 							if(set.contains(currentUnit)) {
 								merged = true;
 								currentPartition.addAll(set);
+								for(HomologyUnit unit:set) currentKeys.add(unit.getUniqueKey());
 								partitions.remove(j);
 							}
 						}
@@ -175,6 +209,7 @@ public class HomologClustersCalculator {
 						marked.add(currentUnit.getUniqueKey());
 						markedCount++;
 						currentPartition.add(currentUnit);
+						currentKeys.add(currentUnit.getUniqueKey());
 						Collection<HomologyEdge> edges = currentUnit.getAllHomologyRelationships();
 						for(HomologyEdge edge : edges) {
 							queue.add(edge.getSubjectUnit());
@@ -202,17 +237,10 @@ public class HomologClustersCalculator {
 			List<List<HomologyUnit>> clusters = new ArrayList<>();
 			clusters.add(partition);
 			task.setResults(clusters);
-		} else if (partition.size() <= MAX_SIZE_MCL){
+		} else {
 			//MCL
 			countMedium++;
 			task = dispatchMCL(task);
-		} else {
-			log.info(String.format("Passed cluster too large for MCL. Size: %d", partition.size()));
-			//Too large for MCL
-			countLarge++;
-			List<List<HomologyUnit>> clusters = new ArrayList<>();
-			clusters.add(partition);
-			task.setResults(clusters);
 		}
 		
 		return task;
@@ -229,16 +257,32 @@ public class HomologClustersCalculator {
 			indexOf.put(partition.get(i).getUniqueKey(), i);
 		}
 		
-		//Generating score matrix for MCL
-		double[][] matrix = new double[partition.size()][partition.size()];
-		for(int i = 0; i < partition.size(); i++) {
+		//Generating sparse score matrix for MCL
+		int n = partition.size();
+		SparseVector [] rows = new SparseVector[n];
+		for(int i = 0; i < n; i++) {
 			HomologyUnit currentUnit = partition.get(i);
+			TreeMap<Integer, Double> scores = new TreeMap<>();
 			for(HomologyEdge edge : currentUnit.getAllHomologyRelationships()) {
-				matrix[i][indexOf.get(edge.getSubjectUnit().getUniqueKey())] = edge.getScore();
+				Integer j = indexOf.get(edge.getSubjectUnit().getUniqueKey());
+				if(j!=null) scores.put(j, edge.getScore());
+			}
+			int [] indexes = new int [scores.size()];
+			double [] values = new double [scores.size()];
+			int k = 0;
+			for(Map.Entry<Integer, Double> entry:scores.entrySet()) {
+				indexes[k] = entry.getKey();
+				values[k] = entry.getValue();
+				k++;
 			}
+			rows[i] = new SparseVector(n, indexes, values);
 		}
 		
-		MCLJob job = new MCLJob(matrix);
+		MCLJob job = new MCLJob(new SparseMatrix(n, rows));
+		job.setLog(log);
+		job.setNumThreads(numThreads);
+		job.setInflation(mclInflation);
+		job.setExpansionPower(mclExpansionPower);
 		job.run();
 		
 		List<List<Integer>> results = job.getResults();
@@ -2,18 +2,21 @@ package ngsep.genome;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
-import ngsep.sequences.FMIndex;
-import ngsep.sequences.UngappedSearchHit;
+import ngsep.main.ThreadPoolManager;
 
 public class HomologRelationshipsFinder {
 	public static final byte DEF_KMER_LENGTH = 10;
 	public static final int DEF_MIN_PCT_KMERS = 50;
+	public static final int DEF_NUM_THREADS = 1;
+	public static final String DEF_INDEX_TYPE = HomologyUnitsIndex.INDEX_TYPE_FMINDEX;
+	//Number of query units searched by each task
+	private static final int BATCH_SIZE = 200;
 	
 	private byte kmerLength = DEF_KMER_LENGTH;
 	private int minPctKmers = DEF_MIN_PCT_KMERS;
+	private int numThreads = DEF_NUM_THREADS;
+	private String indexType = DEF_INDEX_TYPE;
 	public byte getKmerLength() {
 		return kmerLength;
 	}
@@ -27,25 +30,32 @@ public class HomologRelationshipsFinder {
 		this.minPctKmers = minPctKmers;
 	}
 	
-	public List<HomologyEdge> calculateParalogs(AnnotatedReferenceGenome genome) {
-		List<HomologyEdge> edges = new ArrayList<HomologyEdge>();
-		List<HomologyUnit> units = genome.getHomologyUnits();
-		for (HomologyUnit unit:units) {
-			List<HomologyEdge> hits = findHomologs(unit, genome.getHomologyCatalog());
-			edges.addAll(hits);
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads should be a positive number");
+		this.numThreads = numThreads;
+	}
+	
+	public String getIndexType() {
+		return indexType;
+	}
+	public void setIndexType(String indexType) {
+		if(!HomologyUnitsIndex.INDEX_TYPE_FMINDEX.equals(indexType) && !HomologyUnitsIndex.INDEX_TYPE_KMERS.equals(indexType) && !HomologyUnitsIndex.INDEX_TYPE_MINIMIZERS.equals(indexType)) {
+			throw new IllegalArgumentException("Unknown homology index type: "+indexType);
 		}
+		this.indexType = indexType;
+	}
+	
+	public List<HomologyEdge> calculateParalogs(AnnotatedReferenceGenome genome) {
+		List<HomologyEdge> edges = calculateHomologs(genome.getHomologyUnits(), genome.getHomologyCatalog());
 		genome.selectUniqueOrthologyUnits();
 		return edges;
 	}
 	
 	public List<HomologyEdge> calculateParalogsOrganism(HomologyCatalog catalog) {
-		List<HomologyEdge> edges = new ArrayList<HomologyEdge>();
-		List<HomologyUnit> units = catalog.getHomologyUnits();
-		for (HomologyUnit unit:units) {
-			List<HomologyEdge> hits = findHomologs(unit, catalog);
-			edges.addAll(hits);
-		}
-		return edges;
+		return calculateHomologs(catalog.getHomologyUnits(), catalog);
 	}
 	
 	/**
@@ -53,53 +63,83 @@ public class HomologRelationshipsFinder {
 	 * @param genome2 to search for orthologs
 	 */
 	public List<HomologyEdge> calculateOrthologs(HomologyCatalog catalog1, HomologyCatalog catalog2) {
-		List<HomologyEdge> edges = new ArrayList<HomologyEdge>();
-		List<HomologyUnit> units = catalog1.getHomologyUnits();
-		for (HomologyUnit unit:units) {
-			List<HomologyEdge> hits = findHomologs(unit, catalog2);
-			edges.addAll(hits);
-		}
-		return edges;
+		return calculateHomologs(catalog1.getHomologyUnits(), catalog2);
 	}
 	
-	private List<HomologyEdge> findHomologs(HomologyUnit unit, HomologyCatalog catalog) {
-		List<HomologyEdge> edges = new ArrayList<HomologyEdge>();
-		FMIndex indexCatalog = catalog.getIndexHomologyUnits();
-		//Counts of k-mers mapping to each protein in the FM-index
-		Map<String,Integer> kmerSupportMap = new TreeMap<>();
-		int totalKmers = 0;
-		String searchSequence = unit.getUnitSequence();
-		//Step 1: Generate k-mers to query the FM-Index looking for homologous transcripts to calculate the kmer counts
-		for(int i=0; i<searchSequence.length()-kmerLength+1; i+=kmerLength) {
-			String kmer = searchSequence.substring(i, i+kmerLength);
-			
-			List <UngappedSearchHit> kmerHits = indexCatalog.exactSearch(kmer);
-			for(UngappedSearchHit hit:kmerHits) {
-				String name = hit.getSequenceName();
-				if(kmerSupportMap.containsKey(name)) {
-					int value = 1 + kmerSupportMap.get(name);
-					kmerSupportMap.put(name, value);
-				} else {
-					kmerSupportMap.put(name, 1);
+	private List<HomologyEdge> calculateHomologs(List<HomologyUnit> queryUnits, HomologyCatalog catalog) {
+		List<List<HomologyUnit>> queries = new ArrayList<>();
+		queries.add(queryUnits);
+		List<HomologyCatalog> catalogs = new ArrayList<>();
+		catalogs.add(catalog);
+		return calculateHomologs(queries, catalogs).get(0);
+	}
+	
+	/**
+	 * Searches the homologs of different groups of query units, each group against one catalog.
+	 * Groups are split in batches of units that are searched in parallel sharing the indexes of the catalogs.
+	 * After all searches finish, relationships are registered in the query units following the order of the groups and
+	 * of the units within each group. Hence, the results do not depend on the number of threads
+	 * @param queryUnits Groups of query units
+	 * @param catalogs Catalog to search the homologs of each group
+	 * @return List<List<HomologyEdge>> Edges found for each group
+	 */
+	public List<List<HomologyEdge>> calculateHomologs(List<List<HomologyUnit>> queryUnits, List<HomologyCatalog> catalogs) {
+		if(queryUnits.size()!=catalogs.size()) throw new IllegalArgumentException("The number of groups of query units "+queryUnits.size()+" is different than the number of catalogs "+catalogs.size());
+		List<List<HomologyEdge>> answer = new ArrayList<>();
+		for(int i=0;i<queryUnits.size();i++) answer.add(new ArrayList<>());
+		ThreadPoolManager pool = (numThreads>1)?new ThreadPoolManager(numThreads, 2*numThreads):null;
+		try {
+			for(int i=0;i<queryUnits.size();i++) {
+				List<HomologyUnit> units = queryUnits.get(i);
+				HomologyCatalog catalog = catalogs.get(i);
+				//Indexes are built before submitting the searches to avoid blocking the threads
+				HomologyUnitsIndex index = catalog.getHomologyUnitsIndex(indexType, kmerLength);
+				List<HomologyEdge> groupEdges = answer.get(i);
+				for(int first=0;first<units.size();first+=BATCH_SIZE) {
+					List<HomologyUnit> batch = units.subList(first, Math.min(units.size(), first+BATCH_SIZE));
+					if(pool==null) groupEdges.addAll(findHomologs(batch, catalog, index));
+					else pool.queueTask(()->findHomologs(batch, catalog, index), (edges)->groupEdges.addAll(edges));
 				}
 			}
-			totalKmers++;
+			if(pool!=null) pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		}
-
-		//Step 2: Fill list traversing the counts and choosing transcripts for which at least x% of the k-mers support the match
-		for(Map.Entry<String,Integer> entry : kmerSupportMap.entrySet()) {
-			String homologId = entry.getKey();
-			double transcriptKmers = entry.getValue();
-			double percent = (transcriptKmers/totalKmers)*100;
-			if(percent < minPctKmers) continue;
-			HomologyUnit homolog = catalog.getHomologyUnit(homologId);
-			if(homolog==null) continue;
-			if(homolog==unit) continue;
-			// TODO: calculate score
-			double score = percent;
-			HomologyEdge edge = new HomologyEdge(unit, homolog, score);
-			unit.addHomologRelationship(edge);
-			edges.add(edge);
+		for(List<HomologyEdge> edges:answer) {
+			for(HomologyEdge edge:edges) edge.getQueryUnit().addHomologRelationship(edge);
+		}
+		return answer;
+	}
+	
+	/**
+	 * Finds homologs of a batch of units in the given catalog. Relationships are not registered in the query units
+	 * @param units Query units
+	 * @param catalog Catalog to search for homologs
+	 * @param index Index of the units of the catalog
+	 * @return List<HomologyEdge> Edges sorted by query unit and then by subject unit id
+	 */
+	private List<HomologyEdge> findHomologs(List<HomologyUnit> units, HomologyCatalog catalog, HomologyUnitsIndex index) {
+		List<HomologyEdge> edges = new ArrayList<HomologyEdge>();
+		HomologyKmerCounts counts = new HomologyKmerCounts(catalog.getNumIndexedUnits());
+		for(HomologyUnit unit:units) {
+			//Step 1: Search k-mers of the query in the index to calculate the counts of shared k-mers with each unit of the catalog
+			index.countSharedKmers(unit.getUnitSequence(), counts);
+			int totalKmers = counts.getTotalKmers();
+			//Step 2: Fill list traversing the counts and choosing transcripts for which at least x% of the k-mers support the match
+			//Indexes follow the order of the unit ids
+			counts.sortHitUnits();
+			for(int j=0;j<counts.getNumHitUnits();j++) {
+				int idx = counts.getHitUnit(j);
+				double transcriptKmers = counts.getCount(idx);
+				double percent = (transcriptKmers/totalKmers)*100;
+				if(percent < minPctKmers) continue;
+				HomologyUnit homolog = catalog.getIndexedUnit(idx);
+				if(homolog==unit) continue;
+				// TODO: calculate score
+				double score = percent;
+				edges.add(new HomologyEdge(unit, homolog, score));
+			}
+			counts.clear();
 		}
 		return edges;
 	}
@@ -1,6 +1,7 @@
 package ngsep.genome;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -12,17 +13,22 @@ import ngsep.sequences.QualifiedSequenceList;
 public class HomologyCatalog {
 	private Map<String, HomologyUnit> homologyUnitsMap= new HashMap<String, HomologyUnit>();
 	private FMIndex indexHomologyUnits=null;
+	//Units sorted by id. The index of each unit in this list is the index of its sequence in the FM-index
+	private List<HomologyUnit> indexedUnits;
+	//Indexes built for homology searches by type and k-mer length
+	private Map<String, HomologyUnitsIndex> homologyIndexes = new HashMap<>();
 	
 	public HomologyCatalog (List<HomologyUnit> units) {
 		for(HomologyUnit unit: units) {
 			homologyUnitsMap.put(unit.getId(), unit);
 		}
-		buildFMIndex();
+		indexedUnits = new ArrayList<>(homologyUnitsMap.values());
+		Collections.sort(indexedUnits, (u1,u2)->u1.getId().compareTo(u2.getId()));
 	}
 	private void buildFMIndex() {
 		indexHomologyUnits = new FMIndex();
 		QualifiedSequenceList unitSequences = new QualifiedSequenceList();
-		for (HomologyUnit ql:homologyUnitsMap.values()) {
+		for (HomologyUnit ql:indexedUnits) {
 			String unitSequence = ql.getUnitSequence();
 			String unitId = ql.getId();
 			QualifiedSequence qualifiedSequence = new QualifiedSequence(unitId, unitSequence);
@@ -32,13 +38,33 @@ public class HomologyCatalog {
 	}
 	
 	/**
-	 * Returns an FM-index of the homology units
+	 * Returns an FM-index of the homology units. The index is built the first time it is requested
 	 * @return FMIndex to search for homologs
 	 */
-	public FMIndex getIndexHomologyUnits() {
+	public synchronized FMIndex getIndexHomologyUnits() {
+		if(indexHomologyUnits==null) buildFMIndex();
 		return indexHomologyUnits;
 	}
 	
+	/**
+	 * Returns an index of the given type to count the k-mers shared between queries and the units of this catalog.
+	 * Indexes are built the first time they are requested and they are reused by later searches
+	 * @param indexType Type of index. See constants in HomologyUnitsIndex
+	 * @param kmerLength Length of the k-mers to search
+	 * @return HomologyUnitsIndex Index to search for homologs
+	 */
+	public synchronized HomologyUnitsIndex getHomologyUnitsIndex(String indexType, int kmerLength) {
+		String key = indexType+"_"+kmerLength;
+		HomologyUnitsIndex index = homologyIndexes.get(key);
+		if(index!=null) return index;
+		if(HomologyUnitsIndex.INDEX_TYPE_FMINDEX.equals(indexType)) index = new HomologyUnitsFMIndex(getIndexHomologyUnits(), kmerLength);
+		else if (HomologyUnitsIndex.INDEX_TYPE_KMERS.equals(indexType)) index = new HomologyUnitsKmersIndex(indexedUnits, kmerLength, 1);
+		else if (HomologyUnitsIndex.INDEX_TYPE_MINIMIZERS.equals(indexType)) index = new HomologyUnitsKmersIndex(indexedUnits, kmerLength, HomologyUnitsKmersIndex.DEF_WINDOW_LENGTH);
+		else throw new IllegalArgumentException("Unknown homology index type: "+indexType);
+		homologyIndexes.put(key, index);
+		return index;
+	}
+	
 	public List<HomologyUnit> getHomologyUnits() {
 		return new ArrayList<>(homologyUnitsMap.values());
 	}
@@ -46,4 +72,20 @@ public class HomologyCatalog {
 	public HomologyUnit getHomologyUnit(String unitId) {
 		return homologyUnitsMap.get(unitId);
 	}
+	
+	/**
+	 * @return int Number of units indexed for homology searches
+	 */
+	public int getNumIndexedUnits() {
+		return indexedUnits.size();
+	}
+	
+	/**
+	 * Returns the unit with the given index in the homology units indexes. Indexes follow the lexicographic order of the unit ids
+	 * @param idx Index of the unit
+	 * @return HomologyUnit Unit with the given index
+	 */
+	public HomologyUnit getIndexedUnit(int idx) {
+		return indexedUnits.get(idx);
+	}
 }
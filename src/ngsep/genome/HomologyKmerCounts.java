@@ -0,0 +1,88 @@
+package ngsep.genome;
+
+import java.util.Arrays;
+
+/**
+ * Counts of the k-mers of a query shared with each unit of a homology units index.
+ * The object can be reused for different queries calling clear after each query.
+ * It is not thread safe, so each thread should keep its own instance
+ * @author Jorge Duitama
+ */
+public class HomologyKmerCounts {
+	//Counts of k-mers shared with each indexed unit. Only the counts of the units in hitUnits are different than zero
+	private final int [] counts;
+	private final int [] hitUnits;
+	private int numHitUnits = 0;
+	private int totalKmers = 0;
+	
+	/**
+	 * Creates an empty set of counts
+	 * @param numIndexedUnits Number of units in the index
+	 */
+	public HomologyKmerCounts(int numIndexedUnits) {
+		counts = new int [numIndexedUnits];
+		hitUnits = new int [numIndexedUnits];
+	}
+	
+	/**
+	 * Registers one k-mer of the query searched in the index
+	 */
+	public void addQueryKmer() {
+		totalKmers++;
+	}
+	
+	/**
+	 * Registers one hit of a query k-mer to the unit with the given index
+	 * @param unitIdx Index of the unit in the homology units index
+	 */
+	public void addHit(int unitIdx) {
+		if(counts[unitIdx]==0) hitUnits[numHitUnits++] = unitIdx;
+		counts[unitIdx]++;
+	}
+	
+	/**
+	 * @return int Number of k-mers of the query searched in the index
+	 */
+	public int getTotalKmers() {
+		return totalKmers;
+	}
+	
+	/**
+	 * @return int Number of units with at least one hit
+	 */
+	public int getNumHitUnits() {
+		return numHitUnits;
+	}
+	
+	/**
+	 * Sorts the units with hits by index. Indexes follow the order of the unit ids
+	 */
+	public void sortHitUnits() {
+		Arrays.sort(hitUnits, 0, numHitUnits);
+	}
+	
+	/**
+	 * @param i Position in the list of units with hits
+	 * @return int Index of the unit at the given position
+	 */
+	public int getHitUnit(int i) {
+		return hitUnits[i];
+	}
+	
+	/**
+	 * @param unitIdx Index of the unit in the homology units index
+	 * @return int Number of k-mers shared with the given unit
+	 */
+	public int getCount(int unitIdx) {
+		return counts[unitIdx];
+	}
+	
+	/**
+	 * Resets the counts to process a new query
+	 */
+	public void clear() {
+		for(int i=0;i<numHitUnits;i++) counts[hitUnits[i]] = 0;
+		numHitUnits = 0;
+		totalKmers = 0;
+	}
+}
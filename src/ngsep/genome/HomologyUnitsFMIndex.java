@@ -0,0 +1,41 @@
+package ngsep.genome;
+
+import java.util.List;
+
+import ngsep.sequences.FMIndex;
+import ngsep.sequences.UngappedSearchHit;
+
+/**
+ * Homology units index searching consecutive non overlapping k-mers of the query in an FM-index of the unit sequences
+ * @author Jorge Duitama
+ */
+public class HomologyUnitsFMIndex implements HomologyUnitsIndex {
+	private final FMIndex index;
+	private final int kmerLength;
+	
+	/**
+	 * Creates a new index
+	 * @param index FM-index with the sequences of the units. Sequence indexes must follow the indexes of the units in the catalog
+	 * @param kmerLength Length of the k-mers to search
+	 */
+	public HomologyUnitsFMIndex(FMIndex index, int kmerLength) {
+		this.index = index;
+		this.kmerLength = kmerLength;
+	}
+	
+	@Override
+	public int getKmerLength() {
+		return kmerLength;
+	}
+	
+	@Override
+	public void countSharedKmers(CharSequence query, HomologyKmerCounts counts) {
+		String searchSequence = query.toString();
+		for(int i=0; i<searchSequence.length()-kmerLength+1; i+=kmerLength) {
+			String kmer = searchSequence.substring(i, i+kmerLength);
+			List <UngappedSearchHit> kmerHits = index.exactSearch(kmer);
+			for(UngappedSearchHit hit:kmerHits) counts.addHit(hit.getSequenceIdx());
+			counts.addQueryKmer();
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package ngsep.genome;
+
+/**
+ * Index of the sequences of the homology units of a catalog, used to count the k-mers shared between a query and each unit.
+ * Units are identified by their index in the catalog, which follows the lexicographic order of the unit ids.
+ * Implementations must allow concurrent searches after they are built
+ * @author Jorge Duitama
+ */
+public interface HomologyUnitsIndex {
+	/**
+	 * Name of the index based on the FM-index of the unit sequences
+	 */
+	public static final String INDEX_TYPE_FMINDEX = "FMIndex";
+	/**
+	 * Name of the inverted index of all k-mers of the unit sequences
+	 */
+	public static final String INDEX_TYPE_KMERS = "Kmers";
+	/**
+	 * Name of the inverted index of the minimizers of the unit sequences
+	 */
+	public static final String INDEX_TYPE_MINIMIZERS = "Minimizers";
+	
+	/**
+	 * @return int Length of the k-mers searched by this index
+	 */
+	public int getKmerLength();
+	
+	/**
+	 * Samples the k-mers of the given query, searches them in the index and adds the hits to the given counts.
+	 * Each occurrence of a k-mer within a unit is counted as one hit
+	 * @param query Sequence of the query unit
+	 * @param counts Object to register the searched k-mers and the hits to each indexed unit
+	 */
+	public void countSharedKmers(CharSequence query, HomologyKmerCounts counts);
+}
@@ -0,0 +1,189 @@
+package ngsep.genome;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Inverted index of the protein k-mers of the homology units. Each k-mer is encoded in a long integer using five bits
+ * per aminoacid and it is associated to a posting list with the indexes of the units in which it occurs, one entry per occurrence.
+ * Encoded k-mers are kept in a sorted array and posting lists are stored consecutively in a single array,
+ * so searches are binary searches without allocating memory.
+ * If the minimizers window is larger than one, only the (w,k)-minimizers of each unit are indexed and queries are sampled
+ * in the same way. Otherwise, all k-mers of the units are indexed and consecutive non overlapping k-mers of the query are searched,
+ * which produces the same counts as the FM-index. K-mers including characters outside the protein alphabet are not indexed
+ * @author Jorge Duitama
+ */
+public class HomologyUnitsKmersIndex implements HomologyUnitsIndex {
+	public static final int MAX_KMER_LENGTH = 12;
+	public static final int DEF_WINDOW_LENGTH = 5;
+	private static final String ALPHABET = "ACDEFGHIKLMNPQRSTVWY*XBZJUO";
+	private static final byte [] CODES = new byte [128];
+	static {
+		Arrays.fill(CODES, (byte)-1);
+		for(int i=0;i<ALPHABET.length();i++) CODES[ALPHABET.charAt(i)] = (byte)i;
+	}
+	private final int kmerLength;
+	private final int windowLength;
+	//Sorted distinct k-mer codes. Posting list of k-mer i is stored between postingStarts[i] and postingStarts[i+1]
+	private long [] kmerCodes;
+	private int [] postingStarts;
+	private int [] postings;
+	
+	/**
+	 * Builds the index of the given units
+	 * @param units Units to index. The index of each unit in the list is used to report hits
+	 * @param kmerLength Length of the k-mers to index. It can not be larger than MAX_KMER_LENGTH
+	 * @param windowLength Number of consecutive k-mers to select one minimizer. If it is one, all k-mers are indexed
+	 */
+	public HomologyUnitsKmersIndex(List<HomologyUnit> units, int kmerLength, int windowLength) {
+		if(kmerLength<1 || kmerLength>MAX_KMER_LENGTH) throw new IllegalArgumentException("K-mer length for a k-mers index should be between 1 and "+MAX_KMER_LENGTH+". Given: "+kmerLength);
+		if(windowLength<1) throw new IllegalArgumentException("Window length should be a positive number");
+		this.kmerLength = kmerLength;
+		this.windowLength = windowLength;
+		buildIndex(units);
+	}
+	
+	private void buildIndex(List<HomologyUnit> units) {
+		long [] codes = new long [1024];
+		int [] codeUnits = new int [1024];
+		int n = 0;
+		for(int i=0;i<units.size();i++) {
+			long [] unitCodes = windowLength>1?getMinimizers(units.get(i).getUnitSequence()):getAllKmers(units.get(i).getUnitSequence());
+			if(n+unitCodes.length>codes.length) {
+				int newLength = Math.max(n+unitCodes.length, 2*codes.length);
+				codes = Arrays.copyOf(codes, newLength);
+				codeUnits = Arrays.copyOf(codeUnits, newLength);
+			}
+			for(long code:unitCodes) {
+				if(code<0) continue;
+				codes[n] = code;
+				codeUnits[n] = i;
+				n++;
+			}
+		}
+		long [] sortedCodes = Arrays.copyOf(codes, n);
+		Arrays.sort(sortedCodes);
+		int numDistinct = 0;
+		for(int i=0;i<n;i++) {
+			if(numDistinct==0 || sortedCodes[numDistinct-1]!=sortedCodes[i]) sortedCodes[numDistinct++] = sortedCodes[i];
+		}
+		kmerCodes = Arrays.copyOf(sortedCodes, numDistinct);
+		postingStarts = new int [numDistinct+1];
+		int [] kmerIdxs = new int [n];
+		for(int i=0;i<n;i++) {
+			kmerIdxs[i] = Arrays.binarySearch(kmerCodes, codes[i]);
+			postingStarts[kmerIdxs[i]+1]++;
+		}
+		for(int i=0;i<numDistinct;i++) postingStarts[i+1]+=postingStarts[i];
+		//Entries are traversed by unit, so each posting list is sorted by unit index
+		postings = new int [n];
+		int [] nextPosting = Arrays.copyOf(postingStarts, numDistinct);
+		for(int i=0;i<n;i++) postings[nextPosting[kmerIdxs[i]]++] = codeUnits[i];
+	}
+	
+	@Override
+	public int getKmerLength() {
+		return kmerLength;
+	}
+	
+	/**
+	 * @return int Number of distinct k-mers in the index
+	 */
+	public int getNumKmers() {
+		return kmerCodes.length;
+	}
+	
+	/**
+	 * @return int Total number of k-mer occurrences in the index
+	 */
+	public int getNumPostings() {
+		return postings.length;
+	}
+	
+	@Override
+	public void countSharedKmers(CharSequence query, HomologyKmerCounts counts) {
+		if(windowLength>1) {
+			for(long code:getMinimizers(query)) {
+				countHits(code, counts);
+				counts.addQueryKmer();
+			}
+		} else {
+			for(int i=0; i<query.length()-kmerLength+1; i+=kmerLength) {
+				countHits(encode(query, i), counts);
+				counts.addQueryKmer();
+			}
+		}
+	}
+	
+	private void countHits(long code, HomologyKmerCounts counts) {
+		if(code<0) return;
+		int idx = Arrays.binarySearch(kmerCodes, code);
+		if(idx<0) return;
+		for(int j=postingStarts[idx];j<postingStarts[idx+1];j++) counts.addHit(postings[j]);
+	}
+	
+	/**
+	 * Encodes the k-mer starting at the given position
+	 * @param sequence Protein sequence
+	 * @param start First position of the k-mer
+	 * @return long Code of the k-mer or -1 if the k-mer includes characters outside the alphabet
+	 */
+	private long encode(CharSequence sequence, int start) {
+		long code = 0;
+		for(int i=start;i<start+kmerLength;i++) {
+			char c = sequence.charAt(i);
+			int charCode = c<CODES.length?CODES[c]:-1;
+			if(charCode<0) return -1;
+			code = (code<<5) | charCode;
+		}
+		return code;
+	}
+	
+	/**
+	 * Encodes all k-mers of the given sequence
+	 * @param sequence Protein sequence
+	 * @return long[] Codes of the k-mers by start position. Codes are -1 for k-mers including characters outside the alphabet
+	 */
+	private long [] getAllKmers(CharSequence sequence) {
+		int n = sequence.length()-kmerLength+1;
+		if(n<=0) return new long[0];
+		long [] answer = new long[n];
+		for(int i=0;i<n;i++) answer[i] = encode(sequence, i);
+		return answer;
+	}
+	
+	/**
+	 * Selects the (w,k)-minimizers of the given sequence. The order of the k-mers is given by a hash of their codes
+	 * to avoid selecting low complexity k-mers. Ties are resolved choosing the leftmost k-mer
+	 * @param sequence Protein sequence
+	 * @return long[] Codes of the minimizers in the order of their start positions
+	 */
+	private long [] getMinimizers(CharSequence sequence) {
+		long [] kmers = getAllKmers(sequence);
+		long [] hashes = new long [kmers.length];
+		for(int i=0;i<kmers.length;i++) hashes[i] = kmers[i]<0?-1L:hash(kmers[i]);
+		long [] answer = new long [kmers.length];
+		int n = 0;
+		int lastSelected = -1;
+		int lastWindowStart = Math.max(0, kmers.length-windowLength);
+		for(int start=0;start<=lastWindowStart && start<kmers.length;start++) {
+			int minPos = start;
+			int end = Math.min(kmers.length, start+windowLength);
+			for(int i=start+1;i<end;i++) {
+				if(Long.compareUnsigned(hashes[i], hashes[minPos])<0) minPos = i;
+			}
+			if(minPos!=lastSelected && kmers[minPos]>=0) {
+				answer[n++] = kmers[minPos];
+				lastSelected = minPos;
+			}
+		}
+		return Arrays.copyOf(answer, n);
+	}
+	
+	private static long hash(long code) {
+		long h = code * 0x9E3779B97F4A7C15L;
+		h ^= (h>>>31);
+		h *= 0xBF58476D1CE4E5B9L;
+		return h ^ (h>>>29);
+	}
+}
@@ -1,46 +1,45 @@
 package ngsep.genome;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import ngsep.main.ThreadPoolManager;
 
+/**
+ * Finds synteny blocks as chains of collinear homology relationships between pairs of sequences.
+ * Relationships are grouped by the sequences of the query and the subject units. Within each group, a relationship can follow
+ * another if both units start after the end of the units of the previous relationship within the maximum distance and
+ * the query units have the same strand. The weight of a chain is the total length of the subject units.
+ * Maximum weight chains are calculated sweeping relationships by query position and keeping the chains ending within the maximum
+ * distance in a segment tree sorted by subject end, which takes O(n log n) time and O(n) memory for each pair of sequences.
+ * Blocks are extracted from the heaviest chains removing relationships already assigned to other blocks.
+ * Pairs of sequences are processed in parallel and the results do not depend on the number of threads
+ * @author Jorge Duitama
+ */
 public class SyntenyBlocksFinder {
-	
+
+	public static final int PARALOGS = 1;
+
+	public static final int ORTHOLOGS = 2;
+
+	public static final int DEF_NUM_THREADS = 1;
+
 	private int minBlockLength;
-	
+
 	private int maxDistance;
-	
+
+	private int numThreads = DEF_NUM_THREADS;
+
 	private List<HomologyEdge> homologyEdges;
-	
-	private List<SyntenyEdge> orthologsEdges = new ArrayList<>();
-	
-	private HashMap<HomologyEdge, List<SyntenyEdge>> orthologsConnected = new HashMap<>();
-	
-	private HashMap<HomologyEdge, Integer> orthologsWeightVertices = new HashMap<>();
-	
-	private HashMap<HomologyEdge, List<SyntenyEdge>> orthologsTraceback = new HashMap<>();
-	
-	private List<SyntenyBlock> orthologsSyntenyBlocks = new ArrayList<>();
-	
-	private List<SyntenyEdge> paralogsEdges = new ArrayList<>();
-	
-	private HashMap<HomologyEdge, List<SyntenyEdge>> paralogsConnected = new HashMap<>();
-	
-	private HashMap<HomologyEdge, Integer> paralogsWeightVertices = new HashMap<>();
-	
-	private HashMap<HomologyEdge, List<SyntenyEdge>> paralogsTraceback = new HashMap<>();
-	
-	private List<SyntenyBlock> paralogsSyntenyBlocks = new ArrayList<>();
-	
+
 	private AnnotatedReferenceGenome genome1;
-	
+
 	private AnnotatedReferenceGenome genome2;
-	
-	public static final int PARALOGS = 1;
-	
-	public static final int ORTHOLOGS = 2;
-	
+
 	public SyntenyBlocksFinder(int minBlockLength, int maxDistance, AnnotatedReferenceGenome g1, AnnotatedReferenceGenome g2, List<HomologyEdge> homologyEdges) {
 		this.minBlockLength = minBlockLength;
 		this.maxDistance = maxDistance;
@@ -48,283 +47,208 @@ public class SyntenyBlocksFinder {
 		this.genome1 = g1;
 		this.genome2 = g2;
 	}
-	
-	public void resetData() {
-		orthologsEdges = new ArrayList<>();
-		
-		orthologsConnected = new HashMap<>();
-		
-		orthologsWeightVertices = new HashMap<>();
-		
-		orthologsTraceback = new HashMap<>();
-		
-		
-		paralogsEdges = new ArrayList<>();
-		
-		paralogsConnected = new HashMap<>();
-		
-		paralogsWeightVertices = new HashMap<>();
-		
-		paralogsTraceback = new HashMap<>();
-		
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads should be a positive number");
+		this.numThreads = numThreads;
 	}
-	
-	public List<SyntenyBlock> findSyntenyBlocks(int homologyType) {
-		
-		List<String> visitedNames = new ArrayList<>();
-		List<HomologyEdge> vertices = selectVertices(homologyType);
-		for (HomologyEdge he : vertices) {
-			String seqName = he.getQueryUnit().getSequenceName();
-			if (!visitedNames.contains(seqName)) {
-				List<HomologyEdge> chrvertices = new ArrayList<>();
-				for (HomologyEdge vert : vertices) {
-					String vertName = vert.getQueryUnit().getSequenceName();
-					if (seqName.equals(vertName)) chrvertices.add(vert);
-				}
-				visitedNames.add(seqName);
-				
-				buildGraph(chrvertices, homologyType);
-				initializeWeights(homologyType);
-				traverseVertices(homologyType);
 
-				List<SyntenyEdge> path = findMaximalWeight(homologyType);
-				while (verifySyntenyBlock(path, homologyType)) {
-					path = findMaximalWeight(homologyType);			
-				}
-				
-				resetData();
+	/**
+	 * Finds the synteny blocks for the relationships of the given type
+	 * @param homologyType Type of relationships. ORTHOLOGS or PARALOGS
+	 * @return List<SyntenyBlock> Blocks sorted by query sequence and position. Overlapping blocks within a query sequence are collapsed
+	 */
+	public List<SyntenyBlock> findSyntenyBlocks(int homologyType) {
+		//Groups of relationships by query and subject sequence. Groups are kept in order of first appearance
+		Map<String, List<HomologyEdge>> groups = new LinkedHashMap<>();
+		for (HomologyEdge he : selectVertices(homologyType)) {
+			HomologyUnit query = he.getQueryUnit();
+			HomologyUnit subject = he.getSubjectUnit();
+			String key = getSequenceKey(query)+"\t"+getSequenceKey(subject);
+			groups.computeIfAbsent(key, (k)->new ArrayList<>()).add(he);
+		}
+		List<List<SyntenyBlock>> blocksByGroup = new ArrayList<>();
+		ThreadPoolManager pool = (numThreads>1)?new ThreadPoolManager(numThreads, 2*numThreads):null;
+		try {
+			for(List<HomologyEdge> group:groups.values()) {
+				if(pool==null) blocksByGroup.add(findSyntenyBlocks(group));
+				else pool.queueTask(()->findSyntenyBlocks(group), (blocks)->blocksByGroup.add(blocks));
 			}
+			if(pool!=null) pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		}
-		if (homologyType == ORTHOLOGS) {
-			orthologsSyntenyBlocks = collapseOverlapped(orthologsSyntenyBlocks);
-			return orthologsSyntenyBlocks;
-		} else {
-			paralogsSyntenyBlocks = collapseOverlapped(paralogsSyntenyBlocks);
-			return paralogsSyntenyBlocks;
+		//Blocks are collapsed by query sequence
+		Map<String, List<SyntenyBlock>> blocksByQuerySequence = new LinkedHashMap<>();
+		int i=0;
+		for(List<HomologyEdge> group:groups.values()) {
+			String key = getSequenceKey(group.get(0).getQueryUnit());
+			blocksByQuerySequence.computeIfAbsent(key, (k)->new ArrayList<>()).addAll(blocksByGroup.get(i));
+			i++;
 		}
+		List<SyntenyBlock> answer = new ArrayList<>();
+		for(List<SyntenyBlock> blocks:blocksByQuerySequence.values()) answer.addAll(collapseOverlapped(blocks));
+		return answer;
 	}
-	
+
+	private static String getSequenceKey(HomologyUnit unit) {
+		return unit.getGenomeId()+"\t"+unit.getSequenceName();
+	}
+
 	private List<HomologyEdge> selectVertices(int homologyType) {
 		List<HomologyEdge> vertices = new ArrayList<>();
 		for (HomologyEdge he : homologyEdges) {
 			HomologyUnit query = he.getQueryUnit();
 			HomologyUnit subject = he.getSubjectUnit();
 			boolean filter = false;
-			if (homologyType == ORTHOLOGS) 
+			if (homologyType == ORTHOLOGS)
 				filter = query.getGenomeId() != subject.getGenomeId();
 			else
 				filter = query.getGenomeId() == subject.getGenomeId();
-			
-			if(filter) {
-//				HomologyUnit q = he.getQueryUnit();
-//				HomologyUnit s = he.getSubjectUnit();
-//				if (q.getGenomeId() == 2) {
-//					vertices.add(new HomologyEdge(s, q, 0));
-//				} else vertices.add(he);
-				vertices.add(he);
-			}
+
+			if(filter) vertices.add(he);
 		}
 		return vertices;
-		
+
 	}
-	
-	private void buildGraph(List<HomologyEdge> vertices, int homologyType) {
-		vertices.sort((a,b)->compareUnits(a, b));
-		for (HomologyEdge ve1 : vertices) {
-			for (HomologyEdge ve2 : vertices) {
-				if (!ve1.equals(ve2)) {
-					HomologyUnit q1 = ve1.getQueryUnit();
-					HomologyUnit s1 = ve1.getSubjectUnit();
-					HomologyUnit q2 = ve2.getQueryUnit();
-					HomologyUnit s2 = ve2.getSubjectUnit();
-					boolean isSyntenic = q1.getLast() <= q2.getFirst() && s1.getLast() <= s2.getFirst() && q1.isPositiveStrand() == q2.isPositiveStrand();
-					boolean notOverlapping = q2.getFirst()-q1.getLast() >= 0 && q2.getFirst()-q1.getLast() < maxDistance
-							&& s2.getFirst()-s1.getLast() >= 0 && s2.getFirst()-s1.getLast() < maxDistance;
-					if (isSyntenic && notOverlapping) { 
-						SyntenyEdge se = new SyntenyEdge(ve1, ve2, s2.length());
-						if (homologyType == ORTHOLOGS) {
-							orthologsEdges.add(se);
-							List<SyntenyEdge> con = orthologsConnected.getOrDefault(ve1, new ArrayList<>());
-							con.add(se);
-							orthologsConnected.put(ve1, con);							
-						} else {
-							paralogsEdges.add(se);
-							List<SyntenyEdge> con = paralogsConnected.getOrDefault(ve1, new ArrayList<>());
-							con.add(se);
-							paralogsConnected.put(ve1, con);
-						}
-					}
-				}
-			}
+
+	/**
+	 * Finds the synteny blocks within a group of relationships between the same pair of sequences
+	 * @param group Relationships between units of the same query sequence and the same subject sequence
+	 * @return List<SyntenyBlock> Blocks found in the group
+	 */
+	private List<SyntenyBlock> findSyntenyBlocks(List<HomologyEdge> group) {
+		List<HomologyEdge> positive = new ArrayList<>();
+		List<HomologyEdge> negative = new ArrayList<>();
+		for(HomologyEdge he:group) {
+			if(he.getQueryUnit().isPositiveStrand()) positive.add(he);
+			else negative.add(he);
 		}
+		List<SyntenyBlock> answer = new ArrayList<>();
+		if(positive.size()>1) answer.addAll(chainRelationships(positive));
+		if(negative.size()>1) answer.addAll(chainRelationships(negative));
+		return answer;
 	}
-	
-	
-	private void initializeWeights(int homologyType) {
-		if (homologyType == ORTHOLOGS) {
-			for (SyntenyEdge se : orthologsEdges) {
-				HomologyEdge vi = se.getSource();
-				HomologyEdge vj = se.getTarget();
-				orthologsWeightVertices.put(vi, Math.abs(vi.getSubjectUnit().length()));
-				orthologsWeightVertices.put(vj, Math.abs(vj.getSubjectUnit().length()));
-			}	
-		} else {
-			for (SyntenyEdge se : paralogsEdges) {
-				HomologyEdge vi = se.getSource();
-				HomologyEdge vj = se.getTarget();
-				paralogsWeightVertices.put(vi, Math.abs(vi.getSubjectUnit().length()));
-				paralogsWeightVertices.put(vj, Math.abs(vj.getSubjectUnit().length()));
-			}
+
+	private List<SyntenyBlock> chainRelationships(List<HomologyEdge> vertices) {
+		int n = vertices.size();
+		HomologyEdge [] sorted = vertices.toArray(new HomologyEdge[n]);
+		Arrays.sort(sorted, (a,b)->compareQueryPositions(a, b));
+		//Activation order of the relationships as predecessors, given by the end of the query unit
+		Integer [] activationOrder = new Integer[n];
+		for(int i=0;i<n;i++) activationOrder[i] = i;
+		Arrays.sort(activationOrder, (i,j)->Integer.compare(sorted[i].getQueryUnit().getLast(), sorted[j].getQueryUnit().getLast()));
+		//Ranks of the relationships sorted by the end of the subject unit. Leafs of the segment tree follow this order
+		Integer [] subjectOrder = new Integer[n];
+		for(int i=0;i<n;i++) subjectOrder[i] = i;
+		Arrays.sort(subjectOrder, (i,j)->Integer.compare(sorted[i].getSubjectUnit().getLast(), sorted[j].getSubjectUnit().getLast()));
+		int [] subjectEnds = new int[n];
+		int [] ranks = new int[n];
+		for(int r=0;r<n;r++) {
+			subjectEnds[r] = sorted[subjectOrder[r]].getSubjectUnit().getLast();
+			ranks[subjectOrder[r]] = r;
 		}
-	}
-	
-	private void traverseVertices(int homologyType) {
-		if (homologyType == ORTHOLOGS) {
-			List<HomologyEdge> hedges = new ArrayList<>(orthologsConnected.keySet());
-			hedges.sort((a,b)->compareUnits(a, b));
-			for (HomologyEdge he : hedges) {
-				List<SyntenyEdge> cons = orthologsConnected.get(he);
-				for (SyntenyEdge se : cons) {
-					HomologyEdge target = se.getTarget();
-					int newWeight = se.getWeight() + orthologsWeightVertices.get(he);
-					int currentWeight = orthologsWeightVertices.get(target);
-					if (newWeight > currentWeight) {
-						orthologsWeightVertices.put(target, newWeight);
-						List<SyntenyEdge> parents = orthologsTraceback.getOrDefault(he, new ArrayList<SyntenyEdge>());
-						parents.add(se);
-						orthologsTraceback.put(target, parents);
-					}				
-				}
-			}			
-		} else {
-			List<HomologyEdge> hedges = new ArrayList<>(paralogsConnected.keySet());
-			hedges.sort((a,b)->compareUnits(a, b));
-			for (HomologyEdge he : hedges) {
-				List<SyntenyEdge> cons = paralogsConnected.get(he);
-				for (SyntenyEdge se : cons) {
-					//HomologyEdge vi = se.getVi();
-					HomologyEdge target = se.getTarget();
-					int newWeight = se.getWeight() + paralogsWeightVertices.get(he);
-					int currentWeight = paralogsWeightVertices.get(target);
-					if (newWeight > currentWeight) {
-						paralogsWeightVertices.put(target, newWeight);
-						List<SyntenyEdge> parents = paralogsTraceback.getOrDefault(he, new ArrayList<SyntenyEdge>());
-						parents.add(se);
-						paralogsTraceback.put(target, parents);
-					}				
-				}
+		long [] weights = new long[n];
+		int [] predecessors = new int [n];
+		MaxWeightSegmentTree tree = new MaxWeightSegmentTree(n, weights);
+		int nextActive = 0;
+		int nextExpired = 0;
+		for(int i=0;i<n;i++) {
+			HomologyUnit query = sorted[i].getQueryUnit();
+			HomologyUnit subject = sorted[i].getSubjectUnit();
+			while(nextActive<n && activationOrder[nextActive]<i && sorted[activationOrder[nextActive]].getQueryUnit().getLast()<=query.getFirst()) {
+				int j = activationOrder[nextActive];
+				tree.set(ranks[j], j);
+				nextActive++;
 			}
+			while(nextExpired<nextActive && query.getFirst()-sorted[activationOrder[nextExpired]].getQueryUnit().getLast()>=maxDistance) {
+				tree.set(ranks[activationOrder[nextExpired]], -1);
+				nextExpired++;
+			}
+			//Predecessors should end in the subject sequence within (subject.first - maxDistance, subject.first]
+			int firstRank = upperBound(subjectEnds, (long)subject.getFirst()-maxDistance);
+			int lastRank = upperBound(subjectEnds, subject.getFirst())-1;
+			int best = tree.getMax(firstRank, lastRank);
+			predecessors[i] = best;
+			weights[i] = subject.length() + ((best>=0)?weights[best]:0);
 		}
-		
-	}
-	
-	private List<SyntenyEdge> findMaximalWeight(int homologyType) {
-		HomologyEdge maxVertex = null;
-		int maxWeight = 0;
-		HashMap<HomologyEdge, Integer> weightV;
-		HashMap<HomologyEdge, List<SyntenyEdge>> traceback;
-		if (homologyType == ORTHOLOGS) {
-			weightV = orthologsWeightVertices;
-			traceback = orthologsTraceback;
-		}
-		else {
-			weightV = paralogsWeightVertices;
-			traceback = paralogsTraceback;
-		}
-		for (HomologyEdge v : weightV.keySet()) {
-			int weight = weightV.get(v);
-			if (weight > maxWeight) {
-				maxVertex = v;
-				maxWeight = weight;
+		//Extraction of blocks from the heaviest chains
+		Integer [] byWeight = new Integer[n];
+		for(int i=0;i<n;i++) byWeight[i] = i;
+		Arrays.sort(byWeight, (i,j)->(weights[i]!=weights[j])?Long.compare(weights[j], weights[i]):Integer.compare(i, j));
+		boolean [] used = new boolean[n];
+		List<SyntenyBlock> answer = new ArrayList<>();
+		for(int last:byWeight) {
+			if(used[last]) continue;
+			List<HomologyEdge> chain = new ArrayList<>();
+			for(int i=last;i>=0 && !used[i];i=predecessors[i]) {
+				used[i] = true;
+				chain.add(sorted[i]);
 			}
+			if(chain.size()<2) continue;
+			Collections.reverse(chain);
+			List<SyntenyEdge> path = new ArrayList<>();
+			int first = chain.get(0).getQueryUnit().getFirst();
+			int lastPos = 0;
+			for(int i=0;i<chain.size();i++) {
+				HomologyEdge he = chain.get(i);
+				lastPos = Math.max(lastPos, he.getQueryUnit().getLast());
+				if(i>0) path.add(new SyntenyEdge(chain.get(i-1), he, he.getSubjectUnit().length()));
+			}
+			if(lastPos-first+1 < minBlockLength) continue;
+			answer.add(new SyntenyBlock(chain.get(0).getQueryUnit().getSequenceName(), first, lastPos, genome1, genome2, path));
 		}
-		return traceback.getOrDefault(maxVertex, new ArrayList<SyntenyEdge>());
+		return answer;
 	}
-	
-	private boolean verifySyntenyBlock(List<SyntenyEdge> path, int homologyType) {
-
-		HashMap<HomologyEdge, Integer> weightV;
-		List<SyntenyBlock> syntenyBlocks;
-		if (homologyType == ORTHOLOGS) {
-			weightV = orthologsWeightVertices;
-			syntenyBlocks = orthologsSyntenyBlocks;
-		} else {
-			weightV = paralogsWeightVertices;
-			syntenyBlocks = paralogsSyntenyBlocks;
-		}
-		if (path.isEmpty()) return false;
-		int length = 0;
-		for (SyntenyEdge se : path) {
-			length += se.getSource().getQueryUnit().length() + se.getTarget().getQueryUnit().length();
-		}
-		
-		//check length and add synteny block
-		if (length >= minBlockLength) {
-			HomologyUnit firstUnit = path.get(0).getSource().getQueryUnit();
-			int[] firstAndLast = getFirstAndLast(path);
-			int first = firstAndLast[0];
-			int last = firstAndLast[1];
-			SyntenyBlock sb = new SyntenyBlock(firstUnit.getSequenceName(), first, last, genome1, genome2, path);
-			syntenyBlocks.add(sb);
-		} 
-		// remove vertices
-		for (SyntenyEdge se : path) {
-			HomologyEdge s = se.getSource();
-			HomologyEdge t = se.getTarget();
-			weightV.remove(s);
-			weightV.remove(t);
-		}
-		return true;
 
+	private int compareQueryPositions(HomologyEdge a, HomologyEdge b) {
+		HomologyUnit q1 = a.getQueryUnit();
+		HomologyUnit q2 = b.getQueryUnit();
+		if(q1.getFirst()!=q2.getFirst()) return q1.getFirst() - q2.getFirst();
+		return q1.getLast() - q2.getLast();
 	}
-	
-	private int compareUnits(HomologyEdge a, HomologyEdge b) {
-		int aStart = a.getQueryUnit().getFirst();
-		int bStart = b.getQueryUnit().getFirst();
-		return aStart - bStart;
-	}
-	
-	private int[] getFirstAndLast(List<SyntenyEdge> edges) {
-		int first = Integer.MAX_VALUE;
-		int last = 0;
-		for (SyntenyEdge se : edges) {
-			HomologyUnit source = se.getSource().getQueryUnit();
-			HomologyUnit target = se.getTarget().getQueryUnit();
-			if (source.getFirst() < first)
-				first = source.getFirst();
-			else if (target.getFirst() < first)
-				first = target.getFirst();
-			else if (source.getLast() > last)
-				last = source.getLast();
-			else if (target.getLast() > last)
-				last = target.getLast();
+
+	/**
+	 * @return int First index of the sorted array with a value larger than the given value
+	 */
+	private static int upperBound(int [] sortedValues, long value) {
+		int lo = 0;
+		int hi = sortedValues.length;
+		while(lo<hi) {
+			int mid = (lo+hi)>>>1;
+			if(sortedValues[mid]<=value) lo = mid+1;
+			else hi = mid;
 		}
-		return new int[]{first,last};
+		return lo;
 	}
-	
-	private List<SyntenyBlock> collapseOverlapped(List<SyntenyBlock> prev) {
-		List<SyntenyBlock> temp = prev;
-		while (selfOverlap(temp)) {
-			List<SyntenyBlock> collapsed = new ArrayList<>();
-			int i = 0;
-			while (!temp.isEmpty()) {
-				List<SyntenyBlock> toJoin = new ArrayList<>();
-				SyntenyBlock actual = temp.get(i);
-				toJoin.add(actual);
-				for (int j = 0; j < temp.size(); j++) {
-					SyntenyBlock other = temp.get(j);
-					if (i != j && actual.getSequenceName().equals(other.getSequenceName()) && areOverlapping(actual, other)) {
-						toJoin.add(other);
-					}
-				}
-				temp.removeAll(toJoin);
-				collapsed.add(joinCollapsed(toJoin));
+
+	/**
+	 * Collapses overlapping blocks of the same query sequence
+	 * @param blocks Blocks of one query sequence
+	 * @return List<SyntenyBlock> Collapsed blocks sorted by position
+	 */
+	private List<SyntenyBlock> collapseOverlapped(List<SyntenyBlock> blocks) {
+		List<SyntenyBlock> sortedBlocks = new ArrayList<>(blocks);
+		Collections.sort(sortedBlocks, (b1,b2)->b1.getFirst()-b2.getFirst());
+		List<SyntenyBlock> answer = new ArrayList<>();
+		List<SyntenyBlock> toJoin = new ArrayList<>();
+		int lastJoin = 0;
+		for (SyntenyBlock block:sortedBlocks) {
+			if(!toJoin.isEmpty() && block.getFirst()>lastJoin) {
+				answer.add(joinCollapsed(toJoin));
+				toJoin.clear();
 			}
-			temp = collapsed;
+			if(toJoin.isEmpty()) lastJoin = block.getLast();
+			else lastJoin = Math.max(lastJoin, block.getLast());
+			toJoin.add(block);
 		}
-		return temp;
+		if(!toJoin.isEmpty()) answer.add(joinCollapsed(toJoin));
+		return answer;
 	}
-	
+
 	private SyntenyBlock joinCollapsed(List<SyntenyBlock> toJoin) {
 		if (toJoin.size() == 1)
 			return toJoin.get(0);
@@ -341,7 +265,7 @@ public class SyntenyBlocksFinder {
 		SyntenyBlock joined = new SyntenyBlock(toJoin.get(0).getSequenceName(), minStart, maxEnd,genome1, genome2, joinedHomologies);
 		return joined;
 	}
-	
+
 	public boolean selfOverlap(List<SyntenyBlock> test) {
 		for (int i = 0; i < test.size(); i++) {
 			SyntenyBlock actual = test.get(i);
@@ -363,6 +287,52 @@ public class SyntenyBlocksFinder {
 		return (start1 >= start2 && start1 <= end2) || (end1 <= end2 && end1 >= start2)
 				|| (start2 >= start1 && start2 <= end1) || (end2 <= end1 && end2 >= start1);
 	}
+}
+/**
+ * Segment tree over a fixed number of leafs to find the element with maximum weight within a range of leafs.
+ * Each leaf stores the index of an element or -1 if it is empty. Ties are resolved choosing the smallest index
+ * @author Jorge Duitama
+ */
+class MaxWeightSegmentTree {
+	private final int size;
+	private final int [] nodes;
+	private final long [] weights;
 
-	
+	MaxWeightSegmentTree(int numLeafs, long [] weights) {
+		int s = 1;
+		while(s<numLeafs) s<<=1;
+		size = s;
+		nodes = new int[2*size];
+		Arrays.fill(nodes, -1);
+		this.weights = weights;
+	}
+
+	void set(int leaf, int element) {
+		int pos = leaf+size;
+		nodes[pos] = element;
+		for(pos>>=1;pos>0;pos>>=1) nodes[pos] = best(nodes[2*pos], nodes[2*pos+1]);
+	}
+
+	/**
+	 * @return int Element with maximum weight between the given leafs (inclusive) or -1 if all leafs in the range are empty
+	 */
+	int getMax(int firstLeaf, int lastLeaf) {
+		int answer = -1;
+		int lo = firstLeaf+size;
+		int hi = lastLeaf+size+1;
+		while(lo<hi) {
+			if((lo&1)==1) answer = best(answer, nodes[lo++]);
+			if((hi&1)==1) answer = best(answer, nodes[--hi]);
+			lo>>=1;
+			hi>>=1;
+		}
+		return answer;
+	}
+
+	private int best(int e1, int e2) {
+		if(e1<0) return e2;
+		if(e2<0) return e1;
+		if(weights[e1]!=weights[e2]) return (weights[e1]>weights[e2])?e1:e2;
+		return Math.min(e1, e2);
+	}
 }
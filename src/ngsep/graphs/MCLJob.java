@@ -3,255 +3,450 @@ package ngsep.graphs;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
+/**
+ * Markov clustering (MCL) over sparse matrices. Each row of the matrix is the transition distribution of one node.
+ * Each iteration expands the matrix squaring it row by row a given number of times, pruning small entries of each row
+ * and keeping at most a maximum number of entries after each squaring. The last squaring of the iteration also inflates
+ * and normalizes each row in the same pass. Rows are independent within each squaring and hence they can be calculated in parallel
+ */
 public class MCLJob extends Thread {
+	public static final double DEF_INFLATION = 8;
+	public static final int DEF_EXPANSION_POWER = 4;
+	public static final double DEF_PRUNING_THRESHOLD = 0.001;
+	public static final int DEF_MAX_ENTRIES_ROW = 100;
+	public static final int DEF_NUM_THREADS = 1;
+
 	private static final double INFERED_EDGE_VALUE = 1;
-	private static final double ZERO_THRESHOLD = 0.001;
-	private static final int E_POWER = 4;
-	private static final double INFLATION_COEFFICIENT = 8;
-	private static final double DEVIATION_THRESHOLD = 0.000001;
-	
-	private double[][] similarityMatrix;
-	private int nextColumn = 0;
+	private static final double CHAOS_THRESHOLD = 0.0001;
+	private static final int MAX_ITERATIONS = 100;
+	private static final int ROWS_TASK = 1000;
+	private static final int TIMEOUT_SECONDS = 30;
+
+	private Logger log = Logger.getLogger(MCLJob.class.getName());
+
+	//Parameters
+	private double inflation = DEF_INFLATION;
+	private int expansionPower = DEF_EXPANSION_POWER;
+	private double pruningThreshold = DEF_PRUNING_THRESHOLD;
+	private int maxEntriesRow = DEF_MAX_ENTRIES_ROW;
+	private int numThreads = DEF_NUM_THREADS;
+
+	private SparseMatrix similarityMatrix;
 	private List<List<Integer>> clusters;
-	
+
 	public MCLJob(double[][] providedMatrix) {
+		this(SparseMatrix.fromDense(providedMatrix));
+	}
+
+	/**
+	 * Creates a new job to cluster the nodes of the given graph
+	 * @param providedMatrix Matrix of scores. Entry (i,j) has the score of the edge from node i to node j
+	 */
+	public MCLJob(SparseMatrix providedMatrix) {
 		super();
 		this.similarityMatrix = providedMatrix;
 		this.clusters = new ArrayList<>();
 	}
 
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	public double getInflation() {
+		return inflation;
+	}
+	public void setInflation(double inflation) {
+		if(inflation<=1) throw new IllegalArgumentException("Inflation coefficient should be larger than 1");
+		this.inflation = inflation;
+	}
+
+	public int getExpansionPower() {
+		return expansionPower;
+	}
+	/**
+	 * @param expansionPower Number of times that the matrix is squared in each iteration. The expansion of each iteration
+	 * raises the matrix to the power 2^expansionPower
+	 */
+	public void setExpansionPower(int expansionPower) {
+		if(expansionPower<=0) throw new IllegalArgumentException("Expansion power should be a positive number");
+		this.expansionPower = expansionPower;
+	}
+
+	public double getPruningThreshold() {
+		return pruningThreshold;
+	}
+	public void setPruningThreshold(double pruningThreshold) {
+		this.pruningThreshold = pruningThreshold;
+	}
+
+	public int getMaxEntriesRow() {
+		return maxEntriesRow;
+	}
+	public void setMaxEntriesRow(int maxEntriesRow) {
+		if(maxEntriesRow<=0) throw new IllegalArgumentException("Maximum number of entries per row should be a positive number");
+		this.maxEntriesRow = maxEntriesRow;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads should be a positive number");
+		this.numThreads = numThreads;
+	}
+
 	@Override
-	public void run() {		
+	public void run() {
 		similarityMatrix = completeMatrix(similarityMatrix);
 		similarityMatrix = fitMatrix(similarityMatrix);
-		
+
+		ThreadPoolExecutor pool = null;
+		if(numThreads>1) pool = new ThreadPoolExecutor(numThreads, numThreads, TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
 		int runs = 0;
-		boolean convergenceState = false;
-		double[][] backup;
-		while(!convergenceState) {
-			runs++;
-			backup = copyOf(similarityMatrix);
-			backup = squareMatrixTimes(backup, E_POWER);
-			backup = inflateMatrix(backup, INFLATION_COEFFICIENT);
-			convergenceState = verifyConvergence(backup, similarityMatrix, DEVIATION_THRESHOLD);
-			similarityMatrix = backup;
+		double chaos = Double.MAX_VALUE;
+		try {
+			while(chaos > CHAOS_THRESHOLD && runs < MAX_ITERATIONS) {
+				runs++;
+				double [] rowsChaos = new double [similarityMatrix.length()];
+				for(int k = 1; k <= expansionPower; k++) {
+					similarityMatrix = expand(similarityMatrix, k==expansionPower, rowsChaos, pool);
+				}
+				chaos = 0;
+				for(double c:rowsChaos) chaos = Math.max(chaos, c);
+			}
+		} finally {
+			if(pool!=null) pool.shutdown();
 		}
-		
-		System.out.println(String.format("Matrix converged after %d runs", runs));
-		similarityMatrix = consolidateAttractors(similarityMatrix);
+		if(chaos > CHAOS_THRESHOLD) log.warning(String.format("Matrix did not converge after %d runs. Chaos: %f", runs, chaos));
+		else log.info(String.format("Matrix converged after %d runs. Non zero entries: %d", runs, similarityMatrix.getNonZeroCount()));
 		clusters = extractResults(similarityMatrix);
 	}
 
-	public double[][] getSimilarityMatrix() {
+	public SparseMatrix getSimilarityMatrix() {
 		return similarityMatrix;
 	}
-	
-	public void printMatrix(double[][] matrix) {
-		for(double[] arr : matrix) {
-			double sum = 0;
-			for(int i = 0; i < arr.length; i++) sum += arr[i];
-			System.out.println(String.format("%s || %f", Arrays.toString(arr), sum));
+
+	public void printMatrix(SparseMatrix matrix) {
+		for(int i = 0; i < matrix.length(); i++) {
+			SparseVector row = matrix.getRow(i);
+			System.out.println(String.format("%s || %f", row.toString(), row.sum()));
 		}
 	}
-	
+
 	/**
-	 * Takes all nodes from each column with a value of 1 an puts them into the same cluster. Each column is a boolean representation of each cluster.
+	 * Assigns each node to the column with the largest probability in its row (the attractor).
+	 * Nodes with the same attractor are put in the same cluster.
 	 * @param matrix matrix to extract results from.
 	 * @return lists with all-non empty clusters, with the cluster being represented as a list of indexes.
 	 */
-	private List<List<Integer>> extractResults(double[][] matrix) {
-		List<List<Integer>> clusters = new ArrayList<>();
-		
-		for(int j = 0; j < matrix.length; j++) {
-			ArrayList<Integer> cluster = new ArrayList<>();
-			for(int i = 0; i < matrix.length; i++) {
-				if(matrix[i][j] > 0) {
-					cluster.add(i);
+	private List<List<Integer>> extractResults(SparseMatrix matrix) {
+		int n = matrix.length();
+		int [] attractors = new int [n];
+		int [] clusterSizes = new int [n];
+		for(int i = 0; i < n; i++) {
+			int index = 0;
+			double max = 0;
+			for(int k = matrix.getRowStart(i); k < matrix.getRowEnd(i); k++) {
+				if(max < matrix.getValue(k)) {
+					index = matrix.getColumnIndex(k);
+					max = matrix.getValue(k);
 				}
 			}
-			if(cluster.size() > 0) clusters.add(cluster);
+			attractors[i] = index;
+			clusterSizes[index]++;
+		}
+		List<List<Integer>> clusters = new ArrayList<>();
+		List<List<Integer>> clustersByAttractor = new ArrayList<>(n);
+		for(int j = 0; j < n; j++) {
+			List<Integer> cluster = null;
+			if(clusterSizes[j]>0) {
+				cluster = new ArrayList<>(clusterSizes[j]);
+				clusters.add(cluster);
+			}
+			clustersByAttractor.add(cluster);
 		}
-		
+		for(int i = 0; i < n; i++) clustersByAttractor.get(attractors[i]).add(i);
 		return clusters;
 	}
-	
+
 	/**
-	 * Verifies if the standard deviation the matrix is below the desired threshold. Each matrix needs to have the same dimensions.
-	 * @param oldState one state to be compared
-	 * @param newState other state to be compared
-	 * @return true if the std is below the desired threshold, false otherwise.
+	 * Returns a matrix where if node_i has a link to node_j, then node_j will have a link to node_i. The added links have the value given by constant INFERED_EDGE_VALUE
+	 * Entries in the diagonal and entries with non positive values are ignored
+	 * @param matrix matrix to be completed
+	 * @return SparseMatrix completed matrix
 	 */
-	private boolean verifyConvergence(double[][] oldState, double[][] newState, double threshold) {
-		double squaredSum = 0;
-		for(int i = 0; i < oldState.length; i++) {
-			for(int j = 0; j < oldState[0].length; j++) {
-				double errVal = oldState[i][j] - newState[i][j];
-				squaredSum += (errVal)*(errVal);
+	private SparseMatrix completeMatrix(SparseMatrix matrix) {
+		int n = matrix.length();
+		//Transpose through counting sort of columns
+		int [] transposeStarts = new int [n+1];
+		for(int k=0;k<matrix.getNonZeroCount();k++) transposeStarts[matrix.getColumnIndex(k)+1]++;
+		for(int j=0;j<n;j++) transposeStarts[j+1]+=transposeStarts[j];
+		int [] next = Arrays.copyOf(transposeStarts, n);
+		int [] transposeRows = new int [matrix.getNonZeroCount()];
+		double [] transposeValues = new double [matrix.getNonZeroCount()];
+		for(int i=0;i<n;i++) {
+			for(int k=matrix.getRowStart(i);k<matrix.getRowEnd(i);k++) {
+				int j = matrix.getColumnIndex(k);
+				transposeRows[next[j]] = i;
+				transposeValues[next[j]] = matrix.getValue(k);
+				next[j]++;
 			}
 		}
-		double count = (oldState.length*oldState[0].length) - 1;
-		double std = Math.sqrt(squaredSum/(count));
-		return std <= threshold;
-	}
-	
-	/**
-	 * Each row gets fitted so that each node can only belong to 1 cluster. Gets rid of any ties in the matrix, and selects the cluster with the highest probability for the node to be fitted to.
-	 * As a result, all values for the resulting matrix will be either 1 or 0.
-	 * @param matrix matrix to fit.
-	 * @return matrix with clear clusters.
-	 */
-	private double[][] consolidateAttractors(double[][] matrix) {
-		for(int i = 0; i < matrix.length; i++) {
-			int index = 0;
-			double max = 0;
-			for(int j = 0; j < matrix.length; j++) {
-				if(max < matrix[i][j]) {
-					index = j;
-					max = matrix[i][j];
-				}
-				matrix[i][j] = 0;
+		//Merge each row with the corresponding row of the transpose
+		SparseVector [] rows = new SparseVector[n];
+		for(int i=0;i<n;i++) {
+			int [] indexes = new int [matrix.getRowEnd(i)-matrix.getRowStart(i)+transposeStarts[i+1]-transposeStarts[i]];
+			double [] values = new double [indexes.length];
+			int count = 0;
+			int k1 = matrix.getRowStart(i);
+			int k2 = transposeStarts[i];
+			while(k1<matrix.getRowEnd(i) || k2<transposeStarts[i+1]) {
+				int j1 = (k1<matrix.getRowEnd(i))?matrix.getColumnIndex(k1):Integer.MAX_VALUE;
+				int j2 = (k2<transposeStarts[i+1])?transposeRows[k2]:Integer.MAX_VALUE;
+				int j = Math.min(j1, j2);
+				double value = (j1==j)?matrix.getValue(k1):0;
+				double reverseValue = (j2==j)?transposeValues[k2]:0;
+				if(j1==j) k1++;
+				if(j2==j) k2++;
+				if(j==i) continue;
+				if(value<=0 && reverseValue>0) value = INFERED_EDGE_VALUE;
+				if(value<=0) continue;
+				indexes[count] = j;
+				values[count] = value;
+				count++;
 			}
-			matrix[i][index] = 1;
+			rows[i] = new SparseVector(n, Arrays.copyOf(indexes, count), Arrays.copyOf(values, count));
 		}
-		return matrix;
+		return new SparseMatrix(n, rows);
 	}
-	
+
 	/**
-	 * Normalizes the matrix given as input, also adds self loops equal to 1/n, where n is the quantity of viable neighbours for that node
-	 * @param matrix matrix to be normalized
-	 * @return
+	 * Normalizes the matrix given as input, also adds self loops equal to the average weight of the edges of each node
+	 * @param matrix matrix to be normalized. Entries in the diagonal should be zero
+	 * @return SparseMatrix row stochastic matrix
 	 */
-	private double[][] fitMatrix(double[][] matrix) {
-		for(int i = 0; i < matrix.length; i++) {
+	private SparseMatrix fitMatrix(SparseMatrix matrix) {
+		int n = matrix.length();
+		SparseVector [] rows = new SparseVector[n];
+		for(int i = 0; i < n; i++) {
+			int start = matrix.getRowStart(i);
+			int end = matrix.getRowEnd(i);
+			int valid = end - start;
+			int [] indexes = new int [valid+1];
+			double [] values = new double [valid+1];
 			double sum = 0;
-			int valid = 0;
-			for(int j = 0; j < matrix.length; j++) {
-				if (matrix[i][j] > 0) {
-					sum += matrix[i][j];
-					valid++;
+			for(int k = start; k < end; k++) sum += matrix.getValue(k);
+			double self = (valid>0)?sum/valid:1;
+			sum += self;
+			int count = 0;
+			boolean selfAdded = false;
+			for(int k = start; k <= end; k++) {
+				int j = (k<end)?matrix.getColumnIndex(k):n;
+				if(!selfAdded && i<j) {
+					indexes[count] = i;
+					values[count] = self/sum;
+					count++;
+					selfAdded = true;
 				}
+				if(k==end) break;
+				indexes[count] = j;
+				values[count] = matrix.getValue(k)/sum;
+				count++;
 			}
-			
-			if(sum > 0) {
-				matrix[i][i] = sum/valid;
-				sum += (sum/valid);
-				for(int j = 0; j < matrix.length; j++) matrix[i][j] = matrix[i][j]/sum;
-			} else {
-				matrix[i][i] = 1;
-			}
+			rows[i] = new SparseVector(n, indexes, values);
 		}
-		return matrix;
+		return new SparseMatrix(n, rows);
 	}
-	
+
 	/**
-	 * Normalizes a given row, taking the weight of each edge and returning a distribution probability over all edges.
-	 * @param row row to be normalized
-	 * @return normalized row
+	 * Squares the matrix and prunes each row. If requested, it also inflates each row to the inflation coefficient
+	 * @param matrix Current matrix
+	 * @param inflate Tells if the rows should be inflated and normalized after pruning
+	 * @param rowsChaos Array to store the chaos of each row of the new matrix. Only updated if inflate is true
+	 * @param pool Pool to process the rows. If null, rows are processed in the current thread
+	 * @return SparseMatrix new matrix. It is row stochastic if inflate is true
 	 */
-	private double[] normalizeRow(double[] row) {
-		double sum = 0;
-		for(int j = 0; j < row.length; j++) {
-			if (row[j] > 0) {
-				sum += row[j];
+	private SparseMatrix expand(SparseMatrix matrix, boolean inflate, double [] rowsChaos, ThreadPoolExecutor pool) {
+		int n = matrix.length();
+		SparseVector [] rows = new SparseVector[n];
+		if(pool == null) {
+			new RowsExpansionTask(matrix, 0, n, inflate, rows, rowsChaos).call();
+		} else {
+			List<Callable<Object>> tasks = new ArrayList<>();
+			for(int first = 0; first < n; first += ROWS_TASK) {
+				tasks.add(new RowsExpansionTask(matrix, first, Math.min(n, first+ROWS_TASK), inflate, rows, rowsChaos));
 			}
-		}
-		
-		if(sum > 0) {
-			for(int j = 0; j < row.length; j++) row[j] = row[j]/sum;
-		}
-		
-		return row;
-	}
-	
-	/**
-	 * Returns a matrix where if node_i has a link to node_j, then node_j will have a link to node_i. The added links have the value given by constant FAKE_LINK_VALUE
-	 * @param matrix matrix to be completed
-	 * @return
-	 */
-	private double[][] completeMatrix(double[][] matrix) {
-		for(int i = 0; i < matrix.length; i++) {
-			for(int j = 0; j < matrix.length - i; j++) {
-				if(i == j) continue;
-				
-				if(matrix[i][j] > 0 && matrix[j][i] == 0) {
-					matrix[j][i] = INFERED_EDGE_VALUE;
-				} else if (matrix[j][i] > 0 && matrix[i][j] == 0) {
-					matrix[i][j] = INFERED_EDGE_VALUE;
-				}
+			try {
+				List<Future<Object>> futures = pool.invokeAll(tasks);
+				for(Future<Object> f:futures) f.get();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
 			}
 		}
-		return matrix;
+		return new SparseMatrix(n, rows);
 	}
-	
-	/**
-	 * Squares the provided matrix a given number of times
-	 * @param matrix matrix to be squared, this matrix is square (n x n)
-	 * @param times iterations to square the matrix, has to be > 0. e.g. times = 4 returns M^16
-	 * @return
-	 */
-	private double[][] squareMatrixTimes(double[][] matrix, int times) {
-		if(times < 1) {
-			return matrix;
+
+	public List<List<Integer>> getResults() {
+		return clusters;
+	}
+
+	private class RowsExpansionTask implements Callable<Object> {
+		private SparseMatrix matrix;
+		private int first;
+		private int last;
+		private boolean inflate;
+		private SparseVector [] rows;
+		private double [] rowsChaos;
+
+		public RowsExpansionTask(SparseMatrix matrix, int first, int last, boolean inflate, SparseVector[] rows, double[] rowsChaos) {
+			super();
+			this.matrix = matrix;
+			this.first = first;
+			this.last = last;
+			this.inflate = inflate;
+			this.rows = rows;
+			this.rowsChaos = rowsChaos;
+		}
+
+		@Override
+		public Object call() {
+			int n = matrix.length();
+			double [] accumulator = new double [n];
+			int [] touched = new int [n];
+			boolean [] marked = new boolean [n];
+			for(int i = first; i < last; i++) {
+				int count = expandRow(i, accumulator, touched, marked);
+				int kept = pruneRow(count, accumulator, touched, marked);
+				int [] indexes = Arrays.copyOf(touched, kept);
+				double [] values = new double [kept];
+				if(inflate) rowsChaos[i] = inflateRow(indexes, values, accumulator, marked);
+				else copyRow(indexes, values, accumulator, marked);
+				rows[i] = new SparseVector(n, indexes, values);
+			}
+			return null;
 		}
-		
-		for(int k = 0; k < times; k++) {
-			double[][] base = new double[matrix.length][];
-			for(int i = 0; i < matrix.length; i++) base[i] = new double[matrix.length];
-			
-			for(int i = 0; i < matrix.length; i++) {
-				for(int j = 0; j < matrix.length; j++) {
-					double val = 0;
-					for(int z = 0; z < matrix.length; z++) {
-						val += matrix[i][z]*matrix[z][j];
+
+		/**
+		 * Calculates the product of the given row by the matrix
+		 * @return int number of non zero entries of the product
+		 */
+		private int expandRow(int i, double [] accumulator, int [] touched, boolean [] marked) {
+			int count = 0;
+			for(int k = matrix.getRowStart(i); k < matrix.getRowEnd(i); k++) {
+				int z = matrix.getColumnIndex(k);
+				double w = matrix.getValue(k);
+				for(int k2 = matrix.getRowStart(z); k2 < matrix.getRowEnd(z); k2++) {
+					int j = matrix.getColumnIndex(k2);
+					if(!marked[j]) {
+						marked[j] = true;
+						touched[count] = j;
+						count++;
 					}
-					if(val <= ZERO_THRESHOLD) val = 0;
-					base[i][j] = val;
+					accumulator[j] += w*matrix.getValue(k2);
 				}
 			}
-			
-			matrix = base;
+			return count;
 		}
-		
-		return matrix;
-	}
-	
-	/**
-	 * Takes the provided matrix and elevates a random row to the given coefficient, then normalizes all rows.
-	 * @param matrix matrix to be inflated.
-	 * @param coefficient coefficient to be used.
-	 * @return
-	 */
-	private double[][] inflateMatrix(double[][] matrix, double coefficient) {
-		//Select next row
-		int k = nextColumn;
-		if(++nextColumn >= matrix.length) nextColumn = 0;
-			
-		//Elevate to the coefficient
-		for(int j = 0; j < matrix.length; j++) {
-			matrix[k][j] = (double) Math.pow(matrix[k][j], coefficient);
+
+		/**
+		 * Removes entries below the pruning threshold and keeps at most the maximum number of entries per row.
+		 * The largest entry is never removed. Retained indexes are left sorted at the beginning of the touched array
+		 * @return int number of retained entries
+		 */
+		private int pruneRow(int count, double [] accumulator, int [] touched, boolean [] marked) {
+			int maxIdx = touched[0];
+			for(int t = 1; t < count; t++) {
+				if(accumulator[touched[t]] > accumulator[maxIdx]) maxIdx = touched[t];
+			}
+			int kept = 0;
+			for(int t = 0; t < count; t++) {
+				int j = touched[t];
+				if(j==maxIdx || accumulator[j] > pruningThreshold) {
+					touched[kept] = j;
+					kept++;
+				} else {
+					accumulator[j] = 0;
+					marked[j] = false;
+				}
+			}
+			Arrays.sort(touched, 0, kept);
+			if(kept <= maxEntriesRow) return kept;
+			double [] sortedValues = new double [kept];
+			for(int t = 0; t < kept; t++) sortedValues[t] = accumulator[touched[t]];
+			Arrays.sort(sortedValues);
+			double cutoff = sortedValues[kept-maxEntriesRow];
+			int ties = 0;
+			for(int t = kept-maxEntriesRow; t < kept && sortedValues[t]==cutoff; t++) ties++;
+			int selected = 0;
+			for(int t = 0; t < kept; t++) {
+				int j = touched[t];
+				double value = accumulator[j];
+				boolean keep = value>cutoff;
+				if(value == cutoff && ties > 0) {
+					keep = true;
+					ties--;
+				}
+				if(keep) {
+					touched[selected] = j;
+					selected++;
+				} else {
+					accumulator[j] = 0;
+					marked[j] = false;
+				}
+			}
+			return selected;
+		}
+
+		/**
+		 * Copies the retained entries without normalization. Clears the workspace
+		 */
+		private void copyRow(int [] indexes, double [] values, double [] accumulator, boolean [] marked) {
+			for(int t = 0; t < indexes.length; t++) {
+				int j = indexes[t];
+				values[t] = accumulator[j];
+				accumulator[j] = 0;
+				marked[j] = false;
+			}
+		}
+
+		/**
+		 * Raises the retained entries to the inflation coefficient and normalizes them. Clears the workspace
+		 * @return double chaos of the row, calculated as the difference between the maximum and the sum of squares.
+		 */
+		private double inflateRow(int [] indexes, double [] values, double [] accumulator, boolean [] marked) {
+			double sum = 0;
+			for(int t = 0; t < indexes.length; t++) {
+				int j = indexes[t];
+				values[t] = Math.pow(accumulator[j], inflation);
+				sum += values[t];
+				accumulator[j] = 0;
+				marked[j] = false;
+			}
+			double max = 0;
+			double sumSquares = 0;
+			for(int t = 0; t < values.length; t++) {
+				double value = values[t]/sum;
+				values[t] = value;
+				if(value > max) max = value;
+				sumSquares += value*value;
+			}
+			return max - sumSquares;
 		}
-		
-		//Normalize rows
-		for(int i = 0; i < matrix.length; i++) matrix[i] = this.normalizeRow(matrix[i]);
-		return matrix;
-	}
-	
-	/**
-	 * Generates a copy of the given matrix.
-	 * @param matrix matrix to be copied.
-	 * @return
-	 */
-	private double[][] copyOf(double[][] matrix) {
-		double[][] copy = new double[matrix.length][];
-		for(int i = 0; i < matrix.length; i++) copy[i] = Arrays.copyOf(matrix[i], matrix[i].length);
-		return copy;
-	}
-	
-	public List<List<Integer>> getResults() {
-		return clusters;
 	}
-	
+
 	public static void main(String[] args) {
 		double[][] complex = {
 				{0, 0.33f, 0.34f, 0.33f, 0, 0, 0, 0},
@@ -263,14 +458,14 @@ public class MCLJob extends Thread {
 				{0, 0, 0, 0, 0.5f, 0, 0, 0.5f},
 				{0, 0, 0, 0, 0.34f, 0.33f, 0.33f, 0},
 			};
-		
+
 		double[][] test = complex;
 		for(double[] arr : test) {
 			double sum = 0;
 			for(int i = 0; i < arr.length; i++) sum += arr[i];
 			System.out.println(String.format("%s || %f", Arrays.toString(arr), sum));
 		}
-		
+
 		MCLJob job = new MCLJob(test);
 		job.run();
 		List<List<Integer>>results = job.getResults();
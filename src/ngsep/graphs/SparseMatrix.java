@@ -1,30 +1,138 @@
 package ngsep.graphs;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.List;
 
+/**
+ * Sparse matrix stored in compressed sparse row (CSR) format. Column indexes within each row are sorted
+ */
 public class SparseMatrix {
-	private SparseVector[] vectors;
 	private int length;
 	private int height;
-	
-	public SparseMatrix(int length, int height) {
-		vectors = new SparseVector[length];
-		for (int i = 0; i < length; i++) vectors[i] = new SparseVector(height);
+	private int [] rowStarts;
+	private int [] columnIndexes;
+	private double [] values;
+
+	/**
+	 * Creates a matrix from its CSR arrays
+	 * @param length Number of rows
+	 * @param height Number of columns
+	 * @param rowStarts Start of each row in the arrays of columns and values. The array must have length+1 entries
+	 * @param columnIndexes Sorted column indexes of the non zero entries of each row
+	 * @param values Values of the non zero entries
+	 */
+	public SparseMatrix(int length, int height, int [] rowStarts, int [] columnIndexes, double [] values) {
+		if(rowStarts.length!=length+1) throw new IllegalArgumentException("Row starts should have "+(length+1)+" entries. Given: "+rowStarts.length);
+		if(columnIndexes.length!=values.length) throw new IllegalArgumentException("Different number of indexes "+columnIndexes.length+" and values "+values.length);
 		this.length = length;
 		this.height = height;
+		this.rowStarts = rowStarts;
+		this.columnIndexes = columnIndexes;
+		this.values = values;
+	}
+
+	/**
+	 * Creates a matrix from a list of sparse rows
+	 * @param height Number of columns
+	 * @param rows of the matrix
+	 */
+	public SparseMatrix (int height, SparseVector [] rows) {
+		this.length = rows.length;
+		this.height = height;
+		rowStarts = new int [length+1];
+		for(int i=0;i<length;i++) rowStarts[i+1] = rowStarts[i]+rows[i].getNonZeroCount();
+		columnIndexes = new int [rowStarts[length]];
+		values = new double [rowStarts[length]];
+		for(int i=0;i<length;i++) {
+			SparseVector row = rows[i];
+			int start = rowStarts[i];
+			for(int k=0;k<row.getNonZeroCount();k++) {
+				columnIndexes[start+k] = row.getIndex(k);
+				values[start+k] = row.getValue(k);
+			}
+		}
+	}
+
+	/**
+	 * Creates a sparse matrix with the non zero entries of the given dense matrix
+	 * @param matrix Dense matrix
+	 * @return SparseMatrix with the same entries
+	 */
+	public static SparseMatrix fromDense(double [][] matrix) {
+		int n = matrix.length;
+		int m = (n>0)?matrix[0].length:0;
+		int [] rowStarts = new int [n+1];
+		for(int i=0;i<n;i++) {
+			int count = 0;
+			for(int j=0;j<m;j++) if(matrix[i][j]!=0) count++;
+			rowStarts[i+1] = rowStarts[i]+count;
+		}
+		int [] columnIndexes = new int [rowStarts[n]];
+		double [] values = new double [rowStarts[n]];
+		int k=0;
+		for(int i=0;i<n;i++) {
+			for(int j=0;j<m;j++) {
+				if(matrix[i][j]!=0) {
+					columnIndexes[k] = j;
+					values[k] = matrix[i][j];
+					k++;
+				}
+			}
+		}
+		return new SparseMatrix(n, m, rowStarts, columnIndexes, values);
 	}
-	
+
 	public double get(int i, int j) {
-		return vectors[i].get(j);
+		int k = Arrays.binarySearch(columnIndexes, rowStarts[i], rowStarts[i+1], j);
+		if(k<0) return 0;
+		return values[k];
+	}
+
+	/**
+	 * @param i Row index
+	 * @return SparseVector Copy of the non zero entries of the given row
+	 */
+	public SparseVector getRow(int i) {
+		int start = rowStarts[i];
+		int end = rowStarts[i+1];
+		return new SparseVector(height, Arrays.copyOfRange(columnIndexes, start, end), Arrays.copyOfRange(values, start, end));
 	}
-	
-	public void set(int i, int j, double k) {
-		vectors[i].set(j, k);
+
+	/**
+	 * @param i Row index
+	 * @return int Position of the first entry of the row in the arrays of columns and values
+	 */
+	public int getRowStart(int i) {
+		return rowStarts[i];
+	}
+
+	/**
+	 * @param i Row index
+	 * @return int Position after the last entry of the row in the arrays of columns and values
+	 */
+	public int getRowEnd(int i) {
+		return rowStarts[i+1];
+	}
+
+	/**
+	 * @param k Position in the arrays of non zero entries
+	 * @return int Column of the k-th non zero entry
+	 */
+	public int getColumnIndex(int k) {
+		return columnIndexes[k];
+	}
+
+	/**
+	 * @param k Position in the arrays of non zero entries
+	 * @return double Value of the k-th non zero entry
+	 */
+	public double getValue(int k) {
+		return values[k];
+	}
+
+	public int getNonZeroCount() {
+		return values.length;
 	}
-	
+
 	public double sumOfColumn(int j) {
 		double sum = 0;
 		for(int i = 0; i < length; i++) {
@@ -32,11 +140,17 @@ public class SparseMatrix {
 		}
 		return sum;
 	}
-	
+
+	/**
+	 * @return int Number of rows
+	 */
 	public int length() {
 		return length;
 	}
-	
+
+	/**
+	 * @return int Number of columns
+	 */
 	public int height() {
 		return height;
 	}
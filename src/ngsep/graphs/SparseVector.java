@@ -1,64 +1,83 @@
 package ngsep.graphs;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
 
+/**
+ * Sparse vector of doubles stored as parallel arrays of sorted indexes and values
+ */
 public class SparseVector {
-	private int length = 0;  
-	private HashMap<Integer, Double> vector;
-	
+	private int length = 0;
+	private int [] indexes;
+	private double [] values;
+
+	/**
+	 * Creates an empty vector
+	 * @param length of the vector
+	 */
 	public SparseVector(int length) {
-		vector = new HashMap<>();
+		this(length, new int[0], new double [0]);
+	}
+
+	/**
+	 * Creates a vector with the given entries
+	 * @param length of the vector
+	 * @param indexes Indexes of the non zero entries. They must be sorted
+	 * @param values Values of the non zero entries
+	 */
+	public SparseVector(int length, int [] indexes, double [] values) {
+		if(indexes.length!=values.length) throw new IllegalArgumentException("Different number of indexes "+indexes.length+" and values "+values.length);
 		this.length = length;
+		this.indexes = indexes;
+		this.values = values;
 	}
-	
-	public void set(int pos, double k) {
-		if (pos < 0 || pos >= length) {
-			throw new IndexOutOfBoundsException();
-		} else {
-			vector.put(pos, k);
-			length++;
-		}
+
+	public int length() {
+		return length;
 	}
-	
-	public double get(int pos) {
-		if (pos < 0 || pos >= length) {
-			throw new IndexOutOfBoundsException();
-		} else {
-			if (vector.containsKey(pos)) {
-				return vector.get(pos);
-			} else {
-				return 0;
-			}
-		}
+
+	/**
+	 * @return int Number of entries stored in the vector
+	 */
+	public int getNonZeroCount() {
+		return indexes.length;
+	}
+
+	/**
+	 * @param k Position in the list of non zero entries
+	 * @return int Index within the vector of the k-th non zero entry
+	 */
+	public int getIndex(int k) {
+		return indexes[k];
 	}
-	
-	public void append(double k) {
-		vector.put(length++, k);
+
+	/**
+	 * @param k Position in the list of non zero entries
+	 * @return double Value of the k-th non zero entry
+	 */
+	public double getValue(int k) {
+		return values[k];
 	}
-	
-	public List<ValuePair> valuePairs() {
-		ArrayList<ValuePair> tuples = new ArrayList<ValuePair>();
-		for (int index : vector.keySet()) {
-			tuples.add(new ValuePair(index, vector.get(index)));
-		}
-		return tuples;
+
+	public double get(int pos) {
+		if (pos < 0 || pos >= length) throw new IndexOutOfBoundsException("Position: "+pos+" length: "+length);
+		int k = Arrays.binarySearch(indexes, pos);
+		if(k<0) return 0;
+		return values[k];
 	}
-	
-	class ValuePair {
-		public int index;
-		public double value;
-		
-		public ValuePair(int index, double value) {
-			super();
-			this.index = index;
-			this.value = value;
-		}
-		
-		@Override
-		public String toString() {
-			return String.format("(%d, %f)", this.index, this.value);
+
+	public double sum() {
+		double sum = 0;
+		for(int k=0;k<values.length;k++) sum+=values[k];
+		return sum;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder answer = new StringBuilder();
+		for(int k=0;k<indexes.length;k++) {
+			if(k>0) answer.append(", ");
+			answer.append(String.format("(%d, %f)", indexes[k], values[k]));
 		}
+		return answer.toString();
 	}
 }
\ No newline at end of file
@@ -20,124 +20,444 @@
 package ngsep.gwas;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
 
-import JSci.maths.statistics.FDistribution;
-import ngsep.math.FactorialAnova;
+import JSci.maths.SpecialMath;
+import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.variants.CalledGenomicVariant;
 import ngsep.variants.GenomicVariant;
-import ngsep.vcf.VCFFileHeader;
 import ngsep.vcf.VCFFileReader;
 import ngsep.vcf.VCFRecord;
+import ngsep.vcf.VCFRecordsPipeline;
 
 /**
- * 
+ * Association tests between markers and a quantitative phenotype using the linear model y = Xb + gc + e,
+ * where X includes the intercept and the covariates and g is the dosage of the alternative alleles.
+ * Phenotypes and covariates are loaded once and the covariates are projected out of the phenotype.
+ * Markers are tested in blocks stored as dosage matrices. Blocks are processed in parallel and results
+ * are reported in the order of the input file
  * @author Andrea Parra
- *
+ * @author Jorge Duitama
  */
 public class GeneralLinearModel {
 
+	public static final int DEF_NUM_THREADS = VCFRecordsPipeline.DEF_NUM_THREADS;
+	public static final int DEF_BLOCK_SIZE = 256;
+	public static final String MISSING_VALUE = "NA";
+
+	//Relative squared norm below which a column is considered explained by the previous columns of the design
+	private static final double COLLINEARITY_TOLERANCE = 1e-10;
+
+	private Logger log = Logger.getLogger(GeneralLinearModel.class.getName());
+
+	private String inputFile = null;
+	private String phenotypesFile = null;
+	private String outputFile = null;
+	private String covariatesFile = null;
+	private int numThreads = DEF_NUM_THREADS;
+	private int blockSize = DEF_BLOCK_SIZE;
+
+	//Indexes in the VCF file of the samples included in the model
+	private int [] sampleIdxs;
+	//Orthonormal basis of the columns of the design matrix. One array per column
+	private double [][] basis;
+	//Residuals of the phenotype after projecting out the covariates
+	private double [] residualPhenotypes;
+	private double residualSumSquares;
+
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	public String getInputFile() {
+		return inputFile;
+	}
+	public void setInputFile(String inputFile) {
+		this.inputFile = inputFile;
+	}
+
+	public String getPhenotypesFile() {
+		return phenotypesFile;
+	}
+	/**
+	 * @param phenotypesFile File with a header line and one line per sample with the sample id and the phenotype
+	 */
+	public void setPhenotypesFile(String phenotypesFile) {
+		this.phenotypesFile = phenotypesFile;
+	}
+
+	public String getOutputFile() {
+		return outputFile;
+	}
+	public void setOutputFile(String outputFile) {
+		this.outputFile = outputFile;
+	}
+
+	public String getCovariatesFile() {
+		return covariatesFile;
+	}
+	/**
+	 * @param covariatesFile File with a header line and one line per sample with the sample id followed by the covariates
+	 */
+	public void setCovariatesFile(String covariatesFile) {
+		this.covariatesFile = covariatesFile;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads must be a positive number. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+	/**
+	 * @param blockSize Number of markers tested together by one thread
+	 */
+	public void setBlockSize(int blockSize) {
+		if(blockSize<=0) throw new IllegalArgumentException("Block size must be a positive number. Given: "+blockSize);
+		this.blockSize = blockSize;
+	}
+	public void setBlockSize(String value) {
+		setBlockSize((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public static void main(String[] args) throws Exception {
 		GeneralLinearModel instance = new GeneralLinearModel();
-		instance.process (args[0], args[1], System.out);
+		CommandsDescriptor.getInstance().loadOptions(instance, args);
+		instance.run();
+	}
 
+	public void run() throws IOException {
+		if(phenotypesFile==null) throw new IOException("The file with phenotypes is required");
+		logParameters();
+		if(outputFile==null) {
+			run(System.out);
+		} else {
+			try (PrintStream out = new PrintStream(outputFile)) {
+				run(out);
+			}
+		}
+		log.info("Process finished");
+	}
+
+	private void run(PrintStream out) throws IOException {
+		if(inputFile==null) {
+			try (VCFFileReader reader = new VCFFileReader(System.in)) {
+				process(reader, phenotypesFile, out);
+			}
+		} else {
+			process(inputFile, phenotypesFile, out);
+		}
 	}
 
+	private void logParameters() {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(os);
+		if(inputFile != null) out.println("Input file: "+inputFile);
+		else out.println("System standard input");
+		out.println("Phenotypes file: "+phenotypesFile);
+		if(covariatesFile != null) out.println("Covariates file: "+covariatesFile);
+		if(outputFile != null) out.println("Output file: "+outputFile);
+		else out.println("System standard output");
+		out.println("Markers per block: "+blockSize);
+		out.println("Number of threads: "+numThreads);
+		log.info(os.toString());
+	}
+
+	/**
+	 * Tests the markers of the given VCF file for association with the phenotypes of the given file
+	 * @param vcfFile VCF file with the genotype calls
+	 * @param phenotypesFile File with the phenotypes. See readPhenotypes for details
+	 * @param out Stream to print the results of the tests
+	 * @throws IOException If the files can not be read
+	 */
 	public void process(String vcfFile, String phenotypesFile, PrintStream out) throws IOException {
-		List<Double> phenotypes = readPhenotypes(phenotypesFile);
-		
-			
 		try (VCFFileReader reader = new VCFFileReader(vcfFile)){
-				
-			//Ids of the samples
-			List<String> sampleIds = reader.getSampleIds();
-			//If you want the full header
-			VCFFileHeader header = reader.getHeader();
-			
-			Iterator<VCFRecord> it = reader.iterator();
-			while(it.hasNext()) {
-				
-				VCFRecord record = it.next();
-				//Basic information from the variant
-				GenomicVariant variant = record.getVariant();
-				
-				List<CalledGenomicVariant> genotypeCalls = record.getCalls();
-				
-				List<String> encodedGenotypes = encodeGenotypes(genotypeCalls);
-				
-				// Create a new genotype object to run ANOVA.
-				FactorialAnova anova = new FactorialAnova(encodedGenotypes, phenotypes);
-				printSummary(variant, anova,out);
-			}	
-		}	
-	}
-
-	private List<Double> readPhenotypes(String phenotypesFile) throws IOException {
-		
-        final String fileToParse = phenotypesFile;
-         
-        //Delimiter used in CSV file
-        final String DELIMITER = ",";
-        
-        //Initiailze headers and file info.
-        ArrayList<String> headers = new ArrayList<String>();
-        List<Double> phenotypes = new ArrayList<Double>();
-        
-        try (FileReader fr = new FileReader(fileToParse);
-        	 BufferedReader fileReader = new BufferedReader(fr);)
-        {
-            String line = "";
-            //Create the file reader
-            
-             
-            //Read the file line by line
-            int counter = 0;
-           
-            while ((line = fileReader.readLine()) != null)
-            {	
-            	//Get all tokens available in line
-                String[] tokens = line.split(DELIMITER);
-                
-                //Save the headers into an ArrayList
-            	if(counter == 0) {
-            		for(String token : tokens) {
-            			headers.add(token);
-            		}
-            	} else {
-            		for(String token : tokens)
-                    {	
-            			double phenotype = Double.valueOf(token);
-                        phenotypes.add(phenotype);
-                    }	
-            	}
-            	counter++;
-            }
-        }
-        
+			process(reader, phenotypesFile, out);
+		}
+	}
+
+	private void process(VCFFileReader reader, String phenotypesFile, PrintStream out) throws IOException {
+		Map<String, Double> phenotypes = readPhenotypes(phenotypesFile);
+		Map<String, double []> covariates = null;
+		if(covariatesFile!=null) covariates = readCovariates(covariatesFile);
+		reader.setLog(log);
+		reader.setLoadMode(VCFFileReader.LOAD_MODE_COPY_NUMBER);
+		initModel(reader.getSampleIds(), phenotypes, covariates);
+		out.println("#Chr\tFirst\tLast\tGenotyped\tBeta\tSE\tT\tR2\tPValue");
+		VCFRecordsPipeline pipeline = new VCFRecordsPipeline(reader);
+		pipeline.setNumThreads(numThreads);
+		pipeline.setChunkSize(blockSize);
+		//Blocks are tested in parallel and results are printed in the order of the file
+		pipeline.processChunks(this::testBlock, (results)-> {
+			for(VariantTest test:results) printSummary(test, out);
+		});
+		out.flush();
+	}
+
+	/**
+	 * Loads the phenotypes. The first line is a header. Other lines have the sample id and the phenotype
+	 * separated by comma or tab. Lines with only the phenotype are assigned to the samples in the order of the VCF file
+	 * @param phenotypesFile File with the phenotypes
+	 * @return Map<String,Double> Phenotypes by sample id. Phenotypes without sample id are stored by line number
+	 * @throws IOException If the file can not be read
+	 */
+	private Map<String, Double> readPhenotypes(String phenotypesFile) throws IOException {
+		Map<String, Double> phenotypes = new HashMap<String, Double>();
+		try (FileReader fr = new FileReader(phenotypesFile);
+			 BufferedReader in = new BufferedReader(fr)) {
+			//Skip header
+			String line = in.readLine();
+			int counter = 0;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if(line.length()==0) continue;
+				String [] items = line.split(",|\t");
+				if(items.length==1) phenotypes.put(String.valueOf(counter), parseValue(items[0]));
+				else phenotypes.put(items[0], parseValue(items[1]));
+				counter++;
+			}
+		}
 		return phenotypes;
 	}
 
-	private List<String> encodeGenotypes(List<CalledGenomicVariant> genotypeCalls) {
-		List<String> allelesList = new ArrayList<String>();
-		for(int i=0;i<genotypeCalls.size();i++) {
-			CalledGenomicVariant genotypeCall = genotypeCalls.get(i);
-			String allele = String.join("", genotypeCall.getCalledAlleles());
-			allelesList.add(allele);
+	/**
+	 * Loads the covariates. The first line is a header. Other lines have the sample id followed by the covariates
+	 * separated by comma or tab
+	 * @param covariatesFile File with the covariates
+	 * @return Map<String,double[]> Covariates by sample id
+	 * @throws IOException If the file can not be read or if a line does not have all covariates
+	 */
+	private Map<String, double []> readCovariates(String covariatesFile) throws IOException {
+		Map<String, double []> covariates = new HashMap<String, double[]>();
+		try (FileReader fr = new FileReader(covariatesFile);
+			 BufferedReader in = new BufferedReader(fr)) {
+			String line = in.readLine();
+			if(line==null) return covariates;
+			int numCovariates = line.split(",|\t").length-1;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if(line.length()==0) continue;
+				String [] items = line.split(",|\t");
+				if(items.length!=numCovariates+1) throw new IOException("Line "+line+" of the covariates file does not have "+numCovariates+" covariates");
+				double [] values = new double [numCovariates];
+				for(int i=0;i<numCovariates;i++) values[i] = parseValue(items[i+1]);
+				covariates.put(items[0], values);
+			}
 		}
+		return covariates;
+	}
 
-		return allelesList;
+	private double parseValue(String value) throws IOException {
+		if(value.length()==0 || MISSING_VALUE.equals(value)) return Double.NaN;
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid numeric value: "+value, e);
+		}
+	}
+
+	/**
+	 * Selects the samples having phenotype and covariates, builds an orthonormal basis for the design matrix
+	 * and calculates the residuals of the phenotype
+	 * @param vcfSampleIds Ids of the samples in the VCF file
+	 * @param phenotypes Phenotypes by sample id or by position
+	 * @param covariates Covariates by sample id. It can be null
+	 * @throws IOException If there are not enough samples to fit the model
+	 */
+	private void initModel(List<String> vcfSampleIds, Map<String, Double> phenotypes, Map<String, double []> covariates) throws IOException {
+		List<Integer> selectedIdxs = new ArrayList<>();
+		List<double []> selectedCovariates = new ArrayList<>();
+		List<Double> y = new ArrayList<>();
+		int numCovariates = 0;
+		for(int i=0;i<vcfSampleIds.size();i++) {
+			String sampleId = vcfSampleIds.get(i);
+			Double value = phenotypes.get(sampleId);
+			if(value==null) value = phenotypes.get(String.valueOf(i));
+			if(value==null || value.isNaN()) continue;
+			double [] sampleCovariates = new double[0];
+			if(covariates!=null) {
+				sampleCovariates = covariates.get(sampleId);
+				if(sampleCovariates==null || hasMissingValues(sampleCovariates)) continue;
+				numCovariates = sampleCovariates.length;
+			}
+			selectedIdxs.add(i);
+			selectedCovariates.add(sampleCovariates);
+			y.add(value);
+		}
+		int n = selectedIdxs.size();
+		sampleIdxs = new int [n];
+		residualPhenotypes = new double [n];
+		for(int i=0;i<n;i++) {
+			sampleIdxs[i] = selectedIdxs.get(i);
+			residualPhenotypes[i] = y.get(i);
+		}
+		//Modified Gram-Schmidt over the intercept and the covariates
+		List<double []> columns = new ArrayList<>();
+		for(int j=-1;j<numCovariates;j++) {
+			double [] column = new double [n];
+			for(int i=0;i<n;i++) column[i] = (j<0)?1:selectedCovariates.get(i)[j];
+			double sumSquares = dot(column, 0, column, 0, n);
+			//Second pass to recover orthogonality lost by rounding errors
+			for(int pass=0;pass<2;pass++) {
+				for(double [] q:columns) axpy(-dot(q, 0, column, 0, n), q, column, 0, n);
+			}
+			double residualSquares = dot(column, 0, column, 0, n);
+			if(residualSquares==0 || residualSquares<=COLLINEARITY_TOLERANCE*sumSquares) {
+				log.warning("Covariate "+(j+1)+" is constant or collinear with previous covariates. Excluding it from the model");
+				continue;
+			}
+			double norm = Math.sqrt(residualSquares);
+			for(int i=0;i<n;i++) column[i]/=norm;
+			columns.add(column);
+		}
+		basis = columns.toArray(new double[columns.size()][]);
+		if(n-basis.length-1<=0) throw new IOException("Not enough samples to fit the model. Samples with data: "+n+". Covariates: "+(basis.length-1));
+		for(double [] q:basis) axpy(-dot(q, 0, residualPhenotypes, 0, n), q, residualPhenotypes, 0, n);
+		residualSumSquares = dot(residualPhenotypes, 0, residualPhenotypes, 0, n);
+		log.info("Loaded phenotypes for "+n+" samples. Covariates in the model: "+(basis.length-1));
+	}
 
+	private boolean hasMissingValues(double [] values) {
+		for(double v:values) if(Double.isNaN(v)) return true;
+		return false;
 	}
 
-	private void printSummary(GenomicVariant variant, FactorialAnova anova, PrintStream out) {
-		double pValue = anova.getpValue();
-		FDistribution fdist = anova.getpFdist();
-		out.println(variant.getSequenceName() + "\t" + variant.getFirst() + "\t" + variant.getLast() + "\t" + pValue);
-		
+	/**
+	 * Tests a block of markers. Dosages are stored in a matrix with one row per marker
+	 * @param records Block of records
+	 * @return List<VariantTest> Result of the test for each marker
+	 */
+	private List<VariantTest> testBlock(List<VCFRecord> records) {
+		int n = sampleIdxs.length;
+		int m = records.size();
+		double [] dosages = new double [m*n];
+		int [] genotyped = new int [m];
+		double [] sumSquares = new double [m];
+		for(int j=0;j<m;j++) {
+			genotyped[j] = loadDosages(records.get(j), dosages, j*n);
+			sumSquares[j] = dot(dosages, j*n, dosages, j*n, n);
+		}
+		//Projections of the block on the basis of the design matrix, followed by the update of the residuals
+		double [] projections = new double [basis.length*m];
+		for(int k=0;k<basis.length;k++) {
+			for(int j=0;j<m;j++) projections[k*m+j] = dot(basis[k], 0, dosages, j*n, n);
+		}
+		for(int k=0;k<basis.length;k++) {
+			for(int j=0;j<m;j++) axpy(-projections[k*m+j], basis[k], dosages, j*n, n);
+		}
+		int df = n - basis.length - 1;
+		List<VariantTest> answer = new ArrayList<>(m);
+		for(int j=0;j<m;j++) {
+			VariantTest test = new VariantTest(records.get(j).getVariant(), genotyped[j]);
+			answer.add(test);
+			double gg = dot(dosages, j*n, dosages, j*n, n);
+			//Monomorphic markers or markers explained by the covariates are not tested
+			if(gg==0 || gg<=COLLINEARITY_TOLERANCE*sumSquares[j]) continue;
+			double gy = dot(dosages, j*n, residualPhenotypes, 0, n);
+			double beta = gy/gg;
+			double explained = gy*beta;
+			double rss = Math.max(0, residualSumSquares-explained);
+			test.tested = true;
+			test.beta = beta;
+			test.standardError = Math.sqrt(rss/df/gg);
+			test.r2 = (residualSumSquares>0)?explained/residualSumSquares:0;
+			if(test.standardError>0) {
+				test.t = beta/test.standardError;
+				//Two sided p-value of the t distribution with df degrees of freedom
+				test.pValue = SpecialMath.incompleteBeta(df/(df+test.t*test.t), 0.5*df, 0.5);
+			} else {
+				test.t = (beta>0)?Double.POSITIVE_INFINITY:Double.NEGATIVE_INFINITY;
+				test.pValue = 0;
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * Loads the dosages of the alternative alleles for the samples of the model. Missing genotypes are replaced
+	 * by the average dosage of the genotyped samples
+	 * @param record Record with the genotype calls
+	 * @param dosages Matrix of dosages
+	 * @param offset Position of the row of the marker in the matrix
+	 * @return int Number of genotyped samples
+	 */
+	private int loadDosages(VCFRecord record, double [] dosages, int offset) {
+		int n = sampleIdxs.length;
+		if(record.getVariant().getAlleles().length<2) return 0;
+		List<CalledGenomicVariant> calls = record.getCalls();
+		int genotyped = 0;
+		double sum = 0;
+		for(int i=0;i<n;i++) {
+			CalledGenomicVariant call = calls.get(sampleIdxs[i]);
+			if(call.isUndecided()) {
+				dosages[offset+i] = Double.NaN;
+				continue;
+			}
+			short [] allelesCN = call.getAllelesCopyNumber();
+			int dosage = call.getCopyNumber() - allelesCN[0];
+			dosages[offset+i] = dosage;
+			sum+=dosage;
+			genotyped++;
+		}
+		double mean = (genotyped>0)?sum/genotyped:0;
+		for(int i=0;i<n;i++) {
+			if(Double.isNaN(dosages[offset+i])) dosages[offset+i] = mean;
+		}
+		return genotyped;
+	}
+
+	private static double dot(double [] a, int offsetA, double [] b, int offsetB, int n) {
+		double sum = 0;
+		for(int i=0;i<n;i++) sum+=a[offsetA+i]*b[offsetB+i];
+		return sum;
+	}
+
+	/**
+	 * Calculates y = alpha*x + y over the n values of y starting at offsetY
+	 */
+	private static void axpy(double alpha, double [] x, double [] y, int offsetY, int n) {
+		for(int i=0;i<n;i++) y[offsetY+i]+=alpha*x[i];
+	}
+
+	private void printSummary(VariantTest test, PrintStream out) {
+		GenomicVariant variant = test.variant;
+		out.print(variant.getSequenceName() + "\t" + variant.getFirst() + "\t" + variant.getLast() + "\t" + test.genotyped);
+		if(test.tested) out.println("\t" + test.beta + "\t" + test.standardError + "\t" + test.t + "\t" + test.r2 + "\t" + test.pValue);
+		else out.println("\t" + MISSING_VALUE + "\t" + MISSING_VALUE + "\t" + MISSING_VALUE + "\t" + MISSING_VALUE + "\t" + MISSING_VALUE);
+	}
+
+	private static class VariantTest {
+		private final GenomicVariant variant;
+		private final int genotyped;
+		private boolean tested = false;
+		private double beta;
+		private double standardError;
+		private double t;
+		private double r2;
+		private double pValue;
+		public VariantTest(GenomicVariant variant, int genotyped) {
+			this.variant = variant;
+			this.genotyped = genotyped;
+		}
 	}
 }
@@ -20,6 +20,7 @@
 package ngsep.haplotyping;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -337,6 +338,95 @@ public class HaplotypeBlock
 		}
 	}
 	
+	/**
+	 * Splits this block in independent blocks given by the connected components of the graph in which
+	 * variants are connected if they have consecutive non undecided calls in at least one fragment.
+	 * Variants without calls in any fragment are not included in any block. Columns of the new blocks are
+	 * renumbered following the order of the variants within each block. Fragments keep their relative order 
+	 * @return List<HaplotypeBlock> Independent blocks sorted by first variant
+	 */
+	public List<HaplotypeBlock> splitIndependentBlocks() 
+	{
+		return splitIndependentBlocks(0, calls.size()-1);
+	}
+	
+	/**
+	 * Splits the fragments of this block in independent blocks as splitIndependentBlocks() does, visiting only
+	 * the variants between the given columns. Used to split the fragments of a window within a block spanning a whole sequence
+	 * @param firstColumn First column covered by the fragments of this block
+	 * @param lastColumn Last column covered by the fragments of this block
+	 * @return List<HaplotypeBlock> Independent blocks sorted by first variant
+	 */
+	public List<HaplotypeBlock> splitIndependentBlocks(int firstColumn, int lastColumn) 
+	{
+		sort();
+		int n = Math.max(0, lastColumn-firstColumn+1);
+		//Arrays are indexed by column minus firstColumn
+		int [] parents = new int [n];
+		for(int j=0;j<n;j++) parents[j] = j;
+		boolean [] covered = new boolean [n];
+		for(HaplotypeFragment fragment:matrix) {
+			byte [] fragmentCalls = fragment.getCalls();
+			int start = fragment.getFirstColumn()-firstColumn;
+			if(start<0 || start+fragmentCalls.length>n) throw new IllegalArgumentException("Fragment starting at column "+fragment.getFirstColumn()+" with "+fragmentCalls.length+" calls is not within columns "+firstColumn+" and "+lastColumn);
+			int lastIdx = -1;
+			for(int k=0;k<fragmentCalls.length;k++) {
+				if(fragmentCalls[k]==CalledGenomicVariant.ALLELE_UNDECIDED) continue;
+				int idx = start+k;
+				covered[idx] = true;
+				if(lastIdx>=0) {
+					int r1 = findRoot(parents, lastIdx);
+					int r2 = findRoot(parents, idx);
+					if(r1!=r2) parents[Math.max(r1, r2)] = Math.min(r1, r2);
+				}
+				lastIdx = idx;
+			}
+		}
+		//Column of each variant within its new block
+		int [] localColumns = new int [n];
+		int [] blockIdxs = new int [n];
+		List<List<CalledGenomicVariant>> blocksCalls = new ArrayList<>();
+		for(int j=0;j<n;j++) {
+			if(!covered[j]) continue;
+			int root = findRoot(parents, j);
+			if(root==j) {
+				blockIdxs[j] = blocksCalls.size();
+				blocksCalls.add(new ArrayList<>());
+			} else blockIdxs[j] = blockIdxs[root];
+			List<CalledGenomicVariant> blockCalls = blocksCalls.get(blockIdxs[j]);
+			localColumns[j] = blockCalls.size();
+			blockCalls.add(calls.get(firstColumn+j));
+		}
+		List<HaplotypeBlock> answer = new ArrayList<>(blocksCalls.size());
+		for(List<CalledGenomicVariant> blockCalls:blocksCalls) answer.add(new HaplotypeBlock(blockCalls));
+		for(HaplotypeFragment fragment:matrix) {
+			byte [] fragmentCalls = fragment.getCalls();
+			int firstK = 0;
+			while(firstK<fragmentCalls.length && fragmentCalls[firstK]==CalledGenomicVariant.ALLELE_UNDECIDED) firstK++;
+			if(firstK==fragmentCalls.length) continue;
+			int lastK = fragmentCalls.length-1;
+			while(fragmentCalls[lastK]==CalledGenomicVariant.ALLELE_UNDECIDED) lastK--;
+			int start = fragment.getFirstColumn()-firstColumn;
+			int firstLocal = localColumns[start+firstK];
+			byte [] localCalls = new byte [localColumns[start+lastK]-firstLocal+1];
+			Arrays.fill(localCalls, CalledGenomicVariant.ALLELE_UNDECIDED);
+			for(int k=firstK;k<=lastK;k++) {
+				if(fragmentCalls[k]==CalledGenomicVariant.ALLELE_UNDECIDED) continue;
+				localCalls[localColumns[start+k]-firstLocal] = fragmentCalls[k];
+			}
+			answer.get(blockIdxs[start+firstK]).addFragment(firstLocal, localCalls);
+		}
+		return answer;
+	}
+	
+	private static int findRoot(int [] parents, int j) {
+		while(parents[j]!=j) {
+			parents[j] = parents[parents[j]];
+			j = parents[j];
+		}
+		return j;
+	}
+	
 	/**
 	 * Deletes the fragment j of the haplotype block
 	 * @param j
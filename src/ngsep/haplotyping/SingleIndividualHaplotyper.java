@@ -15,6 +15,7 @@ import ngsep.genome.ReferenceGenome;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
+import ngsep.main.ThreadPoolManager;
 import ngsep.math.NumberArrays;
 import ngsep.variants.CalledGenomicVariant;
 import ngsep.variants.CalledSNV;
@@ -29,6 +30,7 @@ public class SingleIndividualHaplotyper {
 	// Constants for default values
 	public static final String DEF_ALGORITHM_NAME="Refhap";
 	public static final int DEF_MIN_MQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
+	public static final int DEF_NUM_THREADS = 1;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(SingleIndividualHaplotyper.class.getName());
@@ -40,8 +42,9 @@ public class SingleIndividualHaplotyper {
 	private String outputFile = null;
 	private ReferenceGenome genome = null;
 	private String algorithmName = DEF_ALGORITHM_NAME;
-	private SIHAlgorithm algorithm;
+	private Constructor<?> algorithmConstructor;
 	private int minMQ = DEF_MIN_MQ;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	public Logger getLog() {
 		return log;
@@ -95,6 +98,16 @@ public class SingleIndividualHaplotyper {
 	public void setMinMQ(String value) {
 		this.setMinMQ((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads should be a positive number");
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
 	public ReferenceGenome getGenome() {
 		return genome;
 	}
@@ -110,7 +123,7 @@ public class SingleIndividualHaplotyper {
 	public static void main(String[] args) throws Exception {
 		SingleIndividualHaplotyper instance = new SingleIndividualHaplotyper();
 		CommandsDescriptor.getInstance().loadOptions(instance, args);
-		
+		instance.run();
 	}
 	
 	public void run () throws IOException {
@@ -182,90 +195,151 @@ public class SingleIndividualHaplotyper {
 		try {
 			String algorithmClassName = "ngsep.haplotyping."+algorithmName+"SIHAlgorithm";
 			Class<?> algClass = Class.forName(algorithmClassName);
-			Constructor<?> constructor = algClass.getDeclaredConstructors()[0];
-			algorithm = (SIHAlgorithm) constructor.newInstance();
+			algorithmConstructor = algClass.getDeclaredConstructors()[0];
+			createAlgorithm();
 		} catch (Exception e) {
 			throw new IOException("Can not load algorithm: "+algorithmName,e);
 		}
 		
 	}
+	/**
+	 * Creates a new instance of the algorithm. Algorithms keep state, so each block is phased with its own instance
+	 * @return SIHAlgorithm New instance of the selected algorithm
+	 */
+	private SIHAlgorithm createAlgorithm() {
+		try {
+			return (SIHAlgorithm) algorithmConstructor.newInstance();
+		} catch (Exception e) {
+			throw new RuntimeException("Can not create instance of algorithm: "+algorithmName,e);
+		}
+	}
+	/**
+	 * Builds the fragments of the given sequence from the alignments and phases the heterozygous calls.
+	 * Fragments are accumulated until the alignments start after the last variant covered by the accumulated fragments.
+	 * At that point, accumulated fragments can not be connected with later fragments, so they are split in independent
+	 * blocks that are phased in parallel and released
+	 */
 	private ReadAlignment phaseSequenceVariants(String seqName, List<CalledGenomicVariant> hetCalls, ReadAlignment nextAln, Iterator<ReadAlignment> alnIt) {
 		System.err.println("Sequence: "+seqName+" Phasing "+hetCalls.size()+" het calls");
 		if(nextAln!=null) System.err.println("First alignment. "+nextAln.getSequenceName()+":"+nextAln.getFirst());
-		HaplotypeBlock block = new HaplotypeBlock(hetCalls);
+		ThreadPoolManager pool = (numThreads>1)?new ThreadPoolManager(numThreads, 2*numThreads):null;
+		boolean [] covered = new boolean [hetCalls.size()];
+		//Fragments that may be connected with fragments of the next alignments
+		HaplotypeBlock pending = new HaplotypeBlock(hetCalls);
+		//Window of columns covered by the pending fragments
+		int firstPendingColumn = hetCalls.size();
+		int lastPendingColumn = -1;
+		int numFragments = 0;
+		int numBlocks = 0;
 		int i=0;
-		while(nextAln!=null && nextAln.getSequenceName().equals(seqName)) {
-			//Advance i
-			GenomicVariant firstHetVar = null;
-			while(i<hetCalls.size()) {
-				firstHetVar = hetCalls.get(i);
-				if(GenomicRegionPositionComparator.getInstance().compare(firstHetVar, nextAln)>=0) {
-					break;
+		try {
+			while(nextAln!=null && nextAln.getSequenceName().equals(seqName)) {
+				//Advance i
+				GenomicVariant firstHetVar = null;
+				while(i<hetCalls.size()) {
+					firstHetVar = hetCalls.get(i);
+					if(GenomicRegionPositionComparator.getInstance().compare(firstHetVar, nextAln)>=0) {
+						break;
+					}
+					i++;
 				}
-				i++;
-			}
-			if(i==hetCalls.size()) {
-				//Try to go to next alignment
-				if(alnIt.hasNext()) nextAln = alnIt.next();
-				else nextAln = null;
-				continue;
-			}
-			//Extract relevant calls from alignment
-			int lastAln = nextAln.getLast();
-			List<Byte> calls = new ArrayList<>(50);
-			int realCalls = 0;
-			int first = i;
-			for(int j=i;j<hetCalls.size();j++) {
-				GenomicVariant var = hetCalls.get(j);
-				if(var.getFirst()>lastAln) {
-					break;
+				if(i>lastPendingColumn && pending.getNumFragments()>0) {
+					numBlocks+=phaseIndependentBlocks(pending, firstPendingColumn, lastPendingColumn, pool);
+					pending = new HaplotypeBlock(hetCalls);
+					firstPendingColumn = hetCalls.size();
 				}
-				String [] alleles = var.getAlleles();
-				CharSequence callS = nextAln.getAlleleCall(var.getFirst(), var.getLast());
-				String call = null;
-				if(callS!=null) {
-					call = callS.toString();
+				if(i==hetCalls.size()) {
+					//Try to go to next alignment
+					if(alnIt.hasNext()) nextAln = alnIt.next();
+					else nextAln = null;
+					continue;
 				}
-				if(alleles[0].equals(call)) {
-					calls.add(CalledGenomicVariant.ALLELE_REFERENCE);
-					realCalls++;
-				} else if(alleles[1].equals(call)) {
-					calls.add(CalledGenomicVariant.ALLELE_ALTERNATIVE);
-					realCalls++;
-				} else if (calls.size()==0) {
-					first=j+1;
-				} else {
-					calls.add(CalledGenomicVariant.ALLELE_UNDECIDED);
+				//Extract relevant calls from alignment
+				int lastAln = nextAln.getLast();
+				List<Byte> calls = new ArrayList<>(50);
+				int realCalls = 0;
+				int first = i;
+				for(int j=i;j<hetCalls.size();j++) {
+					GenomicVariant var = hetCalls.get(j);
+					if(var.getFirst()>lastAln) {
+						break;
+					}
+					String [] alleles = var.getAlleles();
+					CharSequence callS = nextAln.getAlleleCall(var.getFirst(), var.getLast());
+					String call = null;
+					if(callS!=null) {
+						call = callS.toString();
+					}
+					if(alleles[0].equals(call)) {
+						calls.add(CalledGenomicVariant.ALLELE_REFERENCE);
+						realCalls++;
+					} else if(alleles[1].equals(call)) {
+						calls.add(CalledGenomicVariant.ALLELE_ALTERNATIVE);
+						realCalls++;
+					} else if (calls.size()==0) {
+						first=j+1;
+					} else {
+						calls.add(CalledGenomicVariant.ALLELE_UNDECIDED);
+					}
 				}
-			}
-			//Trim last undecided calls
-			for(int j=calls.size()-1;j>=0;j--) {
-				Byte call = calls.get(j);
-				if(call!=CalledGenomicVariant.ALLELE_UNDECIDED) {
-					break;
+				//Trim last undecided calls
+				for(int j=calls.size()-1;j>=0;j--) {
+					Byte call = calls.get(j);
+					if(call!=CalledGenomicVariant.ALLELE_UNDECIDED) {
+						break;
+					}
+					calls.remove(j);
 				}
-				calls.remove(j);
+				
+				if(realCalls>1) {
+					pending.addFragment (first,NumberArrays.toByteArray(calls));
+					for(int j=0;j<calls.size();j++) {
+						if(calls.get(j)!=CalledGenomicVariant.ALLELE_UNDECIDED) covered[first+j] = true;
+					}
+					firstPendingColumn = Math.min(firstPendingColumn, first);
+					lastPendingColumn = Math.max(lastPendingColumn, first+calls.size()-1);
+					numFragments++;
+					if(numFragments%1000==0) System.err.println("Added "+numFragments+" fragments"+" calls last fragment: "+realCalls);
+				}
+				//Try to go to next alignment
+				if(alnIt.hasNext()) nextAln = alnIt.next();
+				else nextAln = null;
 			}
-			
-			if(realCalls>1) {
-				block.addFragment (first,NumberArrays.toByteArray(calls));
-				if(block.getNumFragments()%1000==0) System.err.println("Added "+block.getNumFragments()+" fragments"+" calls last fragment: "+realCalls);
+			if(pending.getNumFragments()>0) numBlocks+=phaseIndependentBlocks(pending, firstPendingColumn, lastPendingColumn, pool);
+			if(pool!=null) pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if(numFragments>0) {
+			//Calls not covered by fragments receive the phase given by an undecided haplotype allele
+			for(int j=0;j<hetCalls.size();j++) {
+				CalledGenomicVariant call = hetCalls.get(j);
+				if(!covered[j] && call instanceof CalledSNV) ((CalledSNV)call).setPhasingCN2(false);
 			}
-			//Try to go to next alignment
-			if(alnIt.hasNext()) nextAln = alnIt.next();
-			else nextAln = null;
 		}
-		System.err.println("Phasing sequence "+seqName+" with "+block.getNumFragments()+" fragments");
+		System.err.println("Phased sequence "+seqName+" with "+numFragments+" fragments in "+numBlocks+" independent blocks");
 		if(nextAln!=null) System.err.println("First alignment for next sequence. "+nextAln.getSequenceName()+":"+nextAln.getFirst());
-		if(block.getNumFragments()>0) {
-			phaseBlockVariants (seqName, block,hetCalls);
-		}
-		
 		return nextAln;
 	}
-	private void phaseBlockVariants(String seqName, HaplotypeBlock block, List<CalledGenomicVariant> hetCalls) {
-		algorithm.buildHaplotype(block);
-		System.err.println("Phased sequence "+seqName+" with "+block.getNumFragments()+" fragments");
+	/**
+	 * Splits the given fragments in independent blocks and phases each block
+	 * @param fragments Block with fragments that can not be connected with other fragments
+	 * @param firstColumn First column covered by the given fragments
+	 * @param lastColumn Last column covered by the given fragments
+	 * @param pool Pool to phase blocks in parallel. If it is null, blocks are phased in this thread
+	 * @return int Number of independent blocks
+	 * @throws InterruptedException If the thread is interrupted while waiting to queue tasks
+	 */
+	private int phaseIndependentBlocks(HaplotypeBlock fragments, int firstColumn, int lastColumn, ThreadPoolManager pool) throws InterruptedException {
+		List<HaplotypeBlock> blocks = fragments.splitIndependentBlocks(firstColumn, lastColumn);
+		for(HaplotypeBlock block:blocks) {
+			if(pool==null) phaseBlockVariants(block);
+			else pool.queueTask(()->phaseBlockVariants(block));
+		}
+		return blocks.size();
+	}
+	private void phaseBlockVariants(HaplotypeBlock block) {
+		createAlgorithm().buildHaplotype(block);
 		block.phaseCallsWithHaplotype();
 	}
 }
@@ -19,7 +19,6 @@
  *******************************************************************************/
 package ngsep.hmm;
 
-import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -32,11 +31,8 @@ public abstract class AbstractHMM implements HMM {
 	public static final int DEF_ITER_BAUM_WELCH = 20;
 	
 	private Logger log = Logger.getLogger(AbstractHMM.class.getName());
-	private Double [][] forwardLogs=new Double[0][0];
-	private Double [][] backwardLogs=new Double[0][0];
-	private Double [][] posteriorLogs=new Double[0][0];
-	private Double [][] viterbiLogs = new Double [0][0];
-	private int [][] viterbiBacktrace = new int [0][0];
+	//Default workspace used by the methods that do not receive a workspace
+	private HMMWorkspace workspace = new HMMWorkspace();
 	
 	public Logger getLog() {
 		return log;
@@ -46,6 +42,13 @@ public abstract class AbstractHMM implements HMM {
 		this.log = log;
 	}
 	
+	/**
+	 * @return HMMWorkspace Workspace used by the methods that do not receive an explicit workspace
+	 */
+	protected HMMWorkspace getWorkspace() {
+		return workspace;
+	}
+	
 	@Override
 	public Double getEmission(int state, Object value, int step) {
 		return getState(state).getEmission(value,step);
@@ -55,224 +58,259 @@ public abstract class AbstractHMM implements HMM {
 	public Double getStart(int state) {
 		return getState(state).getLogStart();
 	}
-	@Override
-	public Double calculatePosteriorLogs(List<? extends Object> observations,Double[][] posteriorLogs) {
-		int m = observations.size();
-		int k = getNumStates();
-		initArrays(m,k,false);
-		if(posteriorLogs.length!=m) throw new IllegalArgumentException("Invalid rows of posterior logs. Expected: "+m+" Given: "+posteriorLogs.length);
-		if(m>0 && posteriorLogs[0].length!=k) throw new IllegalArgumentException("Invalid columns of posterior logs. Expected: "+k+" Given: "+posteriorLogs[0].length);
-		Double logProb = calculateForward(observations,forwardLogs);
-		calculateBackward(observations,backwardLogs);
-		for(int i=0;i<posteriorLogs.length;i++) {
-			for(int j=0;j<posteriorLogs[0].length;j++) {
-				Double f = forwardLogs[i][j];
-				Double b = backwardLogs[i][j];
-				Double e = getEmission(j, observations.get(i), i);
-				Double fTimesE = LogMath.logProduct(f,e);
-				posteriorLogs[i][j] = LogMath.logProduct(b, fTimesE);
-				if(i==posteriorLogs.length-1) logProb=LogMath.logSum(logProb, fTimesE);
-			}
-		}
-		return logProb;
-	}
-	protected Double [][] calculatePosteriorLogs (List<? extends Object> observations) {
-		//Init arrays if not previously created to avoid reassignment of posteriorLogs cache attribute
-		int m = observations.size();
-		int k = getNumStates();
-		initArrays(m,k,true);
-		calculatePosteriorLogs(observations,posteriorLogs);
-		return posteriorLogs;
-	}
 	
-
-	@Override
-	public void calculatePosteriors(List<? extends Object> observations, double[][] posteriors) {
-		int m = observations.size();
-		int k = getNumStates();
-		if(posteriors.length!=m) throw new IllegalArgumentException("Invalid rows of posterior logs. Expected: "+m+" Given: "+posteriors.length);
-		if(m>0 && posteriors[0].length!=k) throw new IllegalArgumentException("Invalid columns of posteriors. Expected: "+k+" Given: "+posteriors[0].length);
-		Double [][] posteriorLogs = calculatePosteriorLogs(observations);
-		for(int i=0;i<posteriorLogs.length;i++) {
-			//System.out.println("i: "+i+" observation: "+observations.get(i)+" posteriorLogs: "+posteriorLogs[i][0]+" "+posteriorLogs[i][1]);
-			LogMath.normalizeLogs(posteriorLogs[i]);
-			for(int j=0;j<posteriorLogs[i].length;j++) {
-				posteriors[i][j] = LogMath.power10(posteriorLogs[i][j]);
-			}
-		}
-	}
-
-	@Override
-	public Double calculateForward(List<? extends Object> observations, Double [][] forwardLogs) {
+	/**
+	 * Calculates the emission logarithms of the given observations for every state.
+	 * Subclasses should override this method to calculate emissions without going through objects
+	 * @param observations List of m observations
+	 * @param emissionLogs Output array of size at least m*k where k is the number of states. The emission
+	 * of the observation at step i by the state j must be stored at position i*k+j. Zero probabilities should be
+	 * represented as Double.NEGATIVE_INFINITY
+	 */
+	protected void fillEmissionLogs(List<? extends Object> observations, double [] emissionLogs) {
 		int m = observations.size();
 		int n = getNumStates();
-		if(forwardLogs.length!=m) throw new IllegalArgumentException("Invalid rows of forward logs. Expected: "+m+" Given: "+forwardLogs.length);
-		if(m>0 && forwardLogs[0].length!=n) throw new IllegalArgumentException("Invalid columns of forwardLogs. Expected: "+n+" Given: "+forwardLogs.length);
-		
-		//Array to precalculate forward times emission
-		Double [] fTimesE = new Double[n]; 
 		for(int i=0;i<m;i++) {
-			Object lastO = null;
-			if(i>0) {
-				lastO = observations.get(i-1);
-				Arrays.fill(fTimesE, null);
-				for(int k=0;k<n;k++) {
-					Double e = getEmission(k, lastO, i-1);
-					fTimesE[k] = LogMath.logProduct(forwardLogs[i-1][k],e);
-				}
-			}
-			
+			Object o = observations.get(i);
+			int offset = i*n;
 			for(int j=0;j<n;j++) {
-				if(lastO==null) forwardLogs[i][j] = getStart(j);
-				else {
-					//The sum of probabilities starts with zero which in logarithm is represented as null
-					forwardLogs[i][j] = null;
-					for(int k=0;k<n;k++) {
-						Double t = getTransition(k, j, i-1);
-						forwardLogs[i][j]=LogMath.logSum(forwardLogs[i][j],LogMath.logProduct(fTimesE[k],t));
-					}
-				}
-			}	
+				emissionLogs[offset+j] = LogMath.toPrimitiveLog(getEmission(j, o, i));
+			}
 		}
-		//Calculate final probability
-		return getSequenceLogProb(observations, forwardLogs);
 	}
 	
 	/**
-	 * Method that recalculates forward probabilities and returns the internal array where they get saved
-	 * @param observations
-	 * @return Double [][] array with forward probabilities with as many rows as observations and as many columns as states
+	 * Returns the logarithms of the transition probabilities at the given step as a flat matrix.
+	 * Subclasses should override this method to return a precalculated array
+	 * @param step Step at which the transitions happen
+	 * @return double [] Array of size k*k where k is the number of states. The transition from source to dest
+	 * is stored at position source*k+dest. Zero probabilities are represented as Double.NEGATIVE_INFINITY.
+	 * The returned array should not be modified
 	 */
-	protected Double [][] calculateForward (List<? extends Object> observations) {
-		int m = observations.size();
-		int k = getNumStates();
-		initArrays(m, k, true);
-		calculateForward(observations,forwardLogs);
-		return forwardLogs;
+	protected double [] getTransitionLogs(int step) {
+		int n = getNumStates();
+		double [] answer = new double [n*n];
+		for(int j=0;j<n;j++) {
+			for(int k=0;k<n;k++) {
+				answer[j*n+k] = LogMath.toPrimitiveLog(getTransition(j, k, step));
+			}
+		}
+		return answer;
 	}
 	
 	/**
-	 * Calculates the total probability of the given observations
-	 * @param observations list of m observations
-	 * @param forwardLogs precalculated forward logs
-	 * @return Double log of the total probability of the sequence of observations
+	 * Runs the forward-backward algorithm over the given observations. Emission, forward and backward logarithms
+	 * remain stored in the given workspace
+	 * @param observations List of observed values
+	 * @param ws Workspace to store the calculations
+	 * @return double log10 of the probability of the data given the HMM.
+	 * Double.NEGATIVE_INFINITY if the probability is zero
 	 */
-	protected Double getSequenceLogProb(List<? extends Object> observations, Double [][] forwardLogs) {
-		Double logProb = null;
-		int m = observations.size();
-		for(int j=0;j<forwardLogs[m-1].length;j++) {
-			Double f = forwardLogs[m-1][j];
-			Double e = getEmission(j, observations.get(m-1), m-1);
-			logProb=LogMath.logSum(logProb, LogMath.logProduct(f,e));
-		}
-		return logProb;
-	}
-
-	@Override
-	public void calculateBackward(List<? extends Object> observations, Double [][] backwardLogs) {
+	public double calculateForwardBackward(List<? extends Object> observations, HMMWorkspace ws) {
 		int m = observations.size();
 		int n = getNumStates();
-		
-		if(backwardLogs.length!=m) throw new IllegalArgumentException("Invalid rows of backwardLogs. Expected: "+m+" Given: "+backwardLogs.length);
-		if(m>0 && backwardLogs[0].length!=n) throw new IllegalArgumentException("Invalid columns of backwardLogs. Expected: "+n+" Given: "+backwardLogs.length);
-		
-		Double [] bTimesE = new Double[n]; 
-		for(int i=m-1;i>=0;i--) {
-			Object lastO = null;
-			if(i<m-1) {
-				lastO = observations.get(i+1);
-				for(int k=0;k<n;k++) {
-					Double e = getEmission(k, lastO, i+1);
-					bTimesE[k] = LogMath.logProduct(backwardLogs[i+1][k],e);
+		ws.init(m, n);
+		fillEmissionLogs(observations, ws.getEmissionLogs());
+		calculateForward(ws);
+		calculateBackward(ws);
+		return ws.getLogProb();
+	}
+	
+	private void calculateForward(HMMWorkspace ws) {
+		int m = ws.getSteps();
+		int n = ws.getNumStates();
+		double [] emissionLogs = ws.getEmissionLogs();
+		double [] forwardLogs = ws.getForwardLogs();
+		if(m==0) return;
+		for(int j=0;j<n;j++) forwardLogs[j] = LogMath.toPrimitiveLog(getStart(j));
+		for(int i=1;i<m;i++) {
+			double [] transitions = getTransitionLogs(i-1);
+			int offsetPrev = (i-1)*n;
+			int offset = i*n;
+			//The sum of probabilities starts with zero
+			for(int j=0;j<n;j++) forwardLogs[offset+j] = Double.NEGATIVE_INFINITY;
+			for(int k=0;k<n;k++) {
+				double fTimesE = forwardLogs[offsetPrev+k]+emissionLogs[offsetPrev+k];
+				if(fTimesE == Double.NEGATIVE_INFINITY) continue;
+				int offsetT = k*n;
+				for(int j=0;j<n;j++) {
+					forwardLogs[offset+j] = LogMath.fastLogSum(forwardLogs[offset+j], fTimesE+transitions[offsetT+j]);
 				}
 			}
+		}
+		//Calculate final probability
+		double logProb = Double.NEGATIVE_INFINITY;
+		int offset = (m-1)*n;
+		for(int j=0;j<n;j++) {
+			logProb = LogMath.fastLogSum(logProb, forwardLogs[offset+j]+emissionLogs[offset+j]);
+		}
+		ws.setLogProb(logProb);
+	}
+	
+	private void calculateBackward(HMMWorkspace ws) {
+		int m = ws.getSteps();
+		int n = ws.getNumStates();
+		double [] emissionLogs = ws.getEmissionLogs();
+		double [] backwardLogs = ws.getBackwardLogs();
+		double [] bTimesE = ws.getStateBuffer();
+		if(m==0) return;
+		int offsetLast = (m-1)*n;
+		for(int j=0;j<n;j++) backwardLogs[offsetLast+j] = 0;
+		for(int i=m-2;i>=0;i--) {
+			double [] transitions = getTransitionLogs(i);
+			int offsetNext = (i+1)*n;
+			int offset = i*n;
+			for(int k=0;k<n;k++) bTimesE[k] = backwardLogs[offsetNext+k]+emissionLogs[offsetNext+k];
 			for(int j=0;j<n;j++) {
-				if(lastO==null) backwardLogs[i][j] = (double) 0;
-				else {
-					//The sum of probabilities starts with zero which in logarithm is represented as null
-					backwardLogs[i][j]=null;
-					for(int k=0;k<n;k++) {
-						Double t = getTransition(j, k, i);
-						backwardLogs[i][j]=LogMath.logSum(backwardLogs[i][j],LogMath.logProduct(bTimesE[k],t));
-					}
+				//The sum of probabilities starts with zero
+				double sum = Double.NEGATIVE_INFINITY;
+				int offsetT = j*n;
+				for(int k=0;k<n;k++) {
+					sum = LogMath.fastLogSum(sum, bTimesE[k]+transitions[offsetT+k]);
 				}
-			}	
+				backwardLogs[offset+j] = sum;
+			}
 		}
 	}
 	
 	/**
-	 * Method that recalculates backward probabilities and returns the internal array where they get saved
-	 * @param observations
-	 * @return Double [][] array with backward probabilities with as many rows as observations and as many columns as states
+	 * Calculates normalized posterior probabilities of the states given the observations
+	 * @param observations List of observed values
+	 * @param posteriors Output matrix with as many rows as observations and as many columns as states
+	 * @param ws Workspace to store the calculations
+	 * @return double log10 of the probability of the data given the HMM.
 	 */
-	protected Double [][] calculateBackward (List<? extends Object> observations) {
+	public double calculatePosteriors(List<? extends Object> observations, double[][] posteriors, HMMWorkspace ws) {
 		int m = observations.size();
-		int k = getNumStates();
-		initArrays(m, k, true);
-		calculateBackward(observations, backwardLogs);
-		return backwardLogs;
+		int n = getNumStates();
+		if(posteriors.length!=m) throw new IllegalArgumentException("Invalid rows of posteriors. Expected: "+m+" Given: "+posteriors.length);
+		if(m>0 && posteriors[0].length!=n) throw new IllegalArgumentException("Invalid columns of posteriors. Expected: "+n+" Given: "+posteriors[0].length);
+		double logProb = calculateForwardBackward(observations, ws);
+		double [] logs = ws.getStateBuffer();
+		for(int i=0;i<m;i++) {
+			for(int j=0;j<n;j++) logs[j] = ws.getPosteriorLog(i, j);
+			LogMath.normalizeLogs(logs, 0, n);
+			for(int j=0;j<n;j++) posteriors[i][j] = Math.pow(10.0, logs[j]);
+		}
+		return logProb;
 	}
-
-	@Override
-	public Double getViterbiPath(List<? extends Object> observations, int [] path) {
+	
+	/**
+	 * Calculates the most likely path of states given the observations
+	 * @param observations to calculate the path with the best probability
+	 * @param path Output path
+	 * @param ws Workspace to store the calculations
+	 * @return double log10 of the probability of the best path. Double.NEGATIVE_INFINITY if all paths have zero probability.
+	 * In that case the path is not modified 
+	 */
+	public double getViterbiPath(List<? extends Object> observations, int [] path, HMMWorkspace ws) {
 		int m = observations.size();
 		int n = getNumStates();
-		initArraysViterbi(m, n);
-		//Array to precalculate viterbi times emission
-		Double [] vTimesE = new Double[n];
-		for(int i=0;i<m;i++) {
-			Object lastO = null;
-			if(i>0) {
-				lastO = observations.get(i-1);
-				Arrays.fill(vTimesE, null);
-				for(int k=0;k<n;k++) {
-					Double e = getEmission(k, lastO, i-1);
-					vTimesE[k] = LogMath.logProduct(viterbiLogs[i-1][k],e);
-				}
-			}
-			
+		ws.init(m, n);
+		ws.initViterbi();
+		if(m==0) return Double.NEGATIVE_INFINITY;
+		double [] emissionLogs = ws.getEmissionLogs();
+		fillEmissionLogs(observations, emissionLogs);
+		double [] viterbiLogs = ws.getViterbiLogs();
+		int [] viterbiBacktrace = ws.getViterbiBacktrace();
+		for(int j=0;j<n;j++) {
+			viterbiLogs[j] = LogMath.toPrimitiveLog(getStart(j));
+			viterbiBacktrace[j] = -1;
+		}
+		for(int i=1;i<m;i++) {
+			double [] transitions = getTransitionLogs(i-1);
+			int offsetPrev = (i-1)*n;
+			int offset = i*n;
+			//The max probabilities starts with zero
 			for(int j=0;j<n;j++) {
-				if(lastO==null) {
-					viterbiLogs[i][j] = getStart(j);
-					viterbiBacktrace[i][j] = -1;
-				}
-				else {
-					//The max probabilities starts with zero which in logarithm is represented as null
-					viterbiLogs[i][j] = null;
-					viterbiBacktrace[i][j] = -1;
-					for(int k=0;k<n;k++) {
-						Double t = getTransition(k, j, i-1);
-						Double prob = LogMath.logProduct(vTimesE[k],t);
-						if(prob != null && (viterbiLogs[i][j] == null || viterbiLogs[i][j] < prob) ) {
-							viterbiLogs[i][j] = prob;
-							viterbiBacktrace[i][j] = k;
-						}
+				viterbiLogs[offset+j] = Double.NEGATIVE_INFINITY;
+				viterbiBacktrace[offset+j] = -1;
+			}
+			for(int k=0;k<n;k++) {
+				double vTimesE = viterbiLogs[offsetPrev+k]+emissionLogs[offsetPrev+k];
+				if(vTimesE == Double.NEGATIVE_INFINITY) continue;
+				int offsetT = k*n;
+				for(int j=0;j<n;j++) {
+					double prob = vTimesE+transitions[offsetT+j];
+					if(prob > viterbiLogs[offset+j]) {
+						viterbiLogs[offset+j] = prob;
+						viterbiBacktrace[offset+j] = k;
 					}
 				}
-			}	
+			}
 		}
-		Double bestP = null;
+		double bestP = Double.NEGATIVE_INFINITY;
 		int bestState = -1;
+		int offset = (m-1)*n;
 		for(int j=0;j<n;j++) {
-			Double p = viterbiLogs[m-1][j];
-			p = LogMath.logProduct(p,getEmission(j, observations.get(m-1), m-1));
-			if(p!=null && (bestP == null || bestP < p)) {
+			double p = viterbiLogs[offset+j]+emissionLogs[offset+j];
+			if(p > bestP) {
 				bestState = j;
 				bestP = p;
 			}
 		}
-		if(bestP == null) {
-			return bestP;
-		}
+		if(bestState == -1) return bestP;
 		//Backtrace best path
 		for(int i=m-1;i>=0;i--) {
 			path[i] = bestState;
-			bestState = viterbiBacktrace[i][bestState];
+			bestState = viterbiBacktrace[i*n+bestState];
 		}
 		return bestP;
 	}
 	
+	@Override
+	public Double calculatePosteriorLogs(List<? extends Object> observations,Double[][] posteriorLogs) {
+		int m = observations.size();
+		int n = getNumStates();
+		if(posteriorLogs.length!=m) throw new IllegalArgumentException("Invalid rows of posterior logs. Expected: "+m+" Given: "+posteriorLogs.length);
+		if(m>0 && posteriorLogs[0].length!=n) throw new IllegalArgumentException("Invalid columns of posterior logs. Expected: "+n+" Given: "+posteriorLogs[0].length);
+		double logProb = calculateForwardBackward(observations, workspace);
+		for(int i=0;i<m;i++) {
+			for(int j=0;j<n;j++) {
+				posteriorLogs[i][j] = LogMath.toNullableLog(workspace.getPosteriorLog(i, j));
+			}
+		}
+		return LogMath.toNullableLog(logProb);
+	}
+
+	@Override
+	public void calculatePosteriors(List<? extends Object> observations, double[][] posteriors) {
+		calculatePosteriors(observations, posteriors, workspace);
+	}
 
+	@Override
+	public Double calculateForward(List<? extends Object> observations, Double [][] forwardLogs) {
+		int m = observations.size();
+		int n = getNumStates();
+		if(forwardLogs.length!=m) throw new IllegalArgumentException("Invalid rows of forward logs. Expected: "+m+" Given: "+forwardLogs.length);
+		if(m>0 && forwardLogs[0].length!=n) throw new IllegalArgumentException("Invalid columns of forwardLogs. Expected: "+n+" Given: "+forwardLogs.length);
+		workspace.init(m, n);
+		fillEmissionLogs(observations, workspace.getEmissionLogs());
+		calculateForward(workspace);
+		for(int i=0;i<m;i++) {
+			for(int j=0;j<n;j++) forwardLogs[i][j] = LogMath.toNullableLog(workspace.getForwardLog(i, j));
+		}
+		return LogMath.toNullableLog(workspace.getLogProb());
+	}
+
+	@Override
+	public void calculateBackward(List<? extends Object> observations, Double [][] backwardLogs) {
+		int m = observations.size();
+		int n = getNumStates();
+		if(backwardLogs.length!=m) throw new IllegalArgumentException("Invalid rows of backwardLogs. Expected: "+m+" Given: "+backwardLogs.length);
+		if(m>0 && backwardLogs[0].length!=n) throw new IllegalArgumentException("Invalid columns of backwardLogs. Expected: "+n+" Given: "+backwardLogs.length);
+		workspace.init(m, n);
+		fillEmissionLogs(observations, workspace.getEmissionLogs());
+		calculateBackward(workspace);
+		for(int i=0;i<m;i++) {
+			for(int j=0;j<n;j++) backwardLogs[i][j] = LogMath.toNullableLog(workspace.getBackwardLog(i, j));
+		}
+	}
+
+	@Override
+	public Double getViterbiPath(List<? extends Object> observations, int [] path) {
+		return LogMath.toNullableLog(getViterbiPath(observations, path, workspace));
+	}
 	
 	public static void calculateUniformChangeTransitions(double changeProbability, Double [][]transitions) {
 		int n = transitions.length;
@@ -288,29 +326,22 @@ public abstract class AbstractHMM implements HMM {
 			}
 		}
 	}
-	private void initArrays(int m, int k, boolean initPosteriors) {
-		if(forwardLogs.length!=m || forwardLogs[0].length!=k) {
-			getLog().info("Creating array for forward probabilities of dimensions "+m+" x "+k);
-			forwardLogs = new Double[m][k];
-		}
-		if(backwardLogs.length!=m || backwardLogs[0].length!=k) {
-			getLog().info("Creating array for backward probabilities of dimensions "+m+" x "+k);
-			backwardLogs = new Double[m][k];
-		}
-		if(initPosteriors && (posteriorLogs.length!=m || posteriorLogs[0].length!=k)) {
-			getLog().info("Creating array for posterior probabilities of dimensions "+m+" x "+k);
-			posteriorLogs = new Double[m][k];
-		}
-	}
-	private void initArraysViterbi(int m, int k) {
-		if(viterbiLogs.length!=m || viterbiLogs[0].length!=k) {
-			getLog().info("Creating array for viterbi probabilities of dimensions "+m+" x "+k);
-			viterbiLogs = new Double[m][k];
-		}
-		if(viterbiBacktrace.length!=m || viterbiBacktrace[0].length!=k) {
-			getLog().info("Creating array for viterbi backtrack of dimensions "+m+" x "+k);
-			viterbiBacktrace = new int[m][k];
+	
+	/**
+	 * Calculates transitions in which the probability of changing state is split uniformly across the other states
+	 * @param changeProbability Probability of changing state
+	 * @param n Number of states
+	 * @param transitions Output flat matrix of transition logarithms with n*n entries
+	 */
+	public static void calculateUniformChangeTransitions(double changeProbability, int n, double [] transitions) {
+		double logNoChange = LogMath.toPrimitiveLog(LogMath.log10(1.0-changeProbability));
+		//The probability of recombination is split uniformly across the parents
+		double logChange1 = LogMath.toPrimitiveLog(LogMath.log10(changeProbability/(n-1)));
+		for(int j=0;j<n;j++) {
+			for(int k=0;k<n;k++) {
+				if(j==k) transitions[j*n+k] = logNoChange;
+				else transitions[j*n+k] = logChange1;
+			}
 		}
 	}
-	
 }
@@ -21,10 +21,13 @@ package ngsep.hmm;
 
 import java.util.List;
 
+import ngsep.math.LogMath;
+
 public class ConstantTransitionHMM extends AbstractHMM {
 	private List<? extends HMMState> states;
 	private int n;
-	private Double [][] transitions;
+	//Flat matrix of transition logarithms
+	private double [] transitions;
 	
 	/**
 	 * @param states
@@ -33,21 +36,26 @@ public class ConstantTransitionHMM extends AbstractHMM {
 		super();
 		this.states = states;
 		n = states.size();
-		transitions = new Double[n][n];
+		transitions = new double[n*n];
 	}
 
 	public void setTransitions(Double[][] transitions) {
 		if(transitions.length!=n) throw new IllegalArgumentException("Transitions matrix should have the same number of rows as states of the HMM. States: "+n+" rows: "+transitions.length);
 		for(int i=0;i<n;i++) {
 			if(transitions[i].length!=n) throw new IllegalArgumentException("Transitions matrix should have the same number of columns as states of the HMM. States: "+n+" columns: "+transitions[i].length);
-			for(int j=0;j<n;j++) this.transitions[i][j] = transitions[i][j];
+			for(int j=0;j<n;j++) this.transitions[i*n+j] = LogMath.toPrimitiveLog(transitions[i][j]);
 		}
 	}
 
 
 	@Override
 	public Double getTransition(int source, int dest, int step) {
-		return transitions[source][dest];
+		return LogMath.toNullableLog(transitions[source*n+dest]);
+	}
+	
+	@Override
+	protected double[] getTransitionLogs(int step) {
+		return transitions;
 	}
 	
 	@Override
@@ -60,7 +68,7 @@ public class ConstantTransitionHMM extends AbstractHMM {
 		return n;
 	}
 	public void calculateUniformChangeTransitions(double changeProbability) {
-		AbstractHMM.calculateUniformChangeTransitions(changeProbability, this.transitions);
+		AbstractHMM.calculateUniformChangeTransitions(changeProbability, n, this.transitions);
 	}
 	
 
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.hmm;
+
+/**
+ * Reusable arrays for the calculations of an HMM over one sequence of observations.
+ * Values are stored as flat arrays with one row per step and one column per state.
+ * Logarithms are 10-based and zero probabilities are represented as Double.NEGATIVE_INFINITY.
+ * A workspace can be reused for many sequences but it should not be shared between threads
+ * @author Jorge Duitama
+ */
+public class HMMWorkspace {
+	private int steps = 0;
+	private int numStates = 0;
+	private double [] emissionLogs = new double [0];
+	private double [] forwardLogs = new double [0];
+	private double [] backwardLogs = new double [0];
+	private double [] viterbiLogs = new double [0];
+	private int [] viterbiBacktrace = new int [0];
+	private double [] stateBuffer = new double [0];
+	private double logProb = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * Prepares the workspace for a sequence with the given dimensions. Arrays are only reallocated if they are too small
+	 * @param steps Number of observations
+	 * @param numStates Number of states of the HMM
+	 */
+	void init(int steps, int numStates) {
+		this.steps = steps;
+		this.numStates = numStates;
+		int size = steps*numStates;
+		if(emissionLogs.length<size) {
+			emissionLogs = new double [size];
+			forwardLogs = new double [size];
+			backwardLogs = new double [size];
+		}
+		if(stateBuffer.length<numStates) stateBuffer = new double [numStates];
+		logProb = Double.NEGATIVE_INFINITY;
+	}
+
+	void initViterbi() {
+		int size = steps*numStates;
+		if(viterbiLogs.length<size) {
+			viterbiLogs = new double [size];
+			viterbiBacktrace = new int [size];
+		}
+	}
+
+	/**
+	 * @return int Number of observations of the last processed sequence
+	 */
+	public int getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return int Number of states of the HMM that used this workspace
+	 */
+	public int getNumStates() {
+		return numStates;
+	}
+
+	/**
+	 * @param step Observation index
+	 * @param state State index
+	 * @return double log10 of the emission probability of the observation at the given step by the given state
+	 */
+	public double getEmissionLog(int step, int state) {
+		return emissionLogs[step*numStates+state];
+	}
+
+	/**
+	 * @param step Observation index
+	 * @param state State index
+	 * @return double log10 of the forward probability without including the emission at the given step
+	 */
+	public double getForwardLog(int step, int state) {
+		return forwardLogs[step*numStates+state];
+	}
+
+	/**
+	 * @param step Observation index
+	 * @param state State index
+	 * @return double log10 of the backward probability
+	 */
+	public double getBackwardLog(int step, int state) {
+		return backwardLogs[step*numStates+state];
+	}
+
+	/**
+	 * @param step Observation index
+	 * @param state State index
+	 * @return double log10 of the non normalized posterior probability of the state at the given step
+	 */
+	public double getPosteriorLog(int step, int state) {
+		int idx = step*numStates+state;
+		return forwardLogs[idx]+backwardLogs[idx]+emissionLogs[idx];
+	}
+
+	/**
+	 * @return double log10 of the probability of the last sequence of observations given the HMM
+	 */
+	public double getLogProb() {
+		return logProb;
+	}
+
+	void setLogProb(double logProb) {
+		this.logProb = logProb;
+	}
+
+	double [] getEmissionLogs() {
+		return emissionLogs;
+	}
+
+	double [] getForwardLogs() {
+		return forwardLogs;
+	}
+
+	double [] getBackwardLogs() {
+		return backwardLogs;
+	}
+
+	double [] getViterbiLogs() {
+		return viterbiLogs;
+	}
+
+	int [] getViterbiBacktrace() {
+		return viterbiBacktrace;
+	}
+
+	double [] getStateBuffer() {
+		return stateBuffer;
+	}
+}
@@ -19,24 +19,35 @@
  *******************************************************************************/
 package ngsep.hmm;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import ngsep.math.LogMath;
 
 public class VariableTransitionHMM extends AbstractHMM {
+	
+	public static final int DEF_NUM_THREADS = 1;
 
 	private int iterationsBaumWelch = DEF_ITER_BAUM_WELCH;
+	private int numThreads = DEF_NUM_THREADS;
+	//Threads used by runTasks. Created once per training or decoding run unless an external pool is provided
+	private ExecutorService threadPool = null;
 	
 	private List<? extends HMMState> states;
 	private int steps;
 	private int numStates;
-	private Double [][][] logTransitions;
+	//Flat matrices of transition logarithms for each step
+	private double [][] logTransitions;
 	private boolean skipTransitionsTraining = false;
 	//Local arrays to save reallocation over many runs
-	private Double [] logStarts = new Double [0];
-	private Double [][][] logTransitionsTrain = new Double [0][0][0];
+	private List<BaumWelchStatistics> statistics = new ArrayList<>();
 	private List<List<? extends Object>> trainingData = null;
 	
 	/**
@@ -49,7 +60,7 @@ public class VariableTransitionHMM extends AbstractHMM {
 		numStates = states.size();
 		this.steps = steps;
 		getLog().info("Creating array for transitions of dimensions "+(steps-1)+" x "+numStates+" x "+numStates);
-		logTransitions = new Double [steps-1][numStates][numStates];
+		logTransitions = new double [steps-1][numStates*numStates];
 	}
 	
 	public int getIterationsBaumWelch() {
@@ -62,6 +73,27 @@ public class VariableTransitionHMM extends AbstractHMM {
 	}
 
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public ExecutorService getThreadPool() {
+		return threadPool;
+	}
+
+	/**
+	 * Sets the pool of threads used to run tasks. Tasks wait for other tasks of the same pool,
+	 * so external pools should be instances of ForkJoinPool to allow sharing threads with other tasks
+	 * @param threadPool Pool of threads to use. If null, a new pool is created for each training or decoding run
+	 */
+	public void setThreadPool(ExecutorService threadPool) {
+		this.threadPool = threadPool;
+	}
+
 	public boolean isSkipTransitionsTraining() {
 		return skipTransitionsTraining;
 	}
@@ -82,24 +114,38 @@ public class VariableTransitionHMM extends AbstractHMM {
 		if(logTransitions.length!=numStates) throw new IllegalArgumentException("Transitions matrix should have the same number of rows as states of the HMM. States: "+numStates+" rows: "+logTransitions.length);
 		for(int i=0;i<numStates;i++) {
 			if(logTransitions[i].length!=numStates) throw new IllegalArgumentException("Transitions matrix should have the same number of columns as states of the HMM. States: "+numStates+" columns: "+logTransitions[i].length);
+			for(int j=0;j<numStates;j++)  this.logTransitions[step][i*numStates+j] = LogMath.toPrimitiveLog(logTransitions[i][j]);
 			//Normalize before update
-			LogMath.normalizeLogs(logTransitions[i]);
-			for(int j=0;j<numStates;j++)  this.logTransitions[step][i][j] = logTransitions[i][j];
+			LogMath.normalizeLogs(this.logTransitions[step], i*numStates, (i+1)*numStates);
+		}
+	}
+	
+	/**
+	 * Changes the transitions at the given step. Each row is normalized before the update
+	 * @param logTransitions Flat matrix of transition logarithms. The transition between states i and j must be
+	 * stored at position i*k+j, where k is the number of states. Zero probabilities must be
+	 * represented as Double.NEGATIVE_INFINITY
+	 * @param step Step to update
+	 */
+	public void setTransitionLogs(double[] logTransitions, int step) {
+		if(logTransitions.length!=numStates*numStates) throw new IllegalArgumentException("Transitions matrix should have "+(numStates*numStates)+" entries for "+numStates+" states. Given: "+logTransitions.length);
+		double [] stepTransitions = this.logTransitions[step];
+		System.arraycopy(logTransitions, 0, stepTransitions, 0, stepTransitions.length);
+		for(int i=0;i<numStates;i++) {
+			LogMath.normalizeLogs(stepTransitions, i*numStates, (i+1)*numStates);
 		}
 	}
 	
 	public void setRandomTransitions() {
-		Double[][] logRandom = new Double[numStates][numStates];
+		double[] logRandom = new double[numStates*numStates];
 		Random r = new Random();
 		//System.out.println("Random transitions for "+steps+" steps");
 		for(int i=0;i<steps-1;i++) {
-			for(int j=0;j<numStates;j++) {
-				for(int k=0;k<numStates;k++) {
-					//TODO: Improve sampling from Direlecht
-					logRandom[j][k] = Math.log10(r.nextDouble()*0.6+0.2);
-				}
+			for(int j=0;j<logRandom.length;j++) {
+				//TODO: Improve sampling from Direlecht
+				logRandom[j] = Math.log10(r.nextDouble()*0.6+0.2);
 			}
-			setTransitions(logRandom, i);
+			setTransitionLogs(logRandom, i);
 		}
 		//printTransitions(0);
 	}
@@ -109,18 +155,23 @@ public class VariableTransitionHMM extends AbstractHMM {
 		int m = getSteps();
 		if(m-1!=changeProbabilities.length) throw new IllegalArgumentException("Length of changes vector "+changeProbabilities.length+" is not consistent with the number of steps "+m+". It should be "+(m-1));
 		if(changeProbabilities.length>0)getLog().info("Using change probabilities to infer transitions. First probability: "+changeProbabilities[0]);
-		Double [][] transitions = new Double [n][n];
+		double [] transitions = new double [n*n];
 		for(int i=0;i<m-1;i++) {
 			double p = changeProbabilities[i];
-			AbstractHMM.calculateUniformChangeTransitions(p, transitions);
-			setTransitions(transitions, i);
+			AbstractHMM.calculateUniformChangeTransitions(p, n, transitions);
+			setTransitionLogs(transitions, i);
 			//if (i==0) System.out.println("Transition between "+states.get(0).getId()+" and "+states.get(1).getId()+": "+this.transitions[0][1][0]);
 		}	
 	}
 
 	@Override
 	public Double getTransition(int source, int dest, int step) {
-		return logTransitions[step][source][dest];
+		return LogMath.toNullableLog(logTransitions[step][source*numStates+dest]);
+	}
+	
+	@Override
+	public double[] getTransitionLogs(int step) {
+		return logTransitions[step];
 	}
 	
 	@Override
@@ -150,9 +201,14 @@ public class VariableTransitionHMM extends AbstractHMM {
 			state.setLogStart(logUniformStart);
 			randomizeEmissions(j);
 		}
-		for(int h = 0; h < iterationsBaumWelch; h++) {
-			getLog().info("Running "+h+" Baum-Welch iteration");
-			runBaumWelchStep();
+		boolean newPool = startThreadPool();
+		try {
+			for(int h = 0; h < iterationsBaumWelch; h++) {
+				getLog().info("Running "+h+" Baum-Welch iteration");
+				runBaumWelchStep();
+			}
+		} finally {
+			if(newPool) shutdownThreadPool();
 		}
 		//printTransitions(0);
 		//printTransitions(2000);
@@ -160,79 +216,84 @@ public class VariableTransitionHMM extends AbstractHMM {
 	
 	
 	/**
-	 * Runs a step of baum-welch training with the attribute training data
+	 * Runs a step of baum-welch training with the attribute training data.
+	 * Expected counts are accumulated in parallel over chunks of the training data and then merged
 	 */
 	protected void runBaumWelchStep() {
-		initArrays();
-		Arrays.fill(logStarts, null);
-		for(int i=0;i<logTransitionsTrain.length;i++) {
-			for(int j=0;j<logTransitionsTrain[i].length;j++) {
-				Arrays.fill(logTransitionsTrain[i][j], null);
-			}
-		}
-		initEmissionsBaumWelch();
-		//int datumIdx = 0;
-		for (List<? extends Object> trainingDatum:trainingData) {
-			Double [][] forwardLogs=calculateForward(trainingDatum);
-			Double [][] backwardLogs=calculateBackward(trainingDatum);
-			Double logProb = getSequenceLogProb(trainingDatum, forwardLogs);
-			//Calculate new starts
-			for(int j=0;j<logStarts.length;j++) {
-				Object o = trainingDatum.get(0);
-				Double seqProduct = LogMath.logProduct(forwardLogs[0][j], backwardLogs[0][j]);
-				Double emission = getEmission(j, o, 0);
-				seqProduct = LogMath.logProduct(seqProduct, emission);
-				seqProduct = LogMath.logProduct(seqProduct, -logProb);
-				//if(seqProduct>-0.5) System.out.println("Datum: "+datumIdx+". Next most likely start: "+j+" forward: "+forwardLogs[0][j]+" backward: "+backwardLogs[0][j]+" emission: "+emission+" logProb: "+logProb+"seq product: "+seqProduct);
-				logStarts[j] = LogMath.logSum(logStarts[j], seqProduct);
-			}
-			//Calculate new transitions
-			if(!skipTransitionsTraining) {
-				for(int i=0;i<logTransitionsTrain.length;i++) {
-					for(int j=0;j<logTransitionsTrain[i].length;j++) {
-						
-						for(int k=0;k<logTransitionsTrain[i][j].length;k++) {
-							Object o1 = trainingDatum.get(i);
-							Object o2 = trainingDatum.get(i+1);
-							
-							Double seqProduct = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i+1][k]);
-							seqProduct = LogMath.logProduct(seqProduct, getEmission(j, o1, i));
-							seqProduct = LogMath.logProduct(seqProduct, getEmission(k, o2, i+1));
-							seqProduct = LogMath.logProduct(seqProduct, getTransition(j, k, i));
-							seqProduct = LogMath.logProduct(seqProduct, -logProb);
-							logTransitionsTrain[i][j][k] = LogMath.logSum(logTransitionsTrain[i][j][k], seqProduct);
-						}
-					}
-				}
-			}
-			
-			//Calculate new emissions
-			for(int i=0;i<steps;i++) {
-				Object o = trainingDatum.get(i);
-				for(int j=0;j<numStates;j++) {
-					Double seqProduct = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i][j]);
-					seqProduct = LogMath.logProduct(seqProduct, getEmission(j, o, i));
-					seqProduct = LogMath.logProduct(seqProduct, -logProb);
-					accumulateEmissionBaumWelch(i,j,o,seqProduct);
-				}
-			}
-			//datumIdx++;
+		int n = numStates;
+		int chunks = Math.max(1, Math.min(numThreads, trainingData.size()));
+		int stepsTransitions = skipTransitionsTraining?0:steps-1;
+		if(statistics.size()>0 && statistics.get(0).logTransitions.length!=stepsTransitions) statistics.clear();
+		while(statistics.size()<chunks) statistics.add(new BaumWelchStatistics());
+		List<Callable<BaumWelchStatistics>> tasks = new ArrayList<>(chunks);
+		for(int c=0;c<chunks;c++) {
+			BaumWelchStatistics chunkStatistics = statistics.get(c);
+			List<List<? extends Object>> chunkData = trainingData.subList(c*trainingData.size()/chunks, (c+1)*trainingData.size()/chunks);
+			tasks.add(()->chunkStatistics.accumulate(chunkData));
 		}
+		List<BaumWelchStatistics> results = runTasks(tasks);
+		BaumWelchStatistics total = results.get(0);
+		for(int c=1;c<results.size();c++) total.merge(results.get(c));
 		//Normalize and update starts
-		Double total = null;
-		for(int j=0;j<logStarts.length;j++) total = LogMath.logSum(total, logStarts[j]);
-		for(int j=0;j<logStarts.length;j++) getState(j).setLogStart(LogMath.logProduct(logStarts[j],-total));
+		double [] logStarts = total.logStarts;
+		double logTotal = LogMath.logSum(logStarts, 0, n);
+		for(int j=0;j<n;j++) getState(j).setLogStart(LogMath.toNullableLog(logStarts[j]-logTotal));
 		//Normalize and update transitions
 		if(!skipTransitionsTraining) {
-			for(int i=0;i<logTransitionsTrain.length;i++) {
-				setTransitions(logTransitionsTrain[i], i);
+			for(int i=0;i<total.logTransitions.length;i++) {
+				setTransitionLogs(total.logTransitions[i], i);
 			}
 		}
 		
 		//Normalize and update emissions
-		for(int j=0;j<numStates;j++) {
-			updateEmissionsBaumWelch(j);
+		for(int j=0;j<n;j++) {
+			updateEmissionsBaumWelch(j, total.emissions);
+		}
+	}
+	
+	/**
+	 * Creates the pool of threads used by runTasks if more than one thread is required and no pool is available.
+	 * The pool is kept for all the tasks of a training or decoding run
+	 * @return boolean true if a new pool was created. In this case, the caller must call shutdownThreadPool at the end of the run
+	 */
+	protected boolean startThreadPool() {
+		if(threadPool!=null || numThreads<=1) return false;
+		setThreadPool(new ForkJoinPool(numThreads));
+		return true;
+	}
+
+	/**
+	 * Stops the pool of threads created by startThreadPool
+	 */
+	protected void shutdownThreadPool() {
+		threadPool.shutdown();
+		setThreadPool(null);
+	}
+
+	/**
+	 * Runs the given tasks using the pool of threads of the current run. Tasks run in the calling thread if no pool is available
+	 * @param tasks to execute
+	 * @return List<T> Results of the tasks in the same order of the tasks
+	 */
+	protected <T> List<T> runTasks(List<Callable<T>> tasks) {
+		List<T> answer = new ArrayList<>(tasks.size());
+		try {
+			if(threadPool==null || tasks.size()<=1) {
+				for(Callable<T> task:tasks) answer.add(task.call());
+				return answer;
+			}
+			List<Future<T>> futures = threadPool.invokeAll(tasks);
+			for(Future<T> future:futures) answer.add(future.get());
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
 		}
+		return answer;
 	}
 	
 	public void printTransitions(int step) {
@@ -257,10 +318,12 @@ public class VariableTransitionHMM extends AbstractHMM {
 	}
 
 	/**
-	 * Initializes training emissions for a baum welch step
+	 * Returns the number of values needed to accumulate expected counts of emissions during a Baum-Welch step.
+	 * Values are logarithms initialized to Double.NEGATIVE_INFINITY and merged across threads with log sums
 	 * WARN: This method will throw a RuntimeException because it should be redefined to use automated training
+	 * @return int Size of the array of statistics for emissions
 	 */
-	protected void initEmissionsBaumWelch() {
+	protected int getEmissionStatisticsSize() {
 		throw new RuntimeException("This method should be redefined in a subclass to use automated Baum-Welch training");	
 	}
 
@@ -270,9 +333,10 @@ public class VariableTransitionHMM extends AbstractHMM {
 	 * @param step at which the observation is registered
 	 * @param stateIndex Index of the state where the posterior was calculated
 	 * @param datum observed value
-	 * @param logPosterior Logarithm of the posterior probability
+	 * @param logPosterior Logarithm of the posterior probability. Double.NEGATIVE_INFINITY if the probability is zero
+	 * @param emissionStatistics Array to accumulate the posterior. Each thread accumulates on a different array
 	 */
-	protected void accumulateEmissionBaumWelch(int step, int stateIndex, Object datum, Double logPosterior) {
+	protected void accumulateEmissionBaumWelch(int step, int stateIndex, Object datum, double logPosterior, double [] emissionStatistics) {
 		throw new RuntimeException("This method should be redefined in a subclass to use automated Baum-Welch training");
 	}
 
@@ -280,17 +344,81 @@ public class VariableTransitionHMM extends AbstractHMM {
 	 * Updates the emission probabilities during Baum-Welch training
 	 * WARN: This method will throw a RuntimeException because it should be redefined in a subclass to use automated training
 	 * @param stateIndex Index of the state to be updated
+	 * @param emissionStatistics Accumulated statistics for all training data
 	 */
-	protected void updateEmissionsBaumWelch(int stateIndex) {
+	protected void updateEmissionsBaumWelch(int stateIndex, double [] emissionStatistics) {
 		throw new RuntimeException("This method should be redefined in a subclass to use automated Baum-Welch training");
 	}
 
-	private void initArrays() {
-		if(logTransitionsTrain.length!=steps-1 || logTransitionsTrain[0].length!=numStates) {
-			getLog().info("Creating array for transitions of dimensions "+(steps-1)+" x "+numStates+" x "+numStates);
-			logTransitionsTrain = new Double [steps-1][numStates][numStates];
+	/**
+	 * Expected counts of starts, transitions and emissions accumulated by one thread during a Baum-Welch step
+	 */
+	private class BaumWelchStatistics {
+		private double [] logStarts = new double [numStates];
+		private double [][] logTransitions;
+		private double [] emissions = new double [getEmissionStatisticsSize()];
+		private double [] bTimesE = new double [numStates];
+		private HMMWorkspace workspace = new HMMWorkspace();
+		
+		public BaumWelchStatistics() {
+			if(skipTransitionsTraining) logTransitions = new double [0][0];
+			else {
+				getLog().info("Creating array for transitions of dimensions "+(steps-1)+" x "+numStates+" x "+numStates);
+				logTransitions = new double [steps-1][numStates*numStates];
+			}
+		}
+		
+		public BaumWelchStatistics accumulate(List<List<? extends Object>> data) {
+			Arrays.fill(logStarts, Double.NEGATIVE_INFINITY);
+			for(int i=0;i<logTransitions.length;i++) Arrays.fill(logTransitions[i], Double.NEGATIVE_INFINITY);
+			Arrays.fill(emissions, Double.NEGATIVE_INFINITY);
+			for (List<? extends Object> trainingDatum:data) accumulateDatum(trainingDatum);
+			return this;
+		}
+		
+		private void accumulateDatum(List<? extends Object> trainingDatum) {
+			int n = numStates;
+			HMMWorkspace ws = workspace;
+			double logProb = calculateForwardBackward(trainingDatum, ws);
+			//Sequences with zero probability do not provide information for training
+			if(logProb == Double.NEGATIVE_INFINITY) return;
+			//Calculate new starts
+			for(int j=0;j<n;j++) {
+				logStarts[j] = LogMath.fastLogSum(logStarts[j], ws.getPosteriorLog(0, j)-logProb);
+			}
+			//Calculate new transitions
+			if(!skipTransitionsTraining) {
+				for(int i=0;i<logTransitions.length;i++) {
+					double [] transitions = getTransitionLogs(i);
+					double [] transitionsTrain = logTransitions[i];
+					for(int k=0;k<n;k++) bTimesE[k] = ws.getBackwardLog(i+1, k)+ws.getEmissionLog(i+1, k);
+					for(int j=0;j<n;j++) {
+						double fTimesE = ws.getForwardLog(i, j)+ws.getEmissionLog(i, j)-logProb;
+						if(fTimesE == Double.NEGATIVE_INFINITY) continue;
+						int offset = j*n;
+						for(int k=0;k<n;k++) {
+							transitionsTrain[offset+k] = LogMath.fastLogSum(transitionsTrain[offset+k], fTimesE+bTimesE[k]+transitions[offset+k]);
+						}
+					}
+				}
+			}
+			//Calculate new emissions
+			for(int i=0;i<steps;i++) {
+				Object o = trainingDatum.get(i);
+				for(int j=0;j<n;j++) {
+					accumulateEmissionBaumWelch(i,j,o,ws.getPosteriorLog(i, j)-logProb, emissions);
+				}
+			}
+		}
+		
+		public void merge(BaumWelchStatistics other) {
+			mergeLogs(logStarts, other.logStarts);
+			for(int i=0;i<logTransitions.length;i++) mergeLogs(logTransitions[i], other.logTransitions[i]);
+			mergeLogs(emissions, other.emissions);
+		}
+
+		private void mergeLogs(double[] logs, double[] otherLogs) {
+			for(int i=0;i<logs.length;i++) logs[i] = LogMath.fastLogSum(logs[i], otherLogs[i]);
 		}
-		if(logStarts.length!=numStates) logStarts = new Double [numStates];
 	}
-	
 }
@@ -19,63 +19,361 @@
  *******************************************************************************/
 package ngsep.main;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
- * 
+ * Long lived pool of threads with a bounded number of pending tasks. When the limit of pending tasks is reached,
+ * submitters wait until a task finishes (or run the task themselves if caller runs is enabled) instead of
+ * waiting for the whole pool to drain. Tasks submitted with a consumer of results are delivered to the consumer
+ * in submission order, one at a time, outside of any lock of the pool.
  * @author Jorge Gomez
  *
  */
 public class ThreadPoolManager {
 	private static final int TIMEOUT_SECONDS = 30;
-	
-	private int maxTaskCount;
-	private int secondsPerTask=1;
+
+	private final int maxTaskCount;
 	private final int numThreads;
-	private ThreadPoolExecutor pool;
-	
+	private final ThreadPoolExecutor pool;
+	private final Semaphore slots;
+	private boolean callerRuns = false;
+
+	//Ordered delivery of results
+	private final Map<Long, OrderedResult<?>> pendingResults = new HashMap<>();
+	private long nextOrderedId = 0;
+	private long nextToDeliver = 0;
+	//Thread currently delivering results to consumers or null if no thread is delivering
+	private volatile Thread deliveringThread = null;
+
+	//Tasks submitted to the pool that have not finished (including delivery of results)
+	private final Object unfinishedLock = new Object();
+	private long unfinishedTasks = 0;
+
+	//Errors
+	private volatile Throwable firstError = null;
+
+	//Statistics
+	private final long startTime;
+	private long endTime = 0;
+	private final AtomicLong tasksSubmitted = new AtomicLong();
+	private final AtomicLong tasksCompleted = new AtomicLong();
+	private final AtomicLong tasksRunByCaller = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong totalBusyTime = new AtomicLong();
+	private final AtomicLong totalBlockedTime = new AtomicLong();
+	private volatile int maxQueueDepth = 0;
+
+	/**
+	 * Creates a new pool
+	 * @param numberOfThreads Number of threads running tasks
+	 * @param maxTaskCount Maximum number of tasks waiting to be executed
+	 */
 	public ThreadPoolManager(int numberOfThreads, int maxTaskCount) {
-		this.pool = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-		this.maxTaskCount = maxTaskCount;
 		this.numThreads = numberOfThreads;
+		this.maxTaskCount = Math.max(1, maxTaskCount);
+		this.pool = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		//Permits cover the tasks running and the tasks waiting in the queue
+		this.slots = new Semaphore(numberOfThreads+this.maxTaskCount);
+		this.startTime = System.nanoTime();
+	}
+
+	/**
+	 * @return boolean true if tasks submitted without consumer are run by the submitting thread when the queue is full
+	 */
+	public boolean isCallerRuns() {
+		return callerRuns;
+	}
+
+	/**
+	 * Changes the behavior when the queue of pending tasks is full. By default submitters wait until a slot is available.
+	 * If caller runs is enabled, the submitting thread runs the task itself. Tasks submitted with a consumer always wait
+	 * @param callerRuns true if the submitting thread should run tasks when the queue is full
+	 */
+	public void setCallerRuns(boolean callerRuns) {
+		this.callerRuns = callerRuns;
 	}
-	
+
 	/**
-	 * Adds task to the threadPoolExecutor for this instance. If the task queue limit is exceeded,
-	 * the pool will be relaunched afterwards, after waiting for all queued tasks to finish.
+	 * Adds a task to the pool. If the limit of pending tasks is reached, this call blocks until a running task finishes
+	 * or runs the task in the calling thread if caller runs is enabled.
 	 * @param task task to add to the pool
-	 * @throws InterruptedException if the relauch process is interrupted
+	 * @throws InterruptedException if the thread is interrupted while waiting for a free slot
 	 */
 	public void queueTask(Runnable task) throws InterruptedException {
-		int taskCount = pool.getQueue().size();
-		if(taskCount == maxTaskCount) {
-			relaunchPool();
+		long submitTime = System.nanoTime();
+		tasksSubmitted.incrementAndGet();
+		//Tasks submitted by consumers of ordered results do not take slots to avoid waiting for their own delivery
+		boolean hasSlot = !isDeliveringThread();
+		if(hasSlot && callerRuns && !slots.tryAcquire()) {
+			tasksRunByCaller.incrementAndGet();
+			runTask(task, submitTime, false);
+			return;
+		} else if (hasSlot && !callerRuns) {
+			acquireSlot();
 		}
-		pool.execute(task);
+		startTask();
+		execute(() -> {
+			try {
+				runTask(task, submitTime, true);
+			} finally {
+				if(hasSlot) slots.release();
+				finishTask();
+			}
+		});
 	}
-	
+
 	/**
-	 * Terminates the pool, shutting it down and waiting for it to finish all queued tasks.
+	 * Adds a task whose result should be processed in submission order. The consumer is called by one thread at a time
+	 * with the results of the tasks in the same order in which they were submitted. Results of failed tasks are skipped
+	 * and the error is reported when the pool is terminated.
+	 * Consumers are called by the threads of the pool without holding locks of the pool. Consumers may submit new tasks
+	 * to this pool, which are queued without waiting for free slots. While a consumer blocks, no other results are
+	 * delivered and, once the slots are taken by results waiting for delivery, submitters wait for the consumer.
+	 * @param task Task to add to the pool
+	 * @param consumer Receives the result of the task
+	 * @throws InterruptedException if the thread is interrupted while waiting for a free slot
+	 */
+	public <T> void queueTask(Callable<T> task, Consumer<T> consumer) throws InterruptedException {
+		long submitTime = System.nanoTime();
+		tasksSubmitted.incrementAndGet();
+		boolean hasSlot = !isDeliveringThread();
+		if(hasSlot) acquireSlot();
+		startTask();
+		OrderedResult<T> result;
+		synchronized (pendingResults) {
+			result = new OrderedResult<>(nextOrderedId, consumer, hasSlot);
+			nextOrderedId++;
+		}
+		execute(() -> {
+			runTask(() -> {
+				try {
+					result.value = task.call();
+					result.success = true;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}, submitTime, true);
+			deliver(result);
+		});
+	}
+
+	/**
+	 * Terminates the pool, waiting for it to finish all queued tasks. Further calls return after checking for errors.
 	 * @throws InterruptedException if the shutdown operation is interrupted
+	 * @throws RuntimeException if any of the tasks failed
 	 */
 	public void terminatePool() throws InterruptedException  {
+		//Consumers of ordered results may still submit tasks until every submitted task finishes
+		synchronized (unfinishedLock) {
+			while(unfinishedTasks>0) unfinishedLock.wait();
+		}
 		pool.shutdown();
-    	pool.awaitTermination(maxTaskCount*secondsPerTask, TimeUnit.SECONDS);
-    	if(!pool.isShutdown()) {
-			throw new InterruptedException("The ThreadPoolExecutor was not shutdown after an await Termination call");
+		while(!pool.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		if(endTime==0) endTime = System.nanoTime();
+		if(firstError!=null) {
+			if(firstError instanceof RuntimeException) throw (RuntimeException)firstError;
+			if(firstError instanceof Error) throw (Error)firstError;
+			throw new RuntimeException(firstError);
+		}
+	}
+
+	private void acquireSlot() throws InterruptedException {
+		if(slots.tryAcquire()) return;
+		long start = System.nanoTime();
+		slots.acquire();
+		totalBlockedTime.addAndGet(System.nanoTime()-start);
+	}
+
+	private boolean isDeliveringThread() {
+		return deliveringThread==Thread.currentThread();
+	}
+
+	private void startTask() {
+		synchronized (unfinishedLock) {
+			unfinishedTasks++;
+		}
+	}
+
+	private void finishTask() {
+		synchronized (unfinishedLock) {
+			unfinishedTasks--;
+			if(unfinishedTasks==0) unfinishedLock.notifyAll();
+		}
+	}
+
+	private void execute (Runnable task) {
+		pool.execute(task);
+		int depth = pool.getQueue().size();
+		if(depth>maxQueueDepth) maxQueueDepth = depth;
+	}
+
+	private void runTask(Runnable task, long submitTime, boolean inPool) {
+		long start = System.nanoTime();
+		try {
+			task.run();
+		} catch (RuntimeException|Error e) {
+			synchronized (this) {
+				if(firstError==null) firstError = e;
+			}
+		} finally {
+			long end = System.nanoTime();
+			if(inPool) totalBusyTime.addAndGet(end-start);
+			totalLatency.addAndGet(end-submitTime);
+			tasksCompleted.incrementAndGet();
+		}
+	}
+
+	private void deliver(OrderedResult<?> result) {
+		synchronized (pendingResults) {
+			pendingResults.put(result.id, result);
+			//Only one thread delivers at a time. The current deliverer will find this result before finishing
+			if(deliveringThread!=null) return;
+			deliveringThread = Thread.currentThread();
+		}
+		List<OrderedResult<?>> ready = new ArrayList<>();
+		while(true) {
+			synchronized (pendingResults) {
+				while(pendingResults.containsKey(nextToDeliver)) {
+					ready.add(pendingResults.remove(nextToDeliver));
+					nextToDeliver++;
+				}
+				if(ready.isEmpty()) {
+					deliveringThread = null;
+					return;
+				}
+			}
+			//Consumers are called outside of the lock. Slots of ordered tasks are released only after delivery to keep the buffer of results bounded
+			for(OrderedResult<?> next:ready) {
+				try {
+					next.deliver();
+				} catch (RuntimeException|Error e) {
+					synchronized (this) {
+						if(firstError==null) firstError = e;
+					}
+				} finally {
+					if(next.hasSlot) slots.release();
+					finishTask();
+				}
+			}
+			ready.clear();
 		}
 	}
-	
-	
+
+	/**
+	 * @return int Number of threads of the pool
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @return int Maximum number of tasks waiting to be executed
+	 */
+	public int getMaxTaskCount() {
+		return maxTaskCount;
+	}
+
+	/**
+	 * @return int Current number of tasks waiting to be executed
+	 */
+	public int getQueueDepth() {
+		return pool.getQueue().size();
+	}
+
+	/**
+	 * @return int Maximum number of tasks observed waiting to be executed
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	public long getTasksSubmitted() {
+		return tasksSubmitted.get();
+	}
+
+	public long getTasksCompleted() {
+		return tasksCompleted.get();
+	}
+
 	/**
-	 * Shuts down the pool, waiting for all queued tasks to finish. Then, it creates a new one.
-	 * @throws InterruptedException if the shutdown operation is interrupted or if the pool was not shutdown correctly.
+	 * @return long Number of tasks executed by the submitting thread because the queue was full
 	 */
-	private void relaunchPool() throws InterruptedException {
-		this.terminatePool();
-    	//Create new pool
-		pool = new ThreadPoolExecutor(numThreads, numThreads, TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	public long getTasksRunByCaller() {
+		return tasksRunByCaller.get();
+	}
+
+	/**
+	 * @return double Average time in milliseconds between the submission and the end of the tasks
+	 */
+	public double getAverageTaskLatency() {
+		long completed = tasksCompleted.get();
+		if(completed==0) return 0;
+		return totalLatency.get()/(1000000.0*completed);
+	}
+
+	/**
+	 * @return double Average running time in milliseconds of the tasks executed by the threads of the pool
+	 */
+	public double getAverageTaskRunningTime() {
+		long completed = tasksCompleted.get()-tasksRunByCaller.get();
+		if(completed==0) return 0;
+		return totalBusyTime.get()/(1000000.0*completed);
+	}
+
+	/**
+	 * @return double Total time in milliseconds that submitters waited for a free slot
+	 */
+	public double getBlockedTime() {
+		return totalBlockedTime.get()/1000000.0;
+	}
+
+	/**
+	 * @return double Total time in milliseconds that the threads of the pool were not running tasks
+	 */
+	public double getIdleTime() {
+		long end = (endTime>0)?endTime:System.nanoTime();
+		long available = (end-startTime)*numThreads;
+		return Math.max(0, available-totalBusyTime.get())/1000000.0;
+	}
+
+	/**
+	 * @return String Summary of the statistics of the pool to be logged by callers
+	 */
+	public String getStatisticsSummary() {
+		StringBuilder summary = new StringBuilder();
+		summary.append("Threads: "+numThreads+". Maximum queued tasks: "+maxTaskCount+"\n");
+		summary.append("Tasks submitted: "+getTasksSubmitted()+". Completed: "+getTasksCompleted()+". Run by caller: "+getTasksRunByCaller()+"\n");
+		summary.append("Maximum queue depth: "+maxQueueDepth+"\n");
+		summary.append(String.format("Average task latency (ms): %.3f. Average task running time (ms): %.3f\n", getAverageTaskLatency(), getAverageTaskRunningTime()));
+		summary.append(String.format("Time waiting for free slots (ms): %.1f. Idle time of threads (ms): %.1f", getBlockedTime(), getIdleTime()));
+		return summary.toString();
+	}
+
+	private static class OrderedResult<T> {
+		private final long id;
+		private final Consumer<T> consumer;
+		private final boolean hasSlot;
+		private T value;
+		private boolean success = false;
+
+		public OrderedResult(long id, Consumer<T> consumer, boolean hasSlot) {
+			this.id = id;
+			this.consumer = consumer;
+			this.hasSlot = hasSlot;
+		}
+
+		public void deliver() {
+			if(success) consumer.accept(value);
+		}
 	}
 }
@@ -81,6 +81,28 @@ public class Distribution {
 		}
 		cumulativeUpdated = false;
 	}
+	/**
+	 * Adds the data of the given distribution to this distribution. Both distributions must have the same bins
+	 * @param other Distribution to merge
+	 */
+	public void merge(Distribution other) {
+		if(other.distribution.length!=distribution.length || other.minValueDistribution!=minValueDistribution || other.binLength!=binLength) {
+			throw new IllegalArgumentException("Distributions with different bins can not be merged");
+		}
+		sum+=other.sum;
+		sumSquare+=other.sumSquare;
+		count+=other.count;
+		if(other.minValueData < minValueData ) minValueData = other.minValueData;
+		if(other.maxValueData > maxValueData ) maxValueData = other.maxValueData;
+		maxIdx = -1;
+		for(int i=0;i<distribution.length;i++) {
+			distribution[i]+=other.distribution[i];
+			if(distribution[i]>0 && (maxIdx==-1 || distribution[maxIdx] < distribution[i])) maxIdx = i;
+		}
+		outliersLess.addAll(other.outliersLess);
+		outliersMore.addAll(other.outliersMore);
+		cumulativeUpdated = false;
+	}
 	public double [] getCumulative () {
 		if (cumulativeUpdated) return cumulative;
 		cumulative = new double[distribution.length];
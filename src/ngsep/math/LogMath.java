@@ -22,12 +22,28 @@ package ngsep.math;
 /**
  * Class with static methods performing basic math operations that receive and
  * return logarithms of the values to operate. Minus infinitum is represented
- * as a null object 
+ * as a null object in methods receiving Double objects and as Double.NEGATIVE_INFINITY
+ * in methods receiving primitive values
  * @author Jorge Duitama
  *
  */
 public class LogMath {
 	public static final double MAXLOGDIFF=20;
+	/**
+	 * Number of entries per unit of difference between logarithms in the lookup table used by fastLogSum
+	 */
+	private static final int LOGSUM_TABLE_RESOLUTION = 1000;
+	private static final double [] LOGSUM_TABLE = buildLogSumTable();
+	
+	private static double [] buildLogSumTable() {
+		int n = (int)(MAXLOGDIFF*LOGSUM_TABLE_RESOLUTION)+2;
+		double [] table = new double [n];
+		for(int i=0;i<n;i++) {
+			double diff = (double)i/LOGSUM_TABLE_RESOLUTION;
+			table[i] = Math.log10(1+Math.pow(10.0, -diff));
+		}
+		return table;
+	}
 	/**
 	 * Null aware sum of probabilities, also scalable to small values.
 	 * The sum is calculated as p+q = log(p)+log(1+exp(log(q)-log(p)))
@@ -72,6 +88,80 @@ public class LogMath {
 		else return null;
 	}
 
+	/**
+	 * Sum of probabilities for primitive logarithms. Zero probabilities are represented as Double.NEGATIVE_INFINITY.
+	 * The correction term log(1+exp(log(q)-log(p))) is interpolated from a precalculated table
+	 * @param log1 10-based logarithm of the first probability to add
+	 * @param log2 10-based logarithm of the second probability to add
+	 * @return double logarithm of the sum of the probabilities. Double.NEGATIVE_INFINITY if both parameters are
+	 * Double.NEGATIVE_INFINITY
+	 */
+	public static double fastLogSum (double log1, double log2) {
+		double max = log1;
+		double diff = log1 - log2;
+		if(log2>log1) {
+			max = log2;
+			diff = -diff;
+		}
+		//This condition also captures infinite differences and the case in which both values are minus infinity
+		if(!(diff < MAXLOGDIFF)) return max;
+		double x = diff*LOGSUM_TABLE_RESOLUTION;
+		int i = (int)x;
+		double d = x - i;
+		return max + LOGSUM_TABLE[i] + d*(LOGSUM_TABLE[i+1]-LOGSUM_TABLE[i]);
+	}
+	
+	/**
+	 * Calculates the logarithm of the sum of the probabilities represented by the given logarithms
+	 * @param logs Array of 10-based logarithms. Zero probabilities are represented as Double.NEGATIVE_INFINITY
+	 * @param start First position to add
+	 * @param end Position after the last position to add 
+	 * @return double Logarithm of the sum of the probabilities
+	 */
+	public static double logSum (double [] logs, int start, int end) {
+		double max = Double.NEGATIVE_INFINITY;
+		for(int i=start;i<end;i++) {
+			if(logs[i]>max) max = logs[i];
+		}
+		if(max == Double.NEGATIVE_INFINITY) return max;
+		double sum = 0;
+		for(int i=start;i<end;i++) sum+=Math.pow(10.0, logs[i]-max);
+		return max + Math.log10(sum);
+	}
+	
+	/**
+	 * Converts a null aware logarithm to a primitive logarithm
+	 * @param log Logarithm of a probability. Null for zero
+	 * @return double The same logarithm. Double.NEGATIVE_INFINITY if the given value is null
+	 */
+	public static double toPrimitiveLog (Double log) {
+		if(log==null) return Double.NEGATIVE_INFINITY;
+		return log;
+	}
+	
+	/**
+	 * Converts a primitive logarithm to a null aware logarithm
+	 * @param log Logarithm of a probability. Double.NEGATIVE_INFINITY for zero
+	 * @return Double The same logarithm. Null if the given value is Double.NEGATIVE_INFINITY
+	 */
+	public static Double toNullableLog (double log) {
+		if(log==Double.NEGATIVE_INFINITY) return null;
+		return log;
+	}
+	
+	/**
+	 * Normalizes the logarithms stored in the given segment of the array so that the probabilities add up to one
+	 * @param logProbs Array of 10-based logarithms. Zero probabilities are represented as Double.NEGATIVE_INFINITY
+	 * @param start First position to normalize
+	 * @param end Position after the last position to normalize
+	 */
+	public static void normalizeLogs(double [] logProbs, int start, int end) {
+		if(end<=start) throw new IllegalArgumentException("Array of logarithms must have at least one entry");
+		double total = logSum(logProbs, start, end);
+		if(total==Double.NEGATIVE_INFINITY) return;
+		for(int j=start;j<end;j++) logProbs[j]-=total;
+	}
+
 	public static void normalizeLogs(Double[] logProbs) {
 		Double total = null;
 		int n = logProbs.length;
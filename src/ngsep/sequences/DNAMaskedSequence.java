@@ -98,6 +98,9 @@ public class DNAMaskedSequence extends AbstractLimitedSequence{
 		if(sequence instanceof DNAMaskedSequence) {
 			return ((DNAMaskedSequence)sequence).getReverseComplement();
 		}
+		if(sequence instanceof PackedDNAReadView) {
+			return ((PackedDNAReadView)sequence).getReverseComplement();
+		}
 		return new DNAMaskedSequence(sequence).getReverseComplement();
 	}
 }
@@ -21,51 +21,96 @@ package ngsep.sequences;
 
 import java.io.PrintStream;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Queue;
 
 import ngsep.math.Distribution;
 
 /**
+ * Clusters of k-mers differing by at most one mismatch with the consensus of the cluster.
+ * K-mers are handled as longs packing two bits per base pair. The first base pair is encoded
+ * in the most significant bits, which is consistent with the encoding of DNAShortKmer
  * @author Jorge Gomez
  * @author Jorge Duitama
  */
 public class DNAShortKmerClusterMap implements KmersMap {
+	public static final int MAX_KMER_LENGTH = 31;
+	private static final int NUM_BASES = DNASequence.BASES_STRING.length();
 	private int kmerLength;
 	private int maxNumClusters;
-	private short[][] table;
-	private DNAShortKmer [] consensusByClusterId;
-	private Map<DNAShortKmer, Integer> index = new HashMap<>();
+	//Counts of each base pair for each position of each cluster. Index: (cluster*kmerLength+position)*4+base
+	private short[] table;
+	private long [] consensusByClusterId;
+	private PackedKmersIndex index = new PackedKmersIndex();
 	private int newIndex = 0;
 	private Queue<Integer> clusterIdsToReuse = new LinkedList<Integer>();
 	private Queue<Integer> clusterIdsToEvaluate = new LinkedList<Integer>();
-	
+
 	public DNAShortKmerClusterMap (int kmerLength, int maxNumClusters) {
+		if(kmerLength>MAX_KMER_LENGTH) throw new IllegalArgumentException("The maximum k-mer length for this class is "+MAX_KMER_LENGTH+". Given: "+kmerLength);
+		long tableSize = (long)kmerLength*maxNumClusters*NUM_BASES;
+		if(tableSize>Integer.MAX_VALUE-8) throw new IllegalArgumentException("Too many clusters "+maxNumClusters+" for k-mer length "+kmerLength);
 		this.kmerLength = kmerLength;
 		this.maxNumClusters = maxNumClusters;
-		table=new short [kmerLength*maxNumClusters][DNASequence.BASES_ARRAY.length];
-		consensusByClusterId = new DNAShortKmer[maxNumClusters];
-		Arrays.fill(consensusByClusterId, null);
+		table=new short [(int)tableSize];
+		consensusByClusterId = new long[maxNumClusters];
+		Arrays.fill(consensusByClusterId, -1);
 	}
-	
-	
+
+	/**
+	 * Encodes the given segment of a sequence using two bits per base pair
+	 * @param seq Sequence to encode
+	 * @param start First position to encode
+	 * @param end Position after the last position to encode
+	 * @return long Code of the segment or -1 if the segment has characters different than A, C, G or T
+	 */
+	public static long encode(CharSequence seq, int start, int end) {
+		if(end-start>MAX_KMER_LENGTH) throw new IllegalArgumentException("The maximum k-mer length for this class is "+MAX_KMER_LENGTH+". Given: "+(end-start));
+		long code = 0;
+		for(int i=start;i<end;i++) {
+			int bp = getBaseIndex(seq.charAt(i));
+			if(bp<0) return -1;
+			code = (code<<2) | bp;
+		}
+		return code;
+	}
+
+	private static int getBaseIndex(char c) {
+		switch (c) {
+		case 'A': return 0;
+		case 'C': return 1;
+		case 'G': return 2;
+		case 'T': return 3;
+		default: return -1;
+		}
+	}
+
+	private long encode(CharSequence seq) {
+		if(seq.length()!=kmerLength) throw new IllegalArgumentException("Invalid k-mer length "+seq.length()+" for k-mer "+seq+". Expected: "+kmerLength);
+		long code = encode(seq, 0, kmerLength);
+		if(code<0) throw new IllegalArgumentException("Non DNA kmer found " + seq);
+		return code;
+	}
+
 	/**
 	 * Adds the given k-mer to the cluster
 	 * @param kmer New kmer
 	 */
 	public void addOcurrance(CharSequence seq) {
-		if (!(seq instanceof DNAShortKmer)) throw new IllegalArgumentException("This class only can process objects of the DNAShortKmer class");
-		DNAShortKmer kmer = (DNAShortKmer) seq;
-		Integer k = inexactSearchKmerCluster(kmer);
-		if(k != null) {
-			append(kmer, k);
+		addOcurrance(encode(seq));
+	}
+
+	/**
+	 * Adds the k-mer with the given code to the cluster
+	 * @param kmerCode Code of the new k-mer calculated with the encode method
+	 */
+	public void addOcurrance(long kmerCode) {
+		int k = inexactSearchKmerCluster(kmerCode);
+		if(k >= 0) {
+			append(kmerCode, k);
 		} else {
-			createCluster(kmer);
+			createCluster(kmerCode);
 		}
 	}
 	@Override
@@ -75,26 +120,28 @@ public class DNAShortKmerClusterMap implements KmersMap {
 		throw new RuntimeException("Method not implemented");
 	}
 	/**
-	 * Searches the hashmap for a matching kmer. If it is not
+	 * Searches the index for a matching kmer. If it is not
 	 * found, it looks for a kmer that is one nucleotide apart
 	 * (e.g ACATCCC[...] would match with ACGTCCC[...]).
-	 * @param kmer
-	 * @return int k or null if no kmer or neighboring kmer found.
+	 * Neighbors are visited from the first to the last position
+	 * and base pairs are visited in alphabetical order
+	 * @param kmerCode
+	 * @return int k or -1 if no kmer or neighboring kmer found.
 	 */
-	private Integer inexactSearchKmerCluster (DNAShortKmer kmer) {
-		Integer k = index.get(kmer);
-		if(k != null) return k;
-		String kmerStr = kmer.toString();
-		for(int i = 0; i < kmerStr.length(); i++) {
-			int bpIdx = DNASequence.BASES_STRING.indexOf(kmerStr.charAt(i));
-			for(int j = 0; j < DNASequence.BASES_STRING.length(); j++) {
+	private int inexactSearchKmerCluster (long kmerCode) {
+		int k = index.get(kmerCode);
+		if(k >= 0) return k;
+		for(int i = 0; i < kmerLength; i++) {
+			int shift = 2*(kmerLength-i-1);
+			long cleanCode = kmerCode & ~(3L<<shift);
+			int bpIdx = (int)((kmerCode>>>shift) & 3);
+			for(int j = 0; j < NUM_BASES; j++) {
 				if(j==bpIdx) continue;
-				DNAShortKmer neighbor = new DNAShortKmer(kmerStr.subSequence(0, i) + "" + DNASequence.BASES_STRING.charAt(j) + kmerStr.subSequence(i+1, kmerStr.length())); 
-				k = index.get(neighbor);
-				if(k != null) return k;
+				k = index.get(cleanCode | ((long)j<<shift));
+				if(k >= 0) return k;
 			}
 		}
-		return null;
+		return -1;
 	}
 
 	public void eliminateShallowClusters() {
@@ -112,13 +159,13 @@ public class DNAShortKmerClusterMap implements KmersMap {
 		System.out.println("\tremoved: " + removed + " clusters. Remaining: "+size());
 		System.out.println("\tCluster ids to reuse: " + clusterIdsToReuse.size());
 	}
-	
+
 	/**
 	 * Creates a new cluster with index newIndex++, associates it with the given
 	 * kmer and adds the kmer to the table.
-	 * @param kmer
+	 * @param kmerCode
 	 */
-	private boolean createCluster(DNAShortKmer kmer) {
+	private boolean createCluster(long kmerCode) {
 		int clusterIndex;
 		// Checks if there are any empty cluster positions to occupy
 		if(clusterIdsToReuse.isEmpty()) {
@@ -128,105 +175,108 @@ public class DNAShortKmerClusterMap implements KmersMap {
 		} else {
 			clusterIndex = clusterIdsToReuse.remove();
 		}
-		for(int i = 0; i < kmer.length(); i++) {
-			char bp = Character.toUpperCase(kmer.charAt(i));
-			if (!DNASequence.isInAlphabeth(bp)) {
-				throw new RuntimeException("Non DNA kmer found " + kmer);
-			}
-			int ibp = DNASequence.BASES_STRING.indexOf(bp);
-			table[clusterIndex*kmerLength + i][ibp]=1;
+		int row = clusterIndex*kmerLength;
+		for(int i = 0; i < kmerLength; i++,row++) {
+			table[row*NUM_BASES + getBase(kmerCode, i)]=1;
 		}
 		clusterIdsToEvaluate.add(clusterIndex);
-		consensusByClusterId[clusterIndex] = kmer;
-		index.put(kmer, clusterIndex);
+		consensusByClusterId[clusterIndex] = kmerCode;
+		index.put(kmerCode, clusterIndex);
 		return true;
 	}
-	
+
+	private int getBase(long kmerCode, int i) {
+		return (int)((kmerCode>>>(2*(kmerLength-i-1))) & 3);
+	}
+
 	private void checkClusterMem(int i, int k) {
 		short count = 0;
 		int row = k*kmerLength + i;
-		for(int j=0;j < DNASequence.BASES_STRING.length(); j++) {
-			if(table[row][j] == Short.MAX_VALUE) {
+		for(int j=0;j < NUM_BASES; j++) {
+			if(table[row*NUM_BASES+j] == Short.MAX_VALUE) {
 				count++;
 			}
 		}
 		if(count >= 2){
 			System.out.println("WARNING: counts for cluster "+i+" in K-mer table has surpassed the length of " +
 					Short.MAX_VALUE+". The counts of the other possible nucleotides are as follows:");
-			for(int m = 0; m < DNASequence.BASES_STRING.length(); m++) {
-				System.out.println("\t"+DNASequence.BASES_STRING.charAt(m)+": "+ table[row][m]);
+			for(int m = 0; m < NUM_BASES; m++) {
+				System.out.println("\t"+DNASequence.BASES_STRING.charAt(m)+": "+ table[row*NUM_BASES+m]);
 			}
 		}
 	}
-	
+
 	private void removeCluster (int k) {
-		DNAShortKmer consensus = consensusByClusterId[k];
-		consensusByClusterId[k] = null;
+		long consensus = consensusByClusterId[k];
+		consensusByClusterId[k] = -1;
 		index.remove(consensus);
-		for(int i = 0; i < consensus.length(); i++) {
-			int row = k*kmerLength + i;
-			Arrays.fill(table[row],(short)0); 
-		}
+		int start = k*kmerLength*NUM_BASES;
+		Arrays.fill(table, start, start+kmerLength*NUM_BASES, (short)0);
 	}
-	
+
 	/**
 	 * Finds the representative kmer for the given k, and updates the table
 	 * by increasing the count of the correct nucleotide for each char of the
-	 * kmer. (i.e if kmer is ACAT[...] the count for [0][0], [1][1], [2][0],
-	 * [3][3], etc. are updated by one. The first index indicates the position
-	 * on the kmer and the second index indicates the corresponding nucleotide based
-	 * on BASE_ARRAY.)
+	 * kmer. (i.e if kmer is ACAT[...] the counts for position 0 base 0, position 1
+	 * base 1, position 2 base 0, position 3 base 3, etc. are updated by one.
+	 * Base indexes are based on BASES_STRING.)
 	 *
-	 * If after the update, the representative kmer has changed, the hashmap is updated
+	 * If after the update, the representative kmer has changed, the index is updated
 	 * to reflect this.
-	 * @param kmer
+	 * @param kmerCode
 	 * @param k
 	 */
-	private void append(DNAShortKmer kmer, int k) {
-		DNAShortKmer oldKmer = consensusByClusterId[k];
-		String oldKmerStr = oldKmer.toString();
-		String kmerStr = kmer.toString();
-		boolean alternative = !oldKmerStr.equals(kmerStr);
-		for(int i = 0; i < kmer.length(); i++) {
-			int row = k*kmerLength + i;
-			int j = DNASequence.BASES_STRING.indexOf(kmerStr.charAt(i));
-			if(table[row][j] < Short.MAX_VALUE) {
-				table[row][j]++;
+	private void append(long kmerCode, int k) {
+		long oldKmer = consensusByClusterId[k];
+		boolean alternative = oldKmer!=kmerCode;
+		int row = k*kmerLength;
+		for(int i = 0; i < kmerLength; i++,row++) {
+			int idx = row*NUM_BASES + getBase(kmerCode, i);
+			if(table[idx] < Short.MAX_VALUE) {
+				table[idx]++;
 			} else {
 				checkClusterMem(i,k);
 			}
 		}
 		if(!alternative) return;
-		DNAShortKmer newKmer = calculateRepresentativeKmer(k);
-		if(oldKmerStr.equals(newKmer.toString())) return;
+		long newKmer = calculateRepresentativeKmer(k);
+		if(oldKmer==newKmer) return;
 		consensusByClusterId[k] = newKmer;
 		index.remove(oldKmer);
 		index.put(newKmer, k);
 	}
-	
-	
-	
+
+
+
 	/**
 	 * Finds the kmer with the most likely sequence. (i.e. for each
 	 * char of the kmer, it looks at the cluster table to find the
 	 * nucleotide with most occurrences).
 	 * @param k
-	 * @return DNAShortKmer consensus
+	 * @return long code of the consensus
 	 */
-	private DNAShortKmer calculateRepresentativeKmer(int k) {
-		char[] consensus = new char[kmerLength];
-		
-		for(int i = 0; i < consensus.length; i++) {
+	private long calculateRepresentativeKmer(int k) {
+		long consensus = 0;
+		int row = k*kmerLength;
+		for(int i = 0; i < kmerLength; i++,row++) {
 			int max = 0;
-			for(int j = 0; j < DNASequence.BASES_STRING.length(); j++) {
-				short next = table[k*kmerLength + i][j];
+			int maxJ = 0;
+			for(int j = 0; j < NUM_BASES; j++) {
+				short next = table[row*NUM_BASES + j];
 				if(max <= next) {
-					consensus[i] = DNASequence.BASES_STRING.charAt(j);
+					maxJ = j;
 					max = next;
 				}
 			}
+			consensus = (consensus<<2) | maxJ;
 		}
-		return new DNAShortKmer(new String(consensus));
+		return consensus;
+	}
+	/**
+	 * @return int Upper bound for the ids of the clusters created by this map
+	 */
+	public int getClusterIdsLimit() {
+		return newIndex;
 	}
 	@Override
 	public int size() {
@@ -234,46 +284,53 @@ public class DNAShortKmerClusterMap implements KmersMap {
 	}
 	@Override
 	public int getCount(CharSequence seq) {
-		if (!(seq instanceof DNAShortKmer)) throw new IllegalArgumentException("This class only can process objects of the DNAShortKmer class");
-		DNAShortKmer kmer = (DNAShortKmer) seq;
-		Integer k = inexactSearchKmerCluster(kmer);
-		if(k != null) {
+		int k = inexactSearchKmerCluster(encode(seq));
+		if(k >= 0) {
 			return getCount(k);
 		}
 		return 0;
 	}
-	
+
 	/**
 	 * Counts the number of kmers in a given cluster by adding the number of
 	 * occurrences of each nucleotide
 	 * @param k
 	 * @return int count
 	 */
-	private int getCount(Integer k) {
+	private int getCount(int k) {
 		int count = 0;
-		for(int j = 0; j < table[k].length; j++) {
-			count += table[k*kmerLength][j];
+		int start = k*kmerLength*NUM_BASES;
+		for(int j = 0; j < NUM_BASES; j++) {
+			count += table[start+j];
 		}
 		return count;
 	}
 	@Override
 	public void filterKmers(int minAbundance) {
 		// TODO: Implement
-		
+
 	}
 	@Override
 	public Distribution calculateAbundancesDistribution() {
 		Distribution kmerSpectrum = new Distribution(1, 200, 1);
-		Iterator<Entry<DNAShortKmer, Integer>> it = index.entrySet().iterator();
-		while (it.hasNext()) {
-			Entry<DNAShortKmer, Integer> entry = it.next();
-			int k = entry.getValue();
-		    kmerSpectrum.processDatapoint(getCount(k));
+		for(int i=0;i<index.capacity();i++) {
+			int k = index.getValueAt(i);
+			if(k>=0) kmerSpectrum.processDatapoint(getCount(k));
 		}
 		return kmerSpectrum;
 	}
 	public Integer getCluster(DNAShortKmer kmer) {
-		return inexactSearchKmerCluster(kmer);
+		int k = inexactSearchKmerCluster(encode(kmer));
+		if(k<0) return null;
+		return k;
+	}
+	/**
+	 * Searches the cluster of the k-mer with the given code
+	 * @param kmerCode Code of the k-mer calculated with the encode method
+	 * @return int Cluster of the k-mer or -1 if the k-mer is not close to any cluster
+	 */
+	public int getCluster(long kmerCode) {
+		return inexactSearchKmerCluster(kmerCode);
 	}
 	/**
 	 * Disposes memory resources associated with this table
@@ -285,10 +342,11 @@ public class DNAShortKmerClusterMap implements KmersMap {
 
 	@Override
 	public void save(PrintStream out) {
-		Iterator<Entry<DNAShortKmer, Integer>> it = index.entrySet().iterator();
-		while (it.hasNext()) {
-			Entry<DNAShortKmer, Integer> entry = it.next();
-			out.println(entry.getKey().toString()+"\t"+entry.getValue());
+		for(int i=0;i<index.capacity();i++) {
+			int k = index.getValueAt(i);
+			if(k<0) continue;
+			long code = index.getKeyAt(i);
+			out.println(new String(AbstractLimitedSequence.getSequence(code, kmerLength, new DNASequence()))+"\t"+k);
 		}
 	}
 
@@ -299,3 +357,123 @@ public class DNAShortKmerClusterMap implements KmersMap {
 		return null;
 	}
 }
+/**
+ * Open addressing hash table from k-mer codes to cluster ids. Collisions are solved by linear probing
+ * and removals shift back the following entries, so no deleted markers are needed
+ */
+class PackedKmersIndex {
+	private static final long EMPTY = -1;
+	private static final double MAX_LOAD = 0.5;
+	private long [] keys;
+	private int [] values;
+	private int mask;
+	private int size = 0;
+
+	public PackedKmersIndex() {
+		allocate(1024);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		Arrays.fill(values, -1);
+		mask = capacity-1;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h>>>32)) & mask;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return keys.length;
+	}
+
+	public long getKeyAt(int i) {
+		return keys[i];
+	}
+
+	public int getValueAt(int i) {
+		return values[i];
+	}
+
+	/**
+	 * @param key Non negative key
+	 * @return int value associated with the key or -1 if the key is not present
+	 */
+	public int get(long key) {
+		int i = slot(key);
+		while(true) {
+			long next = keys[i];
+			if(next==key) return values[i];
+			if(next==EMPTY) return -1;
+			i = (i+1) & mask;
+		}
+	}
+
+	/**
+	 * Associates the given value with the given key replacing the current value if the key is already present
+	 * @param key Non negative key
+	 * @param value Non negative value
+	 */
+	public void put(long key, int value) {
+		int i = slot(key);
+		while(true) {
+			long next = keys[i];
+			if(next==key) {
+				values[i] = value;
+				return;
+			}
+			if(next==EMPTY) break;
+			i = (i+1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		size++;
+		if(size>MAX_LOAD*keys.length) rehash();
+	}
+
+	public void remove(long key) {
+		int i = slot(key);
+		while(true) {
+			long next = keys[i];
+			if(next==EMPTY) return;
+			if(next==key) break;
+			i = (i+1) & mask;
+		}
+		size--;
+		//Shift back entries that would become unreachable
+		int gap = i;
+		int j = i;
+		while(true) {
+			j = (j+1) & mask;
+			long next = keys[j];
+			if(next==EMPTY) break;
+			int home = slot(next);
+			//Move the entry if its home is not cyclically between the gap and its current position
+			boolean move = (gap<=j)?(home<=gap || home>j):(home<=gap && home>j);
+			if(move) {
+				keys[gap] = next;
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		keys[gap] = EMPTY;
+		values[gap] = -1;
+	}
+
+	private void rehash() {
+		long [] oldKeys = keys;
+		int [] oldValues = values;
+		allocate(2*oldKeys.length);
+		size = 0;
+		for(int i=0;i<oldKeys.length;i++) {
+			if(oldKeys[i]!=EMPTY) put(oldKeys[i], oldValues[i]);
+		}
+	}
+}
@@ -7,6 +7,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import ngsep.math.Distribution;
 
@@ -75,6 +76,13 @@ public class DefaultKmersMapImpl implements KmersMap {
 		
 	}
 
+	/**
+	 * @return Set<Entry<CharSequence, Short>> Entries of the map to iterate over k-mers and counts
+	 */
+	Set<Entry<CharSequence, Short>> getEntries() {
+		return kmersMap.entrySet();
+	}
+
 	@Override
 	public List<CharSequence> getKmersWithCount(int count) {
 		List<CharSequence> answer = new ArrayList<CharSequence>();
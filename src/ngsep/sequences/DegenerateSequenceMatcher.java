@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Precompiled matcher to search occurrences of a DNA sequence with degenerate bases within a sequence.
+ * Patterns of up to 64 bases are searched with the bit-parallel Shift-And algorithm.
+ * Longer patterns are searched with a regular expression
+ * @author Jorge Duitama
+ */
+public class DegenerateSequenceMatcher {
+	public static final int MAX_BIT_PARALLEL_LENGTH = 64;
+	private final String sequence;
+	//Bit masks of the positions of the pattern matching each character
+	private final long [] charMasks = new long[128];
+	private final long matchBit;
+	private final Pattern regexp;
+	
+	/**
+	 * Creates a matcher for the given sequence
+	 * @param degenerateSequence Sequence to search. It can include IUB codes for degenerate bases
+	 */
+	public DegenerateSequenceMatcher(String degenerateSequence) {
+		this.sequence = degenerateSequence;
+		int n = degenerateSequence.length();
+		if(n==0) throw new IllegalArgumentException("Sequence to search can not be empty");
+		if(n>MAX_BIT_PARALLEL_LENGTH) {
+			regexp = Pattern.compile(DegenerateSequence.makeRegularExpression(degenerateSequence));
+			matchBit = 0;
+			return;
+		}
+		regexp = null;
+		for(int i=0;i<n;i++) {
+			char degBase = degenerateSequence.charAt(i);
+			String extBases = DegenerateSequence.getExtendedBases(degBase);
+			if(extBases==null || extBases.length()==0) throw new IllegalArgumentException("Unrecognized degenerate base "+degBase+" in sequence "+degenerateSequence);
+			for(int j=0;j<extBases.length();j++) {
+				charMasks[extBases.charAt(j)] |= (1L<<i);
+			}
+		}
+		matchBit = 1L<<(n-1);
+	}
+	
+	/**
+	 * @return String Sequence searched by this matcher
+	 */
+	public String getSequence() {
+		return sequence;
+	}
+	
+	/**
+	 * Finds the first occurrence of the pattern within the given sequence
+	 * @param text Sequence to search
+	 * @return int Start of the first occurrence. -1 if the pattern does not occur in the sequence
+	 */
+	public int find(CharSequence text) {
+		if(regexp!=null) {
+			Matcher m = regexp.matcher(text);
+			if(m.find()) return m.start();
+			return -1;
+		}
+		int n = text.length();
+		long state = 0;
+		for(int i=0;i<n;i++) {
+			char c = text.charAt(i);
+			long mask = (c<charMasks.length)?charMasks[c]:0;
+			state = ((state<<1) | 1L) & mask;
+			//All occurrences have the same length. Then, the first end is also the first start
+			if((state & matchBit)!=0) return i-Long.numberOfTrailingZeros(matchBit);
+		}
+		return -1;
+	}
+}
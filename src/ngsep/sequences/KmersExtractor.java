@@ -69,6 +69,7 @@ public class KmersExtractor {
 	private byte inputFormat = INPUT_FORMAT_FASTQ;
 	private boolean freeText = false;
 	private boolean ignoreLowComplexity = false;
+	private boolean binaryOutput = false;
 	
 	// Model attributes
 	private KmersMap kmersMap = null;
@@ -157,6 +158,15 @@ public class KmersExtractor {
 	public void setIgnoreLowComplexity(Boolean ignoreLowComplexity) {
 		this.setIgnoreLowComplexity(ignoreLowComplexity.booleanValue());
 	}
+	public boolean isBinaryOutput() {
+		return binaryOutput;
+	}
+	public void setBinaryOutput(boolean binaryOutput) {
+		this.binaryOutput = binaryOutput;
+	}
+	public void setBinaryOutput(Boolean binaryOutput) {
+		this.setBinaryOutput(binaryOutput.booleanValue());
+	}
 	/**
 	 * @return the hashKmers
 	 */
@@ -203,6 +213,7 @@ public class KmersExtractor {
 		if (inputFormat == INPUT_FORMAT_FASTQ)  out.println("Fastq format");
 		if (inputFormat == INPUT_FORMAT_FASTA)  out.println("Fasta format");
 		if (ignoreLowComplexity) out.println("Ignore low complexity k-mers");
+		if (binaryOutput) out.println("Save k-mers in binary format");
 		log.info(os.toString());
 		
 	}
@@ -509,6 +520,11 @@ public class KmersExtractor {
 		}
 		kmersMap.filterKmers(minKmerCount);
 		log.info("Saving "+kmersMap.size()+" filtered k-mers with minimum count "+minKmerCount);
+		if(binaryOutput) {
+			KmersMapBinaryFileHandler handler = new KmersMapBinaryFileHandler();
+			handler.save(kmersMap, kmerLength, outputPrefix+"_kmers.bin");
+			return;
+		}
 		try (OutputStream os = new GZIPOutputStream(new FileOutputStream(outputPrefix+"_kmers.txt.gz"));
 			 PrintStream out = new PrintStream(os)) {
 			kmersMap.save(out);
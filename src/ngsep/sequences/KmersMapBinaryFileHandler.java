@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Loads and saves k-mer abundance maps in a compact binary format. The file starts with a header including
+ * a magic string, the format version, the k-mer length, the layout of the counts and the number of k-mers
+ * with counts larger than zero. In the dense layout, the counts of all 4^k k-mers follow as an array of
+ * shorts indexed by k-mer code. In the sparse layout, pairs of k-mer code (long) and count (short) follow,
+ * sorted by code. Codes are calculated with two bits per base pair as in ShortArrayDNAKmersMapImpl.
+ * All numbers are big endian. Files are loaded through memory mapped buffers.
+ * @author Jorge Duitama
+ */
+public class KmersMapBinaryFileHandler {
+	public static final String MAGIC = "NGSEPKMR";
+	public static final byte VERSION = 1;
+	public static final byte LAYOUT_DENSE = 0;
+	public static final byte LAYOUT_SPARSE = 1;
+	public static final int MAX_KMER_LENGTH = 31;
+	private static final int HEADER_LENGTH = MAGIC.length()+3+Long.BYTES;
+	private static final int SPARSE_RECORD_LENGTH = Long.BYTES+Short.BYTES;
+	//Maximum size of each memory mapped region
+	private static final int MAX_REGION_LENGTH = 1<<30;
+	
+	/**
+	 * Calculates the length of the k-mers stored in a map loaded by this handler
+	 * @param map K-mers map
+	 * @return int Length of the k-mers within the map. Zero if the map is empty and it does not store the k-mer length
+	 */
+	public static int getKmerLength(KmersMap map) {
+		if(map instanceof ShortArrayDNAKmersMapImpl) return ((ShortArrayDNAKmersMapImpl)map).getKmerLength();
+		if(map instanceof DefaultKmersMapImpl) {
+			for(Map.Entry<CharSequence, Short> entry:((DefaultKmersMapImpl)map).getEntries()) {
+				return entry.getKey().length();
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Checks if the given file starts with the header of the binary format
+	 * @param filename Name of the file to check
+	 * @return boolean true if the file is a binary k-mers map
+	 * @throws IOException If the file can not be read
+	 */
+	public static boolean isBinaryKmersMap(String filename) throws IOException {
+		byte [] magic = new byte [MAGIC.length()];
+		try (InputStream in = Files.newInputStream(Paths.get(filename))) {
+			int read = 0;
+			while(read<magic.length) {
+				int n = in.read(magic, read, magic.length-read);
+				if(n<0) return false;
+				read+=n;
+			}
+		}
+		return MAGIC.equals(new String(magic,"US-ASCII"));
+	}
+	
+	/**
+	 * Saves the given map in binary format. The dense layout is used if it produces a smaller file than the sparse layout
+	 * @param map K-mers map to save. It can only include DNA k-mers
+	 * @param kmerLength Length of the k-mers within the map
+	 * @param filename Name of the output file
+	 * @throws IOException If the file can not be written or if the map has k-mers that can not be encoded
+	 */
+	public void save(KmersMap map, int kmerLength, String filename) throws IOException {
+		if(kmerLength<=0 || kmerLength>MAX_KMER_LENGTH) throw new IOException("K-mer length "+kmerLength+" not supported by the binary format. Maximum: "+MAX_KMER_LENGTH);
+		if(map instanceof ShortArrayDNAKmersMapImpl) {
+			ShortArrayDNAKmersMapImpl arrayMap = (ShortArrayDNAKmersMapImpl) map;
+			if(arrayMap.getKmerLength()!=kmerLength) throw new IOException("Given k-mer length "+kmerLength+" is different from the k-mer length of the map "+arrayMap.getKmerLength());
+			short [] counts = arrayMap.getKmerCounts();
+			long size = map.size();
+			if(size*SPARSE_RECORD_LENGTH>=(long)counts.length*Short.BYTES) saveDense(counts, kmerLength, size, filename);
+			else saveSparse(counts, kmerLength, size, filename);
+		} else if (map instanceof DefaultKmersMapImpl) {
+			saveSparse((DefaultKmersMapImpl)map, kmerLength, filename);
+		} else {
+			throw new IOException("Binary format not supported for k-mer maps of type "+map.getClass().getName());
+		}
+	}
+	
+	private void saveDense(short [] counts, int kmerLength, long size, String filename) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(channel, buildHeader(kmerLength, LAYOUT_DENSE, size));
+			ByteBuffer buffer = ByteBuffer.allocate(1<<20);
+			int chunk = buffer.capacity()/Short.BYTES;
+			for(int i=0;i<counts.length;i+=chunk) {
+				buffer.clear();
+				buffer.asShortBuffer().put(counts, i, Math.min(chunk, counts.length-i));
+				buffer.limit(Math.min(chunk, counts.length-i)*Short.BYTES);
+				writeFully(channel, buffer);
+			}
+		}
+	}
+	
+	private void saveSparse(short [] counts, int kmerLength, long size, String filename) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(channel, buildHeader(kmerLength, LAYOUT_SPARSE, size));
+			ByteBuffer buffer = ByteBuffer.allocate(SPARSE_RECORD_LENGTH*100000);
+			for(int i=0;i<counts.length;i++) {
+				if(counts[i]<=0) continue;
+				if(buffer.remaining()<SPARSE_RECORD_LENGTH) {
+					buffer.flip();
+					writeFully(channel, buffer);
+					buffer.clear();
+				}
+				buffer.putLong(i);
+				buffer.putShort(counts[i]);
+			}
+			buffer.flip();
+			writeFully(channel, buffer);
+		}
+	}
+	
+	private void saveSparse(DefaultKmersMapImpl map, int kmerLength, String filename) throws IOException {
+		//Encode the k-mers and sort the codes keeping the counts aligned
+		int n = map.size();
+		long [] codes = new long[n];
+		short [] counts = new short[n];
+		int i = 0;
+		for(Map.Entry<CharSequence, Short> entry:map.getEntries()) {
+			CharSequence kmer = entry.getKey();
+			if(kmer.length()!=kmerLength) throw new IOException("K-mer "+kmer+" has a length different than "+kmerLength);
+			if(!DNASequence.isDNA(kmer)) throw new IOException("K-mer "+kmer+" can not be stored in binary format because it is not a DNA sequence");
+			codes[i] = AbstractLimitedSequence.getHash(kmer, 0, kmerLength, DNASequence.EMPTY_DNA_SEQUENCE);
+			counts[i] = entry.getValue();
+			i++;
+		}
+		long [] sortedCodes = Arrays.copyOf(codes, n);
+		Arrays.sort(sortedCodes);
+		short [] sortedCounts = new short[n];
+		for(i=0;i<n;i++) sortedCounts[Arrays.binarySearch(sortedCodes, codes[i])] = counts[i];
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(channel, buildHeader(kmerLength, LAYOUT_SPARSE, n));
+			ByteBuffer buffer = ByteBuffer.allocate(SPARSE_RECORD_LENGTH*100000);
+			for(i=0;i<n;i++) {
+				if(buffer.remaining()<SPARSE_RECORD_LENGTH) {
+					buffer.flip();
+					writeFully(channel, buffer);
+					buffer.clear();
+				}
+				buffer.putLong(sortedCodes[i]);
+				buffer.putShort(sortedCounts[i]);
+			}
+			buffer.flip();
+			writeFully(channel, buffer);
+		}
+	}
+	
+	private ByteBuffer buildHeader(int kmerLength, byte layout, long size) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.put(MAGIC.getBytes("US-ASCII"));
+		header.put(VERSION);
+		header.put((byte)kmerLength);
+		header.put(layout);
+		header.putLong(size);
+		header.flip();
+		return header;
+	}
+	
+	private void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) channel.write(buffer);
+	}
+	
+	/**
+	 * Loads a k-mers map from the given binary file. K-mers up to 15 bp are loaded in a ShortArrayDNAKmersMapImpl.
+	 * Longer k-mers are loaded in a DefaultKmersMapImpl
+	 * @param filename Name of the file to load
+	 * @return KmersMap Map with the k-mers and the counts stored in the file
+	 * @throws IOException If the file can not be read or if it does not have the expected format
+	 */
+	public KmersMap load(String filename) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+			 FileChannel channel = file.getChannel()) {
+			long fileLength = channel.size();
+			if(fileLength<HEADER_LENGTH) throw new IOException("File "+filename+" is too short to be a binary k-mers map");
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+			byte [] magic = new byte[MAGIC.length()];
+			header.get(magic);
+			if(!MAGIC.equals(new String(magic,"US-ASCII"))) throw new IOException("File "+filename+" is not a binary k-mers map");
+			byte version = header.get();
+			if(version!=VERSION) throw new IOException("Unsupported version "+version+" of binary k-mers map in file "+filename);
+			int kmerLength = header.get();
+			byte layout = header.get();
+			long size = header.getLong();
+			if(kmerLength<=0 || kmerLength>MAX_KMER_LENGTH) throw new IOException("Invalid k-mer length "+kmerLength+" in file "+filename);
+			if(layout==LAYOUT_DENSE) return loadDense(channel, kmerLength, fileLength, filename);
+			if(layout==LAYOUT_SPARSE) return loadSparse(channel, kmerLength, size, fileLength, filename);
+			throw new IOException("Invalid layout "+layout+" in file "+filename);
+		}
+	}
+	
+	private KmersMap loadDense(FileChannel channel, int kmerLength, long fileLength, String filename) throws IOException {
+		if(kmerLength>15) throw new IOException("Dense layout with k-mer length "+kmerLength+" in file "+filename);
+		int numCodes = (int) Math.pow(4, kmerLength);
+		if(fileLength!=HEADER_LENGTH+(long)numCodes*Short.BYTES) throw new IOException("Unexpected length "+fileLength+" of file "+filename+" for "+numCodes+" counts");
+		short [] counts = new short[numCodes];
+		int regionCounts = MAX_REGION_LENGTH/Short.BYTES;
+		for(int i=0;i<numCodes;i+=regionCounts) {
+			int n = Math.min(regionCounts, numCodes-i);
+			MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH+(long)i*Short.BYTES, (long)n*Short.BYTES);
+			region.asShortBuffer().get(counts, i, n);
+		}
+		return new ShortArrayDNAKmersMapImpl((byte)kmerLength, counts);
+	}
+	
+	private KmersMap loadSparse(FileChannel channel, int kmerLength, long size, long fileLength, String filename) throws IOException {
+		if(fileLength!=HEADER_LENGTH+size*SPARSE_RECORD_LENGTH) throw new IOException("Unexpected length "+fileLength+" of file "+filename+" for "+size+" k-mers");
+		short [] counts = null;
+		KmersMap map;
+		if(kmerLength<=15) {
+			counts = new short[(int) Math.pow(4, kmerLength)];
+			map = null;
+		} else {
+			map = new DefaultKmersMapImpl();
+		}
+		long regionRecords = MAX_REGION_LENGTH/SPARSE_RECORD_LENGTH;
+		for(long i=0;i<size;i+=regionRecords) {
+			long n = Math.min(regionRecords, size-i);
+			MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH+i*SPARSE_RECORD_LENGTH, n*SPARSE_RECORD_LENGTH);
+			for(long j=0;j<n;j++) {
+				long code = region.getLong();
+				short count = region.getShort();
+				if(counts!=null) {
+					if(code<0 || code>=counts.length) throw new IOException("Invalid k-mer code "+code+" in file "+filename);
+					counts[(int)code] = count;
+				} else {
+					map.setCount(new String(AbstractLimitedSequence.getSequence(code, kmerLength, DNASequence.EMPTY_DNA_SEQUENCE)), count);
+				}
+			}
+		}
+		if(counts!=null) return new ShortArrayDNAKmersMapImpl((byte)kmerLength, counts);
+		return map;
+	}
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+/**
+ * View of a segment of one read in a PackedDNAReadsStore, optionally reverse complemented
+ * @author Jorge Duitama
+ */
+class PackedDNAReadView implements CharSequence {
+	private final PackedDNAReadsStore store;
+	private final int readIdx;
+	//Start of the segment in forward coordinates of the read
+	private final int start;
+	private final int length;
+	private final boolean reverse;
+
+	PackedDNAReadView(PackedDNAReadsStore store, int readIdx, int start, int length, boolean reverse) {
+		this.store = store;
+		this.readIdx = readIdx;
+		this.start = start;
+		this.length = length;
+		this.reverse = reverse;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if(index<0 || index>=length) throw new StringIndexOutOfBoundsException(index);
+		if(reverse) return store.getComplementBase(readIdx, start+length-1-index);
+		return store.getBase(readIdx, start+index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if(start<0 || end>length || start>end) throw new StringIndexOutOfBoundsException("Invalid limits "+start+" - "+end+" for sequence of length "+length);
+		if(reverse) return new PackedDNAReadView(store, readIdx, this.start+length-end, end-start, true);
+		return new PackedDNAReadView(store, readIdx, this.start+start, end-start, false);
+	}
+
+	/**
+	 * @return CharSequence Reverse complement view of this sequence
+	 */
+	CharSequence getReverseComplement() {
+		return new PackedDNAReadView(store, readIdx, start, length, !reverse);
+	}
+
+	@Override
+	public String toString() {
+		char [] answer = new char[length];
+		for(int i=0;i<length;i++) answer[i] = charAt(i);
+		return new String(answer);
+	}
+}
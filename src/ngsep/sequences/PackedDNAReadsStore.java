@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.util.Arrays;
+
+/**
+ * Stores a large number of DNA reads in blocks of long integers using two bits per base pair.
+ * Characters different than A, C, G and T are stored as exceptions sorted by position within each read.
+ * Other characters not included in the alphabet of DNAMaskedSequence are stored as N.
+ * Reads are retrieved as CharSequence views over the store, including reverse complement views, so no copies are made.
+ * Reads can not be modified after they are added. Adding reads is not thread safe but views can be shared between threads
+ * @author Jorge Duitama
+ */
+public class PackedDNAReadsStore {
+	private static final char [] BASES = {'A','C','G','T'};
+	//Default number of long integers per block (128MB). Each long stores 32 base pairs
+	public static final int DEFAULT_BLOCK_BITS = 24;
+	private final int blockBits;
+	private final int blockSize;
+	private final int blockMask;
+
+	private long [][] blocks = new long [1][16];
+	private long totalLength = 0;
+	private long [] readStarts = new long [17];
+	private int numReads = 0;
+
+	//Exceptions of read i are stored between exceptionStarts[i] and exceptionStarts[i+1]
+	private int [] exceptionStarts = new int [17];
+	private int [] exceptionPositions = new int [16];
+	private char [] exceptionChars = new char [16];
+	private int numExceptions = 0;
+
+	/**
+	 * Creates an empty store with blocks of the default size
+	 */
+	public PackedDNAReadsStore() {
+		this(DEFAULT_BLOCK_BITS);
+	}
+
+	/**
+	 * Creates an empty store with blocks of 2^blockBits long integers
+	 * @param blockBits Logarithm in base two of the number of long integers of each block. Must be between 4 and 30
+	 */
+	public PackedDNAReadsStore(int blockBits) {
+		if(blockBits<4 || blockBits>30) throw new IllegalArgumentException("Invalid number of bits for blocks: "+blockBits+". It must be between 4 and 30");
+		this.blockBits = blockBits;
+		this.blockSize = 1<<blockBits;
+		this.blockMask = blockSize-1;
+	}
+
+	/**
+	 * Adds a read to the store
+	 * @param read Sequence to add
+	 * @return int Index of the new read
+	 */
+	public int add(CharSequence read) {
+		int n = read.length();
+		if(numReads+1 == readStarts.length) {
+			readStarts = Arrays.copyOf(readStarts, 2*readStarts.length);
+			exceptionStarts = Arrays.copyOf(exceptionStarts, 2*exceptionStarts.length);
+		}
+		ensureCapacity(totalLength+n);
+		long start = totalLength;
+		for(int i=0;i<n;i++) {
+			char c = read.charAt(i);
+			int code = encode(c);
+			if(code<0) {
+				addException(i, c);
+				code = 0;
+			}
+			long pos = start+i;
+			long [] block = blocks[(int)(pos>>>(5+blockBits))];
+			int wordIdx = (int)((pos>>>5)&blockMask);
+			block[wordIdx] |= ((long)code)<<(2*(pos&31));
+		}
+		totalLength+=n;
+		numReads++;
+		readStarts[numReads] = totalLength;
+		exceptionStarts[numReads] = numExceptions;
+		return numReads-1;
+	}
+
+	private static int encode(char c) {
+		switch (c) {
+		case 'A': return 0;
+		case 'C': return 1;
+		case 'G': return 2;
+		case 'T': return 3;
+		default: return -1;
+		}
+	}
+
+	private void addException(int position, char c) {
+		if(DNAMaskedSequence.BASES.indexOf(c)<0) c = 'N';
+		if(numExceptions == exceptionPositions.length) {
+			exceptionPositions = Arrays.copyOf(exceptionPositions, 2*numExceptions);
+			exceptionChars = Arrays.copyOf(exceptionChars, 2*numExceptions);
+		}
+		exceptionPositions[numExceptions] = position;
+		exceptionChars[numExceptions] = c;
+		numExceptions++;
+	}
+
+	private void ensureCapacity(long length) {
+		long words = (length+31)>>>5;
+		if(words==0) return;
+		int lastBlock = (int)((words-1)>>>blockBits);
+		if(lastBlock>=blocks.length) blocks = Arrays.copyOf(blocks, Math.max(lastBlock+1, 2*blocks.length));
+		//Blocks before the block of the last stored base pair are already complete
+		long usedWords = (totalLength+31)>>>5;
+		int firstBlock = (usedWords==0)?0:(int)((usedWords-1)>>>blockBits);
+		for(int i=firstBlock;i<=lastBlock;i++) {
+			int required = (i<lastBlock)?blockSize:(int)(words-((long)lastBlock<<blockBits));
+			long [] block = blocks[i];
+			if(block==null) blocks[i] = new long[Math.max(16, required)];
+			else if (block.length<required) blocks[i] = Arrays.copyOf(block, (int)Math.min(blockSize, Math.max(required, 2L*block.length)));
+		}
+	}
+
+	/**
+	 * @return int Number of reads in the store
+	 */
+	public int size() {
+		return numReads;
+	}
+
+	/**
+	 * @return long Total number of base pairs in the store
+	 */
+	public long getTotalLength() {
+		return totalLength;
+	}
+
+	/**
+	 * @param readIdx Index of the read
+	 * @return int Length of the read
+	 */
+	public int getLength(int readIdx) {
+		return (int)(readStarts[readIdx+1]-readStarts[readIdx]);
+	}
+
+	/**
+	 * @param readIdx Index of the read
+	 * @return CharSequence View of the read with the given index
+	 */
+	public CharSequence getSequence(int readIdx) {
+		return new PackedDNAReadView(this, readIdx, 0, getLength(readIdx), false);
+	}
+
+	/**
+	 * @param readIdx Index of the read
+	 * @return CharSequence View of the reverse complement of the read with the given index
+	 */
+	public CharSequence getReverseComplement(int readIdx) {
+		return new PackedDNAReadView(this, readIdx, 0, getLength(readIdx), true);
+	}
+
+	/**
+	 * @return long Approximate number of bytes used by this store
+	 */
+	public long getMemoryUsage() {
+		long answer = 8L*readStarts.length + 4L*exceptionStarts.length + 6L*exceptionPositions.length;
+		for(long [] block:blocks) if(block!=null) answer+=8L*block.length;
+		return answer;
+	}
+
+	char getBase(int readIdx, int position) {
+		int firstException = exceptionStarts[readIdx];
+		int lastException = exceptionStarts[readIdx+1];
+		if(firstException<lastException) {
+			int idx = Arrays.binarySearch(exceptionPositions, firstException, lastException, position);
+			if(idx>=0) return exceptionChars[idx];
+		}
+		return BASES[getCode(readStarts[readIdx]+position)];
+	}
+
+	char getComplementBase(int readIdx, int position) {
+		int firstException = exceptionStarts[readIdx];
+		int lastException = exceptionStarts[readIdx+1];
+		if(firstException<lastException) {
+			int idx = Arrays.binarySearch(exceptionPositions, firstException, lastException, position);
+			if(idx>=0) return DNAMaskedSequence.getComplement(exceptionChars[idx]);
+		}
+		return BASES[3-getCode(readStarts[readIdx]+position)];
+	}
+
+	private int getCode(long pos) {
+		long word = blocks[(int)(pos>>>(5+blockBits))][(int)((pos>>>5)&blockMask)];
+		return (int)(word>>>(2*(pos&31)))&3;
+	}
+}
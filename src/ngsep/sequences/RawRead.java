@@ -81,6 +81,20 @@ public class RawRead extends QualifiedSequence {
 		}
 		return false;
 	}
+	/**
+	 * Trims the end of the read starting from the first appearance of the sequence searched by the given matcher
+	 * @param matcher Precompiled matcher of the sequence to trim reads
+	 * @return boolean true if the read was trimmed
+	 */
+	public boolean trimFromSequence(DegenerateSequenceMatcher matcher) {
+		if(matcher==null) return false;
+		int start = matcher.find(getCharacters());
+		if(start>=0) {
+			trimToLength(start);
+			return true;
+		}
+		return false;
+	}
 	public void trimToLength(int newLength) {
 		String sequence = getSequenceString();
 		if(newLength<sequence.length()) {
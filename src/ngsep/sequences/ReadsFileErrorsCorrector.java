@@ -29,14 +29,17 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
+import ngsep.main.ThreadPoolManager;
 import ngsep.main.io.ConcatGZIPInputStream;
 import ngsep.math.Distribution;
 import ngsep.sequences.io.FastqFileReader;
@@ -53,6 +56,9 @@ public class ReadsFileErrorsCorrector {
 	public static final int DEF_MIN_KMER_COUNT = KmersExtractor.DEF_MIN_KMER_COUNT;
 	public static final byte INPUT_FORMAT_FASTQ=KmersExtractor.INPUT_FORMAT_FASTQ;
 	public static final byte INPUT_FORMAT_FASTA=KmersExtractor.INPUT_FORMAT_FASTA;
+	public static final int DEF_NUM_THREADS = 1;
+	//Number of reads corrected by each task
+	private static final int BATCH_SIZE = 1000;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(ReadsFileErrorsCorrector.class.getName());
@@ -66,12 +72,16 @@ public class ReadsFileErrorsCorrector {
 	private int minKmerCount = DEF_MIN_KMER_COUNT;
 	private boolean onlyForwardStrand=false;
 	private byte inputFormat = INPUT_FORMAT_FASTQ;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	
 	// Model attributes
 	private KmersMap kmersMap;
 	private DeBruijnGraphExplorationMiniAssembler assembler;
 	private int correctedErrors = 0;
+	private int numReads = 0;
+	private long numBp = 0;
+	private long mbp = 0;
 	
 	// Get and set methods
 	public Logger getLog() {
@@ -146,6 +156,17 @@ public class ReadsFileErrorsCorrector {
 	public void setInputFormat(String value) {
 		this.setInputFormat((byte) OptionValuesDecoder.decode(value, Byte.class));
 	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads must be a positive number. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
 
 	public static void main(String[] args) throws Exception {
 		ReadsFileErrorsCorrector instance = new ReadsFileErrorsCorrector();
@@ -180,6 +201,7 @@ public class ReadsFileErrorsCorrector {
 		if (onlyForwardStrand) out.println("Extract k-mers only from the forward strand");
 		if (inputFormat == INPUT_FORMAT_FASTQ)  out.println("Fastq format");
 		if (inputFormat == INPUT_FORMAT_FASTA)  out.println("Fasta format");
+		out.println("Number of threads: "+ numThreads);
 		log.info(os.toString());
 		
 	}
@@ -195,53 +217,109 @@ public class ReadsFileErrorsCorrector {
 		log.info("The Map now has "+kmersMap.size()+" k-mers");
 		assembler = new DeBruijnGraphExplorationMiniAssembler(kmersMap,minKmerCount);
 		System.out.println("Processing file: "+inFilename);
-		int numReads=0;
-		long numBp = 0;
-		long mbp = 0;
-		if(inputFormat==INPUT_FORMAT_FASTQ) {
-			try (FastqFileReader reader = new FastqFileReader(inFilename);
-				 OutputStream os = new GZIPOutputStream(new FileOutputStream(outFilename));
-				 PrintStream out = new PrintStream(os)) {
-				Iterator<RawRead> it = reader.iterator();
-				while (it.hasNext()) {
-					RawRead read = it.next();
-					processRead (read);
-					read.save(out);
-					numReads++;
-					numBp+=read.getLength();
-					if(mbp<numBp/1000000) {
-						mbp = numBp/1000000;
-						log.info("Processed "+numReads+" reads and "+mbp+" Mbp. Corrected "+correctedErrors+" potential errors");
+		numReads=0;
+		numBp = 0;
+		mbp = 0;
+		//The k-mers map is not modified from this point. Hence, batches of reads can be corrected in parallel
+		//Each task compresses its own output if more than one thread is used. Concatenated gzip members form a valid gzip file
+		ThreadPoolManager pool = null;
+		if(numThreads>1) pool = new ThreadPoolManager(numThreads, numThreads);
+		List<RawRead> batch = new ArrayList<>(BATCH_SIZE);
+		try (OutputStream os = (pool==null)?new GZIPOutputStream(new FileOutputStream(outFilename)):new FileOutputStream(outFilename)) {
+			if(inputFormat==INPUT_FORMAT_FASTQ) {
+				try (FastqFileReader reader = new FastqFileReader(inFilename)) {
+					Iterator<RawRead> it = reader.iterator();
+					while (it.hasNext()) {
+						batch.add(it.next());
+						if(batch.size()==BATCH_SIZE) {
+							processBatch(batch, pool, os);
+							batch = new ArrayList<>(BATCH_SIZE);
+						}
 					}
 				}
-			}
-		} else if (inputFormat==INPUT_FORMAT_FASTA) {
-			try (FileReader reader = new FileReader(inFilename);
-				 BufferedReader in = new BufferedReader(reader);
-				 OutputStream os = new GZIPOutputStream(new FileOutputStream(outFilename));
-				 PrintStream out = new PrintStream(os)) {
-				 String line = in.readLine();
-				 while (line!=null) {	
-					String readName = line.substring(1);
-					String readSeq = in.readLine();
-					RawRead read = new RawRead(readName, readSeq, RawRead.generateFixedQSString('5', readSeq.length()));
-					processRead (read);
-					read.save(out);
-					numReads++;
-					numBp+=read.getLength();
-					if(mbp<numBp/1000000) {
-						mbp = numBp/1000000;
-						log.info("Processed "+numReads+" reads and "+mbp+" Mbp. Corrected "+correctedErrors+" potential errors");
+			} else if (inputFormat==INPUT_FORMAT_FASTA) {
+				try (FileReader reader = new FileReader(inFilename);
+					 BufferedReader in = new BufferedReader(reader)) {
+					 String line = in.readLine();
+					 while (line!=null) {	
+						String readName = line.substring(1);
+						String readSeq = in.readLine();
+						batch.add(new RawRead(readName, readSeq, RawRead.generateFixedQSString('5', readSeq.length())));
+						if(batch.size()==BATCH_SIZE) {
+							processBatch(batch, pool, os);
+							batch = new ArrayList<>(BATCH_SIZE);
+						}
+						line = in.readLine();	
 					}
-					line = in.readLine();	
 				}
 			}
+			if(batch.size()>0) processBatch(batch, pool, os);
+			if(pool!=null) pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		}
 		log.info("Processed "+numReads+" reads and "+mbp+" Mbp. Corrected "+correctedErrors+" potential errors. Output written to "+outFilename);
 	}
+	
+	private void processBatch(List<RawRead> batch, ThreadPoolManager pool, OutputStream out) throws IOException, InterruptedException {
+		if(pool==null) {
+			saveBatch(correctBatch(batch, false), out);
+		} else {
+			pool.queueTask(()->correctBatch(batch, true), (result)->saveBatch(result, out));
+		}
+	}
+	
+	/**
+	 * Corrects a batch of reads and formats the corrected reads
+	 * @param batch Reads to correct
+	 * @param compress Tells if the formatted reads should be compressed
+	 * @return CorrectedReadsBatch Formatted reads and statistics of the batch
+	 * @throws IOException If the reads can not be formatted
+	 */
+	private CorrectedReadsBatch correctBatch(List<RawRead> batch, boolean compress) throws IOException {
+		CorrectedReadsBatch result = new CorrectedReadsBatch();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		OutputStream os = compress?new GZIPOutputStream(buffer):buffer;
+		try (PrintStream out = new PrintStream(os)) {
+			for(RawRead read:batch) {
+				result.correctedErrors+=processReadDeBruijnExploration(read, assembler);
+				read.save(out);
+				result.numBp+=read.getLength();
+			}
+		}
+		result.numReads = batch.size();
+		result.data = buffer.toByteArray();
+		return result;
+	}
+	
+	private void saveBatch(CorrectedReadsBatch result, OutputStream out) {
+		try {
+			out.write(result.data);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		correctedErrors+=result.correctedErrors;
+		numReads+=result.numReads;
+		numBp+=result.numBp;
+		if(mbp<numBp/1000000) {
+			mbp = numBp/1000000;
+			log.info("Processed "+numReads+" reads and "+mbp+" Mbp. Corrected "+correctedErrors+" potential errors");
+		}
+	}
 
 	private void loadKmersMap() throws IOException {
 		log.info("Loading k-mers map from : "+kmersMapFile);
+		if(KmersMapBinaryFileHandler.isBinaryKmersMap(kmersMapFile)) {
+			KmersMapBinaryFileHandler handler = new KmersMapBinaryFileHandler();
+			kmersMap = handler.load(kmersMapFile);
+			int mapKmerLength = KmersMapBinaryFileHandler.getKmerLength(kmersMap);
+			if(mapKmerLength>0 && mapKmerLength!=kmerLength) {
+				log.warning("K-mer length "+kmerLength+" is different from the k-mer length in the binary k-mers map: "+mapKmerLength+". Using the k-mer length of the map");
+				kmerLength = mapKmerLength;
+			}
+			System.out.println("Extracted "+kmersMap.size()+" k-mers from: " + kmersMapFile);
+			return;
+		}
 		if(kmerLength<=15) kmersMap = new ShortArrayDNAKmersMapImpl((byte) kmerLength);
 		else kmersMap = new DefaultKmersMapImpl();
 		try (FileInputStream fis = new FileInputStream(kmersMapFile)) {
@@ -282,6 +360,16 @@ public class ReadsFileErrorsCorrector {
 		processReadDeBruijnExploration (read);
 	}
 	public void processReadDeBruijnExploration(RawRead read) {
+		correctedErrors+=processReadDeBruijnExploration(read, assembler);
+	}
+	/**
+	 * Corrects the given read exploring the de Bruijn graph of the k-mers map between k-mers with high counts
+	 * @param read Read to correct. It is modified if errors are corrected
+	 * @param assembler Mini assembler to explore the graph. Different threads can share the assembler because it only queries the k-mers map
+	 * @return int number of corrected errors
+	 */
+	private int processReadDeBruijnExploration(RawRead read, DeBruijnGraphExplorationMiniAssembler assembler) {
+		int readCorrectedErrors = 0;
 		String readStr = read.getCharacters().toString();
 		String rq = read.getQualityScores();
 		StringBuilder correctedRead = new StringBuilder();
@@ -315,7 +403,7 @@ public class ReadsFileErrorsCorrector {
 					int segmentLength = correctedSegment.length();
 					//System.out.println("Corrected segment length "+segmentLength);
 					if(segmentLength!=regionLength || !correctedSegment.equals(readStr.substring(lastRepresented+kmerLength, i))) {
-						correctedErrors++;
+						readCorrectedErrors++;
 						corrected = true;
 					}
 					correctedRead.append(correctedSegment);
@@ -340,7 +428,7 @@ public class ReadsFileErrorsCorrector {
 			String assembly = assembler.assemble(readKmers[lastRepresented].toString(), null, kmerLength+1, expectedAssemblyLength, expectedAssemblyLength);
 			if(assembly!=null && assembly.length()>kmerLength ) {
 				corrected = true;
-				correctedErrors++;
+				readCorrectedErrors++;
 				String correctedRegion = assembly.substring(kmerLength); 
 				correctedRead.append(correctedRegion);
 				correctedQualities.append(RawRead.generateFixedQSString('+', correctedRegion.length()));
@@ -354,7 +442,7 @@ public class ReadsFileErrorsCorrector {
 			read.setCharacters(correctedRead);
 			read.setQualityScores(correctedQualities.toString());
 		}
-		
+		return readCorrectedErrors;
 	}
 
 	public void processReadBestSNPChange(RawRead read) {
@@ -435,5 +523,13 @@ public class ReadsFileErrorsCorrector {
 	}
 
 }
-
-
+/**
+ * Corrected reads and statistics of a batch of reads
+ */
+class CorrectedReadsBatch {
+	//Corrected reads in fastq format
+	byte [] data;
+	int numReads = 0;
+	long numBp = 0;
+	int correctedErrors = 0;
+}
@@ -22,6 +22,29 @@ public class ShortArrayDNAKmersMapImpl implements KmersMap {
 		Arrays.fill(kmerCounts, (short)0);
 	}
 	
+	/**
+	 * Creates a map with the given array of counts indexed by k-mer code
+	 * @param kmerLength Length of the k-mers
+	 * @param kmerCounts Counts of the k-mers. The length should be 4^kmerLength
+	 */
+	ShortArrayDNAKmersMapImpl( byte kmerLength, short [] kmerCounts) {
+		if(kmerLength>15) throw new IllegalArgumentException("The kmer length must be less or equal than 15");
+		if(kmerCounts.length!=(int)Math.pow(4, kmerLength)) throw new IllegalArgumentException("Unexpected number of counts "+kmerCounts.length+" for k-mer length "+kmerLength);
+		this.kmerLength = kmerLength;
+		this.kmerCounts = kmerCounts;
+		for(int i=0;i<kmerCounts.length;i++) {
+			if(kmerCounts[i]>0) size++;
+		}
+	}
+	
+	public byte getKmerLength() {
+		return kmerLength;
+	}
+	
+	short [] getKmerCounts() {
+		return kmerCounts;
+	}
+	
 	@Override
 	public int size() {
 		return size;
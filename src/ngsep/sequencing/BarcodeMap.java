@@ -25,11 +25,14 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 
 import ngsep.sequences.DNASequence;
 
 /**
+ * Map from barcodes to sample ids. Barcodes are searched as prefixes of the reads using tries built from
+ * the barcodes expected in the first and in the second read. If more than one barcode is a prefix of a read,
+ * the longest barcode is selected. Optionally, barcodes can be matched with one mismatch if only one barcode
+ * can be matched in this way
  * @author Jorge Duitama
  */
 public class BarcodeMap {
@@ -37,27 +40,44 @@ public class BarcodeMap {
 	private Map<String, String> barcodeSampleMap = new HashMap<>();
 	private Set<String> barcodes1 = new HashSet<>();
 	private Set<String> barcodes2 = new HashSet<>();
+	private int maxMismatches = 0;
 	
-	//Sorted list of barcodes
-	private String [] sortedBarcodes;
-	private int [] [] ntPairFirsts = new int[4][4];
-	private int [] [] ntPairLasts = new int[4][4];
+	//Tries of barcodes expected in the first and in the second read
+	private volatile BarcodesTrie [] tries = null;
 	
 	public void addSingleBarcode(String barcode, String sampleId) throws IOException {
 		String oldSample = barcodeSampleMap.get(barcode);
 		if(oldSample!=null && !oldSample.equals(sampleId)) throw new IOException("Barcode "+barcode+" already registered with a sample "+oldSample+" different from: "+sampleId);
+		if(!DNASequence.isDNA(barcode)) throw new IOException("Barcode "+barcode+" of sample "+sampleId+" is not a DNA sequence");
 		barcodeSampleMap.put(barcode, sampleId);
 		barcodes1.add(barcode);
-		sortedBarcodes=null;
+		tries=null;
 	}
 	public void addDualBarcode(String barcode1, String barcode2, String sampleId) throws IOException {
 		String dualKey = buildDualKey(barcode1,barcode2);
 		String oldSample = barcodeSampleMap.get(dualKey);
 		if(oldSample!=null && !oldSample.equals(sampleId)) throw new IOException("Barcode pair"+barcode1+" - "+barcode2+" already registered with a sample "+oldSample+" different from: "+sampleId);
+		if(!DNASequence.isDNA(barcode1) || !DNASequence.isDNA(barcode2)) throw new IOException("Barcode pair "+barcode1+" - "+barcode2+" of sample "+sampleId+" has non DNA characters");
 		barcodeSampleMap.put(dualKey, sampleId);
 		barcodes1.add(barcode1);
 		barcodes2.add(barcode2);
-		sortedBarcodes=null;
+		tries=null;
+	}
+	
+	/**
+	 * @return int Maximum number of mismatches allowed to match a barcode
+	 */
+	public int getMaxMismatches() {
+		return maxMismatches;
+	}
+	/**
+	 * Changes the maximum number of mismatches allowed to match a barcode. Barcodes are matched with one mismatch
+	 * only if no barcode matches exactly and only one barcode matches with one mismatch
+	 * @param maxMismatches Maximum number of mismatches. It can be zero or one
+	 */
+	public void setMaxMismatches(int maxMismatches) {
+		if(maxMismatches<0 || maxMismatches>1) throw new IllegalArgumentException("Maximum number of mismatches to match barcodes can only be zero or one");
+		this.maxMismatches = maxMismatches;
 	}
 	private String buildDualKey(String barcode1, String barcode2) {
 		return barcode1+"_"+barcode2;
@@ -81,30 +101,21 @@ public class BarcodeMap {
 		answer[2] = findBarcode(read2,(byte)2);
 		if(answer[1]!=null && answer[2]!=null) {
 			answer[0] = barcodeSampleMap.get(buildDualKey(answer[1], answer[2]));
+			//The two barcodes could be found but not as a registered pair
+			if(answer[0]==null) return null;
 		} else {
 			return null;
 		}
 		return answer;
 	}
 	
-	private void initBarcodeSortedList() {
-		Set<String> allBarcodes = new TreeSet<>();
-		allBarcodes.addAll(barcodes1);
-		allBarcodes.addAll(barcodes2);
-		
-		sortedBarcodes = allBarcodes.toArray(new String[0]);
-		for(int i=0;i<ntPairFirsts.length;i++) {
-			Arrays.fill(ntPairFirsts[i], -1);
-			Arrays.fill(ntPairLasts[i], -1);
-		}
-		String alphabet = DNASequence.BASES_STRING;
-		for (int k=0;k<sortedBarcodes.length;k++) {
-			String barcode = sortedBarcodes[k];
-			int i = alphabet.indexOf(barcode.charAt(0));
-			int j = alphabet.indexOf(barcode.charAt(1));
-			if(ntPairFirsts[i][j]==-1)ntPairFirsts[i][j] = k;
-			ntPairLasts[i][j] = k;
-		}
+	private synchronized BarcodesTrie [] initTries() {
+		if(tries!=null) return tries;
+		BarcodesTrie [] answer = new BarcodesTrie[2];
+		answer[0] = new BarcodesTrie(barcodes1);
+		answer[1] = new BarcodesTrie(barcodes2);
+		tries = answer;
+		return answer;
 	}
 	/**
 	 * Finds the barcode matching the given sequence
@@ -112,27 +123,121 @@ public class BarcodeMap {
 	 * @return String barcode matching the given sequence. Null if the barcode was not found
 	 */
 	private String findBarcode(String readSeq, byte readIndex) {
-		if(sortedBarcodes==null) initBarcodeSortedList();
-		String alphabet = DNASequence.BASES_STRING;
-		int firstIndex = alphabet.indexOf(readSeq.charAt(0));
-		int secondIndex = alphabet.indexOf(readSeq.charAt(1));
-		if(firstIndex <0 || secondIndex < 0 ) return null;
-		int first = ntPairFirsts[firstIndex][secondIndex];
-		int last = ntPairLasts[firstIndex][secondIndex];
-		if(first==-1) return null;
-		String selectedBarcode = null;
-		for(int i=first;i<=last;i++) {
-			String barcode = sortedBarcodes[i];
-			Set<String> barcodesReadIdx = barcodes1;
-			if(readIndex==2) barcodesReadIdx = barcodes2;
-			
-			boolean barcodeFound = readSeq.startsWith(barcode) && barcodesReadIdx.contains(barcode);
-			//The last condition is to taking into account cases where one barcode is substring of another
-			//and pick the longest matching barcode
-			if(barcodeFound && (selectedBarcode==null || selectedBarcode.length()<barcode.length()) ) {
-				selectedBarcode = barcode;
+		BarcodesTrie [] localTries = tries;
+		if(localTries==null) localTries = initTries();
+		BarcodesTrie trie = localTries[readIndex-1];
+		String barcode = trie.findLongestPrefix(readSeq);
+		if(barcode==null && maxMismatches>0) barcode = trie.findUniqueWithOneMismatch(readSeq);
+		return barcode;
+	}
+}
+/**
+ * Trie over the DNA alphabet to search barcodes as prefixes of reads
+ */
+class BarcodesTrie {
+	private static final int ALPHABET_SIZE = DNASequence.BASES_STRING.length();
+	//Children of each node. Index: node*4+base. -1 if the child does not exist
+	private int [] children;
+	//Barcode ending at each node, null if no barcode ends at the node
+	private String [] barcodes;
+	private int numNodes = 1;
+	private int maxDepth = 0;
+	
+	public BarcodesTrie(Set<String> barcodeSet) {
+		int maxNodes = 1;
+		for(String barcode:barcodeSet) maxNodes+=barcode.length();
+		children = new int [maxNodes*ALPHABET_SIZE];
+		Arrays.fill(children, -1);
+		barcodes = new String[maxNodes];
+		for(String barcode:barcodeSet) add(barcode);
+	}
+	
+	private void add(String barcode) {
+		int node = 0;
+		for(int i=0;i<barcode.length();i++) {
+			int idx = node*ALPHABET_SIZE+getBaseIndex(barcode.charAt(i));
+			if(children[idx]<0) {
+				children[idx] = numNodes;
+				numNodes++;
+			}
+			node = children[idx];
+		}
+		barcodes[node] = barcode;
+		maxDepth = Math.max(maxDepth, barcode.length());
+	}
+	
+	private static int getBaseIndex(char c) {
+		switch (c) {
+		case 'A': return 0;
+		case 'C': return 1;
+		case 'G': return 2;
+		case 'T': return 3;
+		default: return -1;
+		}
+	}
+	
+	/**
+	 * Finds the longest barcode that is a prefix of the given sequence
+	 * @param seq Sequence to search
+	 * @return String longest barcode found. Null if no barcode is a prefix of the sequence
+	 */
+	public String findLongestPrefix(CharSequence seq) {
+		return findLongestPrefix(seq, 0, 0);
+	}
+	
+	private String findLongestPrefix(CharSequence seq, int start, int node) {
+		String answer = barcodes[node];
+		int n = Math.min(seq.length(), maxDepth);
+		for(int i=start;i<n;i++) {
+			int b = getBaseIndex(seq.charAt(i));
+			if(b<0) break;
+			node = children[node*ALPHABET_SIZE+b];
+			if(node<0) break;
+			if(barcodes[node]!=null) answer = barcodes[node];
+		}
+		return answer;
+	}
+	
+	/**
+	 * Finds the barcode matching a prefix of the given sequence with exactly one mismatch
+	 * @param seq Sequence to search
+	 * @return String barcode found. Null if no barcode or more than one barcode matches with one mismatch
+	 */
+	public String findUniqueWithOneMismatch(CharSequence seq) {
+		String answer = null;
+		int n = Math.min(seq.length(), maxDepth);
+		int node = 0;
+		for(int i=0;i<n && node>=0;i++) {
+			int b = getBaseIndex(seq.charAt(i));
+			for(int alt=0;alt<ALPHABET_SIZE;alt++) {
+				if(alt==b) continue;
+				int child = children[node*ALPHABET_SIZE+alt];
+				if(child<0) continue;
+				//Only barcodes ending at the mismatch or after it can be found from this child
+				String barcode = findUniqueAfterMismatch(seq, i+1, child);
+				if(barcode==null) continue;
+				if(answer!=null && !answer.equals(barcode)) return null;
+				answer = barcode;
+			}
+			node = (b<0)?-1:children[node*ALPHABET_SIZE+b];
+		}
+		return answer;
+	}
+	
+	private String findUniqueAfterMismatch(CharSequence seq, int start, int node) {
+		String answer = barcodes[node];
+		int n = Math.min(seq.length(), maxDepth);
+		for(int i=start;i<n;i++) {
+			int b = getBaseIndex(seq.charAt(i));
+			if(b<0) break;
+			node = children[node*ALPHABET_SIZE+b];
+			if(node<0) break;
+			if(barcodes[node]!=null) {
+				//Two barcodes of different length match with one mismatch
+				if(answer!=null) return null;
+				answer = barcodes[node];
 			}
 		}
-		return selectedBarcode;
+		return answer;
 	}
 }
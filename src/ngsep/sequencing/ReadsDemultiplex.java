@@ -19,6 +19,7 @@
  *******************************************************************************/
 package ngsep.sequencing;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -32,13 +33,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
 
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
-import ngsep.sequences.DegenerateSequence;
+import ngsep.main.ThreadPoolManager;
+import ngsep.sequences.DegenerateSequenceMatcher;
 import ngsep.sequences.RawRead;
 import ngsep.sequences.io.FastqFileReader;
 import ngsep.sequencing.io.BarcodesFileLoader;
@@ -53,6 +54,10 @@ public class ReadsDemultiplex {
 	
 	// Constants for default values
 	public static final int DEF_MIN_READ_LENGTH = 40;
+	public static final int DEF_NUM_THREADS = 1;
+	public static final int DEF_MAX_BARCODE_MISMATCHES = 0;
+	//Number of reads or read pairs processed by each task
+	private static final int BATCH_SIZE = 50000;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(ReadsDemultiplex.class.getName());
@@ -70,6 +75,8 @@ public class ReadsDemultiplex {
 	private int minReadLength = DEF_MIN_READ_LENGTH;
 	private boolean uncompressedOutput = false;
 	private boolean dualBarcode = false;
+	private int numThreads = DEF_NUM_THREADS;
+	private int maxBarcodeMismatches = DEF_MAX_BARCODE_MISMATCHES;
 	
 	
 	
@@ -80,12 +87,13 @@ public class ReadsDemultiplex {
 	
 	private BarcodeMap barcodeMap;
 	
-	private Pattern [] trimRegexps = null;
+	private DegenerateSequenceMatcher [] trimMatchers = null;
 	
 	//Statistics
 	private int total = 0;
 	private int notFound = 0;
 	private int tooShort = 0;
+	private int correctedBarcodes = 0;
 	private Map<String,Integer> counts;
 	
 	// Get and set methods
@@ -169,12 +177,12 @@ public class ReadsDemultiplex {
 	public void setTrimSequences(String [] trimSequences) {
 		this.trimSequences = trimSequences;
 		if(trimSequences!=null) {
-			trimRegexps = new Pattern[trimSequences.length];
+			trimMatchers = new DegenerateSequenceMatcher[trimSequences.length];
 			for(int i=0;i<trimSequences.length;i++) {
-				trimRegexps[i] = Pattern.compile(DegenerateSequence.makeRegularExpression(trimSequences[i]));
+				trimMatchers[i] = new DegenerateSequenceMatcher(trimSequences[i]);
 			}
 		} else {
-			trimRegexps = null;
+			trimMatchers = null;
 		}
  	}
 	
@@ -219,6 +227,32 @@ public class ReadsDemultiplex {
 		this.uncompressedOutput = uncompressedOutput;
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		if (numThreads<=0) throw new IllegalArgumentException("Number of threads must be a positive number. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(String value) {
+		this.setNumThreads((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+	public int getMaxBarcodeMismatches() {
+		return maxBarcodeMismatches;
+	}
+
+	public void setMaxBarcodeMismatches(int maxBarcodeMismatches) {
+		if (maxBarcodeMismatches<0 || maxBarcodeMismatches>1) throw new IllegalArgumentException("Maximum number of mismatches to match barcodes can only be zero or one. Given: "+maxBarcodeMismatches);
+		this.maxBarcodeMismatches = maxBarcodeMismatches;
+	}
+	
+	public void setMaxBarcodeMismatches(String value) {
+		this.setMaxBarcodeMismatches((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public String getPrefix() {
 		return prefix;
 	}
@@ -287,12 +321,16 @@ public class ReadsDemultiplex {
 		out.println("Minimum read length (after trimming): "+minReadLength);
 		if(dualBarcode) out.println("Dual barcoding");
 		if(uncompressedOutput) out.println("Keep output uncompressed");
+		out.println("Maximum number of mismatches to match barcodes: "+maxBarcodeMismatches);
+		out.println("Number of threads: "+numThreads);
 		log.info(""+os.toString());
 	}
 
 	public void demultiplexGroup() throws IOException {
+		//Lanes and files are processed one at a time because reads of different files can go to the same output file
 		for(SequencingLane lane:lanes) {
 			barcodeMap = lane.getBarcodeMap();
+			barcodeMap.setMaxMismatches(maxBarcodeMismatches);
 			List<String> filesForward = lane.getFilesForward();
 			List<String> filesReverse = lane.getFilesReverse();
 			for(int i=0;i<filesForward.size();i++) {
@@ -317,6 +355,7 @@ public class ReadsDemultiplex {
 			loader.loadSingleLane(indexFile, dualBarcode, laneObj);
 			lanes.add(laneObj);
 			barcodeMap = laneObj.getBarcodeMap();
+			barcodeMap.setMaxMismatches(maxBarcodeMismatches);
 		} else {
 			lanes = loader.loadMultipleLanes(indexFile, dualBarcode);
 		}
@@ -332,24 +371,9 @@ public class ReadsDemultiplex {
 	 */
 	public void demultiplex(String filename) throws IOException {
 		log.info("Demultiplexing file: "+filename);
-		
-		Map<String, PrintStream> outFiles = new TreeMap<String, PrintStream>();
-		initCounts();
-		
 		try (FastqFileReader reader = new FastqFileReader(filename)) {
-			Iterator<RawRead> it = reader.iterator();
-			while (it.hasNext()) {
-				RawRead read = it.next();
-				processRead(read, outFiles);
-				if(!keepRunning()) break;
-			}
-		} finally {
-			for(PrintStream s:outFiles.values()) {
-				s.flush();
-				s.close();
-			}
+			demultiplex(reader.iterator(), null);
 		}
-		printStatistics();
 	}
 	/**
 	 * Demultiplex raw reads taken from the given input stream
@@ -357,18 +381,65 @@ public class ReadsDemultiplex {
 	 * @throws IOException If the file can not be read
 	 */
 	public void demultiplex(InputStream input) throws IOException {
-		Map<String, PrintStream> outFiles = new TreeMap<String, PrintStream>();
-		initCounts();
-		
 		try (FastqFileReader reader = new FastqFileReader(input)) {
-			Iterator<RawRead> it = reader.iterator();
-			while (it.hasNext()) {
-				RawRead read = it.next();
-				processRead(read, outFiles);
-				if(!keepRunning()) break;
+			demultiplex(reader.iterator(), null);
+		}
+	}
+	
+	public void demultiplex(String filename1, String filename2) throws IOException {
+		try (FastqFileReader in1 = new FastqFileReader(filename1);
+			 FastqFileReader in2 = new FastqFileReader(filename2)) {
+			demultiplex(in1.iterator(), in2.iterator());
+		}
+	}
+	
+	public void demultiplex(InputStream i1, InputStream i2) throws IOException {
+		try (FastqFileReader in1 = new FastqFileReader(i1);
+			 FastqFileReader in2 = new FastqFileReader(i2)) {
+			demultiplex(in1.iterator(), in2.iterator());
+		}
+	}
+	
+	/**
+	 * Demultiplex reads loaded in batches from the given iterators. Batches are processed in parallel if more than one thread is used
+	 * but they are written in the same order of the input.
+	 * @param it1 Iterator over single reads or first reads of pairs
+	 * @param it2 Iterator over the second reads of pairs. Null for single reads
+	 * @throws IOException If the output files can not be written
+	 */
+	private void demultiplex(Iterator<RawRead> it1, Iterator<RawRead> it2) throws IOException {
+		Map<String, OutputStream> outFiles = new TreeMap<String, OutputStream>();
+		initCounts();
+		//Each task compresses its own output if more than one thread is used. Concatenated gzip members form a valid gzip file
+		boolean compressBatches = !uncompressedOutput && numThreads>1;
+		ThreadPoolManager pool = null;
+		if(numThreads>1) pool = new ThreadPoolManager(numThreads, numThreads);
+		int loaded = 0;
+		try {
+			boolean running = true;
+			while (running && it1.hasNext() && (it2==null || it2.hasNext())) {
+				List<RawRead> batch1 = new ArrayList<>(BATCH_SIZE);
+				List<RawRead> batch2 = (it2!=null)?new ArrayList<>(BATCH_SIZE):null;
+				while (batch1.size()<BATCH_SIZE && it1.hasNext() && (it2==null || it2.hasNext())) {
+					batch1.add(it1.next());
+					if(it2!=null) batch2.add(it2.next());
+					loaded++;
+					if(!keepRunning(loaded)) {
+						running = false;
+						break;
+					}
+				}
+				if(pool!=null) {
+					pool.queueTask(()->processBatch(batch1, batch2, compressBatches), (result)->saveBatch(result, outFiles));
+				} else {
+					saveBatch(processBatch(batch1, batch2, false), outFiles);
+				}
 			}
+			if(pool!=null) pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		} finally {
-			for(PrintStream s:outFiles.values()) {
+			for(OutputStream s:outFiles.values()) {
 				s.flush();
 				s.close();
 			}
@@ -381,6 +452,7 @@ public class ReadsDemultiplex {
 		total = 0;
 		notFound = 0;
 		tooShort = 0;
+		correctedBarcodes = 0;
 	}
 	
 	private void printStatistics() {
@@ -394,150 +466,128 @@ public class ReadsDemultiplex {
 		}
 		out.println("Not found\t"+notFound);
 		out.println("Fragment too short\t"+tooShort);
+		if(maxBarcodeMismatches>0) out.println("Barcodes matched with mismatches\t"+correctedBarcodes);
 		log.info(os.toString());
 	}
+	
+	/**
+	 * Demultiplex a batch of reads or read pairs
+	 * @param reads1 Single reads or first reads of pairs
+	 * @param reads2 Second reads of pairs. Null for single reads
+	 * @param compress Tells if the formatted reads of each output file should be compressed
+	 * @return DemultiplexBatchResult formatted reads for each output file and counts of the batch
+	 * @throws IOException If the reads can not be formatted
+	 */
+	private DemultiplexBatchResult processBatch(List<RawRead> reads1, List<RawRead> reads2, boolean compress) throws IOException {
+		DemultiplexBatchResult result = new DemultiplexBatchResult();
+		Map<String, ByteArrayOutputStream> buffers = new TreeMap<>();
+		Map<String, PrintStream> outs = new TreeMap<>();
+		for(int i=0;i<reads1.size();i++) {
+			if(reads2==null) processRead(reads1.get(i), outs, buffers, result);
+			else demultiplexReadPair(reads1.get(i), reads2.get(i), outs, buffers, result);
+		}
+		for(Map.Entry<String, PrintStream> entry:outs.entrySet()) {
+			entry.getValue().flush();
+			byte [] data = buffers.get(entry.getKey()).toByteArray();
+			if(compress) {
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length/3+1);
+				try (GZIPOutputStream gzOut = new GZIPOutputStream(compressed)) {
+					gzOut.write(data);
+				}
+				data = compressed.toByteArray();
+			}
+			result.data.put(entry.getKey(), data);
+		}
+		return result;
+	}
+	
+	/**
+	 * Writes the reads of a processed batch and updates the statistics
+	 * @param result Batch processed
+	 * @param outFiles Map of open output files
+	 */
+	private void saveBatch(DemultiplexBatchResult result, Map<String, OutputStream> outFiles) {
+		try {
+			for(Map.Entry<String, byte[]> entry:result.data.entrySet()) {
+				String filePrefix = entry.getKey();
+				OutputStream out = outFiles.get(filePrefix);
+				if(out==null) {
+					out = getOutputStream(filePrefix, !uncompressedOutput && numThreads==1);
+					outFiles.put(filePrefix, out);
+				}
+				out.write(entry.getValue());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		total+=result.total;
+		notFound+=result.notFound;
+		tooShort+=result.tooShort;
+		correctedBarcodes+=result.correctedBarcodes;
+		for(Map.Entry<String, Integer> entry:result.counts.entrySet()) {
+			counts.merge(entry.getKey(), entry.getValue(), Integer::sum);
+		}
+	}
 
 	/**
 	 * Demultiplex one single read
 	 * @param read to demultiplex
-	 * @param outFiles Map of files to choose
-	 * @return boolean true if the process should keep running
-	 * @throws IOException 
+	 * @param outs Map of streams to choose
+	 * @param buffers Buffers of the streams
+	 * @param result Counts of the batch
 	 */
-	private void processRead(RawRead read, Map<String, PrintStream> outFiles) throws IOException {
-		total++;
-		String [] barcodeData = barcodeMap.getSampleIdByRead(read.getSequenceString());
+	private void processRead(RawRead read, Map<String, PrintStream> outs, Map<String, ByteArrayOutputStream> buffers, DemultiplexBatchResult result) {
+		result.total++;
+		String readSeq = read.getSequenceString();
+		String [] barcodeData = barcodeMap.getSampleIdByRead(readSeq);
 		if (barcodeData == null) {
-			notFound++;
+			result.notFound++;
 		} else {
+			if(!readSeq.startsWith(barcodeData[1])) result.correctedBarcodes++;
 			int barcodeLength = barcodeData[1].length();
 			//Trim barcode
 			read.trimFirstNucleotides(barcodeLength);
 			//Trim end if sequence appears
-			if(trimRegexps!=null) {
-				for(Pattern pattern:trimRegexps) {
-					if(read.trimFromSequence(pattern)) break;
+			if(trimMatchers!=null) {
+				for(DegenerateSequenceMatcher matcher:trimMatchers) {
+					if(read.trimFromSequence(matcher)) break;
 				}
 			}
 			if(read.getLength()>=minReadLength) {
 				String sampleId = barcodeData[0];
-				PrintStream out = outFiles.get(sampleId);
-				if(out==null) {
-					out = getOutputStream(sampleId);
-					outFiles.put(sampleId, out);
-				}
-				read.save(out);
-				Integer count = counts.get(sampleId);
-				if(count==null) counts.put(sampleId, 1);
-				else counts.put(sampleId, count+1);
+				read.save(getBatchStream(sampleId, outs, buffers));
+				result.counts.merge(sampleId, 1, Integer::sum);
 			} else {
-				tooShort++;
+				result.tooShort++;
 			}
 		}
 	}
-
-	/**
-	 * Reports progress and asks the progress notifier if the process should keep running
-	 * @return boolean true if the process should keep running
-	 */
-	private boolean keepRunning() {
-		if (progressNotifier!=null && total%10000==0) {
-			int progress = (int) (total/10000);
-			return progressNotifier.keepRunning(progress);
-		}
-		return true;
-	}
-
-	private PrintStream getOutputStream(String filePrefix) throws IOException {
-		PrintStream out;
-		String filename =  filePrefix + ".fastq";
-		if(!uncompressedOutput) filename+=".gz";
-		if(prefix!=null && Character.isDigit(filename.charAt(0))) {
-			filename = prefix+filename;
-		}
-		if(outDirectory!=null) {
-			filename = outDirectory + File.separator + filename;
-		}
-		File f = new File(filename);
-		OutputStream os = new FileOutputStream(filename,f.exists());
-		if(!uncompressedOutput) os = new GZIPOutputStream(os); 
-		out = new PrintStream(os);
-		return out;
-	}
-	public void demultiplex(String filename1, String filename2) throws IOException {
-		Map<String, PrintStream> outFiles1 = new TreeMap<String, PrintStream>();
-		Map<String, PrintStream> outFiles2 = new TreeMap<String, PrintStream>();
-		initCounts();
-		try (FastqFileReader in1 = new FastqFileReader(filename1);
-			 FastqFileReader in2 = new FastqFileReader(filename2)) {
-			Iterator<RawRead> it1 = in1.iterator();
-			Iterator<RawRead> it2 = in2.iterator();
-			while (it1.hasNext() && it2.hasNext()) {
-				RawRead read1 = it1.next();
-				RawRead read2 = it2.next();
-				demultiplexReadPair(read1, read2, outFiles1, outFiles2);
-				if(!keepRunning()) break;
-			}
-		} finally {
-			for(PrintStream s:outFiles1.values()) {
-				s.flush();
-				s.close();
-			}
-			for(PrintStream s:outFiles2.values()) {
-				s.flush();
-				s.close();
-			}
-		}
-		printStatistics();
-	}
-	public void demultiplex(InputStream i1, InputStream i2) throws IOException {
-		Map<String, PrintStream> outFiles1 = new TreeMap<String, PrintStream>();
-		Map<String, PrintStream> outFiles2 = new TreeMap<String, PrintStream>();
-		initCounts();
-		try (FastqFileReader in1 = new FastqFileReader(i1);
-			 FastqFileReader in2 = new FastqFileReader(i2)) {
-			Iterator<RawRead> it1 = in1.iterator();
-			Iterator<RawRead> it2 = in2.iterator();
-			while (it1.hasNext() && it2.hasNext()) {
-				RawRead read1 = it1.next();
-				RawRead read2 = it2.next();
-				demultiplexReadPair(read1, read2, outFiles1, outFiles2);
-				if(!keepRunning()) break;
-			}
-		} finally {
-			for(PrintStream s:outFiles1.values()) {
-				s.flush();
-				s.close();
-			}
-			for(PrintStream s:outFiles2.values()) {
-				s.flush();
-				s.close();
-			}
-		}
-		printStatistics();
-	}
-
+	
 	/**
 	 * Demultiplex two reads as a pair
 	 * @param read1 First read of the pair
 	 * @param read2 Second read of the pair
-	 * @param outFiles1 List of out files to choose
-	 * @param outFiles2 List of out files to choose
-	 * @throws IOException If the out files can not be written
+	 * @param outs Map of streams to choose
+	 * @param buffers Buffers of the streams
+	 * @param result Counts of the batch
 	 */
-	private void demultiplexReadPair(RawRead read1, RawRead read2, Map<String, PrintStream> outFiles1, Map<String, PrintStream> outFiles2) throws IOException {
-		total++;
+	private void demultiplexReadPair(RawRead read1, RawRead read2, Map<String, PrintStream> outs, Map<String, ByteArrayOutputStream> buffers, DemultiplexBatchResult result) {
+		result.total++;
 		String [] barcodeData;
+		String readSeq1 = read1.getSequenceString();
+		String readSeq2 = null;
 		if(dualBarcode) {
-			barcodeData = barcodeMap.getSampleIdByReadPair(read1.getSequenceString(), read2.getSequenceString());
+			readSeq2 = read2.getSequenceString();
+			barcodeData = barcodeMap.getSampleIdByReadPair(readSeq1, readSeq2);
 			
 		} else {
-			barcodeData = barcodeMap.getSampleIdByRead(read1.getSequenceString());
+			barcodeData = barcodeMap.getSampleIdByRead(readSeq1);
 		}
 		if (barcodeData == null) {
-			notFound++;
+			result.notFound++;
 			return;
 		}
+		if(!readSeq1.startsWith(barcodeData[1]) || (dualBarcode && !readSeq2.startsWith(barcodeData[2]))) result.correctedBarcodes++;
 		//Trim barcode
 		read1.trimFirstNucleotides(barcodeData[1].length());
 		if(dualBarcode) {
@@ -545,9 +595,9 @@ public class ReadsDemultiplex {
 		}
 		//Trim end if sequence appears
 		int l1 = read1.getLength();
-		if(trimRegexps!=null) {
-			for(Pattern pattern:trimRegexps) {
-				if(read1.trimFromSequence(pattern)) break;
+		if(trimMatchers!=null) {
+			for(DegenerateSequenceMatcher matcher:trimMatchers) {
+				if(read1.trimFromSequence(matcher)) break;
 			}
 		}
 		
@@ -556,22 +606,62 @@ public class ReadsDemultiplex {
 		}
 		if(read1.getLength()>=minReadLength) {
 			String sampleId = barcodeData[0];
-			PrintStream out1 = outFiles1.get(sampleId);
-			PrintStream out2 = outFiles2.get(sampleId);
-			if(out1==null) {
-				out1 = getOutputStream(sampleId+"_1");
-				out2 = getOutputStream(sampleId+"_2");
-				outFiles1.put(sampleId, out1);
-				outFiles2.put(sampleId, out2);
-			}
-			read1.save(out1);
-			read2.save(out2);
-			Integer count = counts.get(sampleId);
-			if(count==null) counts.put(sampleId, 1);
-			else counts.put(sampleId, count+1);
+			read1.save(getBatchStream(sampleId+"_1", outs, buffers));
+			read2.save(getBatchStream(sampleId+"_2", outs, buffers));
+			result.counts.merge(sampleId, 1, Integer::sum);
 		} else {
-			tooShort++;
+			result.tooShort++;
 		}
 	}
 	
+	private PrintStream getBatchStream(String filePrefix, Map<String, PrintStream> outs, Map<String, ByteArrayOutputStream> buffers) {
+		PrintStream out = outs.get(filePrefix);
+		if(out==null) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			out = new PrintStream(buffer);
+			buffers.put(filePrefix, buffer);
+			outs.put(filePrefix, out);
+		}
+		return out;
+	}
+
+	/**
+	 * Reports progress and asks the progress notifier if the process should keep running
+	 * @param loaded Number of reads or read pairs loaded
+	 * @return boolean true if the process should keep running
+	 */
+	private boolean keepRunning(int loaded) {
+		if (progressNotifier!=null && loaded%10000==0) {
+			int progress = (int) (loaded/10000);
+			return progressNotifier.keepRunning(progress);
+		}
+		return true;
+	}
+
+	private OutputStream getOutputStream(String filePrefix, boolean compress) throws IOException {
+		String filename =  filePrefix + ".fastq";
+		if(!uncompressedOutput) filename+=".gz";
+		if(prefix!=null && Character.isDigit(filename.charAt(0))) {
+			filename = prefix+filename;
+		}
+		if(outDirectory!=null) {
+			filename = outDirectory + File.separator + filename;
+		}
+		File f = new File(filename);
+		OutputStream os = new FileOutputStream(filename,f.exists());
+		if(compress) os = new GZIPOutputStream(os);
+		return new BufferedOutputStream(os);
+	}
+}
+/**
+ * Formatted reads and counts of a batch of demultiplexed reads
+ */
+class DemultiplexBatchResult {
+	//Formatted reads by output file prefix
+	final Map<String, byte[]> data = new TreeMap<>();
+	final Map<String, Integer> counts = new TreeMap<>();
+	int total = 0;
+	int notFound = 0;
+	int tooShort = 0;
+	int correctedBarcodes = 0;
 }
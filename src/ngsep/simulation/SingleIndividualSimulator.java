@@ -28,8 +28,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import ngsep.genome.GenomicRegionSortedCollection;
@@ -37,6 +38,7 @@ import ngsep.genome.ReferenceGenome;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
+import ngsep.main.ThreadPoolManager;
 import ngsep.sequences.DNASequence;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
@@ -60,6 +62,7 @@ public class SingleIndividualSimulator {
 	public static final int DEF_STR_UNIT_INDEX=14;
 	public static final short DEF_PLOIDY=2;
 	public static final String DEF_SAMPLE_ID="Simulated";
+	public static final int DEF_NUM_THREADS=1;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(SingleIndividualSimulator.class.getName());
@@ -75,6 +78,8 @@ public class SingleIndividualSimulator {
 	private int strUnitIndex = DEF_STR_UNIT_INDEX;
 	private String sampleId = DEF_SAMPLE_ID;
 	private byte ploidy = DEF_PLOIDY;
+	private long seed = new SplittableRandom().nextLong();
+	private int numThreads = DEF_NUM_THREADS;
 	
 	// Model attributes
 	private GenomicRegionSortedCollection<SNV> snvs;
@@ -84,6 +89,8 @@ public class SingleIndividualSimulator {
 	//Calls including reference allele regions and simulated variants
 	private List<CalledGenomicVariant> genomicCalls;
 	private List<QualifiedSequence> individualGenome;
+	//Generator of the seed. Each step of the simulation uses a generator split from this one
+	private SplittableRandom seedRandom = null;
 	
 	// Get and set methods
 	public Logger getLog() {
@@ -181,6 +188,32 @@ public class SingleIndividualSimulator {
 		this.strsFile = strsFile;
 	}
 	
+	public long getSeed() {
+		return seed;
+	}
+	/**
+	 * @param seed Seed for the random generator. Simulations with the same seed produce the same individual
+	 * regardless of the number of threads
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+		this.seedRandom = null;
+	}
+	public void setSeed(String value) {
+		this.setSeed((long)OptionValuesDecoder.decode(value, Long.class));
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads must be a positive number. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public static void main(String[] args) throws Exception {
 		SingleIndividualSimulator instance = new SingleIndividualSimulator();
 		CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -216,6 +249,8 @@ public class SingleIndividualSimulator {
 		}
 		out.println("Sample id: "+sampleId);
 		out.println("Ploidy: "+ploidy);
+		out.println("Random seed: "+seed);
+		out.println("Number of threads: "+numThreads);
 		log.info(os.toString());
 	}
 	public void loadSTRs() throws IOException {
@@ -279,11 +314,11 @@ public class SingleIndividualSimulator {
 		long length = genome.getTotalLength();
 		indels = new GenomicRegionSortedCollection<>(seqMetadata);
 		int numIndels = (int) Math.round(length*indelRate);
-		Random random = new Random();
+		SplittableRandom random = nextRandom();
 		Set<Long> selected = new HashSet<>();
 		for(int i=0;i<numIndels;i++) {
 			while (true) {
-				long absoluteFirst = random.nextLong()%length;
+				long absoluteFirst = random.nextLong(length);
 				if(selected.contains(absoluteFirst)) continue;
 				selected.add(absoluteFirst);
 				long currentFirst = 0;
@@ -313,7 +348,7 @@ public class SingleIndividualSimulator {
 				if(deletion) {
 					altAllele = ""+refAllele.charAt(0)+""+refAllele.charAt(refAllele.length()-1);
 				} else {
-					altAllele = ""+refAllele.charAt(0)+makeRandomDNA(eventLength)+refAllele.charAt(refAllele.length()-1);
+					altAllele = ""+refAllele.charAt(0)+makeRandomDNA(eventLength, random)+refAllele.charAt(refAllele.length()-1);
 				}
 				alleles.add(altAllele);
 				GenomicVariantImpl indel = new GenomicVariantImpl(seqName, first, last, alleles);
@@ -326,8 +361,7 @@ public class SingleIndividualSimulator {
 		log.info("Simulated "+indels.size()+" indels");
 	}
 
-	private String makeRandomDNA(int eventLength) {
-		Random r = new Random();
+	private String makeRandomDNA(int eventLength, SplittableRandom r) {
 		StringBuilder randomSequence = new StringBuilder();
 		for(int j=0;j<eventLength;j++) {
 			int bpI = r.nextInt(4);
@@ -341,11 +375,11 @@ public class SingleIndividualSimulator {
 		long length = genome.getTotalLength();
 		int numSNVs = (int) Math.round(length*snvRate);
 		snvs = new GenomicRegionSortedCollection<>(seqMetadata);
-		Random random = new Random();
+		SplittableRandom random = nextRandom();
 		Set<Long> selected = new HashSet<>();
 		for(int i=0;i<numSNVs;i++) {
 			while (true) {
-				long absoluteFirst = random.nextLong()%length;
+				long absoluteFirst = random.nextLong(length);
 				if(selected.contains(absoluteFirst)) continue;
 				selected.add(absoluteFirst);
 				long currentFirst = 0;
@@ -379,7 +413,7 @@ public class SingleIndividualSimulator {
 	private void simulateVariantSTRs() {
 		if(strs==null) return;
 		List<STR> strsList = strs.asList();
-		Random random = new Random();
+		SplittableRandom random = nextRandom();
 		int numSTRs = (int) Math.round(strsList.size()*mutatedSTRFraction);
 		log.info("Simulating mutations in "+numSTRs+" STRs from a total of "+strsList.size()+" loaded STRs");
 		Set<Integer> selected = new HashSet<>();
@@ -428,91 +462,116 @@ public class SingleIndividualSimulator {
 		if(allVariants.size()==0) {
 			throw new RuntimeException("No variants were simulated");
 		}
-		for(QualifiedSequence sequence:seqMetadata) {
-			String seqName = sequence.getName();
-			log.info("Building assembly for sequence "+seqName);
-			int l = sequence.getLength();
-			int nextPos = 1;
-			StringBuilder [] haplotypes = new StringBuilder [ploidy];
-			for(int i=0;i<haplotypes.length;i++) haplotypes[i] = new StringBuilder();
-			
-			int numHet = 0;
-			Random random = new Random();
-			List<GenomicVariant> sequenceVarsList = allVariants.getSequenceRegions(seqName).asList();
-			for(GenomicVariant var:sequenceVarsList) {
-				String [] alleles = var.getAlleles();
-				if(nextPos<var.getFirst()) {
-					//Fill haplotypes with non variant segment
-					CharSequence segment = genome.getReference(seqName, nextPos, var.getFirst()-1);
-					if(segment==null) {
-						log.warning("Error loading segment "+seqName+":"+nextPos+"-"+(var.getFirst()-1));
-					}
-					String nonVariantSegment = segment.toString().toUpperCase();
-					//Create reference call
-					CalledGenomicVariant refCall = createReferenceCall(seqName, nextPos, nonVariantSegment);
-					genomicCalls.add(refCall);
-					//Update haplotype sequences
-					for(int i=0;i<haplotypes.length;i++) (haplotypes[i]).append(nonVariantSegment);
-				}
-				//Simulate genotype as alternative allele count (always homozygous alternative for haploids
-				byte altAlleleCount = 1;
-				if(ploidy>1) altAlleleCount = (byte) (random.nextInt(ploidy)+1);
-				boolean homozygousAlt = (altAlleleCount == ploidy);
-				//Defaults for homozygous alternative
-				byte [] indexesCalledAlleles= {(byte)1};
-				short [] allelesCopyNumber= {(short)0,(short)ploidy};
-				byte [] indexesPhasedAlleles= new byte [ploidy];
-				Arrays.fill(indexesPhasedAlleles, (byte)1);
-				if(!homozygousAlt) {
-					//Values for heterozygous
-					numHet++;
-					indexesCalledAlleles= new byte [2];
-					indexesCalledAlleles[0]=0;
-					indexesCalledAlleles[1]=1;
-					//Determine alleles copy number from simulated alternative count
-					allelesCopyNumber[0] = (short) (ploidy-altAlleleCount);
-					allelesCopyNumber[1] = altAlleleCount;
-					
-					//Simulate random assignment of alleles in haplotypes
-					if(allelesCopyNumber[0] <= allelesCopyNumber[1] ) {
-						randomDistribute(indexesPhasedAlleles,(byte)0,allelesCopyNumber[0],random);
-					} else {
-						Arrays.fill(indexesPhasedAlleles, (byte)0);
-						randomDistribute(indexesPhasedAlleles,(byte)1,allelesCopyNumber[1],random);
-					}
+		//Sequences are assembled in parallel. Generators are split in the order of the sequences
+		ThreadPoolManager pool = (numThreads>1)?new ThreadPoolManager(numThreads, 2*numThreads):null;
+		Consumer<SequenceAssembly> consumer = (assembly)-> {
+			genomicCalls.addAll(assembly.calls);
+			individualGenome.addAll(assembly.haplotypes);
+		};
+		try {
+			for(QualifiedSequence sequence:seqMetadata) {
+				List<GenomicVariant> sequenceVarsList = allVariants.getSequenceRegions(sequence.getName()).asList();
+				SplittableRandom random = nextRandom();
+				if(pool==null) consumer.accept(buildSequenceAssembly(sequence, sequenceVarsList, random));
+				else pool.queueTask(()->buildSequenceAssembly(sequence, sequenceVarsList, random), consumer);
+			}
+			if(pool!=null) pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Builds the haplotypes of one sequence simulating genotypes for the given variants
+	 * @param sequence Reference sequence
+	 * @param sequenceVarsList Variants within the sequence sorted by position
+	 * @param random Generator for this sequence
+	 * @return SequenceAssembly Calls and haplotypes of the sequence
+	 */
+	private SequenceAssembly buildSequenceAssembly(QualifiedSequence sequence, List<GenomicVariant> sequenceVarsList, SplittableRandom random) {
+		SequenceAssembly assembly = new SequenceAssembly();
+		String seqName = sequence.getName();
+		log.info("Building assembly for sequence "+seqName);
+		int l = sequence.getLength();
+		int nextPos = 1;
+		StringBuilder [] haplotypes = new StringBuilder [ploidy];
+		for(int i=0;i<haplotypes.length;i++) haplotypes[i] = new StringBuilder();
+		
+		int numHet = 0;
+		for(GenomicVariant var:sequenceVarsList) {
+			String [] alleles = var.getAlleles();
+			if(nextPos<var.getFirst()) {
+				//Fill haplotypes with non variant segment
+				CharSequence segment = genome.getReference(seqName, nextPos, var.getFirst()-1);
+				if(segment==null) {
+					log.warning("Error loading segment "+seqName+":"+nextPos+"-"+(var.getFirst()-1));
 				}
-				
-				//Create variant call
-				CalledGenomicVariantImpl call = new CalledGenomicVariantImpl(var, indexesCalledAlleles);
-				call.setAllelesCopyNumber(allelesCopyNumber);
-				call.setIndexesPhasedAlleles(indexesPhasedAlleles);
-				genomicCalls.add(call);
-				
+				String nonVariantSegment = segment.toString().toUpperCase();
+				//Create reference call
+				CalledGenomicVariant refCall = createReferenceCall(seqName, nextPos, nonVariantSegment);
+				assembly.calls.add(refCall);
 				//Update haplotype sequences
-				for(int i=0;i<indexesPhasedAlleles.length;i++) {
-					byte nextAlleleIdx = indexesPhasedAlleles[i];
-					(haplotypes[i]).append(alleles[nextAlleleIdx]);
-				}
-				nextPos = var.getLast()+1;
+				for(int i=0;i<haplotypes.length;i++) (haplotypes[i]).append(nonVariantSegment);
 			}
-			if(nextPos<l) {
-				//End of a chromosome
-				CharSequence nonVarLast = genome.getReference(seqName, nextPos, l-1);
-				if(nonVarLast!=null) {
-					String nonVariantSegment = nonVarLast.toString().toUpperCase();
-					//Create reference call
-					CalledGenomicVariant refCall = createReferenceCall(seqName, nextPos, nonVariantSegment);
-					genomicCalls.add(refCall);
-					//Update haplotype sequences
-					for(int i=0;i<haplotypes.length;i++) (haplotypes[i]).append(nonVariantSegment);
+			//Simulate genotype as alternative allele count (always homozygous alternative for haploids
+			byte altAlleleCount = 1;
+			if(ploidy>1) altAlleleCount = (byte) (random.nextInt(ploidy)+1);
+			boolean homozygousAlt = (altAlleleCount == ploidy);
+			//Defaults for homozygous alternative
+			byte [] indexesCalledAlleles= {(byte)1};
+			short [] allelesCopyNumber= {(short)0,(short)ploidy};
+			byte [] indexesPhasedAlleles= new byte [ploidy];
+			Arrays.fill(indexesPhasedAlleles, (byte)1);
+			if(!homozygousAlt) {
+				//Values for heterozygous
+				numHet++;
+				indexesCalledAlleles= new byte [2];
+				indexesCalledAlleles[0]=0;
+				indexesCalledAlleles[1]=1;
+				//Determine alleles copy number from simulated alternative count
+				allelesCopyNumber[0] = (short) (ploidy-altAlleleCount);
+				allelesCopyNumber[1] = altAlleleCount;
+				
+				//Simulate random assignment of alleles in haplotypes
+				if(allelesCopyNumber[0] <= allelesCopyNumber[1] ) {
+					randomDistribute(indexesPhasedAlleles,(byte)0,allelesCopyNumber[0],random);
+				} else {
+					Arrays.fill(indexesPhasedAlleles, (byte)0);
+					randomDistribute(indexesPhasedAlleles,(byte)1,allelesCopyNumber[1],random);
 				}
 			}
-			for(int i=0;i<haplotypes.length;i++) {
-				String haplotype = haplotypes[i].toString();
-				individualGenome.add(new QualifiedSequence(sampleId+"_"+seqName+"_Hap_"+i, haplotype));
+			
+			//Create variant call
+			CalledGenomicVariantImpl call = new CalledGenomicVariantImpl(var, indexesCalledAlleles);
+			call.setAllelesCopyNumber(allelesCopyNumber);
+			call.setIndexesPhasedAlleles(indexesPhasedAlleles);
+			assembly.calls.add(call);
+			
+			//Update haplotype sequences
+			for(int i=0;i<indexesPhasedAlleles.length;i++) {
+				byte nextAlleleIdx = indexesPhasedAlleles[i];
+				(haplotypes[i]).append(alleles[nextAlleleIdx]);
+			}
+			nextPos = var.getLast()+1;
+		}
+		if(nextPos<l) {
+			//End of a chromosome
+			CharSequence nonVarLast = genome.getReference(seqName, nextPos, l-1);
+			if(nonVarLast!=null) {
+				String nonVariantSegment = nonVarLast.toString().toUpperCase();
+				//Create reference call
+				CalledGenomicVariant refCall = createReferenceCall(seqName, nextPos, nonVariantSegment);
+				assembly.calls.add(refCall);
+				//Update haplotype sequences
+				for(int i=0;i<haplotypes.length;i++) (haplotypes[i]).append(nonVariantSegment);
 			}
-			log.info("Simulated "+numHet+" heterozygous calls for sequence "+seqName);
 		}
+		for(int i=0;i<haplotypes.length;i++) {
+			String haplotype = haplotypes[i].toString();
+			assembly.haplotypes.add(new QualifiedSequence(sampleId+"_"+seqName+"_Hap_"+i, haplotype));
+		}
+		log.info("Simulated "+numHet+" heterozygous calls for sequence "+seqName);
+		return assembly;
 	}
 
 	public CalledGenomicVariant createReferenceCall(String seqName, int nextPos, String nonVariantSegment) {
@@ -523,7 +582,7 @@ public class SingleIndividualSimulator {
 		return refCall;
 	}
 
-	private void randomDistribute(byte[] array, byte value, int number, Random random) {
+	private void randomDistribute(byte[] array, byte value, int number, SplittableRandom random) {
 		for(int i=0;i<number;i++) {
 			while(true) {
 				int j = random.nextInt(array.length);
@@ -536,6 +595,11 @@ public class SingleIndividualSimulator {
 		
 	}
 
+	private SplittableRandom nextRandom() {
+		if(seedRandom==null) seedRandom = new SplittableRandom(seed);
+		return seedRandom.split();
+	}
+
 	public void saveIndividualGenome(PrintStream out) {
 		FastaSequencesHandler handler = new FastaSequencesHandler();
 		handler.saveSequences(individualGenome, out, 100);		
@@ -555,6 +619,10 @@ public class SingleIndividualSimulator {
 	}
 
 }
+class SequenceAssembly {
+	final List<CalledGenomicVariant> calls = new ArrayList<>();
+	final List<QualifiedSequence> haplotypes = new ArrayList<>();
+}
 class STR extends GenomicVariantImpl implements GenomicVariant {
 	private String unitSequence;
 	public STR(String sequenceName, int first, int last, List<String> alleles, String unitSequence) {
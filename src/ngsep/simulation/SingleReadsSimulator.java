@@ -6,7 +6,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 
@@ -14,6 +14,7 @@ import ngsep.genome.ReferenceGenome;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
+import ngsep.main.ThreadPoolManager;
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.DNASequence;
 import ngsep.sequences.QualifiedSequence;
@@ -30,6 +31,9 @@ public class SingleReadsSimulator {
 	public static final double DEF_INDEL_ERROR_RATE = 0.01;
 	public static final byte OUT_FORMAT_FASTQ = 0;
 	public static final byte OUT_FORMAT_FASTA = 1;
+	public static final int DEF_NUM_THREADS = 1;
+	//Number of reads simulated from each random generator split from the generator of the seed
+	private static final int READS_PER_BATCH = 1000;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(SingleReadsSimulator.class.getName());
@@ -45,8 +49,8 @@ public class SingleReadsSimulator {
 	private double substitutionErrorRate = DEF_SUBSTITUTION_ERROR_RATE;
 	private double indelErrorRate = DEF_INDEL_ERROR_RATE;
 	private byte outFormat = OUT_FORMAT_FASTQ;
-
-	private final static Random rnd = new Random();
+	private long seed = new SplittableRandom().nextLong();
+	private int numThreads = DEF_NUM_THREADS;
 
 	// Get and set methods
 	
@@ -141,6 +145,31 @@ public class SingleReadsSimulator {
 		this.setOutFormat((byte) OptionValuesDecoder.decode(value, Byte.class));
 	}
 
+	public long getSeed() {
+		return seed;
+	}
+	/**
+	 * @param seed Seed for the random generator. Simulations with the same seed produce the same reads
+	 * regardless of the number of threads
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+	public void setSeed(String value) {
+		this.setSeed((long) OptionValuesDecoder.decode(value, Long.class));
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads must be a positive number. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public static void main(String[] args) throws Exception {
 		SingleReadsSimulator instance = new SingleReadsSimulator();
 		CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -163,81 +192,113 @@ public class SingleReadsSimulator {
 		out.println("Reads:" + numberOfReads + "   ~N(mean: " + meanReadLength + ", sdev: " + stdevReadlength + ")");
 		out.println("Substitution error rate: " + substitutionErrorRate);
 		out.println("Indel error rate: " + indelErrorRate);
+		out.println("Random seed: " + seed);
+		out.println("Number of threads: " + numThreads);
+		log.info(os.toString());
 	}
 	
+	/**
+	 * Simulates the reads and saves them in gzip format. Reads are simulated in batches. The random generator of
+	 * each batch is split from the generator of the seed in the order of the batches. Batches are simulated in parallel
+	 * and written in order, which makes the output depend only on the seed and on the parameters of the simulation
+	 * @param outPath Path of the output file
+	 * @throws IOException If the file can not be written
+	 */
 	public void simulate(String outPath) throws IOException {
-		long totalLength = genome.getTotalLength();
 		int nSeqs = genome.getNumSequences();
 		long[] cumulativeStarts = new long[nSeqs];
 		cumulativeStarts[0] = 0;
 		for (int i = 1; i < nSeqs; i++) {
 			cumulativeStarts[i] = cumulativeStarts[i - 1] + genome.getSequenceByIndex(i - 1).getLength();
 		}
+		SplittableRandom seedRandom = new SplittableRandom(seed);
+		ThreadPoolManager pool = null;
+		if(numThreads>1) pool = new ThreadPoolManager(numThreads, 2*numThreads);
 		try (OutputStream os = new GZIPOutputStream(new FileOutputStream(outPath));
 			 PrintStream out = new PrintStream(os)) {
-			for (int i = 0; i < numberOfReads; i++) {
-				int readLength;
-				long nextStart;
-				QualifiedSequence seq = null;
-				int relStart = 0;
-				byte reverse = 0;
-				String read = null;
-				for (int j = 0; j < 100; j++) {
-					readLength = (int) (rnd.nextGaussian() * stdevReadlength + meanReadLength);
-					if(readLength<minReadLength) continue;
-					long nextLong = rnd.nextLong();
-					nextStart = nextLong % (totalLength - readLength);
-					if (nextStart < 0) continue;
+			for (int i = 0; i < numberOfReads; i+=READS_PER_BATCH) {
+				int batchSize = Math.min(READS_PER_BATCH, numberOfReads-i);
+				SplittableRandom random = seedRandom.split();
+				if(pool==null) out.print(simulateBatch(batchSize, cumulativeStarts, random));
+				else pool.queueTask(()->simulateBatch(batchSize, cumulativeStarts, random), (batch)->out.print(batch));
+				if(progressNotifier!=null && !progressNotifier.keepRunning(i/READS_PER_BATCH+1)) break;
+			}
+			if(pool!=null) pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-					int idx1 = Arrays.binarySearch(cumulativeStarts, nextStart);
+	/**
+	 * Simulates a batch of reads
+	 * @param numReads Number of reads to simulate
+	 * @param cumulativeStarts Absolute start of each sequence of the genome
+	 * @param random Generator for this batch
+	 * @return String Reads of the batch in the output format
+	 */
+	private String simulateBatch(int numReads, long [] cumulativeStarts, SplittableRandom random) {
+		long totalLength = genome.getTotalLength();
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < numReads; i++) {
+			int readLength;
+			long nextStart;
+			QualifiedSequence seq = null;
+			int relStart = 0;
+			byte reverse = 0;
+			String read = null;
+			for (int j = 0; j < 100; j++) {
+				readLength = (int) (nextGaussian(random) * stdevReadlength + meanReadLength);
+				if(readLength<minReadLength || readLength>=totalLength) continue;
+				nextStart = random.nextLong(totalLength - readLength);
 
-					int sequenceIdx;
-					if (idx1 >= 0)
-						sequenceIdx = idx1;
-					else {
-						sequenceIdx = -idx1 - 2;
-					}
-					seq = genome.getSequenceByIndex(sequenceIdx);
-					relStart = (int) (nextStart - cumulativeStarts[sequenceIdx]);
-					int relEnd = relStart + readLength;
-					if (relEnd <= seq.getLength()) {
-						read = seq.getCharacters().subSequence(relStart, relEnd).toString();
-						break;
-					}
-				}
-				if (read == null) continue;
-				if (rnd.nextBoolean()) {
-					reverse = 1;
-					read = DNAMaskedSequence.getReverseComplement(read).toString();
+				int idx1 = Arrays.binarySearch(cumulativeStarts, nextStart);
+
+				int sequenceIdx;
+				if (idx1 >= 0)
+					sequenceIdx = idx1;
+				else {
+					sequenceIdx = -idx1 - 2;
 				}
-				String finalRead = generateErrors(read);
-				String readId = seq.getName() + "_" + (relStart+1) + "_" + reverse;
-				if(outFormat == OUT_FORMAT_FASTA) {
-					out.println(">" + readId);
-					out.println(finalRead);
-				} else {
-					out.println("@" + readId);
-					out.println(finalRead);
-					out.println("+");
-					out.println(RawRead.generateFixedQSString('5', finalRead.length()));
+				seq = genome.getSequenceByIndex(sequenceIdx);
+				relStart = (int) (nextStart - cumulativeStarts[sequenceIdx]);
+				int relEnd = relStart + readLength;
+				if (relEnd <= seq.getLength()) {
+					read = seq.getCharacters().subSequence(relStart, relEnd).toString();
+					break;
 				}
-				
+			}
+			if (read == null) continue;
+			if (random.nextBoolean()) {
+				reverse = 1;
+				read = DNAMaskedSequence.getReverseComplement(read).toString();
+			}
+			String finalRead = generateErrors(read, random);
+			String readId = seq.getName() + "_" + (relStart+1) + "_" + reverse;
+			if(outFormat == OUT_FORMAT_FASTA) {
+				out.append(">").append(readId).append("\n");
+				out.append(finalRead).append("\n");
+			} else {
+				out.append("@").append(readId).append("\n");
+				out.append(finalRead).append("\n");
+				out.append("+\n");
+				out.append(RawRead.generateFixedQSString('5', finalRead.length())).append("\n");
 			}
 		}
+		return out.toString();
 	}
 
-	private String generateErrors(String read) {
+	private String generateErrors(String read, SplittableRandom random) {
 		String alphabet = DNASequence.BASES_STRING;
 		int len = read.length();
 		StringBuilder answer = new StringBuilder(len);
 
 		for(int i=0;i<len;i++) {
 			
-			if(rnd.nextDouble()<indelErrorRate) {
+			if(random.nextDouble()<indelErrorRate) {
 				//Generate random indels
 				int length = 0;
 				for (int j=0; j<100 && length == 0;j++) {
-					length = (int) Math.round(rnd.nextGaussian()*2.0);
+					length = (int) Math.round(nextGaussian(random)*2.0);
 				}
 				length = Math.min(length, 10);
 				length = Math.max(length, -10);
@@ -251,11 +312,11 @@ public class SingleReadsSimulator {
 				}
 			} else {
 				char c = read.charAt(i);
-				if(rnd.nextDouble()<substitutionErrorRate) {
+				if(random.nextDouble()<substitutionErrorRate) {
 					// Generate random substitution
 					char c2 = c;
 					for (int j=0; j<100 && c == c2;j++) {
-						c2 = alphabet.charAt(rnd.nextInt(alphabet.length()));
+						c2 = alphabet.charAt(random.nextInt(alphabet.length()));
 					}
 					c = c2;
 				}
@@ -265,4 +326,18 @@ public class SingleReadsSimulator {
 		return answer.toString();
 	}
 
+	/**
+	 * Generates a standard normal value using the polar method
+	 * @param random Source of uniform values
+	 * @return double Value from a normal distribution with mean zero and variance one
+	 */
+	private static double nextGaussian(SplittableRandom random) {
+		while (true) {
+			double v1 = 2*random.nextDouble()-1;
+			double v2 = 2*random.nextDouble()-1;
+			double s = v1*v1+v2*v2;
+			if(s<1 && s!=0) return v1*Math.sqrt(-2*Math.log(s)/s);
+		}
+	}
+
 }
@@ -20,6 +20,7 @@
 package ngsep.simulation;
 
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
@@ -28,11 +29,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
 import java.util.TreeSet;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 import ngsep.genome.GenomicRegion;
 import ngsep.genome.GenomicRegionComparator;
@@ -41,6 +42,7 @@ import ngsep.genome.io.SimpleGenomicRegionFileHandler;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
+import ngsep.main.ThreadPoolManager;
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.DNASequence;
 import ngsep.sequences.QualifiedSequenceList;
@@ -71,17 +73,22 @@ public class TillingPopulationSimulator {
 	public static final double DEF_MIN_ERROR_RATE=0.001;
 	public static final int PLAQUE_WIDTH=8;
 	public static final int PLAQUE_HEIGHT=8;
+	public static final int DEF_NUM_THREADS=1;
 	
 	private ReferenceGenome genome;
 	private int numIndividuals = DEF_INDIVIDUALS;
 	private int numFragments = DEF_NUM_FRAGMENTS_POOL;
 	private int readLength = DEF_READ_LENGTH;
 	private double errorRate = DEF_ERROR_RATE;
+	private long seed = new SplittableRandom().nextLong();
+	private int numThreads = DEF_NUM_THREADS;
 	private List<GenomicRegion> sequencedRegions;
 	
 	//Variants indexed by individual
 	private List<SimulatedDiploidIndividual> individuals;
 	private List<List<SimulatedDiploidIndividual>> pools;
+	//Generator of the seed. Each step of the simulation uses a generator split from this one
+	private SplittableRandom seedRandom = null;
 	
 	
 	public static void main(String[] args) throws Exception {
@@ -220,11 +227,51 @@ public class TillingPopulationSimulator {
 		this.setErrorRate((double)OptionValuesDecoder.decode(value, Double.class));
 	}
 
+	/**
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * @param seed Seed for the random generator. Simulations with the same seed produce the same population
+	 * and the same reads regardless of the number of threads
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+		this.seedRandom = null;
+	}
+
+	public void setSeed(String value) {
+		this.setSeed((long)OptionValuesDecoder.decode(value, Long.class));
+	}
+
+	/**
+	 * @return the numThreads
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads Number of threads used to simulate the reads of different pools
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads must be a positive number. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+
+	public void setNumThreads(String value) {
+		this.setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public void runSimulation(String sequencedRegionsFile, String outPrefix) throws IOException {
 		
 		
 		loadSequencedRegions(sequencedRegionsFile);
 		System.out.println("Loaded regions");
+		System.out.println("Random seed: "+seed);
 		simulatePopulation();
 		System.out.println("Simulated population");
 		printMutations(outPrefix+".vcf");
@@ -233,10 +280,26 @@ public class TillingPopulationSimulator {
 		ArrayList<ArrayList<Double>> errors=generateErrorIntervals();
 		HashMap<Character,ArrayList<Character>> Seq_err= generateMutatedDictionary();
 		
-		for(int i=0;i<pools.size();i++) {
-			List<SimulatedDiploidIndividual> pool = pools.get(i);
-			simulatePoolReads(pool, outPrefix+"P"+i+"_1.fastq", outPrefix+"P"+i+"_2.fastq",errors,Seq_err,i);
-			System.out.println("Simulated reads pool "+i);
+		//Pools are simulated in parallel. Generators are split in the order of the pools
+		ThreadPoolManager poolManager = (numThreads>1)?new ThreadPoolManager(numThreads, 2*numThreads):null;
+		try {
+			for(int i=0;i<pools.size();i++) {
+				List<SimulatedDiploidIndividual> pool = pools.get(i);
+				int poolId = i;
+				SplittableRandom random = nextRandom();
+				if(poolManager==null) {
+					simulatePoolReads(pool, outPrefix+"P"+poolId+"_1.fastq.gz", outPrefix+"P"+poolId+"_2.fastq.gz",errors,Seq_err,poolId,random);
+					System.out.println("Simulated reads pool "+poolId);
+					continue;
+				}
+				poolManager.queueTask(()-> {
+					simulatePoolReads(pool, outPrefix+"P"+poolId+"_1.fastq.gz", outPrefix+"P"+poolId+"_2.fastq.gz",errors,Seq_err,poolId,random);
+					return poolId;
+				}, (id)->System.out.println("Simulated reads pool "+id));
+			}
+			if(poolManager!=null) poolManager.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		}
 		
 		
@@ -255,7 +318,7 @@ public class TillingPopulationSimulator {
 	 * Creates individuals, simulates random mutations and builds the mutated allele sequences per individual
 	 */
 	public void simulatePopulation() {
-		Random random = new Random();
+		SplittableRandom random = nextRandom();
 		String alphabet = DNASequence.BASES_STRING;
 		//Step 1: create objects for individuals
 		individuals = new ArrayList<>(numIndividuals);
@@ -278,7 +341,7 @@ public class TillingPopulationSimulator {
 						
 			String mutated = alphabet.replaceAll(Character.toString(refBase) , "");
 			GenomicVariant variant = new SNV(targetGR.getSequenceName(), location, refBase, mutated.charAt(random.nextInt(3)));
-			targetInd.addMutation(variant);
+			targetInd.addMutation(variant, random);
 		}
 			
 		//Step 3: build individual allele sequences from the mutations
@@ -380,6 +443,11 @@ public class TillingPopulationSimulator {
 
 
 
+	private SplittableRandom nextRandom() {
+		if(seedRandom==null) seedRandom = new SplittableRandom(seed);
+		return seedRandom.split();
+	}
+
 	/**
 	 * Simulate the pools to sequence the simulated individuals
 	 */
@@ -466,23 +534,23 @@ public class TillingPopulationSimulator {
 	 * either both neither have an error: one can have an error and the other be correct, but the qualities are going to be the
 	 * same.
 	 * @param pool Individuals with allele sequences to simulate reads
-	 * @param file1 Output file for first end of paired end reads
-	 * @param file2 Output file for second end of paired end reads
+	 * @param file1 Output file for first end of paired end reads. Reads are written in gzip format
+	 * @param file2 Output file for second end of paired end reads. Reads are written in gzip format
+	 * @param random Generator for the reads of this pool
 	 */
-	public void simulatePoolReads(List<SimulatedDiploidIndividual> pool, String file1, String file2, ArrayList<ArrayList<Double>> errors, HashMap<Character,ArrayList<Character>> mut_Pos, int pool_id) throws FileNotFoundException {
+	public void simulatePoolReads(List<SimulatedDiploidIndividual> pool, String file1, String file2, ArrayList<ArrayList<Double>> errors, HashMap<Character,ArrayList<Character>> mut_Pos, int pool_id, SplittableRandom random) throws IOException {
 		
-		Random random = new Random();
 		/*String alphabet = DNASequence.BASES_STRING;*/
 		
 		
-		PrintStream out = new PrintStream(file1);
-		PrintStream out_rev = new PrintStream(file2);
+		PrintStream out = new PrintStream(new GZIPOutputStream(new FileOutputStream(file1)));
+		PrintStream out_rev = new PrintStream(new GZIPOutputStream(new FileOutputStream(file2)));
 
 		//For each fragment select a random individual, then select an allele sequence at random and build the reads from the two ends of the sequence
 		for(int i=0; i<DEF_NUM_FRAGMENTS_POOL;i++) {
 			SimulatedDiploidIndividual queryInd = pool.get(random.nextInt(pool.size()));
 			
-			int randSeqNum = queryInd.getIntForRandomSequence();
+			int randSeqNum = queryInd.getIntForRandomSequence(random);
 			DNAMaskedSequence querySeq = queryInd.getRandomSequence(randSeqNum);
 			
 			/**
@@ -493,12 +561,12 @@ public class TillingPopulationSimulator {
 			char[] readForward = querySeq.subSequence(initialPositionForward, initialPositionForward+DEF_READ_LENGTH).toString().toCharArray();
 			char[] readReverse = querySeq.getReverseComplement().subSequence(initialPositionForward, initialPositionForward+DEF_READ_LENGTH).toString().toCharArray();
 
-			String qualityForward="";
-			String qualityReverse="";
+			StringBuilder qualityForward=new StringBuilder(DEF_READ_LENGTH);
+			StringBuilder qualityReverse=new StringBuilder(DEF_READ_LENGTH);
 			
 			for(int j=0; j < DEF_READ_LENGTH; j++) {	
 
-				int phred_score=(int) Math.round(ThreadLocalRandom.current().nextDouble(errors.get(1).get(j),errors.get(0).get(j)));
+				int phred_score=(int) Math.round(random.nextDouble(errors.get(1).get(j),errors.get(0).get(j)));
 				Double error_prob = Math.pow(10.0, phred_score/(-10.0));
 				
 				if(random.nextDouble()<error_prob) {
@@ -511,7 +579,7 @@ public class TillingPopulationSimulator {
 				}
 				int tt_score=phred_score+33;
 				char symbol=(char) tt_score;
-				qualityForward+=Character.toString(symbol);
+				qualityForward.append(symbol);
 				
 				if(random.nextDouble()<error_prob) {
 					Character mutated = mut_Pos.get(readReverse[j]).get(random.nextInt(3));
@@ -520,7 +588,7 @@ public class TillingPopulationSimulator {
 					String mutated = alphabet.replaceAll(Character.toString(readReverse[k]), "");
 					readReverse[k]=mutated.charAt(random.nextInt(3));**/
 				}
-				qualityReverse+=Character.toString(symbol);
+				qualityReverse.append(symbol);
 			}
 			out.println(String.valueOf("@Ind"+queryInd.getId())+"_"+randSeqNum+"_"+pool_id+"_"+i);
 			out.println(readForward);
@@ -547,7 +615,6 @@ class SimulatedDiploidIndividual {
 	private Map<String,GenomicVariant> mutationsAllele1 = new HashMap<>();
 	private Map<String,GenomicVariant> mutationsAllele2 = new HashMap<>();
 	private List<DNAMaskedSequence> alleleSequences = new ArrayList<>();
-	private static Random random = new Random();
 	public SimulatedDiploidIndividual(int id) {
 		super();
 		this.id = id;
@@ -555,7 +622,7 @@ class SimulatedDiploidIndividual {
 	public int getId() {
 		return id;
 	}
-	public void addMutation (GenomicVariant mutation) {
+	public void addMutation (GenomicVariant mutation, SplittableRandom random) {
 		String key = buildKey(mutation);
 		if(random.nextBoolean()) {
 			if(!mutationsAllele1.containsKey(key)) mutationsAllele1.put(key,mutation);
@@ -648,7 +715,7 @@ class SimulatedDiploidIndividual {
 		return Collections.unmodifiableList(alleleSequences);
 	}
 	
-	public int getIntForRandomSequence() {
+	public int getIntForRandomSequence(SplittableRandom random) {
 		int idx = random.nextInt(alleleSequences.size());
 		return idx;
 	}
@@ -20,9 +20,13 @@
 package ngsep.variants.imputation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
+import ngsep.hmm.HMMWorkspace;
 import ngsep.hmm.RecombinationHMM;
 import ngsep.math.LogMath;
 import ngsep.math.NumberArrays;
@@ -101,43 +105,50 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 		this.startsBaumWelch = startsBaumWelch;
 	}
 
+	public void setNumThreads(int numThreads) {
+		super.setNumThreads(numThreads);
+		haploidBaseHMM.setNumThreads(numThreads);
+	}
+
+	public void setThreadPool(ExecutorService threadPool) {
+		super.setThreadPool(threadPool);
+		haploidBaseHMM.setThreadPool(threadPool);
+	}
+
 	public void imputeGenotypes (Map<String, List<CalledSNV>> genotypes, int [][][] outClusters) {
 		List<String> sampleIds = new ArrayList<String>();
 		sampleIds.addAll(genotypes.keySet());
 		int n = sampleIds.size();
 		int m = genotypes.values().iterator().next().size();
-		int k = getNumStates();
 		
 		if(m!=getSteps()) throw new IllegalArgumentException("Number of variants: "+m+" in the set of genotypes does not coincide with steps of the HMM: "+getSteps());
 		double [][][] sumGenotypeProbs = new double [n][m][3];
-		double [][][] nextGenotypeProbs = new double [n][m][3];
-		
-		double [][] nextPosteriorsSample = new double [m][k];
-		int [] nextViterbiPathSample = new int [m];
 		for(int i=0;i<n;i++) {
 			NumberArrays.initializeDoubleMatrix(sumGenotypeProbs[i]);
 		}
-		for(int h=0;h<startsBaumWelch;h++) {
-			getLog().info("Training and sampling iteration: "+h);
-			train();
-			getLog().info("Model trained");
-			for(int i=0;i<n;i++) {
-				String sampleId = sampleIds.get(i);
-				List<CalledSNV> genotypesSample = genotypes.get(sampleId);
-				calculateGenotypePosteriors(genotypesSample, nextGenotypeProbs[i]);
-				NumberArrays.accumulate(sumGenotypeProbs[i],nextGenotypeProbs[i]);
-				
-				//State posteriors for assignments
-				calculatePosteriors(genotypesSample, nextPosteriorsSample);
-				
-				//Best viterbi path
-				getViterbiPath(genotypesSample, nextViterbiPathSample);
-				
-				//Conciliate viterbi with posterior
-				assignClusters (sampleId, genotypesSample, nextPosteriorsSample,nextViterbiPathSample,outClusters[h][i]);
-				getLog().info("Calculated posteriors for sample: "+sampleId);
-				
+		//Samples are decoded in parallel. Each chunk of samples uses its own workspace
+		int chunks = Math.max(1, Math.min(getNumThreads(), n));
+		HMMWorkspace [] workspaces = new HMMWorkspace[chunks];
+		for(int c=0;c<chunks;c++) workspaces[c] = new HMMWorkspace();
+		//The same threads are used to train and decode in all the starts
+		boolean newPool = startThreadPool();
+		try {
+			for(int h=0;h<startsBaumWelch;h++) {
+				getLog().info("Training and sampling iteration: "+h);
+				train();
+				getLog().info("Model trained");
+				int [][] outClustersStart = outClusters[h];
+				List<Callable<Object>> tasks = new ArrayList<>(chunks);
+				for(int c=0;c<chunks;c++) {
+					int first = c*n/chunks;
+					int last = (c+1)*n/chunks;
+					HMMWorkspace ws = workspaces[c];
+					tasks.add(()->decodeSamples(genotypes, sampleIds.subList(first, last), first, sumGenotypeProbs, outClustersStart, ws));
+				}
+				runTasks(tasks);
 			}
+		} finally {
+			if(newPool) shutdownThreadPool();
 		}
 		//Map<String,List<Integer>> assignments = new TreeMap<String, List<Integer>>();
 		for(int i=0;i<n;i++) {
@@ -147,63 +158,137 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 			//assignments.put(sampleId, calculateFinalAssignments(sumStateProbs[i]));
 		}
 	}
+	
+	private Object decodeSamples(Map<String, List<CalledSNV>> genotypes, List<String> sampleIds, int firstIndex, double [][][] sumGenotypeProbs, int [][] outClusters, HMMWorkspace ws) {
+		int m = getSteps();
+		int k = getNumStates();
+		double [][] nextGenotypeProbs = new double [m][3];
+		double [][] nextPosteriorsSample = new double [m][k];
+		int [] nextViterbiPathSample = new int [m];
+		for(int j=0;j<sampleIds.size();j++) {
+			int i = firstIndex+j;
+			String sampleId = sampleIds.get(j);
+			List<CalledSNV> genotypesSample = genotypes.get(sampleId);
+			calculateGenotypePosteriors(genotypesSample, nextGenotypeProbs, ws);
+			NumberArrays.accumulate(sumGenotypeProbs[i],nextGenotypeProbs);
+			
+			//State posteriors for assignments
+			calculatePosteriors(genotypesSample, nextPosteriorsSample, ws);
+			
+			//Best viterbi path
+			Arrays.fill(nextViterbiPathSample, -1);
+			getViterbiPath(genotypesSample, nextViterbiPathSample, ws);
+			
+			//Conciliate viterbi with posterior
+			assignClusters (sampleId, genotypesSample, nextPosteriorsSample,nextViterbiPathSample,outClusters[i]);
+			getLog().info("Calculated posteriors for sample: "+sampleId);
+		}
+		return null;
+	}
 
 
 	public void train() {
 		haploidBaseHMM.train();
 		getLog().info("Trained internal haploid model ");
 		int n = getSteps();
+		int k = haploidBaseHMM.getNumStates();
 		int kD = getNumStates();
-		Double [][] logTransitionsStep = new Double [kD][kD];
+		double [] logTransitionsStep = new double [kD*kD];
 		for(int step=0;step<n-1;step++) {
+			double [] haploidTransitions = haploidBaseHMM.getTransitionLogs(step);
 			for(int i = 0;i<kD; i++) {
 				HaplotypePairHMMState statePair1 = (HaplotypePairHMMState)getState(i);
 				for(int j = 0;j<kD; j++) {
 					HaplotypePairHMMState statePair2 = (HaplotypePairHMMState)getState(j);
-					Double t1 = haploidBaseHMM.getTransition(statePair1.getIndex1(), statePair2.getIndex1(), step);
-					if(t1==null) {
+					double t1 = haploidTransitions[statePair1.getIndex1()*k+statePair2.getIndex1()];
+					if(t1==Double.NEGATIVE_INFINITY) {
 						getLog().info("WARN: Zero transition between: "+statePair1.getIndex1()+" and "+statePair2.getIndex1()+" at step: "+step+" value: "+t1);
 					}
 					else if(statePair1.getIndex1()!=statePair2.getIndex1() && t1 > -1) {
 						getLog().info("WARN: Abnormally high transition between: "+statePair1.getIndex1()+" and "+statePair2.getIndex1()+" at step: "+step+" value: "+t1);
 					}
-					Double t2 = haploidBaseHMM.getTransition(statePair1.getIndex2(), statePair2.getIndex2(), step);
-					if(t2==null) {
+					double t2 = haploidTransitions[statePair1.getIndex2()*k+statePair2.getIndex2()];
+					if(t2==Double.NEGATIVE_INFINITY) {
 						getLog().info("WARN: Zero transition between: "+statePair1.getIndex2()+" and "+statePair2.getIndex2()+" at step: "+step+" value: "+t2);
 					}
 					else if(statePair1.getIndex2()!=statePair2.getIndex2() && t2 > -1) {
 						getLog().info("WARN: Abnormally high transition between: "+statePair1.getIndex2()+" and "+statePair2.getIndex2()+" at step: "+step+" value: "+t2);
 					}
-					logTransitionsStep[i][j] = LogMath.logProduct(t1, t2);
+					logTransitionsStep[i*kD+j] = t1 + t2;
 				}
 			}
 			//getLog().info("Setting transitions for step: "+step);
-			setTransitions(logTransitionsStep, step);
+			setTransitionLogs(logTransitionsStep, step);
 		}
 		getLog().info("Trained diploid model ");
 	}
+	
+	@Override
+	protected void fillEmissionLogs(List<? extends Object> observations, double[] emissionLogs) {
+		int m = observations.size();
+		int k = haploidBaseHMM.getNumStates();
+		int kD = getNumStates();
+		byte a0 = 0;
+		byte a1 = 1;
+		//Emissions of each allele by each haploid state are calculated once per step and then combined for each pair
+		double [] allele0Logs = new double [k];
+		double [] allele1Logs = new double [k];
+		for(int i=0;i<m;i++) {
+			for(int j=0;j<k;j++) {
+				HaplotypeClusterHMMState state = (HaplotypeClusterHMMState)haploidBaseHMM.getState(j);
+				allele0Logs[j] = state.getEmissionLog(a0, i);
+				allele1Logs[j] = state.getEmissionLog(a1, i);
+			}
+			Object o = observations.get(i);
+			byte genotype = CalledSNV.GENOTYPE_UNDECIDED;
+			if(o instanceof Byte) genotype = (Byte)o;
+			else if (o instanceof CalledSNV) genotype = ((CalledSNV)o).getGenotype();
+			int offset = i*kD;
+			for(int j=0;j<kD;j++) {
+				HaplotypePairHMMState pairState = (HaplotypePairHMMState)getState(j);
+				int i1 = pairState.getIndex1();
+				int i2 = pairState.getIndex2();
+				emissionLogs[offset+j] = HaplotypePairHMMState.calculateEmissionLog(genotype, allele0Logs[i1], allele1Logs[i1], allele0Logs[i2], allele1Logs[i2]);
+			}
+		}
+	}
 
 	public void calculateGenotypePosteriors(List<CalledSNV> genotypes, double[][] genotypePosteriors) {
+		calculateGenotypePosteriors(genotypes, genotypePosteriors, getWorkspace());
+	}
+	
+	/**
+	 * Calculates the posterior probabilities of each genotype at each site given the observed genotypes
+	 * @param genotypes Observed genotypes
+	 * @param genotypePosteriors Output matrix with one row per site and three columns
+	 * @param ws Workspace to perform the calculations
+	 */
+	public void calculateGenotypePosteriors(List<CalledSNV> genotypes, double[][] genotypePosteriors, HMMWorkspace ws) {
 		int m = genotypes.size();
 		int k = getNumStates();
-		Double [][] forwardLogs=calculateForward(genotypes);
-		Double [][] backwardLogs=calculateBackward(genotypes);
+		calculateForwardBackward(genotypes, ws);
 		for(int i=0;i<m;i++) {
-			Double log0 = null;
-			Double log1 = null;
-			Double log2 = null;
+			double log0 = Double.NEGATIVE_INFINITY;
+			double log1 = Double.NEGATIVE_INFINITY;
+			double log2 = Double.NEGATIVE_INFINITY;
 			for(int j=0;j<k;j++) {
-				Double fTimesB = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i][j]);
-				log0 = LogMath.logSum(log0, LogMath.logProduct(fTimesB, getEmission(j, CalledSNV.GENOTYPE_HOMOREF, i)));
-				log1 = LogMath.logSum(log1, LogMath.logProduct(fTimesB, getEmission(j, CalledSNV.GENOTYPE_HETERO, i)));
-				log2 = LogMath.logSum(log2, LogMath.logProduct(fTimesB, getEmission(j, CalledSNV.GENOTYPE_HOMOALT, i)));
+				double fTimesB = ws.getForwardLog(i, j)+ws.getBackwardLog(i, j);
+				if(fTimesB == Double.NEGATIVE_INFINITY) continue;
+				HaplotypePairHMMState state = (HaplotypePairHMMState)getState(j);
+				log0 = LogMath.fastLogSum(log0, fTimesB+state.getEmissionLog(CalledSNV.GENOTYPE_HOMOREF, i));
+				log1 = LogMath.fastLogSum(log1, fTimesB+state.getEmissionLog(CalledSNV.GENOTYPE_HETERO, i));
+				log2 = LogMath.fastLogSum(log2, fTimesB+state.getEmissionLog(CalledSNV.GENOTYPE_HOMOALT, i));
 			}
 			//Normalize and raise to calculate final probabilities of genotypes
-			Double logSum = LogMath.logSum(log0, log1);
-			logSum = LogMath.logSum(logSum, log2);
-			double prob0 = LogMath.power10(LogMath.logProduct(log0, -logSum));
-			double prob1 = LogMath.power10(LogMath.logProduct(log1, -logSum));
-			double prob2 = LogMath.power10(LogMath.logProduct(log2, -logSum));
+			double logSum = LogMath.fastLogSum(log0, log1);
+			logSum = LogMath.fastLogSum(logSum, log2);
+			if(logSum == Double.NEGATIVE_INFINITY) {
+				genotypePosteriors[i][0] = genotypePosteriors[i][1] = genotypePosteriors[i][2] = 0;
+				continue;
+			}
+			double prob0 = Math.pow(10, log0-logSum);
+			double prob1 = Math.pow(10, log1-logSum);
+			double prob2 = Math.pow(10, log2-logSum);
 			double sum = prob0 + prob1 + prob2;
 			prob0/=sum;
 			prob1/=sum;
@@ -20,8 +20,12 @@
 package ngsep.variants.imputation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+
+import ngsep.hmm.HMMWorkspace;
 
 import ngsep.math.NumberArrays;
 import ngsep.math.PhredScoreHelper;
@@ -71,37 +75,34 @@ public class GenotypeImputationHMM extends HaplotypeClustersHMM {
 		int n = sampleIds.size();
 		
 		int m = genotypes.values().iterator().next().size();
-		int k = getNumStates();
 		if(m!=getSteps()) throw new IllegalArgumentException("Number of variants: "+m+" in the set of genotypes does not coincide with steps of the HMM: "+getSteps());
 		double [][][] sumAlleleProbs = new double [n][m][2];
-		double [][][] nextAlleleProbs = new double [n][m][2];
-		double [][] nextPosteriorsSample = new double [m][k];
-		int [] nextViterbiPathSample = new int [m];
 		for(int i=0;i<n;i++) {
 			NumberArrays.initializeDoubleMatrix(sumAlleleProbs[i]);
 		}
-		for(int h=0;h<startsBaumWelch;h++) {
-			NumberArrays.initializeIntMatrix(outClusters[h]);
-			getLog().info("Training and sampling iteration: "+h);
-			train();
-			for(int i=0;i<n;i++) {
-				String sampleId = sampleIds.get(i);
-				List<CalledSNV> genotypesSample = genotypes.get(sampleId);
-				List<Byte> haplotype = makeHaplotypeWithHomozygous(genotypesSample);
-				
-				//Allele posteriors for genotyping
-				calculateAllelePosteriors(haplotype, nextAlleleProbs[i]);
-				NumberArrays.accumulate(sumAlleleProbs[i],nextAlleleProbs[i]);
-				
-				//State posteriors for assignments
-				calculatePosteriors(haplotype, nextPosteriorsSample);
-				
-				//Best viterbi path
-				getViterbiPath(haplotype, nextViterbiPathSample);
-				
-				//Conciliate viterbi with posterior
-				assignClusters (sampleId,genotypesSample, nextPosteriorsSample, nextViterbiPathSample, outClusters[h][i]);
+		//Samples are decoded in parallel. Each chunk of samples uses its own workspace
+		int chunks = Math.max(1, Math.min(getNumThreads(), n));
+		HMMWorkspace [] workspaces = new HMMWorkspace[chunks];
+		for(int c=0;c<chunks;c++) workspaces[c] = new HMMWorkspace();
+		//The same threads are used to train and decode in all the starts
+		boolean newPool = startThreadPool();
+		try {
+			for(int h=0;h<startsBaumWelch;h++) {
+				NumberArrays.initializeIntMatrix(outClusters[h]);
+				getLog().info("Training and sampling iteration: "+h);
+				train();
+				int [][] outClustersStart = outClusters[h];
+				List<Callable<Object>> tasks = new ArrayList<>(chunks);
+				for(int c=0;c<chunks;c++) {
+					int first = c*n/chunks;
+					int last = (c+1)*n/chunks;
+					HMMWorkspace ws = workspaces[c];
+					tasks.add(()->decodeSamples(genotypes, sampleIds.subList(first, last), first, sumAlleleProbs, outClustersStart, ws));
+				}
+				runTasks(tasks);
 			}
+		} finally {
+			if(newPool) shutdownThreadPool();
 		}
 		for(int i=0;i<n;i++) {
 			String sampleId = sampleIds.get(i);
@@ -109,6 +110,36 @@ public class GenotypeImputationHMM extends HaplotypeClustersHMM {
 			imputeGenotypes(genotypes.get(sampleId),sumAlleleProbs[i],startsBaumWelch);
 		}
 	}
+	
+	private Object decodeSamples(Map<String, List<CalledSNV>> genotypes, List<String> sampleIds, int firstIndex, double [][][] sumAlleleProbs, int [][] outClusters, HMMWorkspace ws) {
+		int m = getSteps();
+		int k = getNumStates();
+		double [][] nextAlleleProbs = new double [m][2];
+		double [][] nextPosteriorsSample = new double [m][k];
+		int [] nextViterbiPathSample = new int [m];
+		for(int j=0;j<sampleIds.size();j++) {
+			int i = firstIndex+j;
+			String sampleId = sampleIds.get(j);
+			List<CalledSNV> genotypesSample = genotypes.get(sampleId);
+			List<Byte> haplotype = makeHaplotypeWithHomozygous(genotypesSample);
+			
+			//Allele posteriors for genotyping
+			calculateAllelePosteriors(haplotype, nextAlleleProbs, ws);
+			NumberArrays.accumulate(sumAlleleProbs[i],nextAlleleProbs);
+			
+			//State posteriors for assignments
+			calculatePosteriors(haplotype, nextPosteriorsSample, ws);
+			
+			//Best viterbi path
+			Arrays.fill(nextViterbiPathSample, -1);
+			getViterbiPath(haplotype, nextViterbiPathSample, ws);
+			
+			//Conciliate viterbi with posterior
+			assignClusters (sampleId,genotypesSample, nextPosteriorsSample, nextViterbiPathSample, outClusters[i]);
+		}
+		return null;
+	}
+	
 	/**
 	 * 
 	 * @param nextPosteriors mxk posteriors per site per state
@@ -25,13 +25,19 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.hmm.RecombinationHMM;
+import ngsep.hmm.VariableTransitionHMM;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
@@ -53,6 +59,7 @@ public class GenotypeImputer {
 	public static final int DEF_WINDOW_SIZE = 5000;
 	public static final int DEF_OVERLAP = 50;
 	public static final double DEF_AVG_CM_PER_KBP = 0.001;
+	public static final int DEF_NUM_THREADS = VariableTransitionHMM.DEF_NUM_THREADS;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(GenotypeImputer.class.getName());
@@ -70,6 +77,7 @@ public class GenotypeImputer {
 	private boolean skipTransitionsTraining = false;
 	private boolean inbredParents = false;
 	private boolean inbredSamples = false;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	// Model attributes
 	private PrintStream outAssignments;
@@ -182,6 +190,16 @@ public class GenotypeImputer {
 		this.setInbredSamples(inbredSamples.booleanValue());
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public PrintStream getOutAssignments() {
 		return outAssignments;
 	}
@@ -227,6 +245,7 @@ public class GenotypeImputer {
 		if(skipTransitionsTraining) out.println("Transitions will not be modified during the HMM training");
 		if(inbredParents) out.println("Parents of the population are assumed to be inbred");
 		if(inbredSamples) out.println("Samples of the population are assumed to be inbred. All imputed genotype calls will be homozygous");
+		out.println("Number of threads: "+numThreads);
 		log.info(""+os.toString());
 	}
 	public void impute(String filename, PrintStream outGenotypes) throws IOException {
@@ -246,6 +265,10 @@ public class GenotypeImputer {
 		List<Sample> samples = header.getSamples();
 		String lastSeqName = null;
 		Iterator<VCFRecord> it = reader.iterator();
+		if(numThreads>1) {
+			imputeSequences(it, samples, writer, outGenotypes);
+			return;
+		}
 		while(it.hasNext()) {
 			VCFRecord record = it.next();
 			GenomicVariant var = record.getVariant();
@@ -253,7 +276,7 @@ public class GenotypeImputer {
 			boolean sequenceChange = !var.getSequenceName().equals(lastSeqName); 
 			if(sequenceChange || records.size() == windowSize) {
 				if(lastSeqName!=null) {
-					processRecords(records,samples,lastRecords, writer, outGenotypes,sequenceChange);
+					processRecords(records,samples,lastRecords, writer, outGenotypes,sequenceChange, null, outAssignments);
 					for(VCFRecord r:records) writer.printVCFRecord(r, outGenotypes);
 					progress++;
 					if(progressNotifier!=null && !progressNotifier.keepRunning(progress)) return;
@@ -263,14 +286,106 @@ public class GenotypeImputer {
 			records.add(record);
 		}
 		if(lastSeqName!=null) {
-			processRecords(records, samples, lastRecords, writer, outGenotypes, true);
+			processRecords(records, samples, lastRecords, writer, outGenotypes, true, null, outAssignments);
+		}
+	}
+	
+	/**
+	 * Imputes the records of different sequences in parallel. Windows within a sequence are still imputed in order
+	 * because each window uses the imputed genotypes of the overlap with the previous window as observations.
+	 * The HMMs of all sequences share the same threads to decode samples. Records of at most numThreads sequences are kept in memory
+	 * @param it Iterator over the records to impute
+	 * @param samples Samples of the population
+	 * @param writer Writer of the imputed records
+	 * @param outGenotypes Stream to write imputed records in the input order
+	 * @throws IOException If the imputation of a sequence fails
+	 */
+	private void imputeSequences(Iterator<VCFRecord> it, List<Sample> samples, VCFFileWriter writer, PrintStream outGenotypes) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		LinkedList<Future<ByteArrayOutputStream []>> pending = new LinkedList<>();
+		try {
+			List<VCFRecord> sequenceRecords = new ArrayList<>();
+			String lastSeqName = null;
+			while(it.hasNext()) {
+				VCFRecord record = it.next();
+				GenomicVariant var = record.getVariant();
+				if(!(var instanceof SNV)) continue;
+				if(!var.getSequenceName().equals(lastSeqName)) {
+					if(lastSeqName!=null) {
+						List<VCFRecord> records = sequenceRecords;
+						pending.add(pool.submit(()->imputeSequence(records, samples, writer, pool)));
+						sequenceRecords = new ArrayList<>();
+						while(pending.size()>=numThreads) {
+							if(!printSequence(pending.removeFirst(), outGenotypes)) return;
+						}
+					}
+					lastSeqName = var.getSequenceName();
+				}
+				sequenceRecords.add(record);
+			}
+			if(lastSeqName!=null) {
+				List<VCFRecord> records = sequenceRecords;
+				pending.add(pool.submit(()->imputeSequence(records, samples, writer, pool)));
+			}
+			while(!pending.isEmpty()) {
+				if(!printSequence(pending.removeFirst(), outGenotypes)) return;
+			}
+		} finally {
+			pool.shutdownNow();
 		}
 	}
 	
-	private void processRecords(List<VCFRecord> currentRecords, List<Sample> samples, List<VCFRecord> lastRecords, VCFFileWriter writer, PrintStream outGenotypes, boolean sequenceChange) {
+	/**
+	 * Imputes the records of one sequence in windows
+	 * @param records Records of the sequence
+	 * @param samples Samples of the population
+	 * @param writer Writer of the imputed records
+	 * @param pool Pool of threads shared by the HMMs
+	 * @return ByteArrayOutputStream [] Imputed records and cluster assignments of the sequence. Assignments are null if they are not required
+	 */
+	private ByteArrayOutputStream [] imputeSequence(List<VCFRecord> records, List<Sample> samples, VCFFileWriter writer, ExecutorService pool) {
+		ByteArrayOutputStream [] answer = new ByteArrayOutputStream [2];
+		answer[0] = new ByteArrayOutputStream();
+		PrintStream outSequence = new PrintStream(answer[0]);
+		PrintStream outSequenceAssignments = null;
+		if(outAssignments!=null) {
+			answer[1] = new ByteArrayOutputStream();
+			outSequenceAssignments = new PrintStream(answer[1]);
+		}
+		List<VCFRecord> windowRecords = new ArrayList<>(windowSize);
+		List<VCFRecord> lastRecords = new ArrayList<>();
+		int n = records.size();
+		for(int i=0;i<n;i+=windowSize) {
+			windowRecords.addAll(records.subList(i, Math.min(n, i+windowSize)));
+			processRecords(windowRecords, samples, lastRecords, writer, outSequence, i+windowSize>=n, pool, outSequenceAssignments);
+		}
+		outSequence.flush();
+		if(outSequenceAssignments!=null) outSequenceAssignments.flush();
+		return answer;
+	}
+	
+	private boolean printSequence(Future<ByteArrayOutputStream []> sequenceOutput, PrintStream outGenotypes) throws IOException {
+		ByteArrayOutputStream [] output;
+		try {
+			output = sequenceOutput.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if(cause instanceof Error) throw (Error)cause;
+			throw new IOException(cause);
+		}
+		output[0].writeTo(outGenotypes);
+		if(output[1]!=null) output[1].writeTo(outAssignments);
+		progress++;
+		return progressNotifier==null || progressNotifier.keepRunning(progress);
+	}
+	
+	private void processRecords(List<VCFRecord> currentRecords, List<Sample> samples, List<VCFRecord> lastRecords, VCFFileWriter writer, PrintStream outGenotypes, boolean sequenceChange, ExecutorService pool, PrintStream outSequenceAssignments) {
 		List<VCFRecord> recordsImpute = calculateRecordsImpute (currentRecords,lastRecords);
 		Map<String, List<CalledSNV>> genotypes = convertToCalledGenotypes(samples, recordsImpute);
-		imputeGenotypes(genotypes);
+		imputeGenotypes(genotypes, pool, outSequenceAssignments);
 		int printStart = 0;
 		if(lastRecords.size()>0) {
 			printStart+=overlap;
@@ -326,17 +441,33 @@ public class GenotypeImputer {
 
 	public void imputeGenotypes(Map<String,List<CalledSNV>> genotypes) {
 		progress = 0;
-		if(inbredSamples) imputeGenotypesHMMInbreds(genotypes);
-		else  imputeGenotypesHMMDiploid(genotypes);
+		imputeGenotypes(genotypes, null, outAssignments);
+	}
+	
+	/**
+	 * Imputes the given genotypes
+	 * @param genotypes Genotypes to impute
+	 * @param pool Pool of threads shared with the imputation of other sequences. If null, the HMM creates its own threads and progress is notified
+	 * @param outSequenceAssignments Stream to print the cluster assignments. It can be null
+	 */
+	private void imputeGenotypes(Map<String,List<CalledSNV>> genotypes, ExecutorService pool, PrintStream outSequenceAssignments) {
+		if(inbredSamples) imputeGenotypesHMMInbreds(genotypes, pool, outSequenceAssignments);
+		else  imputeGenotypesHMMDiploid(genotypes, pool, outSequenceAssignments);
 	}
 
 	public void imputeGenotypesHMMInbreds(Map<String, List<CalledSNV>> genotypes) {
+		imputeGenotypesHMMInbreds(genotypes, null, outAssignments);
+	}
+	
+	private void imputeGenotypesHMMInbreds(Map<String, List<CalledSNV>> genotypes, ExecutorService pool, PrintStream outSequenceAssignments) {
 		GenotypeImputationHMM  hmm = GenotypeImputationHMM.createHMM(genotypes, parentIds, numHaplotypeClusters, inbredParents);
 		hmm.setLog(log);
 		hmm.setAvgCMPerKbp(avgCMPerKbp);
 		hmm.setSkipTransitionsTraining(skipTransitionsTraining);
+		hmm.setNumThreads(numThreads);
+		hmm.setThreadPool(pool);
 		hmm.setTrainingData(makeTrainingDataWithHomozygous(genotypes));
-		if(progressNotifier!=null) {
+		if(pool==null && progressNotifier!=null) {
 			progress++;
 			if(!progressNotifier.keepRunning(progress)) return;
 		}
@@ -345,17 +476,23 @@ public class GenotypeImputer {
 		hmm.imputeGenotypes(genotypes,outClusters);
 		List<CalledSNV> snvs = genotypes.values().iterator().next();
 		//TODO: Conciliate more than one run of the Baum-Welch
-		if(outAssignments!=null) printClusters(genotypes.keySet(),snvs,outClusters[0],hmm);
+		if(outSequenceAssignments!=null) printClusters(genotypes.keySet(),snvs,outClusters[0],hmm,outSequenceAssignments);
 	}
 	
 	public void imputeGenotypesHMMDiploid(Map<String, List<CalledSNV>> genotypes) {
+		imputeGenotypesHMMDiploid(genotypes, null, outAssignments);
+	}
+	
+	private void imputeGenotypesHMMDiploid(Map<String, List<CalledSNV>> genotypes, ExecutorService pool, PrintStream outSequenceAssignments) {
 		DiploidGenotypeImputationHMM  hmm = DiploidGenotypeImputationHMM.createHMM(genotypes, parentIds, numHaplotypeClusters, inbredParents);
 		hmm.setAvgCMPerKbp(avgCMPerKbp);
 		hmm.setSkipTransitionsTraining(skipTransitionsTraining);
+		hmm.setNumThreads(numThreads);
+		hmm.setThreadPool(pool);
 		hmm.setLog(log);
 		hmm.setTrainingData(makeTrainingDataWithHomozygous(genotypes));
 		
-		if(progressNotifier!=null) {
+		if(pool==null && progressNotifier!=null) {
 			progress++;
 			if(!progressNotifier.keepRunning(progress)) return;
 		}
@@ -363,10 +500,10 @@ public class GenotypeImputer {
 		hmm.imputeGenotypes(genotypes,outClusters);
 		List<CalledSNV> snvs = genotypes.values().iterator().next();
 		//TODO: Conciliate more than one run of the Baum-Welch
-		if(outAssignments!=null) printClusters(genotypes.keySet(),snvs,outClusters[0],hmm);
+		if(outSequenceAssignments!=null) printClusters(genotypes.keySet(),snvs,outClusters[0],hmm,outSequenceAssignments);
 	}
 	
-	private void printClusters(Set<String>sampleIds, List<CalledSNV> snvs, int [][] outClusters,RecombinationHMM hmm) {
+	private void printClusters(Set<String>sampleIds, List<CalledSNV> snvs, int [][] outClusters,RecombinationHMM hmm, PrintStream outAssignments) {
 		int m = hmm.getSteps();
 		outAssignments.print("Chr\tPos");
 		for(String sampleId:sampleIds) outAssignments.print("\t"+sampleId);
@@ -34,12 +34,15 @@ import ngsep.variants.CalledSNV;
 public class HaplotypeClusterHMMState implements HMMState {
 	private String id = null;
 	private byte [] haplotype = new byte [0]; //-1 for undecided, 0 for allele zero, 1 for allele 1
-	private Double [] allele0Logs = new Double [0];
-	private Double [] allele1Logs = new Double [0];
+	//Zero probabilities are represented as Double.NEGATIVE_INFINITY
+	private double [] allele0Logs = new double [0];
+	private double [] allele1Logs = new double [0];
 	private Double logStart=null;
 	
 	public static final Double LOGPROB_UNEXPECTED = Math.log10(0.01);
 	public static final Double LOGPROB_EXPECTED = Math.log10(0.99);
+	private static final double LOGPROB_UNEXPECTED_P = LOGPROB_UNEXPECTED;
+	private static final double LOGPROB_EXPECTED_P = LOGPROB_EXPECTED;
 	
 	public HaplotypeClusterHMMState(int haplotypeLength) {
 		initArrays(haplotypeLength);
@@ -48,8 +51,8 @@ public class HaplotypeClusterHMMState implements HMMState {
 	private void initArrays(int m) {
 		if(haplotype.length!=m) {
 			haplotype = new byte [m];
-			allele0Logs = new Double [m];
-			allele1Logs = new Double [m];
+			allele0Logs = new double [m];
+			allele1Logs = new double [m];
 		}
 		Arrays.fill(haplotype, (byte)-1);
 		setRandomEmissions(true);
@@ -64,8 +67,8 @@ public class HaplotypeClusterHMMState implements HMMState {
 			//TODO: Improve handling
 			if(successProb > 0.999) successProb = 0.999;
 			byte g = call.getGenotype();
-			Double logError = LogMath.log10(1.0-successProb);
-			Double logNoError = LogMath.log10(successProb);
+			double logError = LogMath.toPrimitiveLog(LogMath.log10(1.0-successProb));
+			double logNoError = LogMath.toPrimitiveLog(LogMath.log10(successProb));
 			if(g==CalledSNV.GENOTYPE_HOMOREF) {
 				haplotype[i] = 0;
 				allele0Logs [i] = logNoError;
@@ -93,8 +96,8 @@ public class HaplotypeClusterHMMState implements HMMState {
 			if(successProb > 0.999) successProb = 0.999;
 			byte [] idsPhasedAlleles = call.getIndexesPhasedAlleles();
 			byte phasedAllele = idsPhasedAlleles[hapId];
-			Double logError = LogMath.log10(1.0-successProb);
-			Double logNoError = LogMath.log10(successProb);
+			double logError = LogMath.toPrimitiveLog(LogMath.log10(1.0-successProb));
+			double logNoError = LogMath.toPrimitiveLog(LogMath.log10(successProb));
 			if(phasedAllele == 0) {
 				haplotype[i] = 0;
 				allele0Logs [i] = logNoError;
@@ -121,8 +124,8 @@ public class HaplotypeClusterHMMState implements HMMState {
 		for(int i=0;i<haplotype.length;i++) {
 			if(updateKnownSites || haplotype[i]==-1) {
 				double d = r.nextDouble()*0.8 + 0.1;
-				allele0Logs [i] = LogMath.log10(1.0-d);
-				allele1Logs [i] = LogMath.log10(d);
+				allele0Logs [i] = Math.log10(1.0-d);
+				allele1Logs [i] = Math.log10(d);
 			}
 			
 		}
@@ -138,19 +141,20 @@ public class HaplotypeClusterHMMState implements HMMState {
 	}
 	/**
 	 * Changes the allele probabilities. Useful method for HMM training 
-	 * @param logProbs Matrix with as many rows as sites and with two columns, one for allele zero and another for allele 1
+	 * @param logProbs Matrix with as many rows as sites and with two columns, one for allele zero and another for allele 1.
+	 * Zero probabilities are represented as Double.NEGATIVE_INFINITY
 	 * @param updateKnownSites True if probabilities should be updated for sites in which the
 	 * haplotype was provided as an input
 	 */
-	public void setEmissionLogProbs(Double [][] logProbs, boolean updateKnownSites) {
+	public void setEmissionLogProbs(double [][] logProbs, boolean updateKnownSites) {
 		for(int i=0;i<logProbs.length;i++) {
 			if(updateKnownSites || haplotype[i]==-1) {
-				Double sum = LogMath.logSum(logProbs[i][0], logProbs[i][1]);
-				if(sum!=null) {
-					//sum == null implies that the expected counts for both allele are equal to zero, 
+				double sum = LogMath.fastLogSum(logProbs[i][0], logProbs[i][1]);
+				if(sum!=Double.NEGATIVE_INFINITY) {
+					//sum == -Infinity implies that the expected counts for both allele are equal to zero, 
 					//so the genotype information can not be used to reestimate emissions
-					allele0Logs[i] = LogMath.logProduct(logProbs[i][0], -sum);
-					allele1Logs[i] = LogMath.logProduct(logProbs[i][1], -sum);
+					allele0Logs[i] = logProbs[i][0]-sum;
+					allele1Logs[i] = logProbs[i][1]-sum;
 				}
 			}
 		}
@@ -160,17 +164,22 @@ public class HaplotypeClusterHMMState implements HMMState {
 	public Double getEmission(Object value, int step) {
 		if(value == null) return null;
 		byte b = (byte) value;
+		return getEmissionLog(b, step);
+	}
+	
+	/**
+	 * Primitive version of the emission calculation
+	 * @param allele Observed allele
+	 * @param step At which the allele is emitted
+	 * @return double log10 of the probability of observing the given allele at the given step
+	 */
+	public double getEmissionLog(byte allele, int step) {
 		//TODO: take into account genotype quality
-		//System.out.println("Allele: "+b+" allele 0 log: "+allele0Logs[step]+" allele 1 log: "+allele1Logs[step]);
-		Double answer = null;
-		if(b==0) answer = allele0Logs[step];
-		else if(b==1) answer = allele1Logs[step];
-		if(answer == null) {
-			answer = HaplotypeClusterHMMState.LOGPROB_UNEXPECTED;
-		} else {
-			answer = LogMath.logProduct(answer, HaplotypeClusterHMMState.LOGPROB_EXPECTED);
-		}
-		return answer;
+		double answer = Double.NEGATIVE_INFINITY;
+		if(allele==0) answer = allele0Logs[step];
+		else if(allele==1) answer = allele1Logs[step];
+		if(answer == Double.NEGATIVE_INFINITY) return LOGPROB_UNEXPECTED_P;
+		return answer + LOGPROB_EXPECTED_P;
 	}
 
 	public static List<HaplotypeClusterHMMState> createEmptyStates(int m, int k) {
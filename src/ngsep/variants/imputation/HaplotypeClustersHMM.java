@@ -1,8 +1,10 @@
 package ngsep.variants.imputation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import ngsep.hmm.HMMWorkspace;
 import ngsep.hmm.RecombinationHMM;
 import ngsep.math.LogMath;
 import ngsep.variants.CalledGenomicVariant;
@@ -12,9 +14,6 @@ public class HaplotypeClustersHMM extends RecombinationHMM {
 
 	private boolean updateEmissionKnownSites = false;
 	
-	//Local arrays to save reallocation over many runs
-	private Double [][][] logEmissions = new Double [0][0][0];
-	
 	
 	public HaplotypeClustersHMM(List<? extends HaplotypeClusterHMMState> states, int numMarkers) {
 		super(states, numMarkers);
@@ -40,56 +39,83 @@ public class HaplotypeClustersHMM extends RecombinationHMM {
 	}
 
 	@Override
-	protected void initEmissionsBaumWelch() {
-		int k = getNumStates();
-		int m = getSteps();
-		if(logEmissions.length!=k || logEmissions[0].length!=m) {
-			getLog().info("Creating array for emissions of dimensions "+k+" x "+m+" x 2");
-			logEmissions = new Double [k][m][2];
-		}
-		for(int j=0;j<logEmissions.length;j++) {
-			for(int i=0;i<logEmissions[j].length;i++) {
-				logEmissions[j][i][0] = logEmissions[j][i][1] = null;
-			}
-		}
+	protected int getEmissionStatisticsSize() {
+		return getNumStates()*getSteps()*2;
 	}
 
 	@Override
-	protected void accumulateEmissionBaumWelch(int step, int stateIndex, Object datum, Double logPosterior) {
+	protected void accumulateEmissionBaumWelch(int step, int stateIndex, Object datum, double logPosterior, double [] emissionStatistics) {
 		if(datum == null || !(datum instanceof Byte)) return;
 		byte allele = (Byte)datum;
 		if(allele != CalledGenomicVariant.ALLELE_REFERENCE && allele!=CalledGenomicVariant.ALLELE_ALTERNATIVE) return;
-		logEmissions[stateIndex][step][allele] = LogMath.logSum(logEmissions[stateIndex][step][allele], logPosterior);
+		int idx = (stateIndex*getSteps()+step)*2+allele;
+		emissionStatistics[idx] = LogMath.fastLogSum(emissionStatistics[idx], logPosterior);
 	}
 
 	@Override
-	protected void updateEmissionsBaumWelch(int stateIndex) {
+	protected void updateEmissionsBaumWelch(int stateIndex, double [] emissionStatistics) {
 		HaplotypeClusterHMMState state = (HaplotypeClusterHMMState)getState(stateIndex);
-		//System.out.println("Emissions state "+stateIndex+": "+logEmissions[stateIndex][0][0]+" "+logEmissions[stateIndex][0][1]);
-		state.setEmissionLogProbs(logEmissions[stateIndex], updateEmissionKnownSites);
+		int m = getSteps();
+		double [][] logEmissions = new double [m][2];
+		int offset = stateIndex*m*2;
+		for(int i=0;i<m;i++) {
+			logEmissions[i][0] = emissionStatistics[offset+2*i];
+			logEmissions[i][1] = emissionStatistics[offset+2*i+1];
+		}
+		state.setEmissionLogProbs(logEmissions, updateEmissionKnownSites);
+	}
+
+	@Override
+	protected void fillEmissionLogs(List<? extends Object> observations, double[] emissionLogs) {
+		int m = observations.size();
+		int k = getNumStates();
+		for(int i=0;i<m;i++) {
+			Object o = observations.get(i);
+			int offset = i*k;
+			if(o==null) {
+				Arrays.fill(emissionLogs, offset, offset+k, Double.NEGATIVE_INFINITY);
+				continue;
+			}
+			byte allele = (Byte)o;
+			for(int j=0;j<k;j++) {
+				HaplotypeClusterHMMState state = (HaplotypeClusterHMMState) getState(j);
+				emissionLogs[offset+j] = state.getEmissionLog(allele, i);
+			}
+		}
 	}
 
 	public void calculateAllelePosteriors(List<Byte> haplotype, double[][] allelePosteriors) {
-		Byte b0 = 0;
-		Byte b1 = 1;
+		calculateAllelePosteriors(haplotype, allelePosteriors, getWorkspace());
+	}
+	
+	/**
+	 * Calculates the posterior probabilities of each allele at each site given the observed haplotype
+	 * @param haplotype Observed alleles
+	 * @param allelePosteriors Output matrix with one row per site and two columns
+	 * @param ws Workspace to perform the calculations
+	 */
+	public void calculateAllelePosteriors(List<Byte> haplotype, double[][] allelePosteriors, HMMWorkspace ws) {
 		int m = haplotype.size();
 		int k = getNumStates();
-		Double [][] forwardLogs=calculateForward(haplotype);
-		Double [][] backwardLogs=calculateBackward(haplotype);
-		//calculateForward(haplotype, forwardLogs);
-		//calculateBackward(haplotype, backwardLogs);
+		calculateForwardBackward(haplotype, ws);
 		for(int i=0;i<m;i++) {
-			Double log0 = null;
-			Double log1 = null;
+			double log0 = Double.NEGATIVE_INFINITY;
+			double log1 = Double.NEGATIVE_INFINITY;
 			for(int j=0;j<k;j++) {
-				Double fTimesB = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i][j]);
-				log0 = LogMath.logSum(log0, LogMath.logProduct(fTimesB, getEmission(j, b0, i)));
-				log1 = LogMath.logSum(log1, LogMath.logProduct(fTimesB, getEmission(j, b1, i)));
+				double fTimesB = ws.getForwardLog(i, j)+ws.getBackwardLog(i, j);
+				if(fTimesB == Double.NEGATIVE_INFINITY) continue;
+				HaplotypeClusterHMMState state = (HaplotypeClusterHMMState) getState(j);
+				log0 = LogMath.fastLogSum(log0, fTimesB+state.getEmissionLog(CalledGenomicVariant.ALLELE_REFERENCE, i));
+				log1 = LogMath.fastLogSum(log1, fTimesB+state.getEmissionLog(CalledGenomicVariant.ALLELE_ALTERNATIVE, i));
 			}
 			//Normalize and raise to calculate final probabilities of genotypes
-			Double logSum = LogMath.logSum(log0, log1);
-			double prob0 = LogMath.power10(LogMath.logProduct(log0, -logSum));
-			double prob1 = LogMath.power10(LogMath.logProduct(log1, -logSum));
+			double logSum = LogMath.fastLogSum(log0, log1);
+			if(logSum == Double.NEGATIVE_INFINITY) {
+				allelePosteriors[i][0] = allelePosteriors[i][1] = 0;
+				continue;
+			}
+			double prob0 = Math.pow(10, log0-logSum);
+			double prob1 = Math.pow(10, log1-logSum);
 			double sum = prob0 + prob1;
 			prob0/=sum;
 			prob1/=sum;
@@ -42,25 +42,38 @@ public class HaplotypePairHMMState implements HMMState {
 	@Override
 	public Double getEmission(Object value, int step) {
 		Byte genotype = getGenotype (value);
-		Double answer = null;
-		if(genotype!=null) {
-			byte a0 = 0;
-			byte a1 = 1;
-			if(genotype==CalledSNV.GENOTYPE_HOMOREF) answer = LogMath.logProduct(state1.getEmission(a0, step), state2.getEmission(a0, step));
-			else if(genotype==CalledSNV.GENOTYPE_HOMOALT) answer = LogMath.logProduct(state1.getEmission(a1, step), state2.getEmission(a1, step));
-			else if(genotype==CalledSNV.GENOTYPE_HETERO) {
-				double p1 = LogMath.logProduct(state1.getEmission(a0, step), state2.getEmission(a1, step));
-				double p2 = LogMath.logProduct(state1.getEmission(a1, step), state2.getEmission(a0, step));
-				answer = LogMath.logSum(p1, p2);
-			}
-		}
-		
-		if(answer == null) {
-			answer = HaplotypeClusterHMMState.LOGPROB_UNEXPECTED;
-		} else {
-			answer = LogMath.logProduct(answer, HaplotypeClusterHMMState.LOGPROB_EXPECTED);
-		}
-		return answer;
+		if(genotype==null) return HaplotypeClusterHMMState.LOGPROB_UNEXPECTED;
+		return getEmissionLog(genotype, step);
+	}
+	
+	/**
+	 * Primitive version of the emission calculation
+	 * @param genotype Observed genotype
+	 * @param step At which the genotype is emitted
+	 * @return double log10 of the probability of observing the given genotype at the given step
+	 */
+	public double getEmissionLog(byte genotype, int step) {
+		byte a0 = 0;
+		byte a1 = 1;
+		return calculateEmissionLog(genotype, state1.getEmissionLog(a0, step), state1.getEmissionLog(a1, step), state2.getEmissionLog(a0, step), state2.getEmissionLog(a1, step));
+	}
+	
+	/**
+	 * Calculates the emission of a genotype from the emissions of the alleles by the two haploid states
+	 * @param genotype Observed genotype
+	 * @param logA0S1 log10 of the emission of allele zero by the first haploid state
+	 * @param logA1S1 log10 of the emission of allele one by the first haploid state
+	 * @param logA0S2 log10 of the emission of allele zero by the second haploid state
+	 * @param logA1S2 log10 of the emission of allele one by the second haploid state
+	 * @return double log10 of the probability of observing the given genotype
+	 */
+	static double calculateEmissionLog(byte genotype, double logA0S1, double logA1S1, double logA0S2, double logA1S2) {
+		double answer;
+		if(genotype==CalledSNV.GENOTYPE_HOMOREF) answer = logA0S1 + logA0S2;
+		else if(genotype==CalledSNV.GENOTYPE_HOMOALT) answer = logA1S1 + logA1S2;
+		else if(genotype==CalledSNV.GENOTYPE_HETERO) answer = LogMath.fastLogSum(logA0S1 + logA1S2, logA1S1 + logA0S2);
+		else return HaplotypeClusterHMMState.LOGPROB_UNEXPECTED;
+		return answer + HaplotypeClusterHMMState.LOGPROB_EXPECTED;
 	}
 
 	private Byte getGenotype(Object value) {
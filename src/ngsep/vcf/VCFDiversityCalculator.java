@@ -25,13 +25,13 @@ import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.logging.Logger;
 
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
 import ngsep.variants.CalledGenomicVariant;
 import ngsep.variants.DiversityStatistics;
@@ -43,6 +43,7 @@ import ngsep.variants.io.SimpleSamplesFileHandler;
 public class VCFDiversityCalculator {
 	
 	// Constants for default values
+	public static final int DEF_NUM_THREADS = VCFRecordsPipeline.DEF_NUM_THREADS;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(VCFDiversityCalculator.class.getName());
@@ -52,6 +53,7 @@ public class VCFDiversityCalculator {
 	private String inputFile = null;
 	private String outputFile = null;
 	private Map<String,Sample> samplesMap=null;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	// Model attributes
 	private boolean assumeAlwaysDiploid = false;
@@ -96,6 +98,17 @@ public class VCFDiversityCalculator {
 		samplesMap = handler.loadSamplesAsMap(samplesFile);
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads must be a positive number. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public static void main(String[] args) throws Exception {
 		VCFDiversityCalculator instance = new VCFDiversityCalculator();
 		CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -103,6 +116,7 @@ public class VCFDiversityCalculator {
 	}
 	public void run () throws IOException {
 		if(samplesMap!=null) log.info("Loaded population information from "+samplesMap.size()+" samples");
+		log.info("Number of threads: "+numThreads);
 		if(inputFile==null) {
 			log.info("Reading from standard input");
 			try (VCFFileReader in = new VCFFileReader(System.in)) {
@@ -146,23 +160,25 @@ public class VCFDiversityCalculator {
 			out.print("\t"+groupId);
 		}
 		out.println();
-		Iterator<VCFRecord> it = in.iterator();
-		while(it.hasNext()) {
-			VCFRecord record = it.next();
-			List<CalledGenomicVariant> allCalls = record.getCalls();
-			List<DiversityStatistics> groupsStats = new ArrayList<DiversityStatistics>();
-			groupsStats.add(DiversityStatistics.calculateDiversityStatistics(allCalls, assumeAlwaysDiploid));
-			for(String groupId:groupSampleIdxs.keySet()) {
-					List<Integer> indexes = groupSampleIdxs.get(groupId);
-					List<CalledGenomicVariant> groupCalls = selectCalls(allCalls,indexes);
-					groupsStats.add(DiversityStatistics.calculateDiversityStatistics(groupCalls, assumeAlwaysDiploid));
-			}
-			printStats (record.getVariant(),groupsStats,out);
-		}
-		
+		VCFRecordsPipeline pipeline = new VCFRecordsPipeline(in);
+		pipeline.setNumThreads(numThreads);
+		pipeline.setProgressNotifier(progressNotifier);
+		pipeline.process((record)->calculateStatistics(record, groupSampleIdxs), (stats)->printStats(stats.variant, stats.groupsStats, out));
 		out.flush();
 	}
 
+	private RecordDiversityStatistics calculateStatistics(VCFRecord record, Map<String, List<Integer>> groupSampleIdxs) {
+		List<CalledGenomicVariant> allCalls = record.getCalls();
+		List<DiversityStatistics> groupsStats = new ArrayList<DiversityStatistics>();
+		groupsStats.add(DiversityStatistics.calculateDiversityStatistics(allCalls, assumeAlwaysDiploid));
+		for(String groupId:groupSampleIdxs.keySet()) {
+			List<Integer> indexes = groupSampleIdxs.get(groupId);
+			List<CalledGenomicVariant> groupCalls = selectCalls(allCalls,indexes);
+			groupsStats.add(DiversityStatistics.calculateDiversityStatistics(groupCalls, assumeAlwaysDiploid));
+		}
+		return new RecordDiversityStatistics(record.getVariant(), groupsStats);
+	}
+
 	private void printDefaultHeader(PrintStream out) {
 		out.println("#Diversity statisitcs. Fields calculated per population and separated by semicolon:");
 		out.println("#1. Number of samples genotyped");
@@ -202,4 +218,12 @@ public class VCFDiversityCalculator {
 	}
 
 	
+	private static class RecordDiversityStatistics {
+		private final GenomicVariant variant;
+		private final List<DiversityStatistics> groupsStats;
+		public RecordDiversityStatistics(GenomicVariant variant, List<DiversityStatistics> groupsStats) {
+			this.variant = variant;
+			this.groupsStats = groupsStats;
+		}
+	}
 }
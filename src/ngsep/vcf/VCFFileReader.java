@@ -149,13 +149,83 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	}
 	
 	
+	/**
+	 * Reads the text of the next records without parsing them. The names of the sequences are registered in the order
+	 * of the file to keep the same sequences list obtained through the iterator. This method should not be called while
+	 * an iteration is in progress
+	 * @param lines Array to store the lines of the records
+	 * @param sequenceNames Array to store the names of the sequences of the records. The name is null if the sequence is not recognized
+	 * @return int Number of lines read. Zero if the end of the file was reached
+	 * @throws IOException If the file can not be read
+	 */
+	int readRecordLines(String [] lines, String [] sequenceNames) throws IOException {
+		if (currentIterator != null) throw new IllegalStateException("Iteration in progress");
+		int n = 0;
+		while(n<lines.length) {
+			String line = in.readLine();
+			if(line==null) break;
+			lines[n] = line;
+			sequenceNames[n] = null;
+			int idx = line.indexOf('\t');
+			//Lines with less than 8 columns are reported by the parser
+			if(idx>=0 && countTabs(line,idx)>=7) {
+				String seqName = line.substring(0,idx);
+				try {
+					sequenceNames[n] = sequences.addOrLookupName(seqName).getName();
+				} catch (RuntimeException e) {
+					log.severe("Can not load genomic variant at "+seqName+". Unrecognized sequence name. "+e.getMessage());
+				}
+			}
+			n++;
+		}
+		return n;
+	}
+	
+	private static int countTabs(String line, int firstTab) {
+		int count = 1;
+		for(int i=firstTab+1;i<line.length() && count<7;i++) {
+			if(line.charAt(i)=='\t') count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Parses a record read with the method readRecordLines. This method does not modify the state of the reader
+	 * and it can be called by different threads
+	 * @param line Text of the record
+	 * @param sequenceName Name of the sequence of the record registered by readRecordLines
+	 * @return VCFRecord Record parsed from the line. Null if the record can not be loaded
+	 */
+	VCFRecord loadVCFRecord (String line, String sequenceName) {
+		String [] items = splitRecordLine(line);
+		if(items==null || sequenceName==null) return null;
+		return loadVCFRecord(items, sequenceName);
+	}
+	
 	private VCFRecord loadVCFRecord (String line) {
+		String [] items = splitRecordLine(line);
+		if(items==null) return null;
+		QualifiedSequence seq;
+		try {
+			seq = sequences.addOrLookupName(items[0]);
+		} catch (RuntimeException e) {
+			log.severe("Can not load genomic variant at "+items[0]+":"+items[1]+". Unrecognized sequence name. "+e.getMessage());
+			return null;
+		}
+		return loadVCFRecord(items, seq.getName());
+	}
+	
+	private String [] splitRecordLine (String line) {
 		String [] items = ParseUtils.parseString(line,'\t');
 		if(items.length<8) {
 			log.severe("Could not load line: "+line+". VCF records must have at least 8 columns");
 			return null;
 		}
-		GenomicVariant variant = loadGenomicVariant(items);
+		return items;
+	}
+	
+	private VCFRecord loadVCFRecord (String [] items, String sequenceName) {
+		GenomicVariant variant = loadGenomicVariant(items, sequenceName);
 		if(variant == null) return null;
 		List<String> filters = loadFilters(items[6]);
 		List<GenomicVariantAnnotation> infoFields = loadInfoField(variant, items[7]);
@@ -189,14 +259,7 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		return new VCFRecord(variant, filters, infoFields, formatLoad, calls, header);
 	}
 	
-	private GenomicVariant loadGenomicVariant(String[] items) {
-		QualifiedSequence seq;
-		try {
-			seq = sequences.addOrLookupName(items[0]);
-		} catch (RuntimeException e) {
-			log.severe("Can not load genomic variant at "+items[0]+":"+items[1]+". Unrecognized sequence name. "+e.getMessage());
-			return null;
-		}
+	private GenomicVariant loadGenomicVariant(String[] items, String sequenceName) {
 		int position;
 		try {
 			position = Integer.parseInt(items[1]);
@@ -242,12 +305,12 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		char c1 = items[3].charAt(0);
 		char c2 = items[4].charAt(0);
 		if(alleles.size()==2 && items[3].length()==1 && items[4].length()==1 && DNASequence.isInAlphabeth(c1) && DNASequence.isInAlphabeth(c2)) {
-			SNV snv = new SNV(seq.getName(), position, c1, c2);
+			SNV snv = new SNV(sequenceName, position, c1, c2);
 			snv.setId(id);
 			snv.setVariantQS(variantQS);
 			return snv;
 		} else {
-			GenomicVariantImpl variant = new GenomicVariantImpl(seq.getName(), position, alleles);
+			GenomicVariantImpl variant = new GenomicVariantImpl(sequenceName, position, alleles);
 			variant.setId(id);
 			variant.setVariantQS(variantQS);
 			return variant;
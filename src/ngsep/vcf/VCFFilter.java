@@ -27,10 +27,10 @@ import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import ngsep.genome.GenomicRegion;
@@ -60,6 +60,7 @@ public class VCFFilter {
 	public static final double DEF_MAX_OH = 1;
 	public static final double DEF_MIN_GC_CONTENT = 40;
 	public static final double DEF_MAX_GC_CONTENT = 65;
+	public static final int DEF_NUM_THREADS = VCFRecordsPipeline.DEF_NUM_THREADS;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(VCFFilter.class.getName());
@@ -90,6 +91,7 @@ public class VCFFilter {
     private GenomicRegionSortedCollection<GenomicRegion> regionsToFilter = null;
     private GenomicRegionSortedCollection<GenomicRegion> regionsToSelect = null;
     private ReferenceGenome genome = null;
+    private int numThreads = DEF_NUM_THREADS;
     
     
 
@@ -422,6 +424,19 @@ public class VCFFilter {
 		}
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads must be a positive number. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(String value) {
+		this.setNumThreads((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public void run() throws Exception {
 		// Load files with optional information
 		logParameters();
@@ -484,6 +499,7 @@ public class VCFFilter {
 		    String action = filterSamples?"filter":"select";
 		    if (sampleIds != null) out.println("Samples to "+action+": "+sampleIds);
 	    }
+	    out.println("Number of threads: "+numThreads);
 	    log.info(""+os.toString());
 	}
 
@@ -512,42 +528,16 @@ public class VCFFilter {
 			if(selectedSamples[i]) outHeader.addSample(s,inSampleIdsWithHeader.contains(s.getId()));
 		}
 		writer.printHeader(outHeader, out);
-		Iterator<VCFRecord> it = reader.iterator();
-		int lastPos = -minDistance;
-		String lastSeqName = null;
-		VCFRecord lastRecord = null;
-		int n=0;
-		while (it.hasNext()) {
-			VCFRecord record = it.next();
+		VCFRecordsPipeline pipeline = new VCFRecordsPipeline(reader);
+		pipeline.setNumThreads(numThreads);
+		pipeline.setProgressNotifier(progressNotifier);
+		FilteredRecordsPrinter printer = new FilteredRecordsPrinter(writer, out);
+		//Filters of each record are calculated in parallel. The distance filter is applied in order by the printer
+		boolean completed = pipeline.process((record)-> {
 			VCFRecord vr = filterSamplesAndGenotypes(record, selectedSamples, outHeader);
-			GenomicVariant gv = vr.getVariant();
-			if (!gv.getSequenceName().equals(lastSeqName)) {
-				if (passFilters(lastRecord)) writer.printVCFRecord(lastRecord, out);
-				lastRecord = vr;
-				lastSeqName = gv.getSequenceName();
-				lastPos = gv.getLast();
-				continue;
-			}
-			// Distance filter
-			int first = gv.getFirst();
-			if (minDistance <= 0 || first - lastPos > minDistance) {
-				if (passFilters(lastRecord)) writer.printVCFRecord(lastRecord, out);
-				lastRecord = vr;
-			} else {
-				lastRecord = null;
-			}
-			lastSeqName = gv.getSequenceName();
-			lastPos = gv.getLast();
-			n++;
-			if (progressNotifier!=null && n%1000==0) {
-				int progress = n/1000;
-				if (!progressNotifier.keepRunning(progress)) {
-					out.flush();
-					return;
-				}
-			}
-		}
-		if (passFilters(lastRecord)) writer.printVCFRecord(lastRecord, out);
+			return new FilteredRecord(vr, passFilters(vr));
+		}, printer);
+		if(completed) printer.printLast();
 		out.flush();
     }
 
@@ -725,4 +715,51 @@ public class VCFFilter {
 			record.addAnnotation(new GenomicVariantAnnotation(var, GenomicVariantAnnotation.ATTRIBUTE_IN_CNV, numCNVs));
 		}
 	}
+
+	private static class FilteredRecord {
+		private final VCFRecord record;
+		private final boolean passFilters;
+		public FilteredRecord(VCFRecord record, boolean passFilters) {
+			this.record = record;
+			this.passFilters = passFilters;
+		}
+	}
+	
+	/**
+	 * Applies the distance filter to records received in order and prints the records passing all filters
+	 */
+	private class FilteredRecordsPrinter implements Consumer<FilteredRecord> {
+		private final VCFFileWriter writer;
+		private final PrintStream out;
+		private int lastPos = -minDistance;
+		private String lastSeqName = null;
+		private FilteredRecord lastRecord = null;
+		
+		public FilteredRecordsPrinter(VCFFileWriter writer, PrintStream out) {
+			this.writer = writer;
+			this.out = out;
+		}
+		@Override
+		public void accept(FilteredRecord next) {
+			GenomicVariant gv = next.record.getVariant();
+			if (!gv.getSequenceName().equals(lastSeqName)) {
+				print(lastRecord);
+				lastRecord = next;
+			} else if (minDistance <= 0 || gv.getFirst() - lastPos > minDistance) {
+				// Distance filter
+				print(lastRecord);
+				lastRecord = next;
+			} else {
+				lastRecord = null;
+			}
+			lastSeqName = gv.getSequenceName();
+			lastPos = gv.getLast();
+		}
+		public void printLast() {
+			print(lastRecord);
+		}
+		private void print(FilteredRecord filteredRecord) {
+			if (filteredRecord!=null && filteredRecord.passFilters) writer.printVCFRecord(filteredRecord.record, out);
+		}
+	}
 }
@@ -24,7 +24,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -54,6 +53,7 @@ public class VCFFunctionalAnnotator {
 	public static final int DEF_SPLICE_ACCEPTOR=VariantAnnotationParameters.DEF_SPLICE_ACCEPTOR;
 	public static final int DEF_SPLICE_REGION_INTRON=VariantAnnotationParameters.DEF_SPLICE_REGION_INTRON;
 	public static final int DEF_SPLICE_REGION_EXON=VariantAnnotationParameters.DEF_SPLICE_REGION_EXON;
+	public static final int DEF_NUM_THREADS=VCFRecordsPipeline.DEF_NUM_THREADS;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(VCFFunctionalAnnotator.class.getName());
@@ -66,6 +66,7 @@ public class VCFFunctionalAnnotator {
 	private Transcriptome transcriptome;
 	private String outputFile = null;
 	private VariantAnnotationParameters parameters = new VariantAnnotationParameters();
+	private int numThreads = DEF_NUM_THREADS;
 	
 	// Get and set methods
 	public Logger getLog() {
@@ -204,6 +205,17 @@ public class VCFFunctionalAnnotator {
 		this.setSpliceRegionExonOffset((int) OptionValuesDecoder.decode(value, Integer.class));
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads must be a positive number. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public static void main(String[] args) throws Exception {
 		VCFFunctionalAnnotator instance = new VCFFunctionalAnnotator();
 		CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -243,6 +255,7 @@ public class VCFFunctionalAnnotator {
 		out.println("Splice acceptor offset: "+getSpliceAcceptorOffset());
 		out.println("Splice region intron offset: "+getSpliceRegionIntronOffset());
 		out.println("Splice region exon offset: "+getSpliceRegionExonOffset());
+		out.println("Number of threads: "+numThreads);
 		
 		log.info(""+os.toString());
 	}
@@ -284,21 +297,13 @@ public class VCFFunctionalAnnotator {
 		VCFFileWriter writer = new VCFFileWriter(); 
 		in.setLog(log);
 		writer.printHeader(in.getHeader(),out);
-		Iterator<VCFRecord> it = in.iterator();
-		int n=0;
-		while (it.hasNext()) {
-			VCFRecord record = it.next();
+		VCFRecordsPipeline pipeline = new VCFRecordsPipeline(in);
+		pipeline.setNumThreads(numThreads);
+		pipeline.setProgressNotifier(progressNotifier);
+		pipeline.process((record)-> {
 			if(record.getVariant().getAlleles().length>=2) annotate(record);
-			writer.printVCFRecord(record, out);
-			n++;
-			if (progressNotifier!=null && n%1000==0) {
-				int progress = n/1000;
-				if (!progressNotifier.keepRunning(progress)) {
-					out.flush();
-					return;
-				}
-			}
-		}
+			return record;
+		}, (record)->writer.printVCFRecord(record, out));
 		out.flush();
 	}
 
@@ -19,22 +19,32 @@
  *******************************************************************************/
 package ngsep.vcf;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
 import ngsep.main.io.ParseUtils;
 import ngsep.variants.CalledGenomicVariant;
 
 /**
- * Program to calculate LD statistics
+ * Program to calculate LD statistics.
+ * Genotypes of each variant are encoded once as bit vectors and pairs of variants within a window are compared
+ * counting bits. Rows of the output are calculated in parallel batches and written in order
  * @author Jorge Duitama
  *
  */
@@ -45,11 +55,29 @@ public class VCFLDCalculator {
 	public static final int MODE_SEQUENCE_NAMES = 1;
 	public static final int MODE_ALL_PAIRS = 2;
 	
+	// Constants for default values
+	public static final int DEF_MODE = MODE_WINDOW;
+	public static final int DEF_WINDOW_LENGTH = 100000;
+	public static final int DEF_WINDOW_VARIANTS = 0;
+	public static final double DEF_MIN_R2 = 0;
+	public static final int DEF_NUM_THREADS = 1;
 	
+	private static final int TIMEOUT_SECONDS = 30;
+	//Number of rows of the output calculated in each parallel batch
+	private static final int ROWS_BATCH = 1000;
 	
+	// Logging and progress
 	private Logger log = Logger.getLogger(VCFLDCalculator.class.getName());
 	private ProgressNotifier progressNotifier=null;
-	private int mode = MODE_WINDOW;
+	
+	// Parameters
+	private String inputFile = null;
+	private String outputFile = null;
+	private int mode = DEF_MODE;
+	private int windowLength = DEF_WINDOW_LENGTH;
+	private int windowVariants = DEF_WINDOW_VARIANTS;
+	private double minR2 = DEF_MIN_R2;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	public Logger getLog() {
 		return log;
@@ -64,19 +92,20 @@ public class VCFLDCalculator {
 		this.progressNotifier = progressNotifier;
 	}
 	
-	public static void main(String[] args) throws Exception {
-		VCFLDCalculator instance = new VCFLDCalculator();
-		int i=CommandsDescriptor.getInstance().loadOptions(instance, args);
-		boolean systemInput = "-".equals(args[i]);
-		if(systemInput) {
-			instance.run(System.in, System.out);
-		} else {
-			String filename = args[i];
-			instance.run(filename, System.out);
-		}
-
+	public String getInputFile() {
+		return inputFile;
 	}
-
+	public void setInputFile(String inputFile) {
+		this.inputFile = inputFile;
+	}
+	
+	public String getOutputFile() {
+		return outputFile;
+	}
+	public void setOutputFile(String outputFile) {
+		this.outputFile = outputFile;
+	}
+	
 	/**
 	 * @return the mode
 	 */
@@ -87,8 +116,95 @@ public class VCFLDCalculator {
 	 * @param mode the mode to set
 	 */
 	public void setMode(int mode) {
+		if(mode!=MODE_WINDOW && mode!=MODE_SEQUENCE_NAMES && mode!=MODE_ALL_PAIRS) throw new IllegalArgumentException("Invalid mode: "+mode);
 		this.mode = mode;
 	}
+	public void setMode(String value) {
+		setMode((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public int getWindowLength() {
+		return windowLength;
+	}
+	public void setWindowLength(int windowLength) {
+		if(windowLength<0) throw new IllegalArgumentException("Window length must be a non negative number. Given: "+windowLength);
+		this.windowLength = windowLength;
+	}
+	public void setWindowLength(String value) {
+		setWindowLength((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public int getWindowVariants() {
+		return windowVariants;
+	}
+	public void setWindowVariants(int windowVariants) {
+		if(windowVariants<0) throw new IllegalArgumentException("Maximum number of variants in a window must be a non negative number. Given: "+windowVariants);
+		this.windowVariants = windowVariants;
+	}
+	public void setWindowVariants(String value) {
+		setWindowVariants((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public double getMinR2() {
+		return minR2;
+	}
+	public void setMinR2(double minR2) {
+		this.minR2 = minR2;
+	}
+	public void setMinR2(String value) {
+		setMinR2((double)OptionValuesDecoder.decode(value, Double.class));
+	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public static void main(String[] args) throws Exception {
+		VCFLDCalculator instance = new VCFLDCalculator();
+		CommandsDescriptor.getInstance().loadOptions(instance, args);
+		instance.run();
+	}
+	
+	public void run() throws IOException {
+		logParameters();
+		if(outputFile == null) {
+			run(System.out);
+		} else {
+			try (PrintStream out = new PrintStream(outputFile)) {
+				run(out);
+			}
+		}
+		log.info("Process finished");
+	}
+	
+	private void run(PrintStream out) throws IOException {
+		if(inputFile==null) run(System.in, out);
+		else run(inputFile, out);
+	}
+	
+	private void logParameters() {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(os);
+		if(inputFile != null) out.println("Input file: "+inputFile);
+		else out.println("System standard input");
+		if(outputFile != null) out.println("Output file: "+outputFile);
+		else out.println("System standard output");
+		if(mode == MODE_WINDOW) {
+			out.println("Calculating LD for pairs of variants within windows of "+windowLength+" bp");
+			if(windowVariants>0) out.println("Maximum number of variants between pairs: "+windowVariants);
+		}
+		if(mode == MODE_SEQUENCE_NAMES) out.println("Calculating LD for all pairs of variants within each sequence");
+		if(mode == MODE_ALL_PAIRS) out.println("Calculating LD for all pairs of variants");
+		if(minR2>0) out.println("Minimum r2 to report a pair of variants: "+minR2);
+		out.println("Number of threads: "+numThreads);
+		log.info(""+os.toString());
+	}
 	
 	public void run(String filename, PrintStream out) throws IOException {
 		
@@ -105,37 +221,116 @@ public class VCFLDCalculator {
 	
 	public void run(VCFFileReader in, PrintStream out) {
 		if(log!=null)in.setLog(log);
-		
-		List<VCFRecord> recordsInMemory = new LinkedList<>();
 		in.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
-		//TODO: Implement modes
-		Iterator<VCFRecord> it = in.iterator();
-		String lastSeqName = null;
-		int n=0;
-		while(it.hasNext()) {
-			VCFRecord record = it.next();
-			if(!record.getVariant().isBiallelic()) continue;
-			if(!record.getSequenceName().equals(lastSeqName)) {
-				if(recordsInMemory.size()>0) {
-					calculateLDStatistics(recordsInMemory,out);
-					recordsInMemory.clear();
+		//Variants waiting to be compared
+		List<LDVariantGenotypes> buffer = new ArrayList<>();
+		//Number of variants at the start of the buffer whose window is already closed
+		int readyRows = 0;
+		ThreadPoolExecutor pool = null;
+		if(numThreads>1) pool = new ThreadPoolExecutor(numThreads, numThreads, TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		try {
+			Iterator<VCFRecord> it = in.iterator();
+			String lastSeqName = null;
+			int seqIndex = 0;
+			int n=0;
+			while(it.hasNext()) {
+				VCFRecord record = it.next();
+				if(!record.getVariant().isBiallelic()) continue;
+				if(!record.getSequenceName().equals(lastSeqName)) {
+					lastSeqName = record.getSequenceName();
+					seqIndex = 0;
 				}
-				lastSeqName = record.getSequenceName();
-			}
-			recordsInMemory.add(record);
-			
-			n++;
-			if (progressNotifier!=null && n%1000==0) {
-				int progress = n/1000;
-				if (!progressNotifier.keepRunning(progress)) {
-					out.flush();
-					return;
+				LDVariantGenotypes variant = new LDVariantGenotypes(record, seqIndex);
+				seqIndex++;
+				//Rows whose window is closed by the new variant are ready to be calculated
+				while(readyRows<buffer.size() && !isInWindow(buffer.get(readyRows), variant)) readyRows++;
+				if(readyRows>=ROWS_BATCH) {
+					processRows(buffer, 0, readyRows, out, pool);
+					buffer.subList(0, readyRows).clear();
+					readyRows = 0;
+				}
+				buffer.add(variant);
+				n++;
+				if (progressNotifier!=null && n%1000==0) {
+					int progress = n/1000;
+					if (!progressNotifier.keepRunning(progress)) {
+						out.flush();
+						return;
+					}
 				}
 			}
+			if(buffer.size()>0) processRows(buffer, 0, buffer.size(), out, pool);
+		} finally {
+			if(pool!=null) pool.shutdown();
 		}
-		//System.out.println("Loaded: "+recordsInMemory.size()+" variants");
-		if(recordsInMemory.size()>0) calculateLDStatistics(recordsInMemory,out);
+		out.flush();
+	}
+	
+	private boolean isInWindow(LDVariantGenotypes v1, LDVariantGenotypes v2) {
+		if(mode == MODE_ALL_PAIRS) return true;
+		if(!v1.getSequenceName().equals(v2.getSequenceName())) return false;
+		if(mode == MODE_SEQUENCE_NAMES) return true;
+		if(v2.getFirst()-v1.getFirst()>windowLength) return false;
+		return windowVariants<=0 || v2.getIndex()-v1.getIndex()<=windowVariants;
 	}
+	
+	/**
+	 * Calculates and prints the statistics of the given rows. Each row includes the pairs of one variant with the next
+	 * variants in its window 
+	 * @param variants Buffer of variants
+	 * @param first First row to process
+	 * @param last Limit of the rows to process
+	 * @param out Stream to write the results
+	 * @param pool to process rows in parallel. If null rows are processed in the current thread
+	 */
+	private void processRows(List<LDVariantGenotypes> variants, int first, int last, PrintStream out, ThreadPoolExecutor pool) {
+		if(pool==null) {
+			out.print(calculateRows(variants, first, last));
+			return;
+		}
+		List<Callable<String>> tasks = new ArrayList<>(numThreads);
+		int n = last - first;
+		for(int i=0;i<numThreads;i++) {
+			int firstChunk = first + i*n/numThreads;
+			int lastChunk = first + (i+1)*n/numThreads;
+			if(firstChunk<lastChunk) tasks.add(()->calculateRows(variants, firstChunk, lastChunk));
+		}
+		try {
+			List<Future<String>> futures = pool.invokeAll(tasks);
+			for(Future<String> future:futures) out.print(future.get());
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	private String calculateRows(List<LDVariantGenotypes> variants, int first, int last) {
+		//Decimal formats are not thread safe
+		DecimalFormat fmt = (DecimalFormat) ParseUtils.ENGLISHFMT_PROBABILITIES.clone();
+		StringBuilder answer = new StringBuilder();
+		int n = variants.size();
+		for(int i=first;i<last;i++) {
+			LDVariantGenotypes v1 = variants.get(i);
+			for(int j=i+1;j<n;j++) {
+				LDVariantGenotypes v2 = variants.get(j);
+				if(!isInWindow(v1, v2)) break;
+				LDStatistics stats = calculateLDStatistics(v1, v2);
+				if(stats.getR2()<minR2) continue;
+				appendStatistics(v1, v2, stats, fmt, answer);
+			}
+		}
+		return answer.toString();
+	}
+	
+	private void appendStatistics(LDVariantGenotypes v1, LDVariantGenotypes v2, LDStatistics stats, DecimalFormat fmt, StringBuilder out) {
+		out.append(v1.getSequenceName()).append("\t").append(v1.getFirst()).append("\t").append(v1.getLast());
+		out.append("\t").append(v2.getSequenceName()).append("\t").append(v2.getFirst()).append("\t").append(v2.getLast());
+		out.append("\t").append(v2.getFirst()-v1.getFirst()).append("\t").append(stats.getSharedVariants());
+		out.append("\t").append(fmt.format(stats.getD())).append("\t").append(fmt.format(stats.getDPrime())).append("\t").append(fmt.format(stats.getR2()));
+		out.append("\n");
+	}
+	
 	/**
 	 * Calculates LD statistics for all pairs of records within the given list
 	 * @param records to process
@@ -144,42 +339,51 @@ public class VCFLDCalculator {
 	public void calculateLDStatistics(List<VCFRecord> records, PrintStream out) {
 		DecimalFormat fmt = ParseUtils.ENGLISHFMT_PROBABILITIES;
 		int n = records.size();
-		//Array to ensure constant lookup time
-		VCFRecord [] recordsArray = records.toArray(new VCFRecord[0]);
+		//Genotypes are encoded once for all pairs
+		List<LDVariantGenotypes> variants = new ArrayList<>(n);
+		for(int i=0;i<n;i++) variants.add(new LDVariantGenotypes(records.get(i), i));
+		StringBuilder line = new StringBuilder();
 		for(int i=0;i<n;i++) {
+			LDVariantGenotypes v1 = variants.get(i);
 			for(int j=i+1;j<n;j++) {
-				VCFRecord r1 = recordsArray[i];
-				VCFRecord r2 = recordsArray[j];
-				LDStatistics stats = calculateLDStatistics (r1, r2);
-				System.out.print(r1.getSequenceName()+"\t"+r1.getFirst()+"\t"+r1.getLast()+"\t"+r2.getSequenceName()+"\t"+r2.getFirst()+"\t"+r2.getLast());
-				System.out.println("\t"+(r2.getFirst()-r1.getFirst())+"\t"+stats.getSharedVariants()+"\t"+fmt.format(stats.getD())+"\t"+fmt.format(stats.getDPrime())+"\t"+fmt.format(stats.getR2()));
+				LDVariantGenotypes v2 = variants.get(j);
+				LDStatistics stats = calculateLDStatistics (v1, v2);
+				line.setLength(0);
+				appendStatistics(v1, v2, stats, fmt, line);
+				out.print(line);
 			}
 		}
 		
 	}
 	public LDStatistics calculateLDStatistics(VCFRecord record1, VCFRecord record2) {
-		List<CalledGenomicVariant> calls1= record1.getCalls();
-		List<CalledGenomicVariant> calls2= record2.getCalls();
-		int n = calls1.size();
+		return calculateLDStatistics(new LDVariantGenotypes(record1, 0), new LDVariantGenotypes(record2, 1));
+	}
+	
+	private LDStatistics calculateLDStatistics(LDVariantGenotypes variant1, LDVariantGenotypes variant2) {
+		long [] homozygous1 = variant1.getHomozygous();
+		long [] reference1 = variant1.getReference();
+		long [] homozygous2 = variant2.getHomozygous();
+		long [] reference2 = variant2.getReference();
 		//Frequency of alleles together
-		double n00=0;
+		int n00=0;
 		//Individual frequencies of allele zero in shared sites
-		double n01=0;
-		double n02=0;
+		int n01=0;
+		int n02=0;
 		
 		int shared = 0;
-		for(int i=0;i<n;i++) {
-			CalledGenomicVariant call1 = calls1.get(i);
-			CalledGenomicVariant call2 = calls2.get(i);
-			if(call1.isUndecided() || call1.isHeterozygous()) continue;
-			if(call2.isUndecided() || call2.isHeterozygous()) continue;
-			shared++;
-			if(call1.isHomozygousReference()) {
-				n01++;
-				if(call2.isHomozygousReference()) n00++;
-			}
-			if(call2.isHomozygousReference()) n02++;
+		for(int k=0;k<homozygous1.length;k++) {
+			long sharedWord = homozygous1[k] & homozygous2[k];
+			long ref1 = reference1[k] & sharedWord;
+			long ref2 = reference2[k] & sharedWord;
+			shared += Long.bitCount(sharedWord);
+			n01 += Long.bitCount(ref1);
+			n02 += Long.bitCount(ref2);
+			n00 += Long.bitCount(ref1 & ref2);
 		}
+		return calculateLDStatistics(n00, n01, n02, shared);
+	}
+	
+	private LDStatistics calculateLDStatistics(double n00, double n01, double n02, int shared) {
 		if(shared == 0) return new LDStatistics(0, 0, 0, shared);
 		double p00 = n00/shared;
 		double p01 = n01/shared;
@@ -196,6 +400,61 @@ public class VCFLDCalculator {
 	}
 
 }
+/**
+ * Genotypes of a biallelic variant encoded as bit vectors over the samples. Only homozygous
+ * genotype calls are taken into account to calculate LD statistics
+ */
+class LDVariantGenotypes {
+	private String sequenceName;
+	private int first;
+	private int last;
+	private int index;
+	//Samples with homozygous genotype calls
+	private long [] homozygous;
+	//Samples with homozygous reference genotype calls
+	private long [] reference;
+	
+	/**
+	 * Encodes the genotype calls of the given record
+	 * @param record with the calls to encode
+	 * @param index Ordinal of the variant within its sequence
+	 */
+	public LDVariantGenotypes (VCFRecord record, int index) {
+		this.sequenceName = record.getSequenceName();
+		this.first = record.getFirst();
+		this.last = record.getLast();
+		this.index = index;
+		List<CalledGenomicVariant> calls = record.getCalls();
+		int n = calls.size();
+		homozygous = new long [(n+63)/64];
+		reference = new long [homozygous.length];
+		for(int i=0;i<n;i++) {
+			CalledGenomicVariant call = calls.get(i);
+			if(call.isUndecided() || call.isHeterozygous()) continue;
+			long mask = 1L<<(i%64);
+			homozygous[i/64] |= mask;
+			if(call.isHomozygousReference()) reference[i/64] |= mask;
+		}
+	}
+	public String getSequenceName() {
+		return sequenceName;
+	}
+	public int getFirst() {
+		return first;
+	}
+	public int getLast() {
+		return last;
+	}
+	public int getIndex() {
+		return index;
+	}
+	public long[] getHomozygous() {
+		return homozygous;
+	}
+	public long[] getReference() {
+		return reference;
+	}
+}
 class LDStatistics {
 	private double d;
 	private double dPrime;
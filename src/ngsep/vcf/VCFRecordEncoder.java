@@ -0,0 +1,438 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import ngsep.variants.CalledCNV;
+import ngsep.variants.CalledGenomicVariant;
+import ngsep.variants.GenomicVariant;
+import ngsep.variants.GenomicVariantAnnotation;
+import ngsep.variants.GenomicVariantImpl;
+import ngsep.variants.Sample;
+import ngsep.variants.VariantCallReport;
+
+/**
+ * Formats VCF records as bytes in a reusable buffer. The output is the same produced by printing each field
+ * on a PrintStream with the default charset, including decimal numbers formatted with ParseUtils.ENGLISHFMT.
+ * Records can be accumulated in the buffer and written with a single call to any OutputStream,
+ * including block compressed streams. Objects of this class are not thread safe
+ * @author Jorge Duitama
+ */
+public class VCFRecordEncoder {
+	private static final byte [] LINE_SEPARATOR = System.lineSeparator().getBytes(Charset.defaultCharset());
+	private static final byte [] NO_INFO = VCFFileReader.NO_INFO_CHAR.getBytes(Charset.defaultCharset());
+	private static final Charset CHARSET = Charset.defaultCharset();
+	//Absolute values with more digits are formatted with DecimalFormat
+	private static final double MAX_FAST_DECIMAL = 1E9;
+	//Minimum distance to a rounding tie of a scaled value to trust the fast rounding
+	private static final double MIN_DISTANCE_TIE = 1E-6;
+
+	private byte [] buffer = new byte [1024];
+	private int length = 0;
+	//Same pattern of ParseUtils.ENGLISHFMT. This instance is not shared between threads
+	private final DecimalFormat decimalFormat = new DecimalFormat("##0.0#",DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+
+	/**
+	 * @return int Number of bytes currently stored in the buffer
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return byte[] Internal buffer. Only the first length() bytes are valid
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Removes the bytes stored in the buffer
+	 */
+	public void reset() {
+		length = 0;
+	}
+
+	/**
+	 * Writes the bytes stored in the buffer and resets the buffer
+	 * @param out Stream to write the bytes
+	 * @throws IOException If the stream can not be written
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buffer, 0, length);
+		length = 0;
+	}
+
+	/**
+	 * Appends the line of the given record, including the line separator, to the buffer
+	 * @param record VCF record to encode
+	 */
+	public void encode (VCFRecord record) {
+		GenomicVariant var = record.getVariant();
+		//Add type as annotation if still not added
+		byte type = var.getType();
+		String typeName = GenomicVariantImpl.getVariantTypeName(var.getType());
+		if(type!=GenomicVariant.TYPE_UNDETERMINED && type!=GenomicVariant.TYPE_BIALLELIC_SNV && typeName!=null) record.addAnnotation(new GenomicVariantAnnotation(var, GenomicVariantAnnotation.ATTRIBUTE_TYPE, typeName));
+		encodeBasicVariantInfo(var);
+		encodeFilters(record.getFilters());
+		encodeInfoField(record.getInfoFields());
+		List<CalledGenomicVariant> calls = record.getCalls();
+		if(calls.size()>0) {
+			int [] outFormat = record.getFieldsFormat();
+			encodeGenotypeFormat(outFormat);
+			//Genotype
+			List<Sample> samples = null;
+			if(record.getHeader()!=null) samples = record.getHeader().getSamples();
+			for(int i=0;i<calls.size();i++) {
+				short ploidy = GenomicVariant.DEFAULT_PLOIDY;
+				if(samples!=null) ploidy = samples.get(i).getNormalPloidy();
+				encodeGenotypeInfo(calls.get(i), outFormat, ploidy);
+			}
+		}
+		append(LINE_SEPARATOR);
+	}
+
+	private void encodeFilters(List<String> filters) {
+		append('\t');
+		if(filters==null || filters.size()==0) {
+			append(NO_INFO);
+			return;
+		}
+		boolean printed = false;
+		for(String filter:filters) {
+			if(printed) append(';');
+			printed = true;
+			append(filter);
+		}
+	}
+
+	private void encodeBasicVariantInfo(GenomicVariant var) {
+		append(var.getSequenceName());
+		append('\t');
+		append(var.getFirst());
+		append('\t');
+		String id = var.getId();
+		if(id==null) append(NO_INFO);
+		else append(id);
+		append('\t');
+		String [] alleles = var.getAlleles();
+		append(alleles[0]);
+		append('\t');
+		if(alleles.length==1) append(NO_INFO);
+		else {
+			//Starts at 1 to ignore the reference allele
+			for(int i=1;i<alleles.length;i++) {
+				if(i>1) append(',');
+				append(alleles[i]);
+			}
+		}
+		append('\t');
+		append(var.getVariantQS());
+	}
+
+	private void encodeInfoField(List<GenomicVariantAnnotation> info) {
+		append('\t');
+		boolean printed = false;
+		for(GenomicVariantAnnotation ann:info) {
+			Object value = ann.getValue();
+			if(value == null) continue;
+			if(value instanceof Boolean) {
+				if((Boolean) value) {
+					if(printed) append(';');
+					printed = true;
+					append(ann.getAttribute());
+				}
+			} else if (value instanceof Collection<?>) {
+				Collection<?> values = (Collection<?>)value;
+				if(values.size()>0) {
+					if(printed) append(';');
+					printed = true;
+					append(ann.getAttribute());
+					append('=');
+				}
+				Iterator<?> it = values.iterator();
+				for(int i=0;it.hasNext();i++) {
+					Object o = it.next();
+					if(i>0) append(',');
+					appendObject(o);
+				}
+			} else {
+				if(printed) append(';');
+				printed = true;
+				append(ann.getAttribute());
+				append('=');
+				appendObject(value);
+			}
+		}
+		if(!printed) append(NO_INFO);
+	}
+
+	private void encodeGenotypeFormat(int [] format) {
+		append('\t');
+		for(int f=0;f<format.length;f++) {
+			if(f>0) append(':');
+			int formatIdx = format[f];
+			append(VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[formatIdx]);
+		}
+	}
+
+	private void encodeGenotypeInfo(CalledGenomicVariant var, int [] format, short ploidy) {
+		append('\t');
+		String[] alleles = var.getAlleles();
+		VariantCallReport report = var.getCallReport();
+		CalledCNV cnv = null;
+		if (var instanceof CalledCNV) {
+			cnv = (CalledCNV) var;
+		}
+		byte [] idxsCalledAlleles = var.getIndexesCalledAlleles();
+		for(int f=0;f<format.length;f++) {
+			if(f>0) append(':');
+			int formatIdx = format[f];
+			if(formatIdx == VCFRecord.FORMAT_IDX_GT) {
+				boolean phased = var.isPhased();
+				if (idxsCalledAlleles.length == 0) {
+					//Undecided call
+					append('.');
+					if(ploidy>1) {
+						append('/');
+						append('.');
+					}
+				} else if(idxsCalledAlleles.length == 1) {
+					//Homozygous call
+					int idAllele = idxsCalledAlleles[0];
+					append(idAllele);
+					if(phased) {
+						for(int i=1;i<ploidy;i++) {
+							append('|');
+							append(idAllele);
+						}
+					} else if(ploidy>1) {
+						append('/');
+						append(idAllele);
+					}
+				} else {
+					//Heterozygous call
+					byte [] finalAlleles = idxsCalledAlleles;
+					if(phased) finalAlleles = var.getIndexesPhasedAlleles();
+					for(int i=0;i<finalAlleles.length;i++) {
+						if(i>0) append(phased?'|':'/');
+						append(finalAlleles[i]);
+					}
+				}
+			} else if (formatIdx == VCFRecord.FORMAT_IDX_PL) {
+				//Phred likelihoods
+				boolean logConditionalsPresent = report!=null && report.logConditionalsPresent();
+				for(int j=0;j<alleles.length;j++) {
+					for(int i=0;i<=j;i++) {
+						if(i>0 || j>0) append(',');
+						int condPhred = 0;
+						if(logConditionalsPresent) {
+							condPhred = (int) Math.round(-10*report.getLogConditionalProbability(alleles[i], alleles[j]));
+						}
+						append(condPhred);
+					}
+				}
+			} else if (formatIdx == VCFRecord.FORMAT_IDX_GL) {
+				//Likelihoods not phred scaled
+				boolean logConditionalsPresent = report!=null && report.logConditionalsPresent();
+				for(int j=0;j<alleles.length;j++) {
+					for(int i=0;i<=j;i++) {
+						if(i>0 || j>0) append(',');
+						double logCond = 0;
+						if(logConditionalsPresent) {
+							logCond = report.getLogConditionalProbability(alleles[i], alleles[j]);
+						}
+						appendDecimal(logCond);
+					}
+				}
+			} else if (formatIdx == VCFRecord.FORMAT_IDX_GQ) {
+				//Phred of the genotype posterior
+				append(var.getGenotypeQuality());
+			} else if (formatIdx == VCFRecord.FORMAT_IDX_ACN) {
+				//Local alleles copy number
+				short totalCopyNumber = var.getCopyNumber();
+				if(totalCopyNumber == 0) {
+					append(NO_INFO);
+					continue;
+				}
+				short [] varAllelesCopyNumber = var.getAllelesCopyNumber();
+				if(var.isUndecided()) varAllelesCopyNumber[0] = totalCopyNumber;
+				for(int j=0;j<varAllelesCopyNumber.length;j++) {
+					if(j>0) append(',');
+					append(varAllelesCopyNumber[j]);
+				}
+			} else if (formatIdx == VCFRecord.FORMAT_IDX_DP) {
+				//Read depth
+				append(var.getTotalReadDepth());
+			} else if (formatIdx == VCFRecord.FORMAT_IDX_ADP) {
+				boolean countsPresent = report!=null && report.countsPresent();
+				for(int i=0;i<alleles.length;i++) {
+					if(i>0) append(',');
+					append(countsPresent?report.getCount(alleles[i]):0);
+				}
+			} else if (formatIdx == VCFRecord.FORMAT_IDX_BSDP) {
+				int [] allCounts = var.getAllCounts();
+				if(allCounts == null) {
+					append("0,0,0,0");
+					continue;
+				}
+				for(int i=0;i<allCounts.length;i++) {
+					if(i>0) append(',');
+					append(allCounts[i]);
+				}
+			} else if (formatIdx == VCFRecord.FORMAT_IDX_RNC) {
+				//Num copies
+				if(cnv==null) {
+					append(NO_INFO);
+					continue;
+				}
+				appendDecimal(cnv.getNumCopies());
+			} else if (formatIdx == VCFRecord.FORMAT_IDX_NTADF) {
+				//Num tandem duplication fragments
+				if(cnv==null) {
+					append(NO_INFO);
+					continue;
+				}
+				append(cnv.getTandemFragments());
+			} else if (formatIdx == VCFRecord.FORMAT_IDX_NTRDF) {
+				//Num trans duplication fragments
+				if(cnv==null) {
+					append(NO_INFO);
+					continue;
+				}
+				append(cnv.getTransDupFragments());
+			} else if (formatIdx == VCFRecord.FORMAT_IDX_TGEN) {
+				//Text genotype
+				if(cnv==null) {
+					append(NO_INFO);
+					continue;
+				}
+				append(String.valueOf(cnv.getTextGenotype()));
+			} else if (formatIdx == VCFRecord.FORMAT_IDX_NSF) {
+				//TODO: NSF is more for SVs than for only CNVs
+				if(cnv==null) {
+					append(NO_INFO);
+					continue;
+				}
+				append(cnv.getTotalReadDepth());
+			}
+		}
+	}
+
+	private void appendObject(Object o) {
+		if(o instanceof Double) appendDecimal((Double)o);
+		else if (o instanceof Integer || o instanceof Short || o instanceof Byte || o instanceof Long) append(((Number)o).longValue());
+		else append(o.toString());
+	}
+
+	private void ensureCapacity(int additional) {
+		int required = length+additional;
+		if(required>buffer.length) buffer = Arrays.copyOf(buffer, Math.max(required, 2*buffer.length));
+	}
+
+	private void append(char c) {
+		if(length==buffer.length) ensureCapacity(1);
+		buffer[length++] = (byte)c;
+	}
+
+	private void append(byte [] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length+=bytes.length;
+	}
+
+	/**
+	 * Appends the given text. ASCII characters are copied directly. Other characters are encoded with the default charset
+	 * @param text Text to append
+	 */
+	private void append(String text) {
+		int n = text.length();
+		ensureCapacity(n);
+		for(int i=0;i<n;i++) {
+			char c = text.charAt(i);
+			if(c>=128) {
+				append(text.substring(i).getBytes(CHARSET));
+				return;
+			}
+			buffer[length++] = (byte)c;
+		}
+	}
+
+	/**
+	 * Appends the decimal representation of the given integer number
+	 * @param number Number to append
+	 */
+	private void append(long number) {
+		if(number==Long.MIN_VALUE) {
+			append(String.valueOf(number));
+			return;
+		}
+		//Maximum number of digits plus sign
+		ensureCapacity(20);
+		if(number<0) {
+			buffer[length++] = '-';
+			number = -number;
+		}
+		int start = length;
+		do {
+			buffer[length++] = (byte)('0'+(number%10));
+			number/=10;
+		} while (number>0);
+		//Reverse digits
+		for(int i=start,j=length-1;i<j;i++,j--) {
+			byte tmp = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = tmp;
+		}
+	}
+
+	/**
+	 * Appends the given number with at least one and at most two decimal places, as ParseUtils.ENGLISHFMT would format it.
+	 * Values too close to a rounding tie, large values and non finite values are formatted with DecimalFormat
+	 * @param number Number to append
+	 */
+	public void appendDecimal(double number) {
+		double abs = Math.abs(number);
+		double scaled = abs*100;
+		double rounded = Math.rint(scaled);
+		if(!(abs<MAX_FAST_DECIMAL) || Math.abs(Math.abs(scaled-Math.floor(scaled))-0.5)<MIN_DISTANCE_TIE) {
+			append(decimalFormat.format(number));
+			return;
+		}
+		long cents = (long)rounded;
+		//DecimalFormat keeps the sign of negative numbers rounded to zero
+		if(number<0 || (number==0 && 1/number<0)) append('-');
+		append(cents/100);
+		append('.');
+		int decimals = (int)(cents%100);
+		append((char)('0'+decimals/10));
+		if(decimals%10!=0) append((char)('0'+decimals%10));
+	}
+}
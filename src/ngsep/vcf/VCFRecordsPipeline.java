@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import ngsep.main.ProgressNotifier;
+import ngsep.main.ThreadPoolManager;
+
+/**
+ * Processes the records of a VCF file using multiple threads. The calling thread reads chunks of text lines
+ * and the threads of a pool parse the records and run the work required for each record. Results are delivered
+ * to a single consumer in the order of the file, or accumulated in one accumulator per thread that are merged
+ * at the end. With one thread, records are processed by the calling thread through the iterator of the reader.
+ * Tasks run by the pool should only read shared data structures.
+ * @author Jorge Duitama
+ */
+public class VCFRecordsPipeline {
+	public static final int DEF_NUM_THREADS = 1;
+	public static final int DEF_CHUNK_SIZE = 500;
+	private static final int PROGRESS_RECORDS = 1000;
+
+	private final VCFFileReader reader;
+	private int numThreads = DEF_NUM_THREADS;
+	private int chunkSize = DEF_CHUNK_SIZE;
+	private ProgressNotifier progressNotifier = null;
+	private long recordsRead = 0;
+
+	/**
+	 * Creates a pipeline to process the records of the given reader. The header should be processed before running the pipeline
+	 * @param reader Reader of the VCF file
+	 */
+	public VCFRecordsPipeline(VCFFileReader reader) {
+		this.reader = reader;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads must be a positive number. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	/**
+	 * @param chunkSize Number of text lines read and parsed together by one thread
+	 */
+	public void setChunkSize(int chunkSize) {
+		if(chunkSize<=0) throw new IllegalArgumentException("Chunk size must be a positive number. Given: "+chunkSize);
+		this.chunkSize = chunkSize;
+	}
+
+	public ProgressNotifier getProgressNotifier() {
+		return progressNotifier;
+	}
+	/**
+	 * @param progressNotifier Notifier called every 1000 records. Reading stops if the notifier requests it
+	 */
+	public void setProgressNotifier(ProgressNotifier progressNotifier) {
+		this.progressNotifier = progressNotifier;
+	}
+
+	/**
+	 * @return long Number of records or lines read so far
+	 */
+	public long getRecordsRead() {
+		return recordsRead;
+	}
+
+	/**
+	 * Parses the records and delivers them to the given consumer in the order of the file
+	 * @param consumer Receives the records. It is called by one thread at a time
+	 * @return boolean true if the whole file was processed, false if the progress notifier stopped the process
+	 * @throws IOException If the file can not be read
+	 */
+	public boolean process(Consumer<VCFRecord> consumer) throws IOException {
+		return process((r)->r, consumer);
+	}
+
+	/**
+	 * Runs the given task over each record and delivers the results to the given consumer in the order of the file.
+	 * Null results are not delivered
+	 * @param task Work to perform on each record. It is called by different threads
+	 * @param consumer Receives the results. It is called by one thread at a time
+	 * @return boolean true if the whole file was processed, false if the progress notifier stopped the process
+	 * @throws IOException If the file can not be read
+	 */
+	public <T> boolean process(Function<VCFRecord, T> task, Consumer<T> consumer) throws IOException {
+		if(numThreads==1) {
+			Iterator<VCFRecord> it = reader.iterator();
+			while(it.hasNext()) {
+				T result = task.apply(it.next());
+				if(result!=null) consumer.accept(result);
+				recordsRead++;
+				if(!notifyProgress(recordsRead)) return false;
+			}
+			return true;
+		}
+		return processChunks((records)-> {
+			List<T> results = new ArrayList<>(records.size());
+			for(VCFRecord record:records) {
+				T result = task.apply(record);
+				if(result!=null) results.add(result);
+			}
+			return results;
+		}, (results)->results.forEach(consumer));
+	}
+
+	/**
+	 * Runs the given task over chunks of consecutive records and delivers the results to the given consumer in the order
+	 * of the file. Chunks have at most chunkSize records. Null results are not delivered
+	 * @param task Work to perform on each chunk of records. It is called by different threads
+	 * @param consumer Receives the results. It is called by one thread at a time
+	 * @return boolean true if the whole file was processed, false if the progress notifier stopped the process
+	 * @throws IOException If the file can not be read
+	 */
+	public <T> boolean processChunks(Function<List<VCFRecord>, T> task, Consumer<T> consumer) throws IOException {
+		if(numThreads==1) {
+			Iterator<VCFRecord> it = reader.iterator();
+			List<VCFRecord> records = new ArrayList<>(chunkSize);
+			while(it.hasNext()) {
+				records.add(it.next());
+				recordsRead++;
+				if(records.size()==chunkSize) {
+					T result = task.apply(records);
+					if(result!=null) consumer.accept(result);
+					records = new ArrayList<>(chunkSize);
+				}
+				if(!notifyProgress(recordsRead)) return false;
+			}
+			if(records.size()>0) {
+				T result = task.apply(records);
+				if(result!=null) consumer.accept(result);
+			}
+			return true;
+		}
+		ThreadPoolManager pool = new ThreadPoolManager(numThreads, 2*numThreads);
+		try {
+			while(true) {
+				String [] lines = new String[chunkSize];
+				String [] sequenceNames = new String[chunkSize];
+				int n = reader.readRecordLines(lines, sequenceNames);
+				if(n==0) break;
+				pool.queueTask(()->task.apply(parseChunk(lines, sequenceNames, n)), (result)-> {
+					if(result!=null) consumer.accept(result);
+				});
+				if(!updateProgress(n)) return false;
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			terminate(pool);
+		}
+		return true;
+	}
+
+	/**
+	 * Accumulates the records in accumulators created for each thread. At the end, the accumulators are merged in one
+	 * of them. Merging should be independent of the order of the accumulators to obtain deterministic results
+	 * @param factory Creates empty accumulators
+	 * @param accumulator Updates an accumulator with a record. It is called by different threads with different accumulators
+	 * @param merger Merges the second accumulator into the first one
+	 * @return A Accumulator with the information of all records. Null if the progress notifier stopped the process
+	 * @throws IOException If the file can not be read
+	 */
+	public <A> A accumulate(Supplier<A> factory, BiConsumer<A, VCFRecord> accumulator, BiConsumer<A, A> merger) throws IOException {
+		if(numThreads==1) {
+			A answer = factory.get();
+			boolean completed = process((r)->{
+				accumulator.accept(answer, r);
+				return null;
+			},(r)->{});
+			return completed?answer:null;
+		}
+		List<A> accumulators = new ArrayList<>(numThreads);
+		ThreadLocal<A> threadAccumulator = ThreadLocal.withInitial(()-> {
+			A a = factory.get();
+			synchronized (accumulators) {
+				accumulators.add(a);
+			}
+			return a;
+		});
+		ThreadPoolManager pool = new ThreadPoolManager(numThreads, 2*numThreads);
+		try {
+			while(true) {
+				String [] lines = new String[chunkSize];
+				String [] sequenceNames = new String[chunkSize];
+				int n = reader.readRecordLines(lines, sequenceNames);
+				if(n==0) break;
+				pool.queueTask(()-> {
+					A a = threadAccumulator.get();
+					for(VCFRecord record:parseChunk(lines, sequenceNames, n)) accumulator.accept(a, record);
+				});
+				if(!updateProgress(n)) return null;
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			terminate(pool);
+		}
+		if(accumulators.size()==0) return factory.get();
+		A answer = accumulators.get(0);
+		for(int i=1;i<accumulators.size();i++) merger.accept(answer, accumulators.get(i));
+		return answer;
+	}
+
+	private List<VCFRecord> parseChunk(String [] lines, String [] sequenceNames, int n) {
+		List<VCFRecord> records = new ArrayList<>(n);
+		for(int i=0;i<n;i++) {
+			VCFRecord record = reader.loadVCFRecord(lines[i], sequenceNames[i]);
+			if(record!=null) records.add(record);
+		}
+		return records;
+	}
+
+	private boolean updateProgress(int n) {
+		long before = recordsRead;
+		recordsRead+=n;
+		//Notify once for each multiple of PROGRESS_RECORDS reached by this chunk
+		for(long next = (before/PROGRESS_RECORDS+1)*PROGRESS_RECORDS;next<=recordsRead;next+=PROGRESS_RECORDS) {
+			if(!notifyProgress(next)) return false;
+		}
+		return true;
+	}
+
+	private boolean notifyProgress(long n) {
+		if (progressNotifier!=null && n%PROGRESS_RECORDS==0) {
+			return progressNotifier.keepRunning((int)(n/PROGRESS_RECORDS));
+		}
+		return true;
+	}
+
+	private void terminate(ThreadPoolManager pool) {
+		try {
+			pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -25,7 +25,6 @@ import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -50,6 +49,7 @@ public class VCFSummaryStatisticsCalculator {
 	
 	// Constants for default values
 	public static final int DEF_MIN_SAMPLES_GENOTYPED = 20;
+	public static final int DEF_NUM_THREADS = VCFRecordsPipeline.DEF_NUM_THREADS;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(VCFSummaryStatisticsCalculator.class.getName());
@@ -59,6 +59,7 @@ public class VCFSummaryStatisticsCalculator {
 	private String inputFile = null;
 	private String outputFile = null;
 	private int minSamplesGenotyped = DEF_MIN_SAMPLES_GENOTYPED;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	// Model attributes
 	private static final String [] VARIANT_CATEGORIES= {"Biallelic SNVs","Biallelic Indels","Biallelic STRs","Other biallelic","Multiallelic SNVs","Multiallelic Indels","Multiallelic STRs","Other Multiallelic"};
@@ -115,6 +116,17 @@ public class VCFSummaryStatisticsCalculator {
 		this.setMinSamplesGenotyped((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<=0) throw new IllegalArgumentException("Number of threads must be a positive number. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	/**
 	 * @param args
 	 */
@@ -125,6 +137,7 @@ public class VCFSummaryStatisticsCalculator {
 	}
 	public void run() throws IOException {
 		log.info("Minimum number of samples genotyped for calculation of population statistics: "+getMinSamplesGenotyped());
+		log.info("Number of threads: "+numThreads);
 		if(inputFile==null) {
 			log.info("Reading from standard input");
 			if(outputFile == null) runStatistics(System.in, System.out);
@@ -165,22 +178,51 @@ public class VCFSummaryStatisticsCalculator {
 		in.setLoadMode(VCFFileReader.LOAD_MODE_COPY_NUMBER);
 		List<String> sampleIds = in.getHeader().getSampleIds();
 		initStatistics(sampleIds);
-		Iterator<VCFRecord> it = in.iterator();
-		int n=0;
-		while(it.hasNext()) {
-			VCFRecord record = it.next();
-			processRecord(record);
-			n++;
-			if (progressNotifier!=null && n%1000==0) {
-				int progress = n/1000;
-				if (!progressNotifier.keepRunning(progress)) {
-					out.flush();
-					return;
-				}
-			}
+		VCFRecordsPipeline pipeline = new VCFRecordsPipeline(in);
+		pipeline.setNumThreads(numThreads);
+		pipeline.setProgressNotifier(progressNotifier);
+		//Each thread updates its own statistics. Counts are merged at the end
+		VCFSummaryStatisticsCalculator totals = pipeline.accumulate(this::createPartialCalculator, VCFSummaryStatisticsCalculator::processRecord, VCFSummaryStatisticsCalculator::merge);
+		if(totals==null) {
+			out.flush();
+			return;
 		}
+		merge(totals);
 		printStatistics(out);
 	}
+	
+	private VCFSummaryStatisticsCalculator createPartialCalculator() {
+		VCFSummaryStatisticsCalculator answer = new VCFSummaryStatisticsCalculator();
+		answer.setLog(log);
+		answer.setMinSamplesGenotyped(minSamplesGenotyped);
+		answer.initStatistics(sampleIds);
+		return answer;
+	}
+	
+	private void merge(VCFSummaryStatisticsCalculator other) {
+		for(int i=0;i<VARIANT_CATEGORIES.length;i++) {
+			summaryCounts[i].merge(other.summaryCounts[i]);
+			totalGenotypeCalls[i] += other.totalGenotypeCalls[i];
+			mafDistribution[i].merge(other.mafDistribution[i]);
+			genotypedAccessionsDistribution[i].merge(other.genotypedAccessionsDistribution[i]);
+			for(int j=0;j<sampleIds.size();j++) {
+				countsPerSample[i][j].merge(other.countsPerSample[i][j]);
+			}
+		}
+		mergeDistributions(mafDistAnnBiallelicSNVs, other.mafDistAnnBiallelicSNVs);
+		mergeDistributions(mafDistAnnBiallelicNonSNVs, other.mafDistAnnBiallelicNonSNVs);
+	}
+	
+	private static void mergeDistributions(Map<String, Distribution> distributions, Map<String, Distribution> otherDistributions) {
+		for(Map.Entry<String, Distribution> entry:otherDistributions.entrySet()) {
+			Distribution d = distributions.get(entry.getKey());
+			if(d==null) {
+				d = new Distribution(0, 0.5, 0.01);
+				distributions.put(entry.getKey(), d);
+			}
+			d.merge(entry.getValue());
+		}
+	}
 
 	private void initStatistics(List<String> sampleIds) {
 		this.sampleIds = sampleIds;
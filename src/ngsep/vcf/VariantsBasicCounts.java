@@ -82,6 +82,32 @@ public class VariantsBasicCounts {
 		}
 	}
 
+	/**
+	 * Adds the counts of the given object to these counts
+	 * @param other Counts to add
+	 */
+	public void merge(VariantsBasicCounts other) {
+		genotyped+=other.genotyped;
+		nonReference+=other.nonReference;
+		homozygousAlternative+=other.homozygousAlternative;
+		heterozygous+=other.heterozygous;
+		transitions+=other.transitions;
+		homozygousAlternativeTransitions+=other.homozygousAlternativeTransitions;
+		heterozygousTransitions+=other.heterozygousTransitions;
+		addAll(totalCountsPerAnnotation, other.totalCountsPerAnnotation);
+		addAll(hetCountsPerAnnotation, other.hetCountsPerAnnotation);
+		addAll(transitionCountsPerAnnotation, other.transitionCountsPerAnnotation);
+		genotypedPopCounts+=other.genotypedPopCounts;
+		rareAllele+=other.rareAllele;
+		uniqueAllele+=other.uniqueAllele;
+	}
+	
+	private static void addAll(Map<String, Integer> countsMap, Map<String, Integer> otherCounts) {
+		for(Map.Entry<String, Integer> entry:otherCounts.entrySet()) {
+			countsMap.merge(entry.getKey(), entry.getValue(), Integer::sum);
+		}
+	}
+
 	private static void add1(Map<String, Integer> countsMap, String key) {
 		if(key==null) return;
 		Integer count = countsMap.get(key);
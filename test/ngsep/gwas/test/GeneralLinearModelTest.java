@@ -0,0 +1,185 @@
+package ngsep.gwas.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+import ngsep.gwas.GeneralLinearModel;
+
+public class GeneralLinearModelTest extends TestCase {
+	private static final String VCF = 
+		"##fileformat=VCFv4.2\n"+
+		"#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\tS2\tS3\tS4\tS5\n"+
+		"chr1\t100\t.\tA\tG\t50\tPASS\t.\tGT\t0/0\t0/1\t1/1\t0/1\t1/1\n"+
+		"chr1\t200\t.\tC\tT\t50\tPASS\t.\tGT\t0/0\t0/0\t0/0\t0/0\t0/0\n"+
+		"chr1\t300\t.\tG\tA\t50\tPASS\t.\tGT\t1/1\t0/1\t./.\t0/0\t0/1\n";
+	private static final double [] DOSAGES = {0, 1, 2, 1, 2};
+	private static final double [] PHENOTYPES = {1.0, 2.5, 2.9, 2.2, 4.8};
+	private static final double [] COVARIATE = {0.5, 1.5, -1, 2, 0.3};
+	private static final double PRECISION = 1e-10;
+	
+	public void testSimpleRegression() throws IOException {
+		//The fifth sample does not have phenotype, so only four samples are used
+		File phenotypes = createFile("sample,phenotype\nS1,1.0\nS2,2.5\nS3,2.9\nS4,2.2\nS5,NA\n");
+		String [][] results = run(new GeneralLinearModel(), phenotypes);
+		assertEquals(3, results.length);
+		int n = 4;
+		double meanG = mean(DOSAGES, n);
+		double meanY = mean(PHENOTYPES, n);
+		double sxx = 0, sxy = 0, syy = 0;
+		for(int i=0;i<n;i++) {
+			sxx += (DOSAGES[i]-meanG)*(DOSAGES[i]-meanG);
+			sxy += (DOSAGES[i]-meanG)*(PHENOTYPES[i]-meanY);
+			syy += (PHENOTYPES[i]-meanY)*(PHENOTYPES[i]-meanY);
+		}
+		double beta = sxy/sxx;
+		double rss = syy - beta*sxy;
+		double se = Math.sqrt(rss/(n-2)/sxx);
+		double t = beta/se;
+		assertEquals("chr1", results[0][0]);
+		assertEquals("100", results[0][1]);
+		//Only samples with phenotype are counted
+		assertEquals("4", results[0][3]);
+		assertEquals(beta, Double.parseDouble(results[0][4]), PRECISION);
+		assertEquals(se, Double.parseDouble(results[0][5]), PRECISION);
+		assertEquals(t, Double.parseDouble(results[0][6]), PRECISION);
+		assertEquals(sxy*sxy/(sxx*syy), Double.parseDouble(results[0][7]), PRECISION);
+		assertEquals(pValueTwoDF(t), Double.parseDouble(results[0][8]), PRECISION);
+		assertNotTested(results[1]);
+	}
+	
+	public void testCollinearCovariate() throws IOException {
+		File phenotypes = createFile("sample,phenotype\nS1,1.0\nS2,2.5\nS3,2.9\nS4,2.2\nS5,4.8\n");
+		//The second covariate is twice the first one and it should be excluded from the model
+		StringBuilder covariates = new StringBuilder("sample\tc1\tc2\n");
+		for(int i=0;i<COVARIATE.length;i++) covariates.append("S"+(i+1)+"\t"+COVARIATE[i]+"\t"+(2*COVARIATE[i])+"\n");
+		GeneralLinearModel glm = new GeneralLinearModel();
+		glm.setCovariatesFile(createFile(covariates.toString()).getAbsolutePath());
+		String [][] results = run(glm, phenotypes);
+		//Least squares solution of y = b0 + b1*c + b2*g from the normal equations
+		int n = 5;
+		double [][] x = new double [n][];
+		for(int i=0;i<n;i++) x[i] = new double[] {1, COVARIATE[i], DOSAGES[i]};
+		double [][] xtxInv = invert(multiplyTransposed(x));
+		double [] xty = new double [3];
+		for(int i=0;i<n;i++) for(int j=0;j<3;j++) xty[j]+=x[i][j]*PHENOTYPES[i];
+		double [] b = new double [3];
+		for(int j=0;j<3;j++) for(int k=0;k<3;k++) b[j]+=xtxInv[j][k]*xty[k];
+		double rss = 0;
+		for(int i=0;i<n;i++) {
+			double residual = PHENOTYPES[i]-b[0]-b[1]*COVARIATE[i]-b[2]*DOSAGES[i];
+			rss+=residual*residual;
+		}
+		int df = n-3;
+		double se = Math.sqrt(rss/df*xtxInv[2][2]);
+		double t = b[2]/se;
+		assertEquals(b[2], Double.parseDouble(results[0][4]), PRECISION);
+		assertEquals(se, Double.parseDouble(results[0][5]), PRECISION);
+		assertEquals(t, Double.parseDouble(results[0][6]), PRECISION);
+		assertEquals(pValueTwoDF(t), Double.parseDouble(results[0][8]), PRECISION);
+		assertNotTested(results[1]);
+		//Missing genotype replaced by the average dosage
+		assertEquals("4", results[2][3]);
+	}
+	
+	public void testMarkerExplainedByCovariate() throws IOException {
+		File phenotypes = createFile("sample,phenotype\nS1,1.0\nS2,2.5\nS3,2.9\nS4,2.2\nS5,4.8\n");
+		StringBuilder covariates = new StringBuilder("sample,c1\n");
+		for(int i=0;i<DOSAGES.length;i++) covariates.append("S"+(i+1)+","+(3*DOSAGES[i]+1)+"\n");
+		GeneralLinearModel glm = new GeneralLinearModel();
+		glm.setCovariatesFile(createFile(covariates.toString()).getAbsolutePath());
+		String [][] results = run(glm, phenotypes);
+		assertNotTested(results[0]);
+		assertNotTested(results[1]);
+		assertFalse("NA".equals(results[2][4]));
+	}
+	
+	public void testThreadsConsistency() throws IOException {
+		File phenotypes = createFile("sample,phenotype\nS1,1.0\nS2,2.5\nS3,2.9\nS4,2.2\nS5,4.8\n");
+		String [][] expected = run(new GeneralLinearModel(), phenotypes);
+		GeneralLinearModel glm = new GeneralLinearModel();
+		glm.setNumThreads(3);
+		glm.setBlockSize(1);
+		String [][] results = run(glm, phenotypes);
+		assertEquals(expected.length, results.length);
+		for(int i=0;i<expected.length;i++) assertEquals(String.join("\t", expected[i]), String.join("\t", results[i]));
+	}
+	
+	private String [][] run(GeneralLinearModel glm, File phenotypes) throws IOException {
+		File vcf = createFile(VCF);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try (PrintStream out = new PrintStream(os)) {
+			glm.process(vcf.getAbsolutePath(), phenotypes.getAbsolutePath(), out);
+		}
+		String [] lines = os.toString().split("\n");
+		assertTrue(lines[0].startsWith("#Chr"));
+		String [][] answer = new String [lines.length-1][];
+		for(int i=1;i<lines.length;i++) answer[i-1] = lines[i].trim().split("\t");
+		return answer;
+	}
+	
+	private void assertNotTested(String [] result) {
+		for(int i=4;i<result.length;i++) assertEquals("NA", result[i]);
+	}
+	
+	/**
+	 * Two sided p-value of the t distribution with two degrees of freedom, which has a closed form
+	 */
+	private double pValueTwoDF(double t) {
+		return 1 - Math.abs(t)/Math.sqrt(2+t*t);
+	}
+	
+	private double mean(double [] values, int n) {
+		double sum = 0;
+		for(int i=0;i<n;i++) sum+=values[i];
+		return sum/n;
+	}
+	
+	private double [][] multiplyTransposed(double [][] x) {
+		int k = x[0].length;
+		double [][] answer = new double [k][k];
+		for(double [] row:x) {
+			for(int i=0;i<k;i++) for(int j=0;j<k;j++) answer[i][j]+=row[i]*row[j];
+		}
+		return answer;
+	}
+	
+	/**
+	 * Gauss-Jordan inversion with partial pivoting
+	 */
+	private double [][] invert(double [][] matrix) {
+		int k = matrix.length;
+		double [][] a = new double [k][2*k];
+		for(int i=0;i<k;i++) {
+			System.arraycopy(matrix[i], 0, a[i], 0, k);
+			a[i][k+i] = 1;
+		}
+		for(int c=0;c<k;c++) {
+			int pivot = c;
+			for(int r=c+1;r<k;r++) if(Math.abs(a[r][c])>Math.abs(a[pivot][c])) pivot = r;
+			double [] tmp = a[c];
+			a[c] = a[pivot];
+			a[pivot] = tmp;
+			double p = a[c][c];
+			for(int j=0;j<2*k;j++) a[c][j]/=p;
+			for(int r=0;r<k;r++) {
+				if(r==c) continue;
+				double f = a[r][c];
+				for(int j=0;j<2*k;j++) a[r][j]-=f*a[c][j];
+			}
+		}
+		double [][] answer = new double [k][k];
+		for(int i=0;i<k;i++) System.arraycopy(a[i], k, answer[i], 0, k);
+		return answer;
+	}
+	
+	private File createFile(String content) throws IOException {
+		File file = File.createTempFile("glmTest", ".txt");
+		file.deleteOnExit();
+		Files.write(file.toPath(), content.getBytes());
+		return file;
+	}
+}
@@ -0,0 +1,84 @@
+package ngsep.haplotyping.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import ngsep.haplotyping.HaplotypeBlock;
+import ngsep.haplotyping.HaplotypeFragment;
+import ngsep.variants.CalledGenomicVariant;
+import ngsep.variants.CalledSNV;
+
+public class HaplotypeBlockTest extends TestCase {
+
+	private static final byte U = CalledGenomicVariant.ALLELE_UNDECIDED;
+	private static final byte R = CalledGenomicVariant.ALLELE_REFERENCE;
+	private static final byte A = CalledGenomicVariant.ALLELE_ALTERNATIVE;
+
+	private List<CalledGenomicVariant> calls;
+
+	@Override
+	protected void setUp() {
+		calls = new ArrayList<>();
+		for(int i=0;i<10;i++) calls.add(new CalledSNV("chr1", 100*(i+1), 'A', 'C', CalledGenomicVariant.GENOTYPE_HETERO));
+	}
+
+	public void testSplitIndependentBlocks() {
+		HaplotypeBlock block = new HaplotypeBlock(calls);
+		//Added unsorted to check that fragments are sorted before splitting
+		block.addFragment(8, new byte [] {R,U});
+		block.addFragment(1, new byte [] {A,U,R});
+		block.addFragment(0, new byte [] {R,A});
+		block.addFragment(5, new byte [] {R,A});
+		block.addFragment(4, new byte [] {U,A,U,R});
+		block.addFragment(9, new byte [] {U});
+		List<HaplotypeBlock> blocks = block.splitIndependentBlocks();
+		checkBlocks(blocks);
+	}
+
+	public void testSplitIndependentBlocksWindow() {
+		HaplotypeBlock block = new HaplotypeBlock(calls);
+		block.addFragment(5, new byte [] {R,A});
+		block.addFragment(4, new byte [] {U,A,U,R});
+		block.addFragment(8, new byte [] {R,U});
+		List<HaplotypeBlock> blocks = block.splitIndependentBlocks(4, 9);
+		assertEquals(2, blocks.size());
+		checkBlock(blocks.get(0), new int [] {5,6,7}, new int [] {0,0}, new byte [][] {{A,U,R},{R,A}});
+		checkBlock(blocks.get(1), new int [] {8}, new int [] {0}, new byte [][] {{R}});
+		assertEquals(blocks.size(), block.splitIndependentBlocks().size());
+		try {
+			block.splitIndependentBlocks(5, 9);
+			fail("Fragments outside of the window should not be accepted");
+		} catch (IllegalArgumentException e) {
+			//Expected
+		}
+	}
+
+	public void testSplitWithoutFragments() {
+		assertEquals(0, new HaplotypeBlock(calls).splitIndependentBlocks().size());
+		assertEquals(0, new HaplotypeBlock(new ArrayList<>()).splitIndependentBlocks().size());
+	}
+
+	private void checkBlocks(List<HaplotypeBlock> blocks) {
+		//Columns 2, 4, 7 and 9 are not covered by decided calls
+		assertEquals(3, blocks.size());
+		//Column 2 is dropped from the second fragment because no fragment covers it
+		checkBlock(blocks.get(0), new int [] {0,1,3}, new int [] {0,1}, new byte [][] {{R,A},{A,R}});
+		//The internal undecided call is kept because column 6 is covered by another fragment
+		checkBlock(blocks.get(1), new int [] {5,6,7}, new int [] {0,0}, new byte [][] {{A,U,R},{R,A}});
+		checkBlock(blocks.get(2), new int [] {8}, new int [] {0}, new byte [][] {{R}});
+	}
+
+	private void checkBlock(HaplotypeBlock block, int [] columns, int [] firstColumns, byte [][] fragmentCalls) {
+		assertEquals(columns.length, block.getNumVariants());
+		for(int j=0;j<columns.length;j++) assertSame(calls.get(columns[j]), block.getVariant(j));
+		assertEquals(firstColumns.length, block.getNumFragments());
+		for(int i=0;i<firstColumns.length;i++) {
+			HaplotypeFragment fragment = block.getHaplotypeFragment(i);
+			assertEquals(firstColumns[i], fragment.getFirstColumn());
+			byte [] actual = fragment.getCalls();
+			assertEquals(fragmentCalls[i].length, actual.length);
+			for(int k=0;k<actual.length;k++) assertEquals(fragmentCalls[i][k], actual[k]);
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package ngsep.main.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import ngsep.main.ThreadPoolManager;
+
+public class ThreadPoolManagerTest extends TestCase {
+	
+	public void testOrderedDelivery() throws Exception {
+		ThreadPoolManager pool = new ThreadPoolManager(4, 8);
+		int n = 200;
+		List<Integer> delivered = new ArrayList<>();
+		AtomicInteger consumersRunning = new AtomicInteger();
+		AtomicInteger maxConsumersRunning = new AtomicInteger();
+		for(int i=0;i<n;i++) {
+			int id = i;
+			pool.queueTask(()-> {
+				//Later tasks finish first within each group of tasks
+				Thread.sleep((n-id)%5);
+				return id;
+			}, (result)-> {
+				int running = consumersRunning.incrementAndGet();
+				maxConsumersRunning.accumulateAndGet(running, Math::max);
+				delivered.add(result);
+				consumersRunning.decrementAndGet();
+			});
+		}
+		pool.terminatePool();
+		assertEquals(n, delivered.size());
+		for(int i=0;i<n;i++) assertEquals(i, delivered.get(i).intValue());
+		assertEquals(1, maxConsumersRunning.get());
+		assertEquals(n, pool.getTasksCompleted());
+	}
+	
+	public void testBoundedPendingTasks() throws Exception {
+		int numThreads = 2;
+		int maxTasks = 3;
+		ThreadPoolManager pool = new ThreadPoolManager(numThreads, maxTasks);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger submitted = new AtomicInteger();
+		Thread submitter = new Thread(()-> {
+			try {
+				for(int i=0;i<20;i++) {
+					pool.queueTask(()-> {
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							throw new RuntimeException(e);
+						}
+					});
+					submitted.incrementAndGet();
+				}
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		submitter.start();
+		waitStable(submitted);
+		//Running tasks plus queued tasks can not exceed the bound
+		assertEquals(numThreads+maxTasks, submitted.get());
+		assertTrue(submitter.isAlive());
+		release.countDown();
+		submitter.join();
+		pool.terminatePool();
+		assertEquals(20, submitted.get());
+		assertTrue(pool.getMaxQueueDepth()<=numThreads+maxTasks);
+	}
+	
+	public void testBoundedUndeliveredResults() throws Exception {
+		int numThreads = 2;
+		int maxTasks = 2;
+		ThreadPoolManager pool = new ThreadPoolManager(numThreads, maxTasks);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger submitted = new AtomicInteger();
+		List<Integer> delivered = new ArrayList<>();
+		Thread submitter = new Thread(()-> {
+			try {
+				for(int i=0;i<10;i++) {
+					int id = i;
+					pool.queueTask(()-> {
+						//The first task blocks the delivery of all results
+						if(id==0) release.await();
+						return id;
+					}, delivered::add);
+					submitted.incrementAndGet();
+				}
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		submitter.start();
+		waitStable(submitted);
+		//Finished tasks keep their slots until their results are delivered
+		assertEquals(numThreads+maxTasks, submitted.get());
+		assertEquals(0, delivered.size());
+		release.countDown();
+		submitter.join();
+		pool.terminatePool();
+		assertEquals(10, delivered.size());
+		for(int i=0;i<10;i++) assertEquals(i, delivered.get(i).intValue());
+	}
+	
+	public void testCallerRuns() throws Exception {
+		ThreadPoolManager pool = new ThreadPoolManager(1, 1);
+		pool.setCallerRuns(true);
+		CountDownLatch release = new CountDownLatch(1);
+		Thread caller = Thread.currentThread();
+		AtomicInteger runByCaller = new AtomicInteger();
+		for(int i=0;i<5;i++) {
+			pool.queueTask(()-> {
+				if(Thread.currentThread()==caller) runByCaller.incrementAndGet();
+				else {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		}
+		//One task running and one queued. The other three are run by the caller without blocking
+		assertEquals(3, runByCaller.get());
+		assertEquals(3, pool.getTasksRunByCaller());
+		release.countDown();
+		pool.terminatePool();
+		assertEquals(5, pool.getTasksCompleted());
+	}
+	
+	public void testFirstErrorPropagation() throws Exception {
+		ThreadPoolManager pool = new ThreadPoolManager(1, 10);
+		IllegalStateException first = new IllegalStateException("first");
+		IllegalArgumentException second = new IllegalArgumentException("second");
+		AtomicInteger completed = new AtomicInteger();
+		pool.queueTask(()->completed.incrementAndGet());
+		pool.queueTask(()-> {throw first;});
+		pool.queueTask(()-> {throw second;});
+		pool.queueTask(()->completed.incrementAndGet());
+		try {
+			pool.terminatePool();
+			fail("Error of the tasks not propagated");
+		} catch (IllegalStateException e) {
+			assertSame(first, e);
+		}
+		//Tasks after the failure still run
+		assertEquals(2, completed.get());
+		//Further calls report the same error
+		try {
+			pool.terminatePool();
+			fail("Error not propagated in the second call");
+		} catch (IllegalStateException e) {
+			assertSame(first, e);
+		}
+	}
+	
+	public void testErrorInOrderedTask() throws Exception {
+		ThreadPoolManager pool = new ThreadPoolManager(3, 3);
+		List<Integer> delivered = new ArrayList<>();
+		for(int i=0;i<10;i++) {
+			int id = i;
+			pool.queueTask(()-> {
+				if(id==4) throw new IOException("Failed task "+id);
+				return id;
+			}, delivered::add);
+		}
+		try {
+			pool.terminatePool();
+			fail("Error of the tasks not propagated");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof IOException);
+			assertEquals("Failed task 4", e.getCause().getMessage());
+		}
+		//Results of failed tasks are skipped and the order of the others is kept
+		assertEquals(9, delivered.size());
+		for(int i=0;i<9;i++) assertEquals((i<4)?i:i+1, delivered.get(i).intValue());
+	}
+	
+	public void testConsumerSubmitsTasks() throws Exception {
+		ThreadPoolManager pool = new ThreadPoolManager(2, 2);
+		int n = 50;
+		List<Integer> delivered = new ArrayList<>();
+		AtomicInteger unorderedRun = new AtomicInteger();
+		for(int i=0;i<n;i++) {
+			int id = i;
+			pool.queueTask(()->id, (result)-> {
+				delivered.add(result);
+				try {
+					//Submitting from a consumer must not wait for the delivery of the results behind it
+					pool.queueTask(()->n+result, delivered::add);
+					pool.queueTask(()->unorderedRun.incrementAndGet());
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			});
+		}
+		pool.terminatePool();
+		assertEquals(2*n, delivered.size());
+		assertEquals(n, unorderedRun.get());
+		assertEquals(3*n, pool.getTasksCompleted());
+		//Each result is delivered before the result of the task submitted by its consumer
+		for(int i=0;i<n;i++) assertTrue(delivered.indexOf(i)<delivered.indexOf(n+i));
+	}
+	
+	public void testBlockingConsumer() throws Exception {
+		ThreadPoolManager pool = new ThreadPoolManager(2, 4);
+		CountDownLatch release = new CountDownLatch(1);
+		List<Integer> delivered = new ArrayList<>();
+		AtomicInteger unorderedRun = new AtomicInteger();
+		pool.queueTask(()->0, (result)-> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			delivered.add(result);
+		});
+		pool.queueTask(()->1, delivered::add);
+		for(int i=0;i<3;i++) pool.queueTask(()->unorderedRun.incrementAndGet());
+		waitStable(unorderedRun);
+		//The thread finishing the second task does not wait for the blocked consumer
+		assertEquals(3, unorderedRun.get());
+		assertEquals(0, delivered.size());
+		release.countDown();
+		pool.terminatePool();
+		assertEquals(2, delivered.size());
+		assertEquals(0, delivered.get(0).intValue());
+		assertEquals(1, delivered.get(1).intValue());
+	}
+	
+	/**
+	 * Waits until the given counter stops changing
+	 */
+	private void waitStable(AtomicInteger counter) throws InterruptedException {
+		int last = -1;
+		while(counter.get()!=last) {
+			last = counter.get();
+			Thread.sleep(200);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package ngsep.sequences.test;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import ngsep.sequences.DegenerateSequence;
+import ngsep.sequences.DegenerateSequenceMatcher;
+
+public class DegenerateSequenceMatcherTest extends TestCase {
+	
+	public void testFind() {
+		DegenerateSequenceMatcher matcher = new DegenerateSequenceMatcher("GCWGC");
+		assertEquals(2, matcher.find("AAGCTGCAA"));
+		assertEquals(2, matcher.find("AAGCAGCAAGCTGC"));
+		assertEquals(-1, matcher.find("AAGCCGCAA"));
+		assertEquals(-1, matcher.find("GCWG"));
+		assertEquals(0, new DegenerateSequenceMatcher("NNN").find("ACGT"));
+		assertEquals(-1, new DegenerateSequenceMatcher("NNN").find("ANGT"));
+		assertEquals(3, new DegenerateSequenceMatcher("RYB").find("CCCGTCA"));
+	}
+	
+	public void testInvalidBase() {
+		try {
+			new DegenerateSequenceMatcher("ACXT");
+			fail("Invalid base accepted");
+		} catch (IllegalArgumentException e) {
+			//Expected
+		}
+	}
+	
+	public void testAgreementWithRegularExpression() {
+		Random random = new Random(13);
+		String alphabet = DegenerateSequence.alphabet;
+		int [] lengths = {1, 2, 5, 13, 31, 63, 64, 65, 80, 130};
+		for(int length:lengths) {
+			for(int i=0;i<200;i++) {
+				StringBuilder pattern = new StringBuilder();
+				//Patterns with few degenerate bases are more likely to occur in random texts
+				for(int j=0;j<length;j++) {
+					if(random.nextInt(4)==0) pattern.append(alphabet.charAt(random.nextInt(alphabet.length())));
+					else pattern.append("ACGT".charAt(random.nextInt(4)));
+				}
+				String text = buildText(random, pattern.toString());
+				DegenerateSequenceMatcher matcher = new DegenerateSequenceMatcher(pattern.toString());
+				Matcher m = Pattern.compile(DegenerateSequence.makeRegularExpression(pattern.toString())).matcher(text);
+				int expected = m.find()?m.start():-1;
+				assertEquals("Pattern: "+pattern+" text: "+text, expected, matcher.find(text));
+			}
+		}
+	}
+	
+	/**
+	 * Builds a random text that includes in some cases an instance of the given pattern
+	 */
+	private String buildText(Random random, String pattern) {
+		StringBuilder text = new StringBuilder();
+		int n = random.nextInt(3*pattern.length()+20);
+		for(int i=0;i<n;i++) text.append("ACGTN".charAt(random.nextInt(5)));
+		if(random.nextBoolean()) {
+			int pos = random.nextInt(text.length()+1);
+			StringBuilder instance = new StringBuilder();
+			for(int i=0;i<pattern.length();i++) {
+				String bases = DegenerateSequence.getExtendedBases(pattern.charAt(i));
+				instance.append(bases.charAt(random.nextInt(bases.length())));
+			}
+			text.insert(pos, instance);
+			//Mutate the instance in some cases to test near matches
+			if(random.nextBoolean()) text.setCharAt(pos+random.nextInt(instance.length()), "ACGT".charAt(random.nextInt(4)));
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,173 @@
+package ngsep.sequences.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.sequences.DefaultKmersMapImpl;
+import ngsep.sequences.KmersMap;
+import ngsep.sequences.KmersMapBinaryFileHandler;
+import ngsep.sequences.ShortArrayDNAKmersMapImpl;
+
+public class KmersMapBinaryFileHandlerTest extends TestCase {
+	//Position of the layout in the header, after the magic string, the version and the k-mer length
+	private static final int LAYOUT_OFFSET = KmersMapBinaryFileHandler.MAGIC.length()+2;
+	private Random random = new Random(17);
+	
+	public void testDenseShortKmers() throws IOException {
+		//A map with many k-mers is saved with the dense layout
+		Map<String, Integer> expected = buildKmers(5, 600);
+		KmersMap map = new ShortArrayDNAKmersMapImpl((byte)5);
+		for(Map.Entry<String, Integer> entry:expected.entrySet()) map.setCount(entry.getKey(), entry.getValue());
+		File file = saveTemp(map, 5);
+		assertEquals(KmersMapBinaryFileHandler.LAYOUT_DENSE, readByte(file, LAYOUT_OFFSET));
+		assertLoaded(file, 5, expected, ShortArrayDNAKmersMapImpl.class);
+	}
+	
+	public void testSparseShortKmers() throws IOException {
+		Map<String, Integer> expected = buildKmers(11, 300);
+		KmersMap map = new ShortArrayDNAKmersMapImpl((byte)11);
+		for(Map.Entry<String, Integer> entry:expected.entrySet()) map.setCount(entry.getKey(), entry.getValue());
+		File file = saveTemp(map, 11);
+		assertEquals(KmersMapBinaryFileHandler.LAYOUT_SPARSE, readByte(file, LAYOUT_OFFSET));
+		assertLoaded(file, 11, expected, ShortArrayDNAKmersMapImpl.class);
+	}
+	
+	public void testSparseLongKmers() throws IOException {
+		for(int k:new int[] {16, 21, KmersMapBinaryFileHandler.MAX_KMER_LENGTH}) {
+			Map<String, Integer> expected = buildKmers(k, 500);
+			KmersMap map = new DefaultKmersMapImpl();
+			for(Map.Entry<String, Integer> entry:expected.entrySet()) map.setCount(entry.getKey(), entry.getValue());
+			File file = saveTemp(map, k);
+			assertEquals(KmersMapBinaryFileHandler.LAYOUT_SPARSE, readByte(file, LAYOUT_OFFSET));
+			assertLoaded(file, k, expected, DefaultKmersMapImpl.class);
+		}
+	}
+	
+	public void testInvalidMaps() throws IOException {
+		KmersMapBinaryFileHandler handler = new KmersMapBinaryFileHandler();
+		KmersMap map = new DefaultKmersMapImpl();
+		map.setCount("ACGTNACGTACGTACGT", 3);
+		try {
+			handler.save(map, 17, createTempFile().getAbsolutePath());
+			fail("Non DNA k-mer saved");
+		} catch (IOException e) {
+			//Expected
+		}
+		try {
+			handler.save(new ShortArrayDNAKmersMapImpl((byte)5), 32, createTempFile().getAbsolutePath());
+			fail("Unsupported k-mer length accepted");
+		} catch (IOException e) {
+			//Expected
+		}
+	}
+	
+	public void testTruncatedFiles() throws IOException {
+		KmersMap map = new ShortArrayDNAKmersMapImpl((byte)5);
+		for(Map.Entry<String, Integer> entry:buildKmers(5, 600).entrySet()) map.setCount(entry.getKey(), entry.getValue());
+		File dense = saveTemp(map, 5);
+		truncate(dense, dense.length()-1);
+		assertRejected(dense);
+		
+		map = new DefaultKmersMapImpl();
+		for(Map.Entry<String, Integer> entry:buildKmers(21, 100).entrySet()) map.setCount(entry.getKey(), entry.getValue());
+		File sparse = saveTemp(map, 21);
+		truncate(sparse, sparse.length()-3);
+		assertRejected(sparse);
+		//Header incomplete
+		truncate(sparse, 12);
+		assertRejected(sparse);
+		truncate(sparse, 4);
+		assertFalse(KmersMapBinaryFileHandler.isBinaryKmersMap(sparse.getAbsolutePath()));
+		assertRejected(sparse);
+	}
+	
+	public void testBadHeader() throws IOException {
+		KmersMap map = new DefaultKmersMapImpl();
+		for(Map.Entry<String, Integer> entry:buildKmers(21, 100).entrySet()) map.setCount(entry.getKey(), entry.getValue());
+		File file = saveTemp(map, 21);
+		assertTrue(KmersMapBinaryFileHandler.isBinaryKmersMap(file.getAbsolutePath()));
+		writeByte(file, 0, 'X');
+		assertFalse(KmersMapBinaryFileHandler.isBinaryKmersMap(file.getAbsolutePath()));
+		assertRejected(file);
+		
+		file = saveTemp(map, 21);
+		//Unsupported version
+		writeByte(file, KmersMapBinaryFileHandler.MAGIC.length(), 9);
+		assertRejected(file);
+		
+		file = saveTemp(map, 21);
+		//Dense layout is not supported for long k-mers
+		writeByte(file, LAYOUT_OFFSET, KmersMapBinaryFileHandler.LAYOUT_DENSE);
+		assertRejected(file);
+		
+		file = saveTemp(map, 21);
+		writeByte(file, LAYOUT_OFFSET, 5);
+		assertRejected(file);
+	}
+	
+	private Map<String, Integer> buildKmers(int k, int n) {
+		Map<String, Integer> kmers = new HashMap<>();
+		while(kmers.size()<n) {
+			StringBuilder kmer = new StringBuilder();
+			for(int i=0;i<k;i++) kmer.append("ACGT".charAt(random.nextInt(4)));
+			kmers.put(kmer.toString(), 1+random.nextInt(Short.MAX_VALUE));
+		}
+		return kmers;
+	}
+	
+	private void assertLoaded(File file, int k, Map<String, Integer> expected, Class<?> mapClass) throws IOException {
+		KmersMap loaded = new KmersMapBinaryFileHandler().load(file.getAbsolutePath());
+		assertEquals(mapClass, loaded.getClass());
+		assertEquals(k, KmersMapBinaryFileHandler.getKmerLength(loaded));
+		assertEquals(expected.size(), loaded.size());
+		for(Map.Entry<String, Integer> entry:expected.entrySet()) {
+			assertEquals(entry.getValue().intValue(), loaded.getCount(entry.getKey()));
+		}
+	}
+	
+	private void assertRejected(File file) {
+		try {
+			new KmersMapBinaryFileHandler().load(file.getAbsolutePath());
+			fail("Invalid file "+file+" loaded");
+		} catch (IOException e) {
+			//Expected
+		}
+	}
+	
+	private File saveTemp(KmersMap map, int k) throws IOException {
+		File file = createTempFile();
+		new KmersMapBinaryFileHandler().save(map, k, file.getAbsolutePath());
+		return file;
+	}
+	
+	private File createTempFile() throws IOException {
+		File file = File.createTempFile("kmersMap", ".bin");
+		file.deleteOnExit();
+		return file;
+	}
+	
+	private byte readByte(File file, long pos) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			raf.seek(pos);
+			return raf.readByte();
+		}
+	}
+	
+	private void writeByte(File file, long pos, int value) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(pos);
+			raf.writeByte(value);
+		}
+	}
+	
+	private void truncate(File file, long length) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(length);
+		}
+	}
+}
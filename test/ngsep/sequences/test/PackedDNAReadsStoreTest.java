@@ -0,0 +1,107 @@
+package ngsep.sequences.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.PackedDNAReadsStore;
+
+public class PackedDNAReadsStoreTest extends TestCase {
+	//Characters other than A, C, G and T stored as exceptions. X is not in the alphabet and should be stored as N
+	private static final String OTHER_CHARS = "NnacgtX";
+	//Blocks of 16 long integers store 512 base pairs
+	private static final int SMALL_BLOCK_BITS = 4;
+	private static final int SMALL_BLOCK_BP = 32<<SMALL_BLOCK_BITS;
+
+	public void testRandomReadsSmallBlocks() {
+		Random random = new Random(42);
+		PackedDNAReadsStore store = new PackedDNAReadsStore(SMALL_BLOCK_BITS);
+		List<DNAMaskedSequence> expected = new ArrayList<>();
+		long totalLength = 0;
+		int crossingReads = 0;
+		for(int i=0;i<3000;i++) {
+			String read = randomRead(random, random.nextInt(400));
+			if(read.length()>0 && totalLength/SMALL_BLOCK_BP != (totalLength+read.length()-1)/SMALL_BLOCK_BP) crossingReads++;
+			totalLength+=read.length();
+			assertEquals(i, store.add(read));
+			expected.add(new DNAMaskedSequence(read));
+			//Growing the last block must keep the reads already stored
+			if(i%500==0) checkReads(store, expected, random);
+		}
+		assertTrue(crossingReads>0);
+		assertEquals(totalLength, store.getTotalLength());
+		checkReads(store, expected, random);
+	}
+
+	public void testRandomReadsDefaultBlocks() {
+		Random random = new Random(7);
+		PackedDNAReadsStore store = new PackedDNAReadsStore();
+		List<DNAMaskedSequence> expected = new ArrayList<>();
+		for(int i=0;i<1000;i++) {
+			String read = randomRead(random, random.nextInt(300));
+			store.add(read);
+			expected.add(new DNAMaskedSequence(read));
+			if(i%100==0) checkReads(store, expected, random);
+		}
+		checkReads(store, expected, random);
+		//Only the used part of the last block should be allocated
+		assertTrue(store.getMemoryUsage()<1000000);
+	}
+
+	public void testInvalidBlockBits() {
+		try {
+			new PackedDNAReadsStore(3);
+			fail("Blocks smaller than 16 long integers should not be accepted");
+		} catch (IllegalArgumentException e) {
+			//Expected
+		}
+	}
+
+	private String randomRead(Random random, int length) {
+		StringBuilder read = new StringBuilder(length);
+		for(int j=0;j<length;j++) {
+			if(random.nextInt(10)==0) read.append(OTHER_CHARS.charAt(random.nextInt(OTHER_CHARS.length())));
+			else read.append("ACGT".charAt(random.nextInt(4)));
+		}
+		return read.toString();
+	}
+
+	private void checkReads(PackedDNAReadsStore store, List<DNAMaskedSequence> expected, Random random) {
+		assertEquals(expected.size(), store.size());
+		for(int i=0;i<expected.size();i++) {
+			DNAMaskedSequence expectedRead = expected.get(i);
+			String expectedForward = expectedRead.toString();
+			String expectedReverse = expectedRead.getReverseComplement().toString();
+			int n = expectedForward.length();
+			assertEquals(n, store.getLength(i));
+			CharSequence forward = store.getSequence(i);
+			CharSequence reverse = store.getReverseComplement(i);
+			assertEquals(n, forward.length());
+			assertEquals(n, reverse.length());
+			assertEquals(expectedForward, forward.toString());
+			assertEquals(expectedReverse, reverse.toString());
+			for(int j=0;j<n;j++) {
+				assertEquals(expectedForward.charAt(j), forward.charAt(j));
+				assertEquals(expectedReverse.charAt(j), reverse.charAt(j));
+			}
+			assertEquals(expectedForward, DNAMaskedSequence.getReverseComplement(reverse).toString());
+			assertEquals(expectedReverse, DNAMaskedSequence.getReverseComplement(forward).toString());
+			if(n==0) continue;
+			int start = random.nextInt(n);
+			int end = start+random.nextInt(n-start+1);
+			assertEquals(expectedForward.substring(start, end), forward.subSequence(start, end).toString());
+			CharSequence reverseSegment = reverse.subSequence(start, end);
+			assertEquals(expectedReverse.substring(start, end), reverseSegment.toString());
+			//Segments of segments of reverse complement views and their reverse complements
+			if(end>start) {
+				int start2 = random.nextInt(end-start);
+				int end2 = start2+random.nextInt(end-start-start2+1);
+				String expectedSegment = expectedReverse.substring(start+start2, start+end2);
+				assertEquals(expectedSegment, reverseSegment.subSequence(start2, end2).toString());
+				assertEquals(new DNAMaskedSequence(expectedSegment).getReverseComplement().toString(), DNAMaskedSequence.getReverseComplement(reverseSegment.subSequence(start2, end2)).toString());
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package ngsep.sequencing.test;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import ngsep.sequencing.BarcodeMap;
+
+public class BarcodeMapTest extends TestCase {
+	
+	public void testLongestExactPrefix() throws IOException {
+		BarcodeMap map = new BarcodeMap();
+		map.addSingleBarcode("ACGT", "S1");
+		map.addSingleBarcode("ACGTAA", "S2");
+		map.addSingleBarcode("TTGCA", "S3");
+		assertSample(map, "ACGTAAGGCTTA", "S2", "ACGTAA");
+		assertSample(map, "ACGTACGGCTTA", "S1", "ACGT");
+		assertSample(map, "TTGCAACGT", "S3", "TTGCA");
+		assertNull(map.getSampleIdByRead("ACGAAAGGCT"));
+		assertNull(map.getSampleIdByRead("ACG"));
+		//Exact matches are preferred over matches with one mismatch
+		map.setMaxMismatches(1);
+		assertSample(map, "ACGTACGGCTTA", "S1", "ACGT");
+	}
+	
+	public void testOneMismatch() throws IOException {
+		BarcodeMap map = new BarcodeMap();
+		map.addSingleBarcode("AACCTG", "S1");
+		map.addSingleBarcode("GGTTCA", "S2");
+		assertNull(map.getSampleIdByRead("AACGTGCATT"));
+		map.setMaxMismatches(1);
+		assertSample(map, "AACGTGCATT", "S1", "AACCTG");
+		assertSample(map, "TACCTGCATT", "S1", "AACCTG");
+		assertSample(map, "GGTTCTCATT", "S2", "GGTTCA");
+		//Two mismatches
+		assertNull(map.getSampleIdByRead("AAGGTGCATT"));
+		//Read shorter than the barcode
+		assertNull(map.getSampleIdByRead("AACG"));
+	}
+	
+	public void testAmbiguousMismatch() throws IOException {
+		BarcodeMap map = new BarcodeMap();
+		map.addSingleBarcode("AACCTG", "S1");
+		map.addSingleBarcode("AAGCTG", "S2");
+		map.setMaxMismatches(1);
+		//One mismatch with both barcodes
+		assertNull(map.getSampleIdByRead("AATCTGCATT"));
+		//One mismatch with S1 and two with S2
+		assertSample(map, "AACCTTCATT", "S1", "AACCTG");
+	}
+	
+	public void testAmbiguousLengths() throws IOException {
+		BarcodeMap map = new BarcodeMap();
+		map.addSingleBarcode("ACGT", "S1");
+		map.addSingleBarcode("ACGTTA", "S2");
+		map.setMaxMismatches(1);
+		//One mismatch with both barcodes at the same position
+		assertNull(map.getSampleIdByRead("ACCTTAGG"));
+	}
+	
+	public void testNInBarcode() throws IOException {
+		BarcodeMap map = new BarcodeMap();
+		map.addSingleBarcode("AACCTG", "S1");
+		map.addSingleBarcode("GGTTCA", "S2");
+		map.addSingleBarcode("AAGCTG", "S3");
+		assertNull(map.getSampleIdByRead("GGTNCAGATT"));
+		map.setMaxMismatches(1);
+		assertSample(map, "GGTNCAGATT", "S2", "GGTTCA");
+		//The N is the only mismatch with S1 and with S3
+		assertNull(map.getSampleIdByRead("AANCTGCATT"));
+		//Two mismatches counting the N
+		assertNull(map.getSampleIdByRead("GGTNCTGATT"));
+	}
+	
+	public void testDualBarcodes() throws IOException {
+		BarcodeMap map = new BarcodeMap();
+		map.addDualBarcode("AACCTG", "CCGGAT", "S1");
+		map.addDualBarcode("GGTTCA", "TTAACG", "S2");
+		map.setMaxMismatches(1);
+		String [] answer = map.getSampleIdByReadPair("AACCTGAAAA", "CCGCATAAAA");
+		assertNotNull(answer);
+		assertEquals("S1", answer[0]);
+		assertEquals("AACCTG", answer[1]);
+		assertEquals("CCGGAT", answer[2]);
+		//Both barcodes are found but they are not a registered pair
+		assertNull(map.getSampleIdByReadPair("AACCTGAAAA", "TTAACGAAAA"));
+	}
+	
+	private void assertSample(BarcodeMap map, String read, String sampleId, String barcode) {
+		String [] answer = map.getSampleIdByRead(read);
+		assertNotNull(answer);
+		assertEquals(sampleId, answer[0]);
+		assertEquals(barcode, answer[1]);
+	}
+}
@@ -0,0 +1,85 @@
+package ngsep.vcf.test;
+
+import java.nio.charset.Charset;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.vcf.VCFRecordEncoder;
+
+public class VCFRecordEncoderTest extends TestCase {
+	private DecimalFormat format = new DecimalFormat("##0.0#",DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+	private VCFRecordEncoder encoder = new VCFRecordEncoder();
+	
+	public void testSimpleDecimals() {
+		assertDecimal(0);
+		assertDecimal(1);
+		assertDecimal(-1);
+		assertDecimal(0.1);
+		assertDecimal(0.25);
+		assertDecimal(-3.14159);
+		assertDecimal(99.999);
+		assertDecimal(12.3);
+		assertEquals("0.0", encode(0));
+		assertEquals("-3.14", encode(-3.14159));
+		assertEquals("100.0", encode(99.999));
+	}
+	
+	public void testTies() {
+		//Ties at the third decimal place, some of them not exact in binary
+		double [] ties = {0.125, 0.135, 0.145, 0.005, 0.015, 1.005, 2.675, 1.115, 10.245, 123.455, 0.875, -0.125, -2.675, -1.005};
+		for(double value:ties) assertDecimal(value);
+		for(int i=-100000;i<=100000;i++) {
+			assertDecimal(i/1000.0);
+			assertDecimal(i/200.0);
+			assertDecimal(i/8.0);
+		}
+	}
+	
+	public void testNegativesRoundingToZero() {
+		double [] values = {-0.0, -0.001, -0.004, -0.0049, -0.005, -0.0051, -1E-10, -Double.MIN_VALUE};
+		for(double value:values) assertDecimal(value);
+		assertEquals("-0.0", encode(-0.001));
+	}
+	
+	public void testLargeValues() {
+		double [] values = {999999999.994, 999999999.995, 1E9, -1E9, 1E9+0.125, 123456789.987, 1E12+0.01, 1E15, 1E20, -1E20, Double.MAX_VALUE, -Double.MAX_VALUE};
+		for(double value:values) assertDecimal(value);
+	}
+	
+	public void testNonFinite() {
+		assertDecimal(Double.NaN);
+		assertDecimal(Double.POSITIVE_INFINITY);
+		assertDecimal(Double.NEGATIVE_INFINITY);
+	}
+	
+	public void testRandomValues() {
+		Random random = new Random(23);
+		for(int i=0;i<200000;i++) {
+			double scale = Math.pow(10, random.nextInt(12)-3);
+			assertDecimal((random.nextDouble()-0.5)*scale);
+		}
+	}
+	
+	public void testConsecutiveValues() {
+		encoder.reset();
+		encoder.appendDecimal(0.5);
+		encoder.appendDecimal(-12.344);
+		encoder.appendDecimal(3);
+		assertEquals("0.5-12.343.0", new String(encoder.getBuffer(), 0, encoder.length()));
+	}
+	
+	private void assertDecimal(double value) {
+		//Non ASCII symbols such as infinity are written with the default charset
+		String expected = new String(format.format(value).getBytes(Charset.defaultCharset()), Charset.defaultCharset());
+		assertEquals("Value: "+value, expected, encode(value));
+	}
+	
+	private String encode(double value) {
+		encoder.reset();
+		encoder.appendDecimal(value);
+		return new String(encoder.getBuffer(), 0, encoder.length(), Charset.defaultCharset());
+	}
+}